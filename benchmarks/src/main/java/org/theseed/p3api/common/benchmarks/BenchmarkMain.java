@@ -0,0 +1,44 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This is the entry point for the benchmark jar.  It accepts the standard JMH command-line options (for
+ * example, a regular expression to select benchmarks, or "-p seqCount=500" to override a parameter) and
+ * always attaches the GC profiler, so that each benchmark reports its allocation rate in addition to
+ * operations per second.  All the data is synthetic, so no network or input files are needed.
+ *
+ * 		java -jar target/benchmarks.jar [jmh options] [benchmark regex]
+ *
+ * The benchmarks are as follows.
+ *
+ * DnaDistBenchmark				pairwise DnaKmers distance loop from dnaDist
+ * ScaffoldSplitBenchmark		N/X scaffold-splitting loop from fastaG
+ * Md5ScanBenchmark				MD5 set membership scan from md5Check
+ * DistanceLookupBenchmark		genome-pair distance lookup from hammerX
+ * RnaMergeBenchmark			BLAST hit merging loop from rnaCheck
+ * VirtualQueryBenchmark		query-unit loop from roleCount and subFamily against a local stub server
+ * KmerSetBenchmark			string-based versus packed k-mer sets from dnaDist
+ * KmerCacheBenchmark			k-mer cache loading versus fresh computation from dnaDist
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options opts = new OptionsBuilder().parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class).build();
+        new Runner(opts).run();
+    }
+
+}
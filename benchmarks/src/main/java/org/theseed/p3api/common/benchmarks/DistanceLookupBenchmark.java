@@ -0,0 +1,100 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.p3api.common.HammerTestProcessor;
+import org.theseed.utils.StringPair;
+
+/**
+ * This benchmark measures the genome-pair distance lookup performed by "HammerTestProcessor.getDistance".
+ * The distance map and a batch of misses-file lines are built once during setup.  Each operation performs the
+ * two lookups made for every line in the batch (test-to-actual and test-to-expected), so the measurement
+ * contains no random-number generation.  As in a real distance file, every pair looked up is present.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistanceLookupBenchmark {
+
+    // FIELDS
+    /** number of genomes in the distance file */
+    @Param({ "500", "3000" })
+    private int genomeCount;
+    /** genome IDs */
+    private String[] genomes;
+    /** map of genome pairs to distances */
+    private Map<StringPair, Double> distanceMap;
+    /** number of misses-file lines per operation */
+    @Param({ "1000" })
+    private int lineCount;
+    /** test genome for each line */
+    private String[] tests;
+    /** actual genome for each line */
+    private String[] actuals;
+    /** expected genome for each line */
+    private String[] expecteds;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(1042L);
+        List<String> ids = SyntheticData.genomeIds(rand, this.genomeCount);
+        this.genomes = ids.toArray(new String[ids.size()]);
+        // Each genome gets distances to a block of its neighbors, as in a real distance file.
+        final int width = 20;
+        this.distanceMap = new HashMap<StringPair, Double>(this.genomeCount * width * 4 / 3);
+        for (int i = 0; i < this.genomeCount; i++) {
+            for (int j = 1; j <= width; j++) {
+                String other = this.genomes[(i + j) % this.genomeCount];
+                this.distanceMap.put(new StringPair(this.genomes[i], other), rand.nextDouble());
+            }
+        }
+        // Choose the misses-file lines.
+        this.tests = new String[this.lineCount];
+        this.actuals = new String[this.lineCount];
+        this.expecteds = new String[this.lineCount];
+        for (int k = 0; k < this.lineCount; k++) {
+            int i = rand.nextInt(this.genomeCount);
+            this.tests[k] = this.genomes[i];
+            this.actuals[k] = this.genomes[(i + 1 + rand.nextInt(width)) % this.genomeCount];
+            this.expecteds[k] = this.genomes[(i + 1 + rand.nextInt(width)) % this.genomeCount];
+        }
+    }
+
+    /**
+     * @return the sum of the distances for all the misses-file lines
+     */
+    @Benchmark
+    public double lookup() {
+        double retVal = 0.0;
+        for (int k = 0; k < this.lineCount; k++) {
+            retVal += HammerTestProcessor.getDistance(this.distanceMap, this.tests[k], this.actuals[k]);
+            retVal += HammerTestProcessor.getDistance(this.distanceMap, this.tests[k], this.expecteds[k]);
+        }
+        return retVal;
+    }
+
+}
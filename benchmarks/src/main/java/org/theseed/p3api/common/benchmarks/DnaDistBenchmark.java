@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.p3api.common.PairwiseDistanceEngine;
+import org.theseed.sequence.DnaKmers;
+
+/**
+ * This benchmark measures the pairwise distance loop in "DnaDistProcessor".  The k-mer sets are built once
+ * during setup; each operation is a full upper-triangle pass through the tiled distance engine used by the
+ * command, returning the maximum distance, either with a single worker thread or with one per processor.  A third benchmark measures the cost of building
+ * the k-mer sets themselves.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DnaDistBenchmark {
+
+    // FIELDS
+    /** number of sequences */
+    @Param({ "20", "100" })
+    private int seqCount;
+    /** length of each sequence */
+    @Param({ "2000", "10000" })
+    private int seqLen;
+    /** input sequences */
+    private List<String> seqs;
+    /** k-mer sets for the input sequences */
+    private List<DnaKmers> kmers;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(1042L);
+        this.seqs = SyntheticData.dnaFamily(rand, this.seqCount, this.seqLen, 0.05);
+        this.kmers = this.seqs.stream().map(x -> new DnaKmers(x)).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the maximum distance over all sequence pairs, computed by the distance engine on one thread
+     *
+     * @throws Exception
+     */
+    @Benchmark
+    public double allPairs() throws Exception {
+        PairwiseDistanceEngine<DnaKmers> engine = new PairwiseDistanceEngine<DnaKmers>(this.kmers,
+                (a, b) -> a.distance(b), 1);
+        return engine.run(false, (row, firstCol, dists) -> { });
+    }
+
+    /**
+     * @return the maximum distance over all sequence pairs, computed by the tiled parallel engine
+     *
+     * @throws Exception
+     */
+    @Benchmark
+    public double tiledPairs() throws Exception {
+        PairwiseDistanceEngine<DnaKmers> engine = new PairwiseDistanceEngine<DnaKmers>(this.kmers,
+                (a, b) -> a.distance(b), Runtime.getRuntime().availableProcessors());
+        return engine.run(false, (row, firstCol, dists) -> { });
+    }
+
+    /**
+     * @return the k-mer sets for all the input sequences
+     */
+    @Benchmark
+    public List<DnaKmers> buildKmers() {
+        return this.seqs.stream().map(x -> new DnaKmers(x)).collect(Collectors.toList());
+    }
+
+}
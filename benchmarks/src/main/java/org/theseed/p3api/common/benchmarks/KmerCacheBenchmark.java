@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.p3api.common.KmerCache;
+import org.theseed.p3api.common.MinHashSketch;
+import org.theseed.p3api.common.PackedDnaKmers;
+
+/**
+ * This benchmark compares loading k-mer data from the dnaDist k-mer cache with computing it from the sequences.
+ * The setup writes a cache file for a synthetic sequence family.  The "fresh" mode builds a sketch or packed
+ * k-mer set for every sequence, and the "cached" mode opens the cache, digests every sequence, and loads its
+ * arrays from the mapping, which is the work done by dnaDist on a fully-cached run.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KmerCacheBenchmark {
+
+    // FIELDS
+    /** TRUE to load from the cache, FALSE to compute */
+    @Param({ "fresh", "cached" })
+    private String mode;
+    /** kind of k-mer data */
+    @Param({ "sketch", "packed" })
+    private String kind;
+    /** number of sequences */
+    @Param({ "200" })
+    private int seqCount;
+    /** length of each sequence */
+    @Param({ "20000" })
+    private int seqLen;
+    /** input sequences */
+    private List<String> seqs;
+    /** cache file */
+    private File cacheFile;
+    /** k-mer size */
+    private static final int K = 21;
+    /** sketch size */
+    private static final int SKETCH_SIZE = 1000;
+
+    @Setup
+    public void setup() throws IOException {
+        Random rand = new Random(1042L);
+        this.seqs = SyntheticData.dnaFamily(rand, this.seqCount, this.seqLen, 0.05);
+        this.cacheFile = File.createTempFile("kmers", ".cache");
+        this.cacheFile.delete();
+        // Fill the cache.
+        KmerCache cache = this.openCache();
+        for (String seq : this.seqs) {
+            byte[] md5 = KmerCache.md5(seq);
+            if (this.kind.equals("packed"))
+                cache.put(md5, new PackedDnaKmers(seq, K).getKmers());
+            else {
+                MinHashSketch sketch = new MinHashSketch(seq, K, SKETCH_SIZE, 0);
+                cache.put(md5, sketch.getHashes(), sketch.getBins());
+            }
+        }
+        cache.save();
+    }
+
+    @TearDown
+    public void cleanup() {
+        this.cacheFile.delete();
+    }
+
+    /**
+     * @return a cache object for the current kind of data
+     *
+     * @throws IOException
+     */
+    private KmerCache openCache() throws IOException {
+        KmerCache retVal;
+        if (this.kind.equals("packed"))
+            retVal = KmerCache.open(this.cacheFile, KmerCache.PACKED, K, 0, 0);
+        else
+            retVal = KmerCache.open(this.cacheFile, KmerCache.SKETCHES, K, SKETCH_SIZE, 0);
+        return retVal;
+    }
+
+    /**
+     * @return the total size of the k-mer data for all the sequences
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public long load() throws IOException {
+        long retVal = 0;
+        if (this.mode.equals("cached")) {
+            KmerCache cache = this.openCache();
+            for (String seq : this.seqs)
+                retVal += cache.get(KmerCache.md5(seq))[0].length;
+        } else if (this.kind.equals("packed")) {
+            for (String seq : this.seqs)
+                retVal += new PackedDnaKmers(seq, K).size();
+        } else {
+            for (String seq : this.seqs)
+                retVal += new MinHashSketch(seq, K, SKETCH_SIZE, 0).size();
+        }
+        return retVal;
+    }
+
+}
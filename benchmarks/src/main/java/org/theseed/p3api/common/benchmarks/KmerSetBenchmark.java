@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.p3api.common.PackedDnaKmers;
+import org.theseed.sequence.DnaKmers;
+
+/**
+ * This benchmark compares the two exact k-mer set implementations available to dnaDist:  the string-based
+ * DnaKmers from the sequence library and the packed primitive PackedDnaKmers.  One benchmark builds the sets
+ * for all the sequences, and the other computes all the pairwise distances.  The GC profiler attached by
+ * BenchmarkMain shows the allocation rate of each; in addition, the setup prints the heap retained by the
+ * sets for each implementation, measured after a full collection.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KmerSetBenchmark {
+
+    // FIELDS
+    /** k-mer set implementation */
+    @Param({ "dna", "packed" })
+    private String impl;
+    /** number of sequences */
+    @Param({ "50" })
+    private int seqCount;
+    /** length of each sequence */
+    @Param({ "10000" })
+    private int seqLen;
+    /** input sequences */
+    private List<String> seqs;
+    /** string-based k-mer sets */
+    private List<DnaKmers> dnaSets;
+    /** packed k-mer sets */
+    private List<PackedDnaKmers> packedSets;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(1042L);
+        this.seqs = SyntheticData.dnaFamily(rand, this.seqCount, this.seqLen, 0.05);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long before = memory.getHeapMemoryUsage().getUsed();
+        if (this.impl.equals("packed"))
+            this.packedSets = this.buildPacked();
+        else
+            this.dnaSets = this.buildDna();
+        System.gc();
+        long after = memory.getHeapMemoryUsage().getUsed();
+        System.out.format("%n%s k-mer sets retain about %d bytes per sequence (%d bases).%n", this.impl,
+                (after - before) / this.seqCount, this.seqLen);
+    }
+
+    /**
+     * @return the string-based k-mer sets for the sequences
+     */
+    private List<DnaKmers> buildDna() {
+        List<DnaKmers> retVal = new ArrayList<DnaKmers>(this.seqs.size());
+        for (String seq : this.seqs)
+            retVal.add(new DnaKmers(seq));
+        return retVal;
+    }
+
+    /**
+     * @return the packed k-mer sets for the sequences
+     */
+    private List<PackedDnaKmers> buildPacked() {
+        final int k = DnaKmers.kmerSize();
+        List<PackedDnaKmers> retVal = new ArrayList<PackedDnaKmers>(this.seqs.size());
+        for (String seq : this.seqs)
+            retVal.add(new PackedDnaKmers(seq, k));
+        return retVal;
+    }
+
+    /**
+     * @return the k-mer sets for all the sequences
+     */
+    @Benchmark
+    public Object build() {
+        return (this.impl.equals("packed") ? this.buildPacked() : this.buildDna());
+    }
+
+    /**
+     * @return the maximum distance over all sequence pairs
+     */
+    @Benchmark
+    public double allPairs() {
+        double retVal = 0.0;
+        final int n = this.seqCount;
+        if (this.impl.equals("packed")) {
+            for (int i = 0; i < n; i++) {
+                PackedDnaKmers seqK = this.packedSets.get(i);
+                for (int j = i + 1; j < n; j++)
+                    retVal = Math.max(retVal, seqK.distance(this.packedSets.get(j)));
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                DnaKmers seqK = this.dnaSets.get(i);
+                for (int j = i + 1; j < n; j++)
+                    retVal = Math.max(retVal, seqK.distance(this.dnaSets.get(j)));
+            }
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.p3api.common.Md5CheckProcessor;
+
+/**
+ * This benchmark measures the MD5 membership scan in "Md5CheckProcessor.scanMd5s".  The MD5 set is
+ * loaded once during setup.  Each operation scans one genome's worth of feature MD5s, a configurable
+ * fraction of which are in the set, and returns the number found.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Md5ScanBenchmark {
+
+    // FIELDS
+    /** number of MD5s in the reference set */
+    @Param({ "100000", "2000000" })
+    private int setSize;
+    /** number of proteins in the scanned genome */
+    @Param({ "5000" })
+    private int genomeSize;
+    /** fraction of the genome's proteins found in the set */
+    @Param({ "0.5" })
+    private double hitRate;
+    /** set of reference MD5s */
+    private Set<String> md5Set;
+    /** MD5s of the genome proteins, as they would be read from the feature file */
+    private List<String> genomeMd5s;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(1042L);
+        List<String> refs = SyntheticData.randomMd5s(rand, this.setSize);
+        this.md5Set = new HashSet<String>(refs);
+        this.genomeMd5s = new ArrayList<String>(this.genomeSize);
+        for (int i = 0; i < this.genomeSize; i++) {
+            // Note we copy the found strings, since the real strings come from a parser and are not the
+            // same objects as the set members.
+            if (rand.nextDouble() < this.hitRate)
+                this.genomeMd5s.add(new String(refs.get(rand.nextInt(refs.size())).toCharArray()));
+            else
+                this.genomeMd5s.add(SyntheticData.randomMd5(rand));
+        }
+    }
+
+    /**
+     * @return the number of genome MD5s found in the set
+     */
+    @Benchmark
+    public int scan() {
+        return Md5CheckProcessor.scanMd5s("83333.1", this.genomeMd5s, x -> x, this.md5Set).getFound();
+    }
+
+}
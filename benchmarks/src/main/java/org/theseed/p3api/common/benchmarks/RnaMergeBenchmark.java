@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.p3api.common.RnaCheckProcessor;
+import org.theseed.p3api.common.RnaDescriptor;
+
+/**
+ * This benchmark measures the O(n^2) hit-merging loop used by "RnaCheckProcessor.blastForRna".  Merging modifies
+ * the descriptor locations, so a fresh set of hits is generated before each invocation.  The hit counts are
+ * large enough that the generation cost is small compared to the merge.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RnaMergeBenchmark {
+
+    // FIELDS
+    /** number of BLAST hits in the genome */
+    @Param({ "200", "2000" })
+    private int hitCount;
+    /** number of distinct RNA loci */
+    @Param({ "7", "100" })
+    private int lociCount;
+    /** random-number generator */
+    private Random rand;
+    /** hits to merge */
+    private List<RnaDescriptor> hits;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        this.rand = new Random(1042L);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        this.hits = SyntheticData.rnaHits(this.rand, this.hitCount, this.lociCount);
+    }
+
+    /**
+     * @return the merged descriptor list
+     */
+    @Benchmark
+    public List<RnaDescriptor> merge() {
+        List<RnaDescriptor> retVal = new ArrayList<RnaDescriptor>();
+        RnaCheckProcessor.mergeHits(retVal, this.hits);
+        return retVal;
+    }
+
+}
@@ -0,0 +1,64 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.theseed.p3api.common.FastaGenomeProcessor;
+
+/**
+ * This benchmark measures the N/X scaffold-splitting loop used by "FastaGenomeProcessor.runCommand".  Each
+ * operation splits one synthetic scaffolded contig and sends the fragments to a black hole.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScaffoldSplitBenchmark {
+
+    // FIELDS
+    /** length of the contig */
+    @Param({ "100000", "5000000" })
+    private int contigLen;
+    /** number of real nucleotides between ambiguity runs */
+    @Param({ "5000" })
+    private int interval;
+    /** scaffold size for the split */
+    private static final int SCAFFOLD_SIZE = 80;
+    /** contig to split */
+    private String dna;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(1042L);
+        this.dna = SyntheticData.scaffoldedDna(rand, this.contigLen, this.interval, SCAFFOLD_SIZE * 2);
+    }
+
+    /**
+     * @return the number of fragments produced
+     */
+    @Benchmark
+    public int split(Blackhole bh) {
+        return FastaGenomeProcessor.splitScaffolds(this.dna, SCAFFOLD_SIZE, (pos, idx, fragment) -> bh.consume(fragment));
+    }
+
+}
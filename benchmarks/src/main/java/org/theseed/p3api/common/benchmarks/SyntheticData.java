@@ -0,0 +1,156 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.theseed.locations.Location;
+import org.theseed.p3api.common.RnaDescriptor;
+
+/**
+ * This class contains static methods for generating synthetic benchmark data.  All of the generators
+ * take a caller-supplied random-number generator, so that a fixed seed produces the same data on every
+ * run and no network or disk access is needed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SyntheticData {
+
+    /** DNA alphabet */
+    private static final char[] DNA_CHARS = new char[] { 'a', 'c', 'g', 't' };
+    /** hexadecimal digits */
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return a random lower-case DNA sequence
+     *
+     * @param rand		random-number generator
+     * @param len		length of the sequence
+     */
+    public static String randomDna(Random rand, int len) {
+        char[] retVal = new char[len];
+        for (int i = 0; i < len; i++)
+            retVal[i] = DNA_CHARS[rand.nextInt(4)];
+        return new String(retVal);
+    }
+
+    /**
+     * Create a family of related DNA sequences.  Each sequence is a copy of a common ancestor with
+     * point mutations at the specified rate, so the pairwise distances are realistic rather than all
+     * close to 1.0.
+     *
+     * @param rand		random-number generator
+     * @param count		number of sequences to create
+     * @param len		length of each sequence
+     * @param rate		probability of a mutation at each position
+     *
+     * @return a list of the sequences
+     */
+    public static List<String> dnaFamily(Random rand, int count, int len, double rate) {
+        String ancestor = randomDna(rand, len);
+        List<String> retVal = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            char[] seq = ancestor.toCharArray();
+            for (int j = 0; j < len; j++) {
+                if (rand.nextDouble() < rate)
+                    seq[j] = DNA_CHARS[rand.nextInt(4)];
+            }
+            retVal.add(new String(seq));
+        }
+        return retVal;
+    }
+
+    /**
+     * Create a scaffolded DNA sequence.  The sequence consists of random DNA with runs of ambiguity
+     * characters inserted at regular intervals.  Every other run is long enough to trigger a scaffold
+     * break; the others are short and must be retained in the fragments.
+     *
+     * @param rand		random-number generator
+     * @param len		approximate length of the sequence
+     * @param interval	number of real nucleotides between ambiguity runs
+     * @param runLen	length of a scaffold-break run
+     *
+     * @return the scaffolded sequence
+     */
+    public static String scaffoldedDna(Random rand, int len, int interval, int runLen) {
+        StringBuilder retVal = new StringBuilder(len + runLen);
+        boolean longRun = true;
+        while (retVal.length() < len) {
+            retVal.append(randomDna(rand, interval));
+            int nLen = (longRun ? runLen : runLen / 4 + 1);
+            for (int i = 0; i < nLen; i++)
+                retVal.append(rand.nextBoolean() ? 'n' : 'x');
+            longRun = ! longRun;
+        }
+        return retVal.toString();
+    }
+
+    /**
+     * @return a random string of hexadecimal digits in the form of an MD5 checksum
+     *
+     * @param rand		random-number generator
+     */
+    public static String randomMd5(Random rand) {
+        char[] retVal = new char[32];
+        for (int i = 0; i < 32; i++)
+            retVal[i] = HEX_CHARS[rand.nextInt(16)];
+        return new String(retVal);
+    }
+
+    /**
+     * @return a list of random MD5 strings
+     *
+     * @param rand		random-number generator
+     * @param count		number of MD5s to create
+     */
+    public static List<String> randomMd5s(Random rand, int count) {
+        List<String> retVal = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            retVal.add(randomMd5(rand));
+        return retVal;
+    }
+
+    /**
+     * @return a list of PATRIC-style genome IDs
+     *
+     * @param rand		random-number generator
+     * @param count		number of genome IDs to create
+     */
+    public static List<String> genomeIds(Random rand, int count) {
+        List<String> retVal = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            retVal.add(Integer.toString(1000 + rand.nextInt(2000000)) + "." + Integer.toString(1 + rand.nextInt(9000)));
+        return retVal;
+    }
+
+    /**
+     * Create a list of BLAST-style RNA hits in a single genome.  The hits are clustered around a small
+     * number of RNA loci, so that many of them overlap and must be merged.  All the descriptors share
+     * the same genome ID string, as they would when created from the same genome.
+     *
+     * @param rand		random-number generator
+     * @param count		number of hits to create
+     * @param loci		number of distinct RNA loci
+     *
+     * @return a list of RNA descriptors
+     */
+    public static List<RnaDescriptor> rnaHits(Random rand, int count, int loci) {
+        final String genomeId = "83333.1";
+        final String genomeName = "Escherichia coli K-12";
+        List<RnaDescriptor> retVal = new ArrayList<RnaDescriptor>(count);
+        for (int i = 0; i < count; i++) {
+            int locus = rand.nextInt(loci);
+            String contigId = "83333.1.con.000" + (locus % 3 + 1);
+            int left = 10000 + locus * 50000 + rand.nextInt(400);
+            int right = left + 1000 + rand.nextInt(600);
+            Location loc = (locus % 2 == 0 ? Location.create(contigId, left, right) : Location.create(contigId, right, left));
+            retVal.add(new RnaDescriptor(genomeId, genomeName, loc, RnaDescriptor.Type.BLAST, "Bacteria;Proteobacteria;" + i));
+        }
+        return retVal;
+    }
+
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package org.theseed.p3api.common.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.theseed.p3api.common.CachedP3Connection;
+import org.theseed.p3api.common.ParallelDriver;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This benchmark measures the throughput of the query-unit loop used by roleCount, subFamily, and subsystemCheck
+ * when every unit is blocked on an HTTP round trip.  A local stub server answers each request after a fixed
+ * latency, standing in for PATRIC.  Each operation runs a fixed number of units through the parallel driver in
+ * one of three modes:  inline on a single thread, on a pool of platform threads, or on virtual threads.  The global
+ * request limit in {@link CachedP3Connection} is set to the number of units in flight, and the pool has that many
+ * threads, while the virtual mode takes its number of units in flight from the request limit, as in the commands.
+ * Both modes therefore keep the same number of units in flight, so the comparison measures only the cost of the
+ * threads.
+ *
+ * The virtual mode requires Java 21 to run the benchmark; on an older runtime it falls back to a platform pool
+ * and the result is the same as the "pool" mode.
+ *
+ * @author Bruce Parrello
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VirtualQueryBenchmark {
+
+    // FIELDS
+    /** execution mode */
+    @Param({ "inline", "pool", "virtual" })
+    private String mode;
+    /** number of query units per operation */
+    @Param({ "200" })
+    private int units;
+    /** latency of the stub server, in milliseconds */
+    @Param({ "20" })
+    private int latency;
+    /** number of units in flight in pool and virtual modes, and the global limit on requests in progress */
+    @Param({ "8", "64" })
+    private int inFlight;
+    /** stub server */
+    private HttpServer server;
+    /** executor for the stub server */
+    private ExecutorService serverPool;
+    /** URL of the stub server */
+    private URL url;
+    /** list of unit numbers to process */
+    private List<Integer> unitList;
+    /** stub response body */
+    private static final byte[] RESPONSE = "[{\"patric_id\":\"fig|83333.1.peg.1\",\"pgfam_id\":\"PGF_00000001\"}]"
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 512);
+        this.server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(this.latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESPONSE);
+            }
+        });
+        this.serverPool = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.serverPool);
+        this.server.start();
+        this.url = new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/");
+        CachedP3Connection.setRequestLimit(this.inFlight);
+        this.unitList = new ArrayList<Integer>(this.units);
+        for (int i = 0; i < this.units; i++)
+            this.unitList.add(i);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        this.server.stop(0);
+        this.serverPool.shutdownNow();
+        CachedP3Connection.setRequestLimit(0);
+    }
+
+    /**
+     * @return the total number of response bytes read for all the units
+     *
+     * @throws Exception
+     */
+    @Benchmark
+    public long runUnits() throws Exception {
+        ParallelDriver<Void> driver;
+        switch (this.mode) {
+        case "pool" :
+            // Each platform thread runs one unit at a time.
+            driver = new ParallelDriver<Void>(this.inFlight, () -> null);
+            break;
+        case "virtual" :
+            // The number of units in flight comes from the request limit.
+            driver = new ParallelDriver<Void>(1, () -> null, true);
+            break;
+        default :
+            driver = new ParallelDriver<Void>(1, () -> null);
+        }
+        final long[] total = new long[1];
+        driver.run(this.unitList, (unit, x) -> this.request(), n -> total[0] += n);
+        return total[0];
+    }
+
+    /**
+     * Perform one request against the stub server, respecting the request limit.
+     *
+     * @return the number of bytes in the response
+     *
+     * @throws IOException
+     */
+    private long request() throws IOException {
+        return CachedP3Connection.limitRequest(() -> {
+            HttpURLConnection conn = (HttpURLConnection) this.url.openConnection();
+            long retVal = 0;
+            try (InputStream in = conn.getInputStream()) {
+                byte[] buffer = new byte[1024];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                    retVal += n;
+            }
+            return retVal;
+        });
+    }
+
+}
@@ -1,7 +1,13 @@
 package org.theseed.p3api.common;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
 
 /**
@@ -16,7 +22,7 @@ import org.theseed.basic.BaseProcessor;
  * clean		remove obsolete genomes from a master genome directory
  * rnaCheck		verify SSU rRNA sequences against the SILVA database
  * rnaStats		compute statistics on SSU rRNA lengths
- * dnaDist		compute the maximum distance between DNA FASTA sequences
+ * dnaDist		compute the distance matrix or edge list for DNA FASTA sequences
  * binCheck		remove bad genomes from a binning reference genome FASTA
  * hammerX		check the misses from a hammer run against a distance file
  * essential	determine which features in a list are essential
@@ -26,18 +32,84 @@ import org.theseed.basic.BaseProcessor;
  * hammerComp	compare hammer counts to distances
  * md5Check		check a genome dump directory for MD5s in a protein list
  * vsynth		create synthetic viruses from other viruses in a FASTA
+ * synthData	generate a directory of synthetic genomes for performance testing
  * findBig		find the largest file of each type in a directory of directories
  * findAmr		find high-quality genomes in BV-BRC with AMR data
  * mergeCol		merge a column from one tab-delimited file into a single-column file
+ * batch		run a script of the above commands in a single JVM, sharing reference data
+ * server		run a persistent server that executes the above commands for AppClient
+ *
+ * Every command also accepts a "--metrics" option that names a file to receive performance metrics for the
+ * command (phase times, record and byte counts, and PATRIC call latencies).  The metrics are written in JSON
+ * format if the file name ends with ".json" and in Prometheus text format otherwise.
  *
  */
 public class App
 {
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(App.class);
+
     public static void main( String[] args )
     {
         // Get the control parameter.
         String command = args[0];
         String[] newArgs = Arrays.copyOfRange(args, 1, args.length);
+        runCommand(command, newArgs);
+    }
+
+    /**
+     * Run a single command.
+     *
+     * @param command	name of the command
+     * @param args		command-line arguments for the command
+     *
+     * @return TRUE if the command parsed successfully and was run, else FALSE
+     */
+    public static boolean runCommand(String command, String[] args) {
+        // Extract the metrics file, since the processors do not know about it.
+        File metricsFile = null;
+        List<String> cmdArgs = new ArrayList<String>(args.length);
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--metrics") && i + 1 < args.length) {
+                i++;
+                metricsFile = new File(args[i]);
+            } else if (args[i].startsWith("--metrics="))
+                metricsFile = new File(args[i].substring(10));
+            else
+                cmdArgs.add(args[i]);
+        }
+        BaseProcessor processor = createProcessor(command);
+        CommandMetrics metrics = CommandMetrics.start(command);
+        String status = "failed";
+        boolean retVal = false;
+        try {
+            retVal = processor.parseCommand(cmdArgs.toArray(new String[cmdArgs.size()]));
+            metrics.endValidate();
+            if (! retVal)
+                status = "parse_error";
+            else {
+                processor.run();
+                status = "ok";
+            }
+        } finally {
+            metrics.finish(status);
+            if (metricsFile != null) {
+                try {
+                    metrics.write(metricsFile);
+                } catch (IOException e) {
+                    log.error("Could not write metrics to {}: {}", metricsFile, e.toString());
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a processor for the specified command
+     *
+     * @param command	name of the command
+     */
+    public static BaseProcessor createProcessor(String command) {
         BaseProcessor processor;
         switch (command) {
         case "subcheck" :
@@ -103,6 +175,9 @@ public class App
         case "vsynth" :
             processor = new VSynthProcessor();
             break;
+        case "synthData" :
+            processor = new SynthDataProcessor();
+            break;
         case "findBig" :
             processor = new FindBigFileProcessor();
             break;
@@ -112,12 +187,15 @@ public class App
         case "mergeCol" :
             processor = new MergeColumnProcessor();
             break;
+        case "batch" :
+            processor = new BatchProcessor();
+            break;
+        case "server" :
+            processor = new ServerProcessor();
+            break;
         default :
             throw new RuntimeException("Invalid command " + command + ".");
         }
-        boolean ok = processor.parseCommand(newArgs);
-        if (ok) {
-            processor.run();
-        }
+        return processor;
     }
 }
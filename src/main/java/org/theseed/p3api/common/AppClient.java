@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * This is a thin client for the command server started by the "server" command.  It takes the same parameters
+ * as the main application, sends them to the server, forwards the standard input, and copies the command's
+ * standard output and error back to the caller.  The exit code of the process is the exit code of the command
+ * (0 for success, 1 for a parameter error, 2 for a failure during execution, and 3 if the server could not be
+ * reached).
+ *
+ * The server port can be specified with a leading "--port" option or the P3COMMON_PORT environment variable.
+ * The default is 7350.  The client authenticates with the access token the server wrote to its token file.  The
+ * token file can be specified with a leading "--token" option or the P3COMMON_TOKEN environment variable; the
+ * default is the same as the server's default for the port.
+ *
+ * 		java -cp p3api.common.jar org.theseed.p3api.common.AppClient [--port 7350] [--token file] command [args...]
+ *
+ * The server resolves relative file names against its own working directory, so the client must be run from the
+ * directory in which the server was started.  The client sends its working directory with each request, and the
+ * server refuses the request if it does not match.
+ *
+ * This class deliberately avoids the command-processing framework, so that it starts as quickly as possible.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class AppClient {
+
+    /** exit code for a connection failure */
+    private static final int EXIT_NO_SERVER = 3;
+
+    public static void main(String[] args) {
+        int port = ServerProtocol.DEFAULT_PORT;
+        String envPort = System.getenv("P3COMMON_PORT");
+        if (envPort != null)
+            port = Integer.parseInt(envPort);
+        String envToken = System.getenv("P3COMMON_TOKEN");
+        File tokenFile = (envToken == null ? null : new File(envToken));
+        int argStart = 0;
+        boolean options = true;
+        while (options && args.length >= argStart + 2) {
+            if (args[argStart].equals("--port")) {
+                port = Integer.parseInt(args[argStart + 1]);
+                argStart += 2;
+            } else if (args[argStart].equals("--token")) {
+                tokenFile = new File(args[argStart + 1]);
+                argStart += 2;
+            } else
+                options = false;
+        }
+        if (args.length <= argStart) {
+            System.err.println("No command specified.");
+            System.exit(ServerProtocol.EXIT_PARSE);
+        }
+        if (tokenFile == null)
+            tokenFile = ServerProtocol.defaultTokenFile(port);
+        String[] request = Arrays.copyOfRange(args, argStart, args.length);
+        int exitCode;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            String token = ServerProtocol.readToken(tokenFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            ServerProtocol.writeRequest(out, token, new File(System.getProperty("user.dir")), request);
+            // Pump the standard input to the server in the background.
+            Thread pump = new Thread(() -> pumpInput(System.in, out), "stdin-pump");
+            pump.setDaemon(true);
+            pump.start();
+            exitCode = readResponse(in);
+        } catch (IOException e) {
+            System.err.println("Error communicating with command server on port " + port + ": " + e.toString());
+            exitCode = EXIT_NO_SERVER;
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Copy the standard input to the server in INPUT frames.
+     *
+     * @param source	standard input stream
+     * @param out		output stream to the server
+     */
+    private static void pumpInput(InputStream source, DataOutputStream out) {
+        byte[] buffer = new byte[65536];
+        try {
+            int len = source.read(buffer);
+            while (len >= 0) {
+                ServerProtocol.writeFrame(out, ServerProtocol.INPUT, buffer, 0, len);
+                len = source.read(buffer);
+            }
+            ServerProtocol.writeFrame(out, ServerProtocol.INPUT, buffer, 0, 0);
+            synchronized (out) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The server has closed the connection.  It does not need any more input.
+        }
+    }
+
+    /**
+     * Copy the server's output frames to the standard output and error.
+     *
+     * @param in	input stream from the server
+     *
+     * @return the exit code of the command
+     *
+     * @throws IOException
+     */
+    private static int readResponse(DataInputStream in) throws IOException {
+        byte[] buffer = new byte[65536];
+        Integer retVal = null;
+        while (retVal == null) {
+            byte type = in.readByte();
+            int len = in.readInt();
+            if (type == ServerProtocol.EXIT)
+                retVal = in.readInt();
+            else {
+                if (len > buffer.length)
+                    buffer = new byte[len];
+                in.readFully(buffer, 0, len);
+                if (type == ServerProtocol.OUTPUT)
+                    System.out.write(buffer, 0, len);
+                else if (type == ServerProtocol.ERROR) {
+                    System.err.write(buffer, 0, len);
+                    System.err.flush();
+                } else
+                    throw new IOException("Invalid frame type " + (char) type + " from server.");
+            }
+        }
+        System.out.flush();
+        return retVal;
+    }
+
+}
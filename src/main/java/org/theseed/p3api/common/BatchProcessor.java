@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.io.LineReader;
+
+/**
+ * This command runs a script of other commands in a single JVM.  Heavy reference objects such as
+ * representative-genome databases, genome sources, and distance maps are kept in a shared resource cache,
+ * so that a later command using the same file does not have to load it again.  Running in a single JVM also
+ * means the startup and JIT warmup costs are only paid once.
+ *
+ * The positional parameter is the name of the script file.  Each non-blank line of the script contains a
+ * command name followed by the command's arguments, exactly as they would appear on the command line.
+ * Arguments are separated by white space, and may be enclosed in single or double quotes if they contain
+ * spaces.  Lines beginning with a pound sign (#) are comments.
+ *
+ * The command-line options are as follows.
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --cache		maximum number of reference objects to keep in the resource cache (default 20)
+ * --continue	if specified, the batch continues after a command fails
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class BatchProcessor extends BaseProcessor {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(BatchProcessor.class);
+    /** list of commands to run; each is a command name followed by its arguments */
+    private List<String[]> commands;
+
+    // COMMAND-LINE OPTIONS
+
+    /** resource cache capacity */
+    @Option(name = "--cache", metaVar = "10", usage = "maximum number of reference objects to keep in memory")
+    private int cacheSize;
+
+    /** if specified, failing commands will not stop the batch */
+    @Option(name = "--continue", usage = "if specified, the batch will continue after a command fails")
+    private boolean continueFlag;
+
+    /** script file */
+    @Argument(index = 0, metaVar = "script.txt", usage = "file of commands to run", required = true)
+    private File scriptFile;
+
+    @Override
+    protected void setDefaults() {
+        this.cacheSize = 20;
+        this.continueFlag = false;
+    }
+
+    @Override
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        if (this.cacheSize < 0)
+            throw new ParseFailureException("Cache size cannot be negative.");
+        if (! this.scriptFile.canRead())
+            throw new FileNotFoundException("Script file " + this.scriptFile + " is not found or unreadable.");
+        // Read the script and validate the command names.
+        this.commands = new ArrayList<String[]>();
+        try (LineReader scriptStream = new LineReader(this.scriptFile)) {
+            int lineCount = 0;
+            for (String line : scriptStream) {
+                lineCount++;
+                String[] tokens = parseLine(line);
+                if (tokens.length > 0 && ! tokens[0].startsWith("#")) {
+                    if (tokens[0].equals("batch") || tokens[0].equals("server"))
+                        throw new ParseFailureException("Command " + tokens[0] + " cannot be run in a batch (line "
+                                + lineCount + ").");
+                    try {
+                        App.createProcessor(tokens[0]);
+                    } catch (RuntimeException e) {
+                        throw new ParseFailureException("Invalid command \"" + tokens[0] + "\" in line " + lineCount
+                                + " of " + this.scriptFile + ".");
+                    }
+                    this.commands.add(tokens);
+                }
+            }
+        }
+        log.info("{} commands found in {}.", this.commands.size(), this.scriptFile);
+        return true;
+    }
+
+    @Override
+    protected void runCommand() throws Exception {
+        ResourceCache.setCapacity(this.cacheSize);
+        int cmdCount = 0;
+        int failCount = 0;
+        try {
+            for (String[] tokens : this.commands) {
+                cmdCount++;
+                String command = tokens[0];
+                String[] args = Arrays.copyOfRange(tokens, 1, tokens.length);
+                log.info("Running command {} of {}: {}.", cmdCount, this.commands.size(), StringUtils.join(tokens, ' '));
+                long start = System.currentTimeMillis();
+                boolean ok;
+                try {
+                    ok = App.runCommand(command, args);
+                } catch (RuntimeException e) {
+                    log.error("Command {} failed: {}", command, e.toString());
+                    ok = false;
+                }
+                if (ok)
+                    log.info("Command {} completed in {} seconds.", command, (System.currentTimeMillis() - start) / 1000.0);
+                else {
+                    failCount++;
+                    if (! this.continueFlag)
+                        throw new IOException("Batch aborted after failure of command " + cmdCount + " (" + command + ").");
+                }
+            }
+        } finally {
+            ResourceCache.logStats();
+            ResourceCache.clear();
+            ResourceCache.setCapacity(0);
+        }
+        log.info("{} commands run, {} failed.", cmdCount, failCount);
+    }
+
+    /**
+     * Split a script line into tokens.  Tokens are separated by white space, but a token enclosed in single or
+     * double quotes may contain white space.
+     *
+     * @param line		input line to parse
+     *
+     * @return an array of the tokens in the line
+     */
+    public static String[] parseLine(String line) {
+        List<String> retVal = new ArrayList<String>();
+        StringBuilder token = new StringBuilder(line.length());
+        boolean inToken = false;
+        char quote = 0;
+        final int n = line.length();
+        for (int i = 0; i < n; i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                // Here we are inside quotes.
+                if (c == quote)
+                    quote = 0;
+                else
+                    token.append(c);
+            } else if (c == '"' || c == '\'') {
+                // Here we are starting a quoted section.
+                quote = c;
+                inToken = true;
+            } else if (Character.isWhitespace(c)) {
+                // Here we are at a token boundary.
+                if (inToken) {
+                    retVal.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (inToken)
+            retVal.add(token.toString());
+        return retVal.toArray(new String[retVal.size()]);
+    }
+
+}
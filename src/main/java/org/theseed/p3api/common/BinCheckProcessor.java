@@ -10,6 +10,7 @@ import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
@@ -32,6 +33,9 @@ import com.github.cliftonlabs.json_simple.JsonObject;
  * -h	display command-line usage
  * -v	display more frequent log messages
  *
+ * --p3cache	directory for caching PATRIC query results (default none)
+ * --offline	if specified, PATRIC queries will only be answered from the cache
+ *
  * @author Bruce Parrello
  *
  */
@@ -43,6 +47,14 @@ public class BinCheckProcessor extends BaseProcessor {
 
     // COMMAND-LINE OPTIONS
 
+    /** directory for cached PATRIC query results */
+    @Option(name = "--p3cache", metaVar = "p3Cache", usage = "directory for caching PATRIC query results")
+    private File p3CacheDir;
+
+    /** if specified, PATRIC queries will only be answered from the cache */
+    @Option(name = "--offline", usage = "if specified, PATRIC queries will only be answered from the cache")
+    private boolean offline;
+
     /** input FASTA file */
     @Argument(index = 0, metaVar = "inFile.fa", usage = "input FASTA file", required = true)
     private File inFile;
@@ -53,10 +65,13 @@ public class BinCheckProcessor extends BaseProcessor {
 
     @Override
     protected void setDefaults() {
+        this.p3CacheDir = null;
+        this.offline = false;
     }
 
     @Override
     protected boolean validateParms() throws IOException, ParseFailureException {
+        CachedP3Connection.validateOptions(this.p3CacheDir, this.offline);
         // Insure the input file exists.
         if (! this.inFile.canRead())
             throw new FileNotFoundException("Input FASTA " + this.inFile + " is not found or unreadable.");
@@ -83,6 +98,7 @@ public class BinCheckProcessor extends BaseProcessor {
                     outStream.write(inSeq);
             }
         }
+        CommandMetrics.addRecords(readCount);
         log.info("{} genomes deleted.  {} read.", deleteCount, readCount);
     }
 
@@ -91,9 +107,10 @@ public class BinCheckProcessor extends BaseProcessor {
      */
     private Set<String> getGoodGenomes() {
         // Get a list of all the prokaryotic genomes.
-        var p3 = new P3Connection();
+        var p3 = new CachedP3Connection(this.p3CacheDir, this.offline);
         List<JsonObject> genomes = new ArrayList<JsonObject>(500000);
         p3.addAllProkaryotes(genomes);
+        p3.logStats();
         // Create a set of the genome IDs.
         var retVal = genomes.stream().map(x -> P3Connection.getString(x, "genome_id"))
                 .collect(Collectors.toSet());
@@ -0,0 +1,569 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.p3api.P3Connection;
+import org.theseed.p3api.P3Connection.Table;
+
+import com.github.cliftonlabs.json_simple.JsonArray;
+import com.github.cliftonlabs.json_simple.JsonException;
+import com.github.cliftonlabs.json_simple.JsonObject;
+import com.github.cliftonlabs.json_simple.Jsoner;
+
+/**
+ * This object wraps a PATRIC connection with a persistent on-disk cache.  Each query result is stored in the
+ * cache directory as a compressed JSON file, keyed by the table, the query criteria, and the field list.  A
+ * repeated query is answered from the cache without a network round trip.
+ *
+ * Entries older than the time-to-live are treated as missing and refreshed.  When the total size of the cache
+ * exceeds its limit, the oldest entries are deleted.  The default time-to-live is 24 hours and the default size
+ * limit is 1024 megabytes; these can be overridden with the P3_CACHE_TTL (hours) and P3_CACHE_SIZE (megabytes)
+ * environment variables.
+ *
+ * In offline mode, no connection to PATRIC is made, and a query not found in the cache is an error.  This
+ * allows the cache to be used as a local stand-in for PATRIC, either for re-running an analysis without the
+ * network or for testing.  The "put" methods can be used to seed the cache for such a stand-in.
+ *
+ * If no cache directory is specified, every query is passed through to PATRIC.
+ *
+ * The underlying PATRIC connections are kept in a pool and lent out for one request at a time, so a single cached
+ * connection can be shared by several threads (including virtual threads), and there are never more underlying
+ * connections than requests in progress.  The number of requests in progress across the whole process can be
+ * capped with {@link #setRequestLimit(int)}.  A long-running host such as the command server can fix the limit with
+ * {@link #lockRequestLimit(int)}, after which the limits requested by individual commands are ignored.  Each call to PATRIC and each cache hit is recorded in the current
+ * command's metrics.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CachedP3Connection {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(CachedP3Connection.class);
+    /** cache directory, or NULL if there is no cache */
+    private final File cacheDir;
+    /** TRUE if we are offline */
+    private final boolean offline;
+    /** time-to-live for cache entries, in milliseconds */
+    private final long ttl;
+    /** maximum size of the cache, in bytes */
+    private final long maxSize;
+    /** current size of the cache, in bytes */
+    private final AtomicLong cacheSize;
+    /** number of queries answered from the cache */
+    private final AtomicLong hits;
+    /** number of queries sent to PATRIC */
+    private final AtomicLong misses;
+    /** pool of idle PATRIC connections */
+    private final Queue<P3Connection> idleConnections;
+    /** global limit on concurrent PATRIC requests, or NULL if there is no limit */
+    private static volatile Semaphore requestLimit = null;
+    /** number of permits in the global request limit, or 0 if there is no limit */
+    private static volatile int requestLimitSize = 0;
+    /** TRUE if the request limit is owned by the host process and cannot be changed by commands */
+    private static boolean limitLocked = false;
+    /** suffix for cache files */
+    private static final String CACHE_SUFFIX = ".json.gz";
+
+    /**
+     * This interface describes a request subject to the global request limit.
+     *
+     * @param <T>	type of result
+     */
+    public interface LimitedRequest<T> {
+
+        /**
+         * @return the result of the request
+         *
+         * @throws IOException
+         */
+        public T run() throws IOException;
+
+    }
+
+    /**
+     * Verify the cache options for a command.
+     *
+     * @param cacheDir	cache directory, or NULL for no caching
+     * @param offline	TRUE if the command should not connect to PATRIC
+     *
+     * @throws ParseFailureException
+     */
+    public static void validateOptions(File cacheDir, boolean offline) throws ParseFailureException {
+        if (cacheDir == null) {
+            if (offline)
+                throw new ParseFailureException("Offline mode requires a cache directory.");
+        } else if (cacheDir.exists() && ! cacheDir.isDirectory())
+            throw new ParseFailureException("Cache directory " + cacheDir + " is not a directory.");
+        else if (offline && ! cacheDir.isDirectory())
+            throw new ParseFailureException("Cache directory " + cacheDir + " does not exist, so offline mode is impossible.");
+    }
+
+    /**
+     * Construct a cached PATRIC connection.
+     *
+     * @param cacheDir	cache directory, or NULL for no caching
+     * @param offline	TRUE if no connection to PATRIC should be made
+     */
+    public CachedP3Connection(File cacheDir, boolean offline) {
+        this(cacheDir, offline, envLong("P3_CACHE_TTL", 24) * 3600L * 1000L, envLong("P3_CACHE_SIZE", 1024) * 1024L * 1024L);
+    }
+
+    /**
+     * Construct a cached PATRIC connection with explicit limits.
+     *
+     * @param cacheDir	cache directory, or NULL for no caching
+     * @param offline	TRUE if no connection to PATRIC should be made
+     * @param ttl		time-to-live for cache entries, in milliseconds
+     * @param maxSize	maximum cache size, in bytes
+     */
+    public CachedP3Connection(File cacheDir, boolean offline, long ttl, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.offline = offline;
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.cacheSize = new AtomicLong();
+        this.idleConnections = new ConcurrentLinkedQueue<P3Connection>();
+        if (cacheDir != null) {
+            if (! cacheDir.isDirectory() && ! cacheDir.mkdirs())
+                throw new UncheckedIOException(new IOException("Could not create cache directory " + cacheDir + "."));
+            long size = 0;
+            for (File file : this.cacheFiles())
+                size += file.length();
+            this.cacheSize.set(size);
+            log.info("PATRIC query cache at {} contains {} bytes.{}", cacheDir, size, (offline ? "  Offline mode." : ""));
+        }
+    }
+
+    /**
+     * Specify the maximum number of PATRIC requests that can be in progress at once across all cached connections.
+     * Threads that would exceed the limit wait for a request to finish.  This should be called before any
+     * requests are made.  If the limit has been locked by the host process, this call is ignored, since other
+     * commands may be sharing the limit.
+     *
+     * @param limit		maximum number of concurrent requests, or 0 for no limit
+     */
+    public static synchronized void setRequestLimit(int limit) {
+        if (limitLocked)
+            log.debug("Request limit of {} ignored:  the limit is fixed by the host process.", limit);
+        else {
+            requestLimit = (limit > 0 ? new Semaphore(limit, true) : null);
+            requestLimitSize = Math.max(limit, 0);
+        }
+    }
+
+    /**
+     * @return the maximum number of PATRIC requests that can be in progress at once, or 0 if there is no limit
+     */
+    public static int getRequestLimit() {
+        return requestLimitSize;
+    }
+
+    /**
+     * Specify a process-wide limit on PATRIC requests in progress and prevent commands from changing it.  This is
+     * used by hosts that run several commands at once, so that one command cannot reset the limit while another is
+     * waiting on it.
+     *
+     * @param limit		maximum number of concurrent requests, or 0 for no limit
+     */
+    public static synchronized void lockRequestLimit(int limit) {
+        limitLocked = false;
+        setRequestLimit(limit);
+        limitLocked = true;
+    }
+
+    /**
+     * Allow commands to change the request limit again.  The current limit is left in place.
+     */
+    public static synchronized void unlockRequestLimit() {
+        limitLocked = false;
+    }
+
+    /**
+     * Run a request within the global request limit.  If the limit has been reached, this waits for another
+     * request to finish first.
+     *
+     * @param request	request to run
+     *
+     * @return the result of the request
+     *
+     * @throws IOException
+     */
+    public static <T> T limitRequest(LimitedRequest<T> request) throws IOException {
+        final Semaphore limit = requestLimit;
+        if (limit != null)
+            limit.acquireUninterruptibly();
+        try {
+            return request.run();
+        } finally {
+            if (limit != null)
+                limit.release();
+        }
+    }
+
+    /**
+     * @return the value of a numeric environment variable
+     *
+     * @param name		name of the variable
+     * @param def		default value
+     */
+    private static long envLong(String name, long def) {
+        String value = System.getenv(name);
+        return (StringUtils.isBlank(value) ? def : Long.parseLong(value));
+    }
+
+    /**
+     * Request the records with the specified values in a key field.
+     *
+     * @param table		table to query
+     * @param keyName	name of the key field
+     * @param keys		values to match in the key field
+     * @param fields	comma-delimited list of fields to return
+     *
+     * @return a list of the records found
+     */
+    public List<JsonObject> getRecords(Table table, String keyName, Collection<String> keys, String fields) {
+        String key = recordsKey(table, keyName, keys, fields);
+        JsonArray cached = this.read(key);
+        List<JsonObject> retVal;
+        if (cached != null)
+            retVal = toRecords(cached);
+        else {
+            retVal = this.remote(p3 -> p3.getRecords(table, keyName, keys, fields));
+            this.write(key, new JsonArray(retVal));
+        }
+        return retVal;
+    }
+
+    /**
+     * Request the records with the specified IDs.
+     *
+     * @param table		table to query
+     * @param keys		IDs of the records desired
+     * @param fields	comma-delimited list of fields to return
+     *
+     * @return a map from each ID found to its record
+     */
+    public Map<String, JsonObject> getRecords(Table table, Collection<String> keys, String fields) {
+        String key = recordsKey(table, "", keys, fields);
+        JsonArray cached = this.read(key);
+        Map<String, JsonObject> retVal;
+        if (cached != null) {
+            // The map is stored as a list of [id, record] pairs.
+            retVal = new LinkedHashMap<String, JsonObject>(cached.size() * 4 / 3 + 1);
+            for (Object pairObject : cached) {
+                JsonArray pair = (JsonArray) pairObject;
+                retVal.put(pair.getString(0), (JsonObject) pair.get(1));
+            }
+        } else {
+            retVal = this.remote(p3 -> p3.getRecords(table, keys, fields));
+            JsonArray pairs = new JsonArray();
+            for (Map.Entry<String, JsonObject> entry : retVal.entrySet())
+                pairs.add(new JsonArray(Arrays.asList(entry.getKey(), entry.getValue())));
+            this.write(key, pairs);
+        }
+        return retVal;
+    }
+
+    /**
+     * Perform a general query.
+     *
+     * @param table		table to query
+     * @param fields	comma-delimited list of fields to return
+     * @param criteria	query criteria
+     *
+     * @return a list of the records found
+     */
+    public List<JsonObject> query(Table table, String fields, String... criteria) {
+        String key = queryKey(table, fields, criteria);
+        JsonArray cached = this.read(key);
+        List<JsonObject> retVal;
+        if (cached != null)
+            retVal = toRecords(cached);
+        else {
+            retVal = this.remote(p3 -> p3.query(table, fields, criteria));
+            this.write(key, new JsonArray(retVal));
+        }
+        return retVal;
+    }
+
+    /**
+     * Add all the public prokaryotic genomes to a collection.
+     *
+     * @param genomes	collection to receive the genome records
+     */
+    public void addAllProkaryotes(Collection<JsonObject> genomes) {
+        final String key = "GENOME\tprokaryotes";
+        JsonArray cached = this.read(key);
+        if (cached != null)
+            genomes.addAll(toRecords(cached));
+        else {
+            List<JsonObject> found = new ArrayList<JsonObject>();
+            this.remote(p3 -> {
+                p3.addAllProkaryotes(found);
+                return found;
+            });
+            this.write(key, new JsonArray(found));
+            genomes.addAll(found);
+        }
+    }
+
+    /**
+     * Store the result of a key-field query in the cache.
+     *
+     * @param table		table queried
+     * @param keyName	name of the key field
+     * @param keys		values matched in the key field
+     * @param fields	comma-delimited list of fields returned
+     * @param records	records to store
+     */
+    public void putRecords(Table table, String keyName, Collection<String> keys, String fields, List<JsonObject> records) {
+        this.write(recordsKey(table, keyName, keys, fields), new JsonArray(records));
+    }
+
+    /**
+     * Store the result of a general query in the cache.
+     *
+     * @param table		table queried
+     * @param fields	comma-delimited list of fields returned
+     * @param records	records to store
+     * @param criteria	query criteria
+     */
+    public void putQuery(Table table, String fields, List<JsonObject> records, String... criteria) {
+        this.write(queryKey(table, fields, criteria), new JsonArray(records));
+    }
+
+    /**
+     * @return the cache key for a key-field query
+     *
+     * @param table		table to query
+     * @param keyName	name of the key field, or an empty string for an ID query
+     * @param keys		values to match in the key field
+     * @param fields	comma-delimited list of fields to return
+     */
+    private static String recordsKey(Table table, String keyName, Collection<String> keys, String fields) {
+        // The keys are sorted so that the order in which they were presented does not matter.
+        return table.name() + "\t" + keyName + "\t" + StringUtils.join(new TreeSet<String>(keys), ',') + "\t" + fields;
+    }
+
+    /**
+     * @return the cache key for a general query
+     *
+     * @param table		table to query
+     * @param fields	comma-delimited list of fields to return
+     * @param criteria	query criteria
+     */
+    private static String queryKey(Table table, String fields, String[] criteria) {
+        String[] sorted = Arrays.copyOf(criteria, criteria.length);
+        Arrays.sort(sorted);
+        return table.name() + "\tquery\t" + StringUtils.join(sorted, '&') + "\t" + fields;
+    }
+
+    /**
+     * @return a list of the records in a JSON array
+     *
+     * @param array		array of JSON objects
+     */
+    private static List<JsonObject> toRecords(JsonArray array) {
+        List<JsonObject> retVal = new ArrayList<JsonObject>(array.size());
+        for (Object record : array)
+            retVal.add((JsonObject) record);
+        return retVal;
+    }
+
+    /**
+     * Send a request to PATRIC.  A connection is borrowed from the pool for the duration of the request, and the
+     * global request limit is respected.
+     *
+     * @param request	function that performs the request on a PATRIC connection
+     *
+     * @return the result of the request
+     */
+    private <T> T remote(Function<P3Connection, T> request) {
+        if (this.offline)
+            throw new IllegalStateException("Query not found in cache " + this.cacheDir + " and PATRIC is offline.");
+        try {
+            return limitRequest(() -> {
+                P3Connection p3 = this.idleConnections.poll();
+                if (p3 == null)
+                    p3 = new P3Connection();
+                long start = System.nanoTime();
+                T retVal = request.apply(p3);
+                CommandMetrics.recordP3Call(System.nanoTime() - start);
+                this.idleConnections.add(p3);
+                return retVal;
+            });
+        } catch (IOException e) {
+            // The request function cannot throw a checked exception.
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the cache file for a key
+     *
+     * @param key	cache key
+     */
+    private File cacheFile(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            String name = Hex.encodeHexString(md.digest(key.getBytes(StandardCharsets.UTF_8)));
+            return new File(this.cacheDir, name + CACHE_SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 digest not available.", e);
+        }
+    }
+
+    /**
+     * @return the files currently in the cache
+     */
+    private File[] cacheFiles() {
+        File[] retVal = this.cacheDir.listFiles((dir, name) -> name.endsWith(CACHE_SUFFIX));
+        return (retVal == null ? new File[0] : retVal);
+    }
+
+    /**
+     * Read a result from the cache.
+     *
+     * @param key	cache key for the result
+     *
+     * @return the cached result, or NULL if it is not available
+     */
+    private JsonArray read(String key) {
+        JsonArray retVal = null;
+        if (this.cacheDir != null) {
+            File file = this.cacheFile(key);
+            if (file.canRead()) {
+                if (! this.offline && System.currentTimeMillis() - file.lastModified() > this.ttl)
+                    log.debug("Cache entry {} has expired.", file);
+                else try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+                    // The first line is the full key, which protects us from hash collisions.
+                    String storedKey = reader.readLine();
+                    if (key.equals(storedKey))
+                        retVal = (JsonArray) Jsoner.deserialize(reader);
+                } catch (IOException | JsonException | ClassCastException e) {
+                    log.warn("Unreadable cache entry {}: {}", file, e.toString());
+                }
+            }
+        }
+        if (retVal != null) {
+            this.hits.incrementAndGet();
+            CommandMetrics.recordP3CacheHit();
+        } else
+            this.misses.incrementAndGet();
+        return retVal;
+    }
+
+    /**
+     * Store a result in the cache.  The result is written to a temporary file and then renamed, so that a
+     * concurrent reader never sees a partial entry.
+     *
+     * @param key		cache key for the result
+     * @param result	result to store
+     */
+    private void write(String key, JsonArray result) {
+        if (this.cacheDir != null) {
+            File file = this.cacheFile(key);
+            try {
+                File temp = File.createTempFile("p3q", ".tmp", this.cacheDir);
+                try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                        new GZIPOutputStream(new FileOutputStream(temp)), StandardCharsets.UTF_8))) {
+                    writer.write(key);
+                    writer.newLine();
+                    result.toJson(writer);
+                }
+                long oldLen = file.length();
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (this.cacheSize.addAndGet(file.length() - oldLen) > this.maxSize)
+                    this.evict();
+            } catch (IOException e) {
+                log.warn("Could not write cache entry {}: {}", file, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Delete the oldest cache entries until the cache is at 90% of its maximum size.
+     */
+    private synchronized void evict() {
+        File[] files = this.cacheFiles();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        long size = 0;
+        for (File file : files)
+            size += file.length();
+        final long target = this.maxSize * 9 / 10;
+        int deleted = 0;
+        for (int i = 0; i < files.length && size > target; i++) {
+            long len = files[i].length();
+            if (files[i].delete()) {
+                size -= len;
+                deleted++;
+            }
+        }
+        this.cacheSize.set(size);
+        log.info("{} entries evicted from PATRIC query cache.  {} bytes remain.", deleted, size);
+    }
+
+    /**
+     * @return the number of queries answered from the cache
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of queries not answered from the cache
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Write the cache statistics to the log.
+     */
+    public void logStats() {
+        if (this.cacheDir != null)
+            log.info("PATRIC query cache: {} hits, {} misses.", this.hits.get(), this.misses.get());
+    }
+
+}
@@ -0,0 +1,417 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object manages a checkpoint journal for a long-running command.  The command divides its work into units
+ * (usually genomes or query batches), each identified by a key.  When a unit is finished, its key and output lines
+ * are appended to the journal and forced to disk.  If the command is restarted with the same journal, the
+ * completed units are skipped and their output lines are replayed from the journal, so the new output file is
+ * complete and contains no duplicates.
+ *
+ * The journal is a text file.  The first line is a header containing the name of the command and a fingerprint
+ * of its parameters and input files (see {@link #fingerprint(Object...)}).  A journal can only be resumed by the
+ * same command with the same fingerprint; otherwise, the completed units could belong to different inputs, and
+ * replaying them would splice stale results into the new output.  Each unit is recorded as a start line containing
+ * "#unit", the key, and the number of output lines, followed by the output lines and an end line containing
+ * "#end" and the key.  A unit without an end line was interrupted during the write, and is removed when the
+ * journal is reopened.
+ *
+ * If no journal file is specified, the journal is disabled:  no units are ever complete and recording does
+ * nothing.  This allows commands to use the same code whether or not checkpointing was requested.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CheckpointJournal implements AutoCloseable {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(CheckpointJournal.class);
+    /** journal file, or NULL if the journal is disabled */
+    private final File journalFile;
+    /** map of completed unit keys to output lines */
+    private final Map<String, List<String>> completed;
+    /** output stream for appending to the journal */
+    private FileOutputStream journalStream;
+    /** channel for forcing writes to disk */
+    private FileChannel journalChannel;
+    /** number of units recorded in this run */
+    private int recorded;
+    /** journal header line */
+    private final String header;
+    /** journal header prefix */
+    private static final String HEADER_PREFIX = "#checkpoint\t";
+    /** fingerprint to use when checkpointing is disabled, so the inputs need not be read */
+    public static final String NO_FINGERPRINT = "none";
+    /** journal format version */
+    private static final String VERSION = "2";
+    /** maximum size of an input file whose content is hashed for the fingerprint */
+    private static final long MAX_HASH_SIZE = 64L << 20;
+    /** unit start prefix */
+    private static final String UNIT = "#unit\t";
+    /** unit end prefix */
+    private static final String END = "#end\t";
+
+    /**
+     * Open a checkpoint journal.
+     *
+     * @param journalFile	journal file, or NULL to disable checkpointing
+     * @param command		name of the command using the journal
+     * @param fingerprint	fingerprint of the command's parameters and inputs; if the journal file is NULL, this
+     * 						should be {@link #NO_FINGERPRINT}, since computing a real one can be expensive
+     *
+     * @return the journal object
+     *
+     * @throws IOException
+     */
+    public static CheckpointJournal open(File journalFile, String command, String fingerprint) throws IOException {
+        return new CheckpointJournal(journalFile, command, fingerprint);
+    }
+
+    /**
+     * Construct a checkpoint journal.  If the journal file exists, the completed units are read from it, and any
+     * partial unit at the end is removed.
+     *
+     * @param journalFile	journal file, or NULL to disable checkpointing
+     * @param command		name of the command using the journal
+     * @param fingerprint	fingerprint of the command's parameters and inputs
+     *
+     * @throws IOException
+     */
+    protected CheckpointJournal(File journalFile, String command, String fingerprint) throws IOException {
+        this.journalFile = journalFile;
+        this.header = HEADER_PREFIX + VERSION + "\t" + command + "\t" + fingerprint;
+        this.completed = new HashMap<String, List<String>>();
+        this.recorded = 0;
+        if (journalFile != null) {
+            long goodLength = 0;
+            if (journalFile.exists() && journalFile.length() > 0)
+                goodLength = this.readJournal();
+            this.journalStream = new FileOutputStream(journalFile, true);
+            this.journalChannel = this.journalStream.getChannel();
+            if (goodLength == 0) {
+                // Here we have a new journal.  Write the header.
+                this.journalChannel.truncate(0);
+                this.append((this.header + "\n").getBytes(StandardCharsets.UTF_8));
+            } else if (this.journalChannel.size() > goodLength) {
+                log.warn("Removing {} bytes of incomplete data from checkpoint journal {}.",
+                        this.journalChannel.size() - goodLength, journalFile);
+                this.journalChannel.truncate(goodLength);
+                this.journalChannel.force(true);
+            }
+            log.info("Checkpoint journal {} contains {} completed units.", journalFile, this.completed.size());
+        }
+    }
+
+    /**
+     * Read the completed units from the journal file.
+     *
+     * @return the length of the valid part of the file
+     *
+     * @throws IOException
+     */
+    private long readJournal() throws IOException {
+        long retVal = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(this.journalFile))) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+            long[] pos = new long[] { 0 };
+            String line = readLine(in, buffer, pos);
+            if (line == null || ! line.startsWith(HEADER_PREFIX))
+                throw new IOException("File " + this.journalFile + " is not a checkpoint journal.");
+            if (! this.header.equals(line))
+                throw new IOException("Checkpoint journal " + this.journalFile + " was written by a different command, "
+                        + "parameters, or input files.  Delete it or choose a new journal file to start over.");
+            retVal = pos[0];
+            line = readLine(in, buffer, pos);
+            boolean ok = true;
+            while (ok && line != null) {
+                // Here we expect a unit start line.
+                ok = false;
+                String[] parts = line.split("\t");
+                if (parts.length == 3 && line.startsWith(UNIT)) {
+                    String key = parts[1];
+                    int count = Integer.parseInt(parts[2]);
+                    List<String> lines = new ArrayList<String>(count);
+                    for (int i = 0; i < count && line != null; i++) {
+                        line = readLine(in, buffer, pos);
+                        lines.add(line);
+                    }
+                    if (line != null) {
+                        line = readLine(in, buffer, pos);
+                        if (line != null && line.equals(END + key)) {
+                            // Here we have a complete unit.
+                            this.completed.put(key, lines);
+                            retVal = pos[0];
+                            ok = true;
+                            line = readLine(in, buffer, pos);
+                        }
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Here the unit header is damaged, so we stop at the last complete unit.
+        }
+        return retVal;
+    }
+
+    /**
+     * Read a newline-terminated line from an input stream.
+     *
+     * @param in		input stream
+     * @param buffer	buffer for assembling the line
+     * @param pos		single-element array containing the current file position; it is updated
+     *
+     * @return the line read, or NULL if there is no complete line left in the stream
+     *
+     * @throws IOException
+     */
+    private static String readLine(InputStream in, ByteArrayOutputStream buffer, long[] pos) throws IOException {
+        buffer.reset();
+        String retVal = null;
+        int c = in.read();
+        long n = 0;
+        while (c >= 0 && c != '\n') {
+            buffer.write(c);
+            n++;
+            c = in.read();
+        }
+        if (c == '\n') {
+            pos[0] += n + 1;
+            retVal = buffer.toString(StandardCharsets.UTF_8);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return TRUE if the specified file begins with a checkpoint journal header
+     *
+     * @param file	file to check
+     *
+     * @throws IOException
+     */
+    public static boolean isJournal(File file) throws IOException {
+        byte[] prefix = HEADER_PREFIX.getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[prefix.length];
+        int n = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int r = 0;
+            while (n < buffer.length && (r = in.read(buffer, n, buffer.length - n)) > 0)
+                n += r;
+        }
+        return (n == buffer.length && Arrays.equals(prefix, buffer));
+    }
+
+    /**
+     * Compute a fingerprint of a command's parameters and inputs.  Each part is hashed in order.  A file is
+     * represented by its absolute path and, if it is a regular file, its content (or its size and modification
+     * time, if it is too big to hash quickly).  A directory is represented by its path and the name, size, and
+     * modification time of each entry.  A collection is represented by its members, and anything else by its
+     * string value.
+     *
+     * @param parts		parameters and inputs to fingerprint
+     *
+     * @return a hexadecimal fingerprint string
+     *
+     * @throws IOException
+     */
+    public static String fingerprint(Object... parts) throws IOException {
+        MessageDigest md = sha256();
+        for (Object part : parts) {
+            if (part instanceof File)
+                digestFile(md, (File) part);
+            else if (part instanceof Iterable<?>) {
+                md.update((byte) '[');
+                for (Object item : (Iterable<?>) part)
+                    digestString(md, String.valueOf(item));
+                md.update((byte) ']');
+            } else
+                digestString(md, String.valueOf(part));
+        }
+        StringBuilder retVal = new StringBuilder(64);
+        for (byte b : md.digest())
+            retVal.append(String.format("%02x", b));
+        return retVal.toString();
+    }
+
+    /**
+     * @return a SHA-256 message digest
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Add a string to a fingerprint digest.  The string is terminated by a null byte, so adjacent strings
+     * cannot run together.
+     *
+     * @param md		digest to update
+     * @param string	string to add
+     */
+    private static void digestString(MessageDigest md, String string) {
+        md.update(string.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    /**
+     * Add a file to a fingerprint digest.
+     *
+     * @param md		digest to update
+     * @param file		file to add, or NULL
+     *
+     * @throws IOException
+     */
+    private static void digestFile(MessageDigest md, File file) throws IOException {
+        if (file == null)
+            digestString(md, "(none)");
+        else {
+            digestString(md, file.getAbsolutePath());
+            if (file.isDirectory()) {
+                String[] names = file.list();
+                if (names == null)
+                    throw new IOException("Could not read directory " + file + ".");
+                Arrays.sort(names);
+                for (String name : names) {
+                    File entry = new File(file, name);
+                    digestString(md, name + "\t" + entry.length() + "\t" + entry.lastModified());
+                }
+            } else if (file.length() > MAX_HASH_SIZE)
+                digestString(md, file.length() + "\t" + file.lastModified());
+            else if (file.isFile()) {
+                byte[] buffer = new byte[65536];
+                try (InputStream in = new FileInputStream(file)) {
+                    for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+                        md.update(buffer, 0, n);
+                }
+                md.update((byte) 0);
+            }
+        }
+    }
+
+    /**
+     * @return TRUE if the unit with the specified key has been completed
+     *
+     * @param key	key of the unit to check
+     */
+    public boolean isDone(String key) {
+        synchronized (this.completed) {
+            return this.completed.containsKey(key);
+        }
+    }
+
+    /**
+     * @return the output lines of a completed unit, or NULL if the unit is not complete
+     *
+     * @param key	key of the unit
+     */
+    public List<String> getLines(String key) {
+        synchronized (this.completed) {
+            return this.completed.get(key);
+        }
+    }
+
+    /**
+     * Record a completed unit.  The unit is written to the journal and forced to disk before this method returns.
+     *
+     * @param key		key of the unit; it cannot contain tabs or new-lines
+     * @param lines		output lines of the unit; they cannot contain new-lines
+     *
+     * @throws IOException
+     */
+    public void record(String key, List<String> lines) throws IOException {
+        if (this.journalFile != null) {
+            if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0)
+                throw new IllegalArgumentException("Invalid checkpoint key \"" + key + "\".");
+            StringBuilder record = new StringBuilder(64 + lines.size() * 80);
+            record.append(UNIT).append(key).append('\t').append(lines.size()).append('\n');
+            for (String line : lines) {
+                if (line.indexOf('\n') >= 0)
+                    throw new IllegalArgumentException("Checkpoint line for " + key + " contains a new-line.");
+                record.append(line).append('\n');
+            }
+            record.append(END).append(key).append('\n');
+            byte[] data = record.toString().getBytes(StandardCharsets.UTF_8);
+            synchronized (this) {
+                this.append(data);
+                this.recorded++;
+            }
+            synchronized (this.completed) {
+                this.completed.put(key, Collections.unmodifiableList(new ArrayList<String>(lines)));
+            }
+        }
+    }
+
+    /**
+     * Append data to the journal and force it to disk.
+     *
+     * @param data	data to append
+     *
+     * @throws IOException
+     */
+    private void append(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+            this.journalChannel.write(buffer);
+        this.journalChannel.force(false);
+    }
+
+    /**
+     * @return the number of completed units
+     */
+    public int size() {
+        synchronized (this.completed) {
+            return this.completed.size();
+        }
+    }
+
+    /**
+     * @return the number of units recorded during this run
+     */
+    public synchronized int getRecorded() {
+        return this.recorded;
+    }
+
+    /**
+     * @return TRUE if checkpointing is enabled
+     */
+    public boolean isEnabled() {
+        return this.journalFile != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.journalStream != null) {
+            this.journalStream.close();
+            this.journalStream = null;
+            log.info("{} units recorded in checkpoint journal {}.", this.recorded, this.journalFile);
+        }
+    }
+
+}
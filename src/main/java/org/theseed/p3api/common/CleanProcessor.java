@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Set;
 
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
@@ -31,6 +32,9 @@ import com.github.cliftonlabs.json_simple.JsonObject;
  * -h	display command-line usage
  * -v	show more detailed progress messages
  *
+ * --p3cache	directory for caching PATRIC query results (default none)
+ * --offline	if specified, PATRIC queries will only be answered from the cache
+ *
  * @author Bruce Parrello
  *
  */
@@ -42,16 +46,27 @@ public class CleanProcessor extends BaseProcessor {
 
     // COMMAND-LINE OPTIONS
 
+    /** directory for cached PATRIC query results */
+    @Option(name = "--p3cache", metaVar = "p3Cache", usage = "directory for caching PATRIC query results")
+    private File p3CacheDir;
+
+    /** if specified, PATRIC queries will only be answered from the cache */
+    @Option(name = "--offline", usage = "if specified, PATRIC queries will only be answered from the cache")
+    private boolean offline;
+
     /** master genome directory **/
     @Argument(index = 0, metaVar = "inDir", usage = "name of the master genome directory to process")
     private File inDir;
 
     @Override
     protected void setDefaults() {
+        this.p3CacheDir = null;
+        this.offline = false;
     }
 
     @Override
     protected boolean validateParms() throws IOException, ParseFailureException {
+        CachedP3Connection.validateOptions(this.p3CacheDir, this.offline);
         if (! this.inDir.isDirectory())
             throw new FileNotFoundException("Input directory " + this.inDir + " is not found or invalid.");
         return true;
@@ -79,8 +94,9 @@ public class CleanProcessor extends BaseProcessor {
      */
     private Set<String> getDeleteSet(GenomeMultiDirectory genomes) {
         List<JsonObject> goodList = new ArrayList<JsonObject>(genomes.size());
-        P3Connection p3 = new P3Connection();
+        CachedP3Connection p3 = new CachedP3Connection(this.p3CacheDir, this.offline);
         p3.addAllProkaryotes(goodList);
+        p3.logStats();
         log.info("{} eligible genomes in PATRIC.", goodList.size());
         // Get the set of genome IDs in the input directory.
         Set<String> retVal = new HashSet<String>(genomes.getIDs());
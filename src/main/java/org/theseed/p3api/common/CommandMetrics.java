@@ -0,0 +1,351 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.github.cliftonlabs.json_simple.JsonArray;
+import com.github.cliftonlabs.json_simple.JsonObject;
+
+/**
+ * This object collects performance metrics for a single command:  the wall time of the validation and run phases,
+ * the number of records processed, the number of bytes read and written, and the count and latency distribution
+ * of PATRIC calls.  The metrics are written to a file when the command finishes, in JSON format if the file name
+ * ends with ".json" and in Prometheus text format otherwise.
+ *
+ * The metrics for the running command are attached to the current thread, and are inherited by any threads the
+ * command creates, so the static counting methods can be called from anywhere.  They do nothing if no command is
+ * being measured.  When a command is run inside another (for example, in a batch), the inner command's counts are
+ * added to the outer command's when it finishes.
+ *
+ * The byte counts come from the operating system's per-process I/O counters, and are only available on Linux.
+ * They include all I/O performed by the process during the command, so they are approximate when the command
+ * server is running several commands at once.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class CommandMetrics {
+
+    // FIELDS
+    /** metrics for the command running in the current thread */
+    private static final InheritableThreadLocal<CommandMetrics> current = new InheritableThreadLocal<CommandMetrics>();
+    /** upper bounds (in seconds) of the PATRIC latency histogram buckets */
+    private static final double[] LATENCY_BOUNDS = new double[] { 0.01, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0, 60.0 };
+    /** name of the command */
+    private final String command;
+    /** metrics of the enclosing command, or NULL if this is the outermost */
+    private final CommandMetrics parent;
+    /** start time of the command, in nanoseconds */
+    private final long startTime;
+    /** end time of the validation phase, in nanoseconds */
+    private long validateEnd;
+    /** end time of the command, in nanoseconds */
+    private long endTime;
+    /** completion status of the command */
+    private String status;
+    /** number of records processed */
+    private final AtomicLong records;
+    /** process I/O counters at the start of the command (read, written), or NULL if they are not available */
+    private final long[] ioStart;
+    /** bytes read during the command */
+    private long bytesRead;
+    /** bytes written during the command */
+    private long bytesWritten;
+    /** number of PATRIC calls */
+    private final AtomicLong p3Calls;
+    /** number of PATRIC queries answered from the cache */
+    private final AtomicLong p3CacheHits;
+    /** total PATRIC call latency, in nanoseconds */
+    private final AtomicLong p3Nanos;
+    /** number of PATRIC calls in each latency bucket; the last bucket is for calls longer than all the bounds */
+    private final AtomicLongArray p3Buckets;
+
+    /**
+     * Construct a metrics object for a command.
+     *
+     * @param command	name of the command
+     * @param parent	metrics of the enclosing command, or NULL if none
+     */
+    private CommandMetrics(String command, CommandMetrics parent) {
+        this.command = command;
+        this.parent = parent;
+        this.records = new AtomicLong();
+        this.p3Calls = new AtomicLong();
+        this.p3CacheHits = new AtomicLong();
+        this.p3Nanos = new AtomicLong();
+        this.p3Buckets = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+        this.status = "running";
+        this.ioStart = readProcessIo();
+        this.startTime = System.nanoTime();
+        this.validateEnd = this.startTime;
+        this.endTime = this.startTime;
+    }
+
+    /**
+     * Begin collecting metrics for a command in the current thread.
+     *
+     * @param command	name of the command
+     *
+     * @return the metrics object for the command
+     */
+    public static CommandMetrics start(String command) {
+        CommandMetrics retVal = new CommandMetrics(command, current.get());
+        current.set(retVal);
+        return retVal;
+    }
+
+    /**
+     * @return the metrics for the command running in the current thread, or NULL if none
+     */
+    public static CommandMetrics current() {
+        return current.get();
+    }
+
+    /**
+     * Count records processed by the current command.
+     *
+     * @param n		number of records to count
+     */
+    public static void addRecords(long n) {
+        CommandMetrics metrics = current.get();
+        if (metrics != null)
+            metrics.records.addAndGet(n);
+    }
+
+    /**
+     * Record a call to PATRIC by the current command.
+     *
+     * @param nanos		duration of the call, in nanoseconds
+     */
+    public static void recordP3Call(long nanos) {
+        CommandMetrics metrics = current.get();
+        if (metrics != null)
+            metrics.addP3Call(nanos);
+    }
+
+    /**
+     * Record a PATRIC query answered from the cache by the current command.
+     */
+    public static void recordP3CacheHit() {
+        CommandMetrics metrics = current.get();
+        if (metrics != null)
+            metrics.p3CacheHits.incrementAndGet();
+    }
+
+    /**
+     * Add a PATRIC call to this object's counts.
+     *
+     * @param nanos		duration of the call, in nanoseconds
+     */
+    private void addP3Call(long nanos) {
+        this.p3Calls.incrementAndGet();
+        this.p3Nanos.addAndGet(nanos);
+        double seconds = nanos / 1e9;
+        int i = 0;
+        while (i < LATENCY_BOUNDS.length && seconds > LATENCY_BOUNDS[i]) i++;
+        this.p3Buckets.incrementAndGet(i);
+    }
+
+    /**
+     * Denote that the validation phase has ended.
+     */
+    public void endValidate() {
+        this.validateEnd = System.nanoTime();
+    }
+
+    /**
+     * Denote that the command has ended.  The current thread is restored to the enclosing command's metrics,
+     * and this command's counts are added to them.
+     *
+     * @param status	completion status ("ok", "parse_error", or "failed")
+     */
+    public void finish(String status) {
+        this.endTime = System.nanoTime();
+        if (this.validateEnd == this.startTime)
+            this.validateEnd = this.endTime;
+        this.status = status;
+        long[] ioEnd = readProcessIo();
+        if (this.ioStart != null && ioEnd != null) {
+            this.bytesRead = ioEnd[0] - this.ioStart[0];
+            this.bytesWritten = ioEnd[1] - this.ioStart[1];
+        }
+        if (this.parent != null) {
+            this.parent.records.addAndGet(this.records.get());
+            this.parent.p3Calls.addAndGet(this.p3Calls.get());
+            this.parent.p3CacheHits.addAndGet(this.p3CacheHits.get());
+            this.parent.p3Nanos.addAndGet(this.p3Nanos.get());
+            for (int i = 0; i < this.p3Buckets.length(); i++)
+                this.parent.p3Buckets.addAndGet(i, this.p3Buckets.get(i));
+        }
+        current.set(this.parent);
+    }
+
+    /**
+     * @return the process I/O counters (bytes read, bytes written), or NULL if they are not available
+     */
+    private static long[] readProcessIo() {
+        long[] retVal = null;
+        Path ioFile = Paths.get("/proc/self/io");
+        if (Files.isReadable(ioFile)) {
+            try {
+                List<String> lines = Files.readAllLines(ioFile, StandardCharsets.US_ASCII);
+                long[] counts = new long[] { -1, -1 };
+                for (String line : lines) {
+                    if (line.startsWith("rchar:"))
+                        counts[0] = Long.parseLong(line.substring(6).trim());
+                    else if (line.startsWith("wchar:"))
+                        counts[1] = Long.parseLong(line.substring(6).trim());
+                }
+                if (counts[0] >= 0 && counts[1] >= 0)
+                    retVal = counts;
+            } catch (IOException | NumberFormatException e) {
+                // The counters are not available.
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the duration of the validation phase, in seconds
+     */
+    public double getValidateSeconds() {
+        return (this.validateEnd - this.startTime) / 1e9;
+    }
+
+    /**
+     * @return the duration of the run phase, in seconds
+     */
+    public double getRunSeconds() {
+        return (this.endTime - this.validateEnd) / 1e9;
+    }
+
+    /**
+     * @return the number of records processed
+     */
+    public long getRecords() {
+        return this.records.get();
+    }
+
+    /**
+     * @return the number of records processed per second of run time
+     */
+    public double getRecordsPerSecond() {
+        double seconds = this.getRunSeconds();
+        return (seconds > 0 ? this.records.get() / seconds : 0.0);
+    }
+
+    /**
+     * @return the number of PATRIC calls
+     */
+    public long getP3Calls() {
+        return this.p3Calls.get();
+    }
+
+    /**
+     * Write the metrics to a file.  The file is in JSON format if its name ends with ".json", and in Prometheus
+     * text format otherwise.
+     *
+     * @param file		output file
+     *
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            if (file.getName().endsWith(".json"))
+                this.writeJson(writer);
+            else
+                this.writePrometheus(writer);
+        }
+    }
+
+    /**
+     * Write the metrics in JSON format.
+     *
+     * @param writer	output writer
+     */
+    private void writeJson(PrintWriter writer) {
+        JsonObject json = new JsonObject();
+        json.put("command", this.command);
+        json.put("status", this.status);
+        json.put("validate_seconds", this.getValidateSeconds());
+        json.put("run_seconds", this.getRunSeconds());
+        json.put("records", this.records.get());
+        json.put("records_per_second", this.getRecordsPerSecond());
+        if (this.ioStart != null) {
+            json.put("bytes_read", this.bytesRead);
+            json.put("bytes_written", this.bytesWritten);
+        }
+        json.put("p3_calls", this.p3Calls.get());
+        json.put("p3_cache_hits", this.p3CacheHits.get());
+        json.put("p3_call_seconds_sum", this.p3Nanos.get() / 1e9);
+        JsonArray buckets = new JsonArray();
+        long cumulative = 0;
+        for (int i = 0; i < this.p3Buckets.length(); i++) {
+            cumulative += this.p3Buckets.get(i);
+            JsonObject bucket = new JsonObject();
+            bucket.put("le", (i < LATENCY_BOUNDS.length ? Double.toString(LATENCY_BOUNDS[i]) : "+Inf"));
+            bucket.put("count", cumulative);
+            buckets.add(bucket);
+        }
+        json.put("p3_call_seconds_buckets", buckets);
+        writer.println(json.toJson());
+    }
+
+    /**
+     * Write the metrics in Prometheus text format.
+     *
+     * @param writer	output writer
+     */
+    private void writePrometheus(PrintWriter writer) {
+        String label = "command=\"" + this.command + "\"";
+        writer.println("# HELP p3common_phase_seconds Wall time of each command phase.");
+        writer.println("# TYPE p3common_phase_seconds gauge");
+        writer.format(Locale.ROOT, "p3common_phase_seconds{%s,phase=\"validate\"} %.6f%n", label, this.getValidateSeconds());
+        writer.format(Locale.ROOT, "p3common_phase_seconds{%s,phase=\"run\"} %.6f%n", label, this.getRunSeconds());
+        writer.println("# HELP p3common_success Whether the command completed successfully.");
+        writer.println("# TYPE p3common_success gauge");
+        writer.format("p3common_success{%s,status=\"%s\"} %d%n", label, this.status, (this.status.equals("ok") ? 1 : 0));
+        writer.println("# HELP p3common_records_total Records processed by the command.");
+        writer.println("# TYPE p3common_records_total counter");
+        writer.format("p3common_records_total{%s} %d%n", label, this.records.get());
+        writer.println("# HELP p3common_records_per_second Records processed per second of run time.");
+        writer.println("# TYPE p3common_records_per_second gauge");
+        writer.format(Locale.ROOT, "p3common_records_per_second{%s} %.3f%n", label, this.getRecordsPerSecond());
+        if (this.ioStart != null) {
+            writer.println("# HELP p3common_bytes_read_total Bytes read by the process during the command.");
+            writer.println("# TYPE p3common_bytes_read_total counter");
+            writer.format("p3common_bytes_read_total{%s} %d%n", label, this.bytesRead);
+            writer.println("# HELP p3common_bytes_written_total Bytes written by the process during the command.");
+            writer.println("# TYPE p3common_bytes_written_total counter");
+            writer.format("p3common_bytes_written_total{%s} %d%n", label, this.bytesWritten);
+        }
+        writer.println("# HELP p3common_p3_cache_hits_total PATRIC queries answered from the query cache.");
+        writer.println("# TYPE p3common_p3_cache_hits_total counter");
+        writer.format("p3common_p3_cache_hits_total{%s} %d%n", label, this.p3CacheHits.get());
+        writer.println("# HELP p3common_p3_call_seconds Latency of PATRIC calls.");
+        writer.println("# TYPE p3common_p3_call_seconds histogram");
+        long cumulative = 0;
+        for (int i = 0; i < this.p3Buckets.length(); i++) {
+            cumulative += this.p3Buckets.get(i);
+            String bound = (i < LATENCY_BOUNDS.length ? Double.toString(LATENCY_BOUNDS[i]) : "+Inf");
+            writer.format("p3common_p3_call_seconds_bucket{%s,le=\"%s\"} %d%n", label, bound, cumulative);
+        }
+        writer.format(Locale.ROOT, "p3common_p3_call_seconds_sum{%s} %.6f%n", label, this.p3Nanos.get() / 1e9);
+        writer.format("p3common_p3_call_seconds_count{%s} %d%n", label, this.p3Calls.get());
+    }
+
+}
@@ -3,16 +3,24 @@
  */
 package org.theseed.p3api.common;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.BaseReportProcessor;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.sequence.DnaKmers;
 import org.theseed.sequence.FastaInputStream;
@@ -20,57 +28,664 @@ import org.theseed.sequence.Sequence;
 
 /**
  * This is a simple command that reads a DNA FASTA file and computes the distances between
- * each pair of sequences.  The maximum distance is output.
+ * each pair of sequences.  The maximum distance is written to the log.
  *
- * The positional parameter is the name of the input file.  All output is to the log.
+ * The positional parameter is the name of the input file.  The report is written to the standard output.
+ * By default, it is a square, tab-delimited distance matrix with a row and a column for each sequence.
+ * If an edge threshold is specified, the report is instead a sparse edge list containing the two sequence
+ * labels and the distance for each pair no farther apart than the threshold.  The edge list computes each
+ * distance only once, and is the better choice for large inputs.
+ *
+ * The distances are computed in parallel, one tile of the distance matrix at a time.
+ *
+ * In sketch mode, each sequence is reduced to a fixed-size MinHash sketch as it is read, so the sequences
+ * themselves are never held in memory, and the distances are estimates of the exact k-mer distances.  The 95%
+ * error bound of the estimates is written to the log, and a random sample of pairs can be checked against the
+ * exact distances.  If an edge threshold is also specified, a locality-sensitive hashing index is used to limit
+ * the comparisons to likely pairs, and the maximum distance reported is the maximum among the pairs compared.
+ * The edge list in sketch mode has an extra column for the Mash distance.
+ *
+ * If pivots are specified, only the maximum distance is computed, and the report is a single line containing the
+ * farthest pair.  The distances from a few pivot sequences to all the others are used with the triangle inequality
+ * to bound the distance of each pair, and only the pairs whose bound exceeds the best distance found so far are
+ * compared.  The result is the same as comparing every pair, but usually much faster.
+ *
+ * In sketch, packed, and cluster modes, a k-mer cache file can be specified.  The sketches or packed k-mer sets are
+ * stored in the cache keyed by the MD5 of the sequence, and loaded from it instead of being recomputed in later
+ * runs.  A sequence whose content has changed is recomputed, and the cache is rebuilt if the k-mer parameters
+ * change.  One cache can be shared among several input files.
+ *
+ * In cluster mode, the sequences are grouped by greedy centroid clustering at a distance threshold.  The sequences
+ * are processed longest first.  Each joins the cluster of the closest existing centroid within the threshold, or
+ * becomes a new centroid.  The centroids are kept in a k-mer inverted index, so each sequence is only compared to
+ * the centroids with which it shares enough k-mers.  The report is a cluster membership table containing the
+ * sequence label, the cluster number, the centroid label, and the distance to the centroid.  Cluster mode always
+ * uses packed k-mer sets.
  *
  * The command-line options are as follows.
  *
  * -h	display command-line usage
  * -v	display more frequent log messages
+ * -o	output file for report (if not STDOUT)
+ *
+ * --edges		if specified, the maximum distance for an edge; an edge list will be written instead of a matrix
+ * --threads	number of worker threads (default is the number of processors)
+ * --tile		number of sequences per side in a distance tile (default 64)
+ * --sketch	if nonzero, the size of the MinHash sketches to use for estimating distances (default 0, exact mode)
+ * --verify	number of random pairs to check against the exact distances in sketch mode (default 0)
+ * --packed	if specified, exact k-mer sets will be stored as packed primitive arrays, which is faster and uses
+ * 				much less memory
+ * --pivots	if nonzero, the number of pivot sequences to use in finding the maximum distance; only the farthest pair
+ * 				will be reported (default 0)
+ * --cache		if specified, the name of a k-mer cache file for sketches or packed k-mer sets
+ * --cluster	if specified, the distance threshold for clustering; a cluster membership table will be written
  *
  * @author Bruce Parrello
  *
  */
-public class DnaDistProcessor extends BaseProcessor {
+public class DnaDistProcessor extends BaseReportProcessor {
 
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(DnaDistProcessor.class);
+    /** labels of the input sequences */
+    private String[] labels;
+    /** output writer for the report */
+    private PrintWriter writer;
+    /** number of edges written */
+    private long edgeCount;
+    /** maximum distance among the LSH candidate pairs compared */
+    private double lshMax;
+    /** number of LSH candidate pairs compared */
+    private long lshCompared;
+    /** maximum number of LSH bins per sketch */
+    private static final int MAX_BINS = 256;
+
+    /**
+     * This object contains the LSH candidates for a sequence and their distances.
+     */
+    private static class Candidates {
+
+        /** index of the sequence */
+        private final int row;
+        /** indices of the candidate partners */
+        private final int[] partners;
+        /** estimated distances to the candidate partners */
+        private final double[] dists;
+
+        /**
+         * Construct a candidate list.
+         *
+         * @param row		index of the sequence
+         * @param partners	indices of the candidate partners
+         * @param dists		estimated distances to the partners
+         */
+        protected Candidates(int row, int[] partners, double[] dists) {
+            this.row = row;
+            this.partners = partners;
+            this.dists = dists;
+        }
+
+    }
+
+    /**
+     * This object contains the sketch for a sequence.
+     */
+    private static class SketchResult {
+
+        /** label of the sequence */
+        private final String label;
+        /** MD5 of the sequence, or NULL if caching is disabled */
+        private final byte[] md5;
+        /** sketch of the sequence */
+        private final MinHashSketch sketch;
+        /** TRUE if the sketch was computed rather than loaded from the cache */
+        private final boolean fresh;
+
+        /**
+         * Construct a sketch result.
+         *
+         * @param label		label of the sequence
+         * @param md5		MD5 of the sequence, or NULL if caching is disabled
+         * @param sketch	sketch of the sequence
+         * @param fresh		TRUE if the sketch was computed
+         */
+        protected SketchResult(String label, byte[] md5, MinHashSketch sketch, boolean fresh) {
+            this.label = label;
+            this.md5 = md5;
+            this.sketch = sketch;
+            this.fresh = fresh;
+        }
+
+    }
 
     // COMMAND-LINE OPTIONS
 
+    /** maximum distance for an edge, or a negative number to write the full matrix */
+    @Option(name = "--edges", metaVar = "0.5", usage = "if specified, maximum distance for an edge in a sparse edge-list report")
+    private double edgeLimit;
+
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads")
+    private int threads;
+
+    /** tile size */
+    @Option(name = "--tile", metaVar = "128", usage = "number of sequences per side in a distance tile")
+    private int tileSize;
+
+    /** sketch size, or 0 for exact mode */
+    @Option(name = "--sketch", metaVar = "1000", usage = "if nonzero, size of the MinHash sketches for estimating distances")
+    private int sketchSize;
+
+    /** number of pairs to verify in sketch mode */
+    @Option(name = "--verify", metaVar = "100", usage = "number of random pairs to check against exact distances in sketch mode")
+    private int verifyCount;
+
+    /** TRUE to use packed k-mer sets */
+    @Option(name = "--packed", usage = "if specified, exact k-mer sets will be stored as packed primitive arrays")
+    private boolean packed;
+
+    /** number of pivots for a maximum-distance search, or 0 to compute all the distances */
+    @Option(name = "--pivots", metaVar = "16", usage = "if nonzero, number of pivots for finding only the maximum distance")
+    private int pivotCount;
+
+    /** k-mer cache file, or NULL if there is none */
+    @Option(name = "--cache", metaVar = "kmers.cache", usage = "if specified, k-mer cache file for sketches or packed k-mer sets")
+    private File cacheFile;
+
+    /** distance threshold for clustering, or a negative number if clustering is not desired */
+    @Option(name = "--cluster", metaVar = "0.1", usage = "if specified, distance threshold for greedy centroid clustering")
+    private double clusterLimit;
+
     @Argument(index = 0, metaVar = "input.fna", usage = "FASTA file of DNA sequences")
     private File inFile;
 
     @Override
-    protected void setDefaults() {
+    protected void setReporterDefaults() {
+        this.edgeLimit = -1.0;
+        this.threads = Runtime.getRuntime().availableProcessors();
+        this.tileSize = PairwiseDistanceEngine.DEFAULT_TILE_SIZE;
+        this.sketchSize = 0;
+        this.verifyCount = 0;
+        this.packed = false;
+        this.pivotCount = 0;
+        this.cacheFile = null;
+        this.clusterLimit = -1.0;
     }
 
     @Override
-    protected boolean validateParms() throws IOException, ParseFailureException {
+    protected void validateReporterParms() throws IOException, ParseFailureException {
         if (! this.inFile.canRead())
             throw new FileNotFoundException("Input file " + this.inFile + " is not found or unreadable.");
-        return true;
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
+        if (this.tileSize < 1)
+            throw new ParseFailureException("Tile size must be positive.");
+        if (this.sketchSize < 0)
+            throw new ParseFailureException("Sketch size cannot be negative.");
+        if (this.verifyCount < 0)
+            throw new ParseFailureException("Verification count cannot be negative.");
+        if (this.verifyCount > 0 && this.sketchSize == 0)
+            throw new ParseFailureException("Verification is only possible in sketch mode.");
+        if (this.pivotCount < 0)
+            throw new ParseFailureException("Pivot count cannot be negative.");
+        if (this.pivotCount > 0 && (this.sketchSize > 0 || this.edgeLimit >= 0.0))
+            throw new ParseFailureException("Pivots cannot be used with sketches or edge lists.");
+        if (this.clusterLimit >= 1.0)
+            throw new ParseFailureException("Cluster threshold must be less than 1.");
+        final boolean cluster = (this.clusterLimit >= 0.0);
+        if (cluster && (this.sketchSize > 0 || this.edgeLimit >= 0.0 || this.pivotCount > 0))
+            throw new ParseFailureException("Clustering cannot be used with sketches, edge lists, or pivots.");
+        if (this.cacheFile != null && this.sketchSize == 0 && ! this.packed && ! cluster)
+            throw new ParseFailureException("A k-mer cache can only be used in sketch, packed, or cluster mode.");
+        if ((this.sketchSize > 0 || this.packed || cluster) && DnaKmers.kmerSize() > PackedDnaKmers.MAX_K)
+            throw new ParseFailureException("Sketch, packed, and cluster modes do not support a k-mer size greater than "
+                    + PackedDnaKmers.MAX_K + ".");
     }
 
     @Override
-    protected void runCommand() throws Exception {
-        List<Sequence> seqs = FastaInputStream.readAll(this.inFile);
-        List<DnaKmers> kmers = seqs.stream().map(x -> new DnaKmers(x.getSequence()))
-                .collect(Collectors.toList());
-        log.info("{} sequences read.", seqs.size());
-        double maxDist = 0.0;
-        for (int i = 0; i < kmers.size(); i++) {
-            DnaKmers seqK = kmers.get(i);
-            String label = seqs.get(i).getLabel();
-            for (int j = i + 1; j < seqs.size(); j++) {
-                double dist = seqK.distance(kmers.get(j));
-                if (dist > maxDist) maxDist = dist;
-                log.info("Distance from {} to {} is {}.", label, seqs.get(j).getLabel(), dist);
+    protected void runReporter(PrintWriter writer) throws Exception {
+        this.writer = writer;
+        this.edgeCount = 0;
+        if (this.sketchSize > 0)
+            this.runSketches();
+        else {
+            List<Sequence> seqs = FastaInputStream.readAll(this.inFile);
+            CommandMetrics.addRecords(seqs.size());
+            log.info("{} sequences read.", seqs.size());
+            this.labels = seqs.stream().map(x -> x.getLabel()).toArray(String[]::new);
+            if (this.clusterLimit >= 0.0)
+                this.runClusters(seqs, this.buildPacked(seqs));
+            else if (this.packed)
+                this.runExact(this.buildPacked(seqs), (a, b) -> a.distance(b));
+            else {
+                List<DnaKmers> kmers = seqs.stream().map(x -> new DnaKmers(x.getSequence()))
+                        .collect(Collectors.toList());
+                this.runExact(kmers, (a, b) -> a.distance(b));
+            }
+        }
+    }
+
+    /**
+     * Build the packed k-mer sets for the input sequences, using the k-mer cache if there is one.
+     *
+     * @param seqs		list of input sequences
+     *
+     * @return a list of the k-mer sets, in input order
+     *
+     * @throws IOException
+     */
+    private List<PackedDnaKmers> buildPacked(List<Sequence> seqs) throws IOException {
+        final int k = DnaKmers.kmerSize();
+        KmerCache cache = KmerCache.open(this.cacheFile, KmerCache.PACKED, k, 0, 0);
+        List<PackedDnaKmers> retVal = new ArrayList<PackedDnaKmers>(seqs.size());
+        for (Sequence seq : seqs) {
+            String dna = seq.getSequence();
+            PackedDnaKmers seqKmers = null;
+            byte[] md5 = null;
+            if (cache.isEnabled()) {
+                md5 = KmerCache.md5(dna);
+                long[][] saved = cache.get(md5);
+                if (saved != null)
+                    seqKmers = new PackedDnaKmers(saved[0]);
+            }
+            if (seqKmers == null) {
+                seqKmers = new PackedDnaKmers(dna, k);
+                cache.put(md5, seqKmers.getKmers());
+            }
+            retVal.add(seqKmers);
+        }
+        this.saveCache(cache);
+        return retVal;
+    }
+
+    /**
+     * Cluster the sequences and write the cluster membership table.  The sequences are clustered longest first,
+     * but the table is in input order.
+     *
+     * @param seqs		list of input sequences
+     * @param kmers		list of k-mer sets for the input sequences
+     */
+    private void runClusters(List<Sequence> seqs, List<PackedDnaKmers> kmers) {
+        final int n = seqs.size();
+        log.info("Clustering {} sequences with threshold {}.", n, this.clusterLimit);
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        // This is a stable sort, so sequences of equal length stay in input order.
+        Arrays.sort(order, (a, b) -> Integer.compare(seqs.get(b).length(), seqs.get(a).length()));
+        KmerClusterer clusterer = new KmerClusterer(this.clusterLimit);
+        KmerClusterer.Assignment[] assignments = new KmerClusterer.Assignment[n];
+        for (int i : order)
+            assignments[i] = clusterer.add(i, kmers.get(i));
+        this.writer.println("sequence\tcluster\tcentroid\tdistance");
+        StringBuilder buffer = new StringBuilder(80);
+        for (int i = 0; i < n; i++) {
+            KmerClusterer.Assignment assignment = assignments[i];
+            buffer.setLength(0);
+            buffer.append(this.labels[i]).append('\t').append(assignment.getCluster() + 1).append('\t')
+                    .append(this.labels[assignment.getCentroidId()]).append('\t');
+            appendDistance(buffer, assignment.getDistance());
+            this.writer.println(buffer);
+        }
+        long allPairs = (long) n * (n - 1) / 2;
+        log.info("{} clusters found.  {} centroid distances computed instead of {}.", clusterer.getClusterCount(),
+                clusterer.getCandidateCount(), allPairs);
+        log.info("{} distinct k-mers in centroid index.", clusterer.getIndexSize());
+    }
+
+    /**
+     * Compute the exact distances from the full k-mer sets.
+     *
+     * @param kmers		list of k-mer sets for the input sequences
+     * @param measure	distance measure for the k-mer sets
+     *
+     * @throws Exception
+     */
+    private <T> void runExact(List<T> kmers, PairwiseDistanceEngine.Measure<T> measure) throws Exception {
+        if (this.pivotCount > 0)
+            this.runPivots(kmers, measure);
+        else {
+            PairwiseDistanceEngine<T> engine = new PairwiseDistanceEngine<T>(kmers, measure, this.threads);
+            engine.setTileSize(this.tileSize);
+            double maxDist;
+            if (this.edgeLimit >= 0.0) {
+                log.info("Writing edges with distance no greater than {}.", this.edgeLimit);
+                this.writer.println("id1\tid2\tdistance");
+                maxDist = engine.run(false, this::writeEdges);
+                log.info("{} edges written.", this.edgeCount);
+            } else {
+                log.info("Writing distance matrix.");
+                this.writer.println("sequence\t" + String.join("\t", this.labels));
+                maxDist = engine.run(true, this::writeRow);
             }
+            log.info("{} distances computed.", engine.getPairCount());
+            log.info("Maximum distance is {}.", maxDist);
         }
+    }
+
+    /**
+     * Find the maximum exact distance using pivots, and write the farthest pair.
+     *
+     * @param kmers		list of k-mer sets for the input sequences
+     * @param measure	distance measure for the k-mer sets
+     *
+     * @throws Exception
+     */
+    private <T> void runPivots(List<T> kmers, PairwiseDistanceEngine.Measure<T> measure) throws Exception {
+        log.info("Searching for maximum distance using {} pivots.", this.pivotCount);
+        PivotMaxSearch<T> search = new PivotMaxSearch<T>(kmers, measure, this.threads);
+        double maxDist = search.run(this.pivotCount);
+        this.writer.println("id1\tid2\tdistance");
+        if (search.getFirst() >= 0) {
+            StringBuilder buffer = new StringBuilder(80);
+            buffer.append(this.labels[search.getFirst()]).append('\t').append(this.labels[search.getSecond()])
+                    .append('\t');
+            appendDistance(buffer, maxDist);
+            this.writer.println(buffer);
+        }
+        final int n = kmers.size();
+        long allPairs = (long) n * (n - 1) / 2;
+        long evaluations = search.getEvaluations();
+        log.info("{} distances computed instead of {}:  {} evaluations saved.", evaluations, allPairs,
+                allPairs - evaluations);
         log.info("Maximum distance is {}.", maxDist);
     }
 
+    /**
+     * Estimate the distances from MinHash sketches.
+     *
+     * @throws Exception
+     */
+    private void runSketches() throws Exception {
+        final int k = DnaKmers.kmerSize();
+        // Decide whether we can use LSH.
+        int[] layout = (this.edgeLimit >= 0.0 ? MinHashIndex.chooseBands(this.edgeLimit, MAX_BINS) : null);
+        final int binCount = (layout == null ? 0 : layout[0] * layout[1]);
+        // Read the sequences and build the sketches.  Only the labels and sketches are kept.
+        // Sketches found in the cache are not recomputed.
+        KmerCache cache = KmerCache.open(this.cacheFile, KmerCache.SKETCHES, k, this.sketchSize, binCount);
+        List<String> labelList = new ArrayList<String>();
+        List<MinHashSketch> sketches = new ArrayList<MinHashSketch>();
+        try (FastaInputStream inStream = new FastaInputStream(this.inFile)) {
+            ParallelDriver<Void> driver = new ParallelDriver<Void>(this.threads, () -> null);
+            driver.run(inStream, (seq, x) -> this.sketch(cache, seq, k, binCount), result -> {
+                labelList.add(result.label);
+                sketches.add(result.sketch);
+                if (result.fresh)
+                    cache.put(result.md5, result.sketch.getHashes(), result.sketch.getBins());
+            });
+        }
+        this.saveCache(cache);
+        this.labels = labelList.toArray(new String[labelList.size()]);
+        CommandMetrics.addRecords(this.labels.length);
+        log.info("{} sequences sketched with k = {} and sketch size {}.", this.labels.length, k, this.sketchSize);
+        log.info("Estimated Jaccard distances are within {} of the exact values with 95% confidence.",
+                MinHashSketch.errorBound(this.sketchSize));
+        double maxDist;
+        if (this.edgeLimit >= 0.0) {
+            log.info("Writing edges with estimated distance no greater than {}.", this.edgeLimit);
+            this.writer.println("id1\tid2\tdistance\tmash");
+            if (layout == null) {
+                log.info("Distance threshold is too high for LSH.  All pairs will be compared.");
+                PairwiseDistanceEngine<MinHashSketch> engine = new PairwiseDistanceEngine<MinHashSketch>(sketches,
+                        (a, b) -> a.distance(b), this.threads);
+                engine.setTileSize(this.tileSize);
+                maxDist = engine.run(false, (row, firstCol, dists) -> {
+                    for (int c = 0; c < dists.length; c++) {
+                        if (dists[c] <= this.edgeLimit)
+                            this.writeSketchEdge(row, firstCol + c, dists[c], k);
+                    }
+                });
+                log.info("{} distances computed.", engine.getPairCount());
+            } else
+                maxDist = this.runLsh(sketches, layout[0], layout[1], k);
+            log.info("{} edges written.", this.edgeCount);
+        } else {
+            log.info("Writing estimated distance matrix.");
+            this.writer.println("sequence\t" + String.join("\t", this.labels));
+            PairwiseDistanceEngine<MinHashSketch> engine = new PairwiseDistanceEngine<MinHashSketch>(sketches,
+                    (a, b) -> a.distance(b), this.threads);
+            engine.setTileSize(this.tileSize);
+            maxDist = engine.run(true, this::writeRow);
+            log.info("{} distances computed.", engine.getPairCount());
+        }
+        log.info("Maximum estimated distance is {}.", maxDist);
+        if (this.verifyCount > 0)
+            this.verifySketches(sketches);
+    }
+
+    /**
+     * Get the sketch for a sequence, either from the cache or by computing it.
+     *
+     * @param cache		k-mer cache
+     * @param seq		sequence to sketch
+     * @param k			k-mer size
+     * @param binCount	number of LSH bins
+     *
+     * @return the sketch result for the sequence
+     */
+    private SketchResult sketch(KmerCache cache, Sequence seq, int k, int binCount) {
+        String dna = seq.getSequence();
+        SketchResult retVal = null;
+        byte[] md5 = null;
+        if (cache.isEnabled()) {
+            md5 = KmerCache.md5(dna);
+            long[][] saved = cache.get(md5);
+            if (saved != null)
+                retVal = new SketchResult(seq.getLabel(), md5, new MinHashSketch(k, saved[0], saved[1]), false);
+        }
+        if (retVal == null)
+            retVal = new SketchResult(seq.getLabel(), md5, new MinHashSketch(dna, k, this.sketchSize, binCount), true);
+        return retVal;
+    }
+
+    /**
+     * Save the k-mer cache and report its statistics.
+     *
+     * @param cache		k-mer cache to save
+     *
+     * @throws IOException
+     */
+    private void saveCache(KmerCache cache) throws IOException {
+        if (cache.isEnabled()) {
+            log.info("{} k-mer cache hits, {} new entries.", cache.getHits(), cache.getAdded());
+            cache.save();
+        }
+    }
+
+    /**
+     * Write the edges for the candidate pairs from an LSH index.
+     *
+     * @param sketches	list of sequence sketches
+     * @param bands		number of LSH bands
+     * @param rows		number of bins per band
+     * @param k			k-mer size
+     *
+     * @return the maximum distance among the pairs compared
+     *
+     * @throws Exception
+     */
+    private double runLsh(List<MinHashSketch> sketches, int bands, int rows, int k) throws Exception {
+        log.info("Building LSH index with {} bands of {} bins.", bands, rows);
+        MinHashIndex index = new MinHashIndex(sketches, bands, rows);
+        final int n = sketches.size();
+        List<Integer> rowList = new ArrayList<Integer>(n);
+        for (int i = 0; i < n; i++)
+            rowList.add(i);
+        // Each row's candidates are compared in parallel, and the edges are written in row order.
+        this.lshMax = 0.0;
+        this.lshCompared = 0;
+        ParallelDriver<Void> driver = new ParallelDriver<Void>(this.threads, () -> null);
+        driver.run(rowList, (i, x) -> {
+            MinHashSketch sketch = sketches.get(i);
+            int[] partners = index.candidates(sketch, i);
+            double[] dists = new double[partners.length];
+            for (int c = 0; c < partners.length; c++)
+                dists[c] = sketch.distance(sketches.get(partners[c]));
+            return new Candidates(i, partners, dists);
+        }, result -> {
+            this.lshCompared += result.partners.length;
+            for (int c = 0; c < result.partners.length; c++) {
+                double dist = result.dists[c];
+                if (dist > this.lshMax) this.lshMax = dist;
+                if (dist <= this.edgeLimit)
+                    this.writeSketchEdge(result.row, result.partners[c], dist, k);
+            }
+        });
+        long allPairs = (long) n * (n - 1) / 2;
+        log.info("{} candidate pairs compared out of {} possible.", this.lshCompared, allPairs);
+        return this.lshMax;
+    }
+
+    /**
+     * Write an edge with its estimated Jaccard and Mash distances.
+     *
+     * @param i		index of the first sequence
+     * @param j		index of the second sequence
+     * @param dist	estimated Jaccard distance
+     * @param k		k-mer size
+     */
+    private void writeSketchEdge(int i, int j, double dist, int k) {
+        StringBuilder buffer = new StringBuilder(80);
+        buffer.append(this.labels[i]).append('\t').append(this.labels[j]).append('\t');
+        appendDistance(buffer, dist);
+        buffer.append('\t');
+        appendDistance(buffer, MinHashSketch.mashDistance(1.0 - dist, k));
+        this.writer.println(buffer);
+        this.edgeCount++;
+    }
+
+    /**
+     * Compare the estimated distances for a random sample of pairs to the exact distances.
+     *
+     * @param sketches	list of sequence sketches
+     *
+     * @throws IOException
+     */
+    private void verifySketches(List<MinHashSketch> sketches) throws IOException {
+        final int n = sketches.size();
+        if (n < 2)
+            log.info("Too few sequences to verify.");
+        else {
+            // Choose the pairs.
+            Random rand = new Random(1042L);
+            int[][] pairs = new int[this.verifyCount][];
+            for (int p = 0; p < this.verifyCount; p++) {
+                int i = rand.nextInt(n);
+                int j = rand.nextInt(n - 1);
+                if (j >= i) j++;
+                pairs[p] = new int[] { i, j };
+            }
+            // Compute the exact distances.
+            double[] exact;
+            if (this.packed) {
+                final int k = DnaKmers.kmerSize();
+                exact = this.exactDistances(pairs, x -> new PackedDnaKmers(x, k), (a, b) -> a.distance(b));
+            } else
+                exact = this.exactDistances(pairs, x -> new DnaKmers(x), (a, b) -> a.distance(b));
+            // Compare the distances.
+            double totalError = 0.0;
+            double maxError = 0.0;
+            for (int p = 0; p < pairs.length; p++) {
+                int[] pair = pairs[p];
+                double estimate = sketches.get(pair[0]).distance(sketches.get(pair[1]));
+                double error = Math.abs(exact[p] - estimate);
+                totalError += error;
+                if (error > maxError) maxError = error;
+            }
+            log.info("Sketch verification:  mean absolute error {}, maximum absolute error {} over {} pairs.",
+                    totalError / this.verifyCount, maxError, this.verifyCount);
+        }
+    }
+
+    /**
+     * Compute the exact distances for a sample of sequence pairs.  The sequences in the sample are re-read from
+     * the input file.
+     *
+     * @param pairs		array of index pairs to compare
+     * @param builder	function for building a k-mer set from a sequence
+     * @param measure	distance measure for the k-mer sets
+     *
+     * @return an array of the distances for the pairs
+     *
+     * @throws IOException
+     */
+    private <T> double[] exactDistances(int[][] pairs, Function<String, T> builder, PairwiseDistanceEngine.Measure<T> measure)
+            throws IOException {
+        Map<Integer, T> needed = new HashMap<Integer, T>(pairs.length * 4);
+        for (int[] pair : pairs) {
+            needed.put(pair[0], null);
+            needed.put(pair[1], null);
+        }
+        log.info("Re-reading {} sequences to verify {} pairs.", needed.size(), pairs.length);
+        try (FastaInputStream inStream = new FastaInputStream(this.inFile)) {
+            int idx = 0;
+            for (Sequence seq : inStream) {
+                if (needed.containsKey(idx))
+                    needed.put(idx, builder.apply(seq.getSequence()));
+                idx++;
+            }
+        }
+        double[] retVal = new double[pairs.length];
+        for (int p = 0; p < pairs.length; p++)
+            retVal[p] = measure.distance(needed.get(pairs[p][0]), needed.get(pairs[p][1]));
+        return retVal;
+    }
+
+    /**
+     * Write the edges in a triangular distance row.
+     *
+     * @param row		index of the row sequence
+     * @param firstCol	index of the sequence for the first distance
+     * @param dists		distances from the row sequence to the sequences after it
+     */
+    private void writeEdges(int row, int firstCol, double[] dists) {
+        String label = this.labels[row];
+        StringBuilder buffer = new StringBuilder(80);
+        for (int k = 0; k < dists.length; k++) {
+            if (dists[k] <= this.edgeLimit) {
+                buffer.setLength(0);
+                buffer.append(label).append('\t').append(this.labels[firstCol + k]).append('\t');
+                appendDistance(buffer, dists[k]);
+                this.writer.println(buffer);
+                this.edgeCount++;
+            }
+        }
+    }
+
+    /**
+     * Write a full row of the distance matrix.
+     *
+     * @param row		index of the row sequence
+     * @param firstCol	index of the sequence for the first distance (always 0)
+     * @param dists		distances from the row sequence to every sequence
+     */
+    private void writeRow(int row, int firstCol, double[] dists) {
+        StringBuilder buffer = new StringBuilder(this.labels[row].length() + dists.length * 7);
+        buffer.append(this.labels[row]);
+        for (double dist : dists) {
+            buffer.append('\t');
+            appendDistance(buffer, dist);
+        }
+        this.writer.println(buffer);
+    }
+
+    /**
+     * Append a distance to a string buffer with four decimal places.  This is much faster than a format
+     * string, which matters when there are hundreds of millions of distances.
+     *
+     * @param buffer	buffer to receive the distance
+     * @param dist		distance to append
+     */
+    private static void appendDistance(StringBuilder buffer, double dist) {
+        long scaled = Math.round(dist * 10000.0);
+        buffer.append(scaled / 10000).append('.');
+        long frac = scaled % 10000;
+        if (frac < 1000) buffer.append('0');
+        if (frac < 100) buffer.append('0');
+        if (frac < 10) buffer.append('0');
+        buffer.append(frac);
+    }
+
 }
@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * This object applies random point mutations to DNA stored as ASCII bytes.  Each mutation is either a substitution
+ * (SNP) with a different nucleotide, or a small insertion or deletion.  Rather than rolling a random number for
+ * every position, the distance to the next mutation is drawn from a geometric distribution, and the unchanged
+ * stretches in between are copied in bulk.
+ *
+ * The mutated sequence is built in a work buffer owned by this object, which is only reallocated when it needs to
+ * grow, so an object should be reused for many sequences on a single thread.  The object is not thread-safe.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class DnaMutator {
+
+    // FIELDS
+    /** fraction of mutations that are insertions or deletions */
+    private final double indelFraction;
+    /** maximum length of an insertion or deletion */
+    private final int maxIndel;
+    /** work buffer containing the mutated sequence */
+    private byte[] buffer;
+    /** length of the mutated sequence */
+    private int length;
+    /** nucleotides to use in mutations */
+    private static final byte[] BASES = { 'a', 'c', 'g', 't' };
+
+    /**
+     * Construct a DNA mutator.
+     *
+     * @param indelFraction		fraction of mutations that should be insertions or deletions
+     * @param maxIndel			maximum length of an insertion or deletion
+     */
+    public DnaMutator(double indelFraction, int maxIndel) {
+        this.indelFraction = indelFraction;
+        this.maxIndel = maxIndel;
+        this.buffer = new byte[0];
+        this.length = 0;
+    }
+
+    /**
+     * Mutate a sliced DNA sequence.  Each slice is mutated separately, and the result is left in the work buffer.
+     *
+     * @param seq		sequence to mutate
+     * @param rate		probability of a mutation at each position
+     * @param rand		random-number generator
+     *
+     * @return the number of mutations applied
+     */
+    public int mutate(SliceSequence seq, double rate, SplittableRandom rand) {
+        this.length = 0;
+        int retVal = 0;
+        for (int i = 0; i < seq.getSliceCount(); i++)
+            retVal += this.append(seq.getSource(i), seq.getOffset(i), seq.getSliceLength(i), rate, rand);
+        return retVal;
+    }
+
+    /**
+     * Mutate a region of a DNA sequence.  The result is left in the work buffer.
+     *
+     * @param source	array containing the DNA
+     * @param offset	offset of the region to mutate
+     * @param len		length of the region to mutate
+     * @param rate		probability of a mutation at each position
+     * @param rand		random-number generator
+     *
+     * @return the number of mutations applied
+     */
+    public int mutate(byte[] source, int offset, int len, double rate, SplittableRandom rand) {
+        this.length = 0;
+        return this.append(source, offset, len, rate, rand);
+    }
+
+    /**
+     * Mutate a region of a DNA sequence and append the result to the work buffer.
+     *
+     * @param source	array containing the DNA
+     * @param offset	offset of the region to mutate
+     * @param len		length of the region to mutate
+     * @param rate		probability of a mutation at each position
+     * @param rand		random-number generator
+     *
+     * @return the number of mutations applied
+     */
+    private int append(byte[] source, int offset, int len, double rate, SplittableRandom rand) {
+        // Insure there is room for the whole region plus a few insertions.
+        this.ensureCapacity(this.length + len + this.maxIndel);
+        int retVal = 0;
+        int pos = offset;
+        final int end = offset + len;
+        final double logQ = (rate > 0.0 ? Math.log(1.0 - rate) : 0.0);
+        while (pos < end) {
+            // Compute the number of unchanged positions before the next mutation.
+            long skip = end - pos;
+            if (logQ < 0.0)
+                skip = Math.min(skip, (long) (Math.log(1.0 - rand.nextDouble()) / logQ));
+            this.copy(source, pos, (int) skip);
+            pos += skip;
+            if (pos < end) {
+                retVal++;
+                if (rand.nextDouble() >= this.indelFraction) {
+                    // Here we have a substitution.
+                    this.ensureCapacity(this.length + 1);
+                    this.buffer[this.length++] = substitute(source[pos], rand);
+                    pos++;
+                } else {
+                    int n = 1 + rand.nextInt(this.maxIndel);
+                    if (rand.nextBoolean()) {
+                        // Here we have an insertion.
+                        this.ensureCapacity(this.length + n);
+                        for (int i = 0; i < n; i++)
+                            this.buffer[this.length++] = BASES[rand.nextInt(4)];
+                    } else {
+                        // Here we have a deletion.
+                        pos += Math.min(n, end - pos);
+                    }
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Copy an unchanged stretch of DNA to the work buffer.
+     *
+     * @param source	source array
+     * @param pos		position of the stretch
+     * @param n			length of the stretch
+     */
+    private void copy(byte[] source, int pos, int n) {
+        this.ensureCapacity(this.length + n);
+        System.arraycopy(source, pos, this.buffer, this.length, n);
+        this.length += n;
+    }
+
+    /**
+     * Insure the work buffer can hold the specified number of bytes.
+     *
+     * @param needed	number of bytes needed
+     */
+    private void ensureCapacity(int needed) {
+        if (needed > this.buffer.length)
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(needed, this.buffer.length * 2));
+    }
+
+    /**
+     * @return a different nucleotide to substitute for the specified one
+     *
+     * @param base	nucleotide being replaced
+     * @param rand	random-number generator
+     */
+    private static byte substitute(byte base, SplittableRandom rand) {
+        int idx;
+        switch (base) {
+        case 'a' :
+        case 'A' :
+            idx = 0;
+            break;
+        case 'c' :
+        case 'C' :
+            idx = 1;
+            break;
+        case 'g' :
+        case 'G' :
+            idx = 2;
+            break;
+        case 't' :
+        case 'T' :
+            idx = 3;
+            break;
+        default :
+            // An ambiguity code is replaced with any nucleotide.
+            return BASES[rand.nextInt(4)];
+        }
+        return BASES[(idx + 1 + rand.nextInt(3)) & 3];
+    }
+
+    /**
+     * @return a copy of the mutated sequence
+     */
+    public byte[] getResult() {
+        return Arrays.copyOf(this.buffer, this.length);
+    }
+
+    /**
+     * @return the length of the mutated sequence
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+}
@@ -3,9 +3,12 @@
  */
 package org.theseed.p3api.common;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -40,6 +43,13 @@ import org.theseed.utils.BasePipeProcessor;
  * -o	output report file (if not STDOUT)
  * -b	batch size for queries (default 50)
  *
+ * --p3cache	directory for caching PATRIC query results (default none)
+ * --offline	if specified, PATRIC queries will only be answered from the cache
+ * --checkpoint	checkpoint journal file; batches completed in a previous run with the same journal are restored
+ * 				from it instead of being queried again
+ * --parallel	number of query batches to keep in flight at once (default 4)
+ * --retries	maximum number of retries for a failing query (default 3)
+ *
  * @author Bruce Parrello
  *
  */
@@ -49,13 +59,21 @@ public class EssentialProcessor extends BasePipeProcessor {
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(EssentialProcessor.class);
     /** connection to PATRIC */
-    private P3Connection p3;
+    private CachedP3Connection p3;
     /** current batch, mapping feature IDs to descriptions */
     private LinkedHashMap<String, String> batchMap;
     /** number of essential genes found */
     private int essentialCount;
     /** number of genes processed */
     private int geneCount;
+    /** number of batches processed */
+    private int batchCount;
+    /** checkpoint journal */
+    private CheckpointJournal journal;
+    /** output writer for the report */
+    private PrintWriter writer;
+    /** delay before the first retry of a failing query, in milliseconds */
+    private static final long RETRY_DELAY = 2000;
 
     // COMMAND-LINE OPTION
 
@@ -64,9 +82,34 @@ public class EssentialProcessor extends BasePipeProcessor {
             usage = "number of features to query in each batch")
     private int batchSize;
 
+    /** directory for cached PATRIC query results */
+    @Option(name = "--p3cache", metaVar = "p3Cache", usage = "directory for caching PATRIC query results")
+    private File p3CacheDir;
+
+    /** if specified, PATRIC queries will only be answered from the cache */
+    @Option(name = "--offline", usage = "if specified, PATRIC queries will only be answered from the cache")
+    private boolean offline;
+
+    /** checkpoint journal file */
+    @Option(name = "--checkpoint", metaVar = "run.ckpt", usage = "checkpoint journal for resuming after an interruption")
+    private File checkpointFile;
+
+    /** number of query batches in flight */
+    @Option(name = "--parallel", metaVar = "8", usage = "number of query batches to keep in flight at once")
+    private int inFlight;
+
+    /** maximum number of retries for a failing query */
+    @Option(name = "--retries", metaVar = "5", usage = "maximum number of retries for a failing query")
+    private int maxRetries;
+
     @Override
     protected void setPipeDefaults() {
         this.batchSize =  50;
+        this.p3CacheDir = null;
+        this.offline = false;
+        this.checkpointFile = null;
+        this.inFlight = 4;
+        this.maxRetries = 3;
     }
 
     @Override
@@ -77,64 +120,156 @@ public class EssentialProcessor extends BasePipeProcessor {
     protected void validatePipeParms() throws IOException, ParseFailureException {
         if (this.batchSize < 1)
             throw new ParseFailureException("Batch size must be positive.");
+        if (this.inFlight < 1)
+            throw new ParseFailureException("Number of batches in flight must be positive.");
+        if (this.maxRetries < 0)
+            throw new ParseFailureException("Retry count cannot be negative.");
+        CachedP3Connection.validateOptions(this.p3CacheDir, this.offline);
     }
 
     @Override
     protected void runPipeline(TabbedLineReader inputStream, PrintWriter writer) throws Exception {
         // Connect to PATRIC.
         log.info("Connecting to PATRIC.");
-        this.p3 = new P3Connection();
+        this.p3 = new CachedP3Connection(this.p3CacheDir, this.offline);
         // The current batch of features will be stored in here.
         this.batchMap = new LinkedHashMap<String, String>(this.batchSize * 2);
         // Clear the counters.
         this.essentialCount = 0;
         this.geneCount = 0;
+        this.batchCount = 0;
+        // Open the checkpoint journal.
+        String fingerprint = (this.checkpointFile == null ? CheckpointJournal.NO_FINGERPRINT
+                : CheckpointJournal.fingerprint(this.batchSize, inputStream.header()));
+        this.journal = CheckpointJournal.open(this.checkpointFile, "essential", fingerprint);
         // Write the output header.
         String[] labels = inputStream.getLabels();
         writer.println(labels[0] + "\t" + labels[1] + "\tessential");
-        // Loop through the input, filling up and processing batches.
-        for (TabbedLineReader.Line line : inputStream) {
-            if (this.batchMap.size() >= this.batchSize)
-                this.processBatch(writer);
-            this.batchMap.put(line.get(0), line.get(1));
-            this.geneCount++;
+        this.writer = writer;
+        // Loop through the input, filling up and processing batches.  The queries run in the background, and the
+        // results are written in batch order.
+        try (P3RequestExecutor<BatchResult> executor = new P3RequestExecutor<BatchResult>(this.inFlight,
+                this.maxRetries, RETRY_DELAY, this::writeBatch)) {
+            for (TabbedLineReader.Line line : inputStream) {
+                if (this.batchMap.size() >= this.batchSize)
+                    this.processBatch(executor);
+                this.batchMap.put(line.get(0), line.get(1));
+                this.geneCount++;
+            }
+            // Process the residual batch.
+            if (! this.batchMap.isEmpty())
+                this.processBatch(executor);
+            executor.finish();
+        } finally {
+            this.journal.close();
         }
-        // Process the residual batch.
-        if (! this.batchMap.isEmpty())
-            this.processBatch(writer);
+        CommandMetrics.addRecords(this.geneCount);
+        this.p3.logStats();
         log.info("{} genes processed, {} essential.", geneCount, essentialCount);
     }
 
     /**
-     * Query the data base to determine which features in the current batch are
+     * This object contains the output for a batch.
+     */
+    private static class BatchResult {
+
+        /** checkpoint key of the batch */
+        private final String key;
+        /** output lines for the batch */
+        private final List<String> lines;
+        /** TRUE if the lines were restored from the checkpoint journal */
+        private final boolean restored;
+
+        /**
+         * Construct a batch result.
+         *
+         * @param key			checkpoint key of the batch
+         * @param lines			output lines for the batch
+         * @param restored		TRUE if the lines came from the checkpoint journal
+         */
+        protected BatchResult(String key, List<String> lines, boolean restored) {
+            this.key = key;
+            this.lines = lines;
+            this.restored = restored;
+        }
+
+    }
+
+    /**
+     * Process the current batch.  If the batch was completed in a previous run, its output is taken from the
+     * checkpoint journal; otherwise, a database query is submitted to the executor.
+     *
+     * @param executor	executor for the batch queries
+     *
+     * @throws Exception
+     */
+    private void processBatch(P3RequestExecutor<BatchResult> executor) throws Exception {
+        this.batchCount++;
+        // The key includes a hash of the batch, so a batch from a different input is never restored.
+        String key = this.batchCount + ":" + this.batchMap.keySet().iterator().next() + ":"
+                + CheckpointJournal.fingerprint(this.batchMap.entrySet()).substring(0, 16);
+        List<String> lines = this.journal.getLines(key);
+        if (lines != null) {
+            log.info("Batch {} restored from checkpoint.", this.batchCount);
+            executor.submitResult(new BatchResult(key, lines, true));
+            // Clear the batch for the next run.
+            this.batchMap.clear();
+        } else {
+            // The query runs in the background, so it keeps the old batch and we start a new one.
+            final Map<String, String> batch = this.batchMap;
+            final int geneNum = this.geneCount;
+            executor.submit(() -> new BatchResult(key, this.queryBatch(batch, geneNum), false));
+            this.batchMap = new LinkedHashMap<String, String>(this.batchSize * 2);
+        }
+    }
+
+    /**
+     * Write the output for a batch.  This is called in batch order.  Newly-queried batches are recorded in the
+     * checkpoint journal before they are written.
+     *
+     * @param result	output for the batch
+     *
+     * @throws IOException
+     */
+    private void writeBatch(BatchResult result) throws IOException {
+        if (! result.restored)
+            this.journal.record(result.key, result.lines);
+        for (String line : result.lines) {
+            if (line.endsWith("\tY"))
+                this.essentialCount++;
+            this.writer.println(line);
+        }
+    }
+
+    /**
+     * Query the data base to determine which features in a batch are
      * considered essential.
      *
-     * @param writer	output writer for the report
+     * @param batch		map of feature IDs to descriptions for the batch
+     * @param geneNum	number of features input so far
+     *
+     * @return the output lines for the genes in the batch
      */
-    private void processBatch(PrintWriter writer) {
-        log.info("Processing batch ({} features input so far).", this.geneCount);
+    private List<String> queryBatch(Map<String, String> batch, int geneNum) {
+        log.info("Processing batch ({} features input so far).", geneNum);
         // Return a record for each input feature considered essential.
         var results = p3.query(Table.SP_GENE, "patric_id,property",
-                Criterion.IN("patric_id", this.batchMap.keySet()));
+                Criterion.IN("patric_id", batch.keySet()));
         log.info("{} results found in query for {} genes.", results.size(),
-                this.batchMap.size());
+                batch.size());
         // Form the genes found into a set.
         var essentials = results.stream()
                 .filter(x -> StringUtils.equals(P3Connection.getString(x, "property"), "Essential Gene"))
                 .map(x -> P3Connection.getString(x, "patric_id"))
                 .collect(Collectors.toSet());
         // Output all the genes in the batch.
-        for (Map.Entry<String, String> entry : this.batchMap.entrySet()) {
+        List<String> retVal = new ArrayList<String>(batch.size());
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
             String geneId = entry.getKey();
-            String flag = "";
-            if (essentials.contains(geneId)) {
-                flag = "Y";
-                this.essentialCount++;
-            }
-            writer.format("%s\t%s\t%s%n", geneId, this.batchMap.get(geneId), flag);
+            String flag = (essentials.contains(geneId) ? "Y" : "");
+            retVal.add(geneId + "\t" + entry.getValue() + "\t" + flag);
         }
-        // Clear the batch for the next run.
-        this.batchMap.clear();
+        return retVal;
     }
 
 }
@@ -8,21 +8,28 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
 import org.theseed.counters.CountMap;
 import org.theseed.genome.Feature;
 import org.theseed.genome.Genome;
-import org.theseed.genome.GenomeDirectory;
+import org.theseed.genome.iterator.GenomeSource;
 
 /**
- * This command counts the protein families in the genomes of a genome directory.  The output
- * is a table of the family counts in order.  The positional parameter is the input genome directory.
- * The command-line options are as follows.
+ * This command counts the protein families in the genomes of a genome source.  The output
+ * is a table of the family counts in order.  The positional parameter is the input genome directory
+ * (or other genome source).  The command-line options are as follows.
  *
  * -h	display command-line usage
  * -v	show more detailed progress messages
+ * -t	type of genome source (default DIR)
+ *
+ * --threads	number of worker threads for processing genomes (default 1)
+ * --prefetch	if nonzero, the genomes are loaded on a background thread, with up to this many megabytes
+ * 				of genomes read ahead (default 0)
  *
  * @author Bruce Parrello
  *
@@ -34,49 +41,88 @@ public class FamilyCountProcessor extends BaseProcessor {
     protected static Logger log = LoggerFactory.getLogger(FamilyCountProcessor.class);
     /** protein family counter */
     private CountMap<String> familyCounts;
-    /** input genome directory */
-    private GenomeDirectory genomes;
+    /** input genome source */
+    private GenomeSource genomes;
+
+    /**
+     * This object contains the family counts accumulated by a single worker thread.
+     */
+    private static class Counts {
+
+        /** protein family counter */
+        private final CountMap<String> families = new CountMap<String>();
+        /** number of features with families */
+        private int pegCount = 0;
+        /** number of genomes processed */
+        private int genomeCount = 0;
+
+    }
 
     // COMMAND-LINE OPTIONS
 
+    /** input genome source type */
+    @Option(name = "--type", aliases = { "-t", "--source" }, usage = "type of input genome source")
+    private GenomeSource.Type sourceType;
+
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for processing genomes")
+    private int threads;
+
+    /** read-ahead budget for genome loading, in megabytes */
+    @Option(name = "--prefetch", metaVar = "512", usage = "if nonzero, megabytes of genomes to load ahead on a background thread")
+    private int prefetchMb;
+
     /** input directory */
     @Argument(index = 0, metaVar = "gtoDir", usage = "input directory of GTOs")
     private File inDir;
 
     @Override
     protected void setDefaults() {
+        this.sourceType = GenomeSource.Type.DIR;
+        this.threads = 1;
+        this.prefetchMb = 0;
     }
 
     @Override
-    protected boolean validateParms() throws IOException {
-        // Connect to the genome directory.
-        if (! inDir.isDirectory())
-            throw new FileNotFoundException("Input directory " + this.inDir + " not found or invalid.");
-        this.genomes = new GenomeDirectory(this.inDir);
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
+        if (this.prefetchMb < 0)
+            throw new ParseFailureException("Prefetch budget cannot be negative.");
+        // Connect to the genome source.
+        if (! inDir.exists())
+            throw new FileNotFoundException("Input source " + this.inDir + " not found.");
+        this.genomes = ResourceCache.get("GenomeSource." + this.sourceType, () -> this.sourceType.create(this.inDir),
+                this.inDir);
         log.info("{} genomes found in {}.", this.genomes.size(), this.inDir);
         return true;
     }
 
     @Override
     protected void runCommand() throws Exception {
-        // Initialize the count map.
+        // Process the genomes.  Each worker thread counts into its own accumulator.
+        ParallelDriver<Counts> driver = new ParallelDriver<Counts>(this.threads, Counts::new);
+        if (this.prefetchMb > 0) {
+            try (GenomePrefetcher prefetcher = new GenomePrefetcher(this.genomes, this.genomes.getIDs(),
+                    this.prefetchMb * 1024L * 1024L)) {
+                driver.run(() -> prefetcher, (genome, counts) -> this.scanGenome(genome, counts), x -> { });
+                log.info("Genome processing waited {} times for the prefetcher.", prefetcher.getWaits());
+            }
+        } else
+            driver.run(this.genomes.getIDs(), (genomeId, counts) -> this.scanGenome(this.genomes.getGenome(genomeId), counts),
+                    x -> { });
+        // Merge the accumulators.
         this.familyCounts = new CountMap<String>();
-        // We will track the number of features containing families.
         int genomeCount = 0;
         int pegCount = 0;
-        // Process the genomes.
-        for (Genome genome : this.genomes) {
-            genomeCount++;
-            log.info("Scanning genome {}: {}.", genomeCount, genome);
-            for (Feature feat : genome.getFeatures()) {
-                String family = feat.getPgfam();
-                if (family != null && ! family.isEmpty()) {
-                    this.familyCounts.count(family);
-                    pegCount++;
-                }
-            }
+        for (Counts counts : driver.getStates()) {
+            genomeCount += counts.genomeCount;
+            pegCount += counts.pegCount;
+            for (CountMap<String>.Count count : counts.families.counts())
+                this.familyCounts.count(count.getKey(), count.getCount());
         }
         // Now we output the counts.
+        CommandMetrics.addRecords(genomeCount);
         log.info("{} family-containing features found in {} genomes.", pegCount, genomeCount);
         log.info("{} families found, averaging {} features each.", this.familyCounts.size(),
                 ((double) pegCount) / this.familyCounts.size());
@@ -85,4 +131,25 @@ public class FamilyCountProcessor extends BaseProcessor {
             System.out.format("%s\t%8d%n", count.getKey(), count.getCount());
     }
 
+    /**
+     * Count the protein families in a single genome.
+     *
+     * @param genome	genome to scan
+     * @param counts	accumulator for the current thread
+     *
+     * @return NULL, since all the results are in the accumulator
+     */
+    private Void scanGenome(Genome genome, Counts counts) {
+        counts.genomeCount++;
+        log.info("Scanning genome {}.", genome);
+        for (Feature feat : genome.getFeatures()) {
+            String family = feat.getPgfam();
+            if (family != null && ! family.isEmpty()) {
+                counts.families.count(family);
+                counts.pegCount++;
+            }
+        }
+        return null;
+    }
+
 }
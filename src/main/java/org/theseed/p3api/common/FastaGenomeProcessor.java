@@ -39,6 +39,22 @@ import org.theseed.sequence.FastaInputStream;
  */
 public class FastaGenomeProcessor extends BaseProcessor {
 
+    /**
+     * This interface describes an object that receives the fragments from a scaffold split.
+     */
+    public interface FragmentHandler {
+
+        /**
+         * Process a contig fragment.
+         *
+         * @param pos			position in the contig at the end of the fragment
+         * @param fragIdx		ordinal number of the fragment in the contig
+         * @param fragmentSeq	DNA sequence of the fragment
+         */
+        public void accept(int pos, int fragIdx, String fragmentSeq);
+
+    }
+
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(FastaGenomeProcessor.class);
@@ -95,68 +111,15 @@ public class FastaGenomeProcessor extends BaseProcessor {
                 String description = contigSeq.getComment();
                 // Normalize the sequence.
                 String dna = contigSeq.getSequence().toLowerCase();
-                final int len = dna.length();
-                // Now we split the sequence using scaffold breaks.  This contains the number of
-                // fragments output.
-                int fragIdx = 0;
-                // This is our current offset into the contig.
-                int pos = 0;
-                // This is the current fragment being built.
-                StringBuilder fragment = new StringBuilder(len);
-                // Finally, this is the number of N/X characters in sequence preceding this position.
-                int nCount = 0;
-                while (pos < len) {
-                    final char ch = dna.charAt(pos);
-                    switch (ch) {
-                    case 'x' :
-                    case 'n' :
-                        // Here we have an ambiguity character.
-                        nCount++;
-                        if (nCount >= this.scaffoldSize && fragment.length() > 0) {
-                            // We have found a scaffold break and we have a fragment to output.
-                            fragIdx++;
-                            this.addFragment(contigId, description, pos, fragIdx, fragment.toString());
-                            // Set up for the next fragment.
-                            fragment.setLength(0);
-                        }
-                        break;
-                    default :
-                        // Here we have a real character.
-                        if (nCount > 0) {
-                            // Here we have some ambiguity characters to handle.
-                            if (nCount < this.scaffoldSize) {
-                                // They weren't a scaffold break.  Add them to the fragment in progress.
-                                while (nCount > 0) {
-                                    fragment.append('n');
-                                    nCount--;
-                                }
-                            } else {
-                                // They were a scaffold break.  Ignore them.
-                                nCount = 0;
-                            }
-                        }
-                        fragment.append(ch);
-                    }
-                    // Update the position.
-                    pos++;
-                }
-                // Check for a residual.
-                if (fragment.length() > 0) {
-                    // Here we have a residual.  Were there any fragments?
-                    if (fragIdx == 0) {
-                        // No.  Write the whole sequence as a contig.
-                        Contig contig = new Contig(contigId, dna, this.genome.getGeneticCode());
-                        contig.setDescription(description);
-                        log.info("Contig {} written in a single fragment.", contigId);
-                    } else {
-                        // Yes.  Write the final fragment.  If there are trailing Ns, add them here.
-                        if (nCount > 0)
-                            fragment.append("n".repeat(nCount));
-                        fragIdx++;
-                        this.addFragment(contigId, description, pos, fragIdx, fragment.toString());
-                    }
-                }
-                if (fragIdx > 0)
+                // Split the sequence using scaffold breaks.  We get back the number of fragments output.
+                int fragIdx = splitScaffolds(dna, this.scaffoldSize,
+                        (pos, idx, fragment) -> this.addFragment(contigId, description, pos, idx, fragment));
+                if (fragIdx == 0) {
+                    // No scaffold breaks.  Write the whole sequence as a contig.
+                    Contig contig = new Contig(contigId, dna, this.genome.getGeneticCode());
+                    contig.setDescription(description);
+                    log.info("Contig {} written in a single fragment.", contigId);
+                } else
                     log.info("Contig {} split into {} fragments.", contigId, fragIdx);
             }
         }
@@ -165,6 +128,73 @@ public class FastaGenomeProcessor extends BaseProcessor {
         this.genome.save(this.genomeFile);
     }
 
+    /**
+     * Split a normalized DNA sequence at scaffold breaks.  A scaffold break is a run of N/X characters
+     * at least as long as the scaffold size.  Shorter runs are kept in the fragment as "n".  If no
+     * scaffold break is found, no fragments are output and the caller should use the whole sequence.
+     *
+     * @param dna			lower-case DNA sequence to split
+     * @param scaffoldSize	minimum number of ambiguity characters to trigger a scaffold break
+     * @param handler		handler to receive the fragments
+     *
+     * @return the number of fragments output
+     */
+    public static int splitScaffolds(String dna, int scaffoldSize, FragmentHandler handler) {
+        final int len = dna.length();
+        // This contains the number of fragments output.
+        int fragIdx = 0;
+        // This is our current offset into the contig.
+        int pos = 0;
+        // This is the current fragment being built.
+        StringBuilder fragment = new StringBuilder(len);
+        // Finally, this is the number of N/X characters in sequence preceding this position.
+        int nCount = 0;
+        while (pos < len) {
+            final char ch = dna.charAt(pos);
+            switch (ch) {
+            case 'x' :
+            case 'n' :
+                // Here we have an ambiguity character.
+                nCount++;
+                if (nCount >= scaffoldSize && fragment.length() > 0) {
+                    // We have found a scaffold break and we have a fragment to output.
+                    fragIdx++;
+                    handler.accept(pos, fragIdx, fragment.toString());
+                    // Set up for the next fragment.
+                    fragment.setLength(0);
+                }
+                break;
+            default :
+                // Here we have a real character.
+                if (nCount > 0) {
+                    // Here we have some ambiguity characters to handle.
+                    if (nCount < scaffoldSize) {
+                        // They weren't a scaffold break.  Add them to the fragment in progress.
+                        while (nCount > 0) {
+                            fragment.append('n');
+                            nCount--;
+                        }
+                    } else {
+                        // They were a scaffold break.  Ignore them.
+                        nCount = 0;
+                    }
+                }
+                fragment.append(ch);
+            }
+            // Update the position.
+            pos++;
+        }
+        // Check for a residual.  It is only a fragment if there was a scaffold break.
+        if (fragment.length() > 0 && fragIdx > 0) {
+            // Write the final fragment.  If there are trailing Ns, add them here.
+            if (nCount > 0)
+                fragment.append("n".repeat(nCount));
+            fragIdx++;
+            handler.accept(pos, fragIdx, fragment.toString());
+        }
+        return fragIdx;
+    }
+
     /**
      * Add a contig fragment to the genome.
      *
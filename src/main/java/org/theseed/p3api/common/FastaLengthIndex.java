@@ -0,0 +1,386 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.io.TabbedLineReader;
+
+/**
+ * This object is an index of the records in a set of FASTA files, giving the ID, source file, byte offset, and
+ * residue count of each record.  The files are scanned through a memory mapping, counting the non-whitespace
+ * characters on the sequence lines, so no sequence strings are ever built.
+ *
+ * The index can be saved to a tab-delimited file and reloaded.  Each record line also contains the size and
+ * modification time of its source file when it was scanned.  When the index is updated from a set of FASTA files,
+ * only the files that are new or have changed are scanned again, and the records of files no longer present are
+ * dropped.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class FastaLengthIndex {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(FastaLengthIndex.class);
+    /** map of source file names to file descriptors */
+    private final Map<String, FileEntry> files;
+    /** TRUE if the index has changed since it was loaded */
+    private boolean changed;
+    /** number of files scanned in the last update */
+    private int scanCount;
+    /** header line for the index file */
+    private static final String HEADER = "contig_id\tsource_file\toffset\tlength\tfile_size\tfile_time";
+    /** maximum size of a mapped region */
+    private static final long MAP_CHUNK = 1L << 30;
+
+    /**
+     * This object describes a single FASTA record.
+     */
+    public static class Record {
+
+        /** record ID */
+        private final String id;
+        /** source file name */
+        private final String file;
+        /** byte offset of the header line in the file */
+        private final long offset;
+        /** number of residues */
+        private final long length;
+
+        /**
+         * Construct a record descriptor.
+         *
+         * @param id		record ID
+         * @param file		source file name
+         * @param offset	byte offset of the header line
+         * @param length	number of residues
+         */
+        protected Record(String id, String file, long offset, long length) {
+            this.id = id;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the record ID
+         */
+        public String getId() {
+            return this.id;
+        }
+
+        /**
+         * @return the source file name
+         */
+        public String getFile() {
+            return this.file;
+        }
+
+        /**
+         * @return the byte offset of the header line
+         */
+        public long getOffset() {
+            return this.offset;
+        }
+
+        /**
+         * @return the number of residues
+         */
+        public long getLength() {
+            return this.length;
+        }
+
+    }
+
+    /**
+     * This object describes the records in a single FASTA file.
+     */
+    private static class FileEntry {
+
+        /** file size when scanned */
+        private final long size;
+        /** modification time when scanned */
+        private final long time;
+        /** records in the file */
+        private final List<Record> records;
+
+        /**
+         * Construct a file descriptor.
+         *
+         * @param size		file size when scanned
+         * @param time		modification time when scanned
+         */
+        protected FileEntry(long size, long time) {
+            this.size = size;
+            this.time = time;
+            this.records = new ArrayList<Record>();
+        }
+
+        /**
+         * @return TRUE if the file has not changed since it was scanned
+         *
+         * @param file	file to check
+         */
+        protected boolean isCurrent(File file) {
+            return (file.length() == this.size && file.lastModified() == this.time);
+        }
+
+    }
+
+    /**
+     * This object accumulates the state of a FASTA scan across mapped regions.
+     */
+    private static class Scanner {
+
+        /** descriptor being built */
+        private final FileEntry entry;
+        /** source file name */
+        private final String fileName;
+        /** TRUE if the next byte starts a line */
+        private boolean lineStart;
+        /** TRUE if we are in a header line */
+        private boolean inHeader;
+        /** TRUE if we are still reading the ID in the header line */
+        private boolean inId;
+        /** buffer for the current ID */
+        private final ByteArrayOutputStream idBuffer;
+        /** offset of the current record, or -1 if there is none */
+        private long offset;
+        /** residue count of the current record */
+        private long length;
+
+        /**
+         * Construct a scanner for a file.
+         *
+         * @param entry		descriptor to receive the records
+         * @param fileName	source file name
+         */
+        protected Scanner(FileEntry entry, String fileName) {
+            this.entry = entry;
+            this.fileName = fileName;
+            this.lineStart = true;
+            this.inHeader = false;
+            this.inId = false;
+            this.idBuffer = new ByteArrayOutputStream(64);
+            this.offset = -1;
+            this.length = 0;
+        }
+
+        /**
+         * Scan a mapped region of the file.
+         *
+         * @param buffer	mapped region
+         * @param base		file offset of the region
+         */
+        protected void scan(MappedByteBuffer buffer, long base) {
+            final int limit = buffer.limit();
+            for (int i = 0; i < limit; i++) {
+                byte b = buffer.get(i);
+                if (this.inHeader) {
+                    if (b == '\n') {
+                        this.inHeader = false;
+                        this.lineStart = true;
+                    } else if (this.inId) {
+                        if (b <= ' ')
+                            this.inId = false;
+                        else
+                            this.idBuffer.write(b);
+                    }
+                } else if (b == '\n')
+                    this.lineStart = true;
+                else if (this.lineStart && b == '>') {
+                    this.finish();
+                    this.offset = base + i;
+                    this.inHeader = true;
+                    this.inId = true;
+                    this.lineStart = false;
+                } else {
+                    this.lineStart = false;
+                    if (b > ' ')
+                        this.length++;
+                }
+            }
+        }
+
+        /**
+         * Record the current record, if any.
+         */
+        protected void finish() {
+            if (this.offset >= 0) {
+                String id = new String(this.idBuffer.toByteArray(), StandardCharsets.ISO_8859_1);
+                this.entry.records.add(new Record(id, this.fileName, this.offset, this.length));
+            }
+            this.idBuffer.reset();
+            this.length = 0;
+        }
+
+    }
+
+    /**
+     * Construct an empty index.
+     */
+    public FastaLengthIndex() {
+        this.files = new TreeMap<String, FileEntry>();
+        this.changed = false;
+        this.scanCount = 0;
+    }
+
+    /**
+     * Load an index from a file.  If the file does not exist, an empty index is returned.
+     *
+     * @param indexFile		index file to load
+     *
+     * @return the index loaded
+     *
+     * @throws IOException
+     */
+    public static FastaLengthIndex load(File indexFile) throws IOException {
+        FastaLengthIndex retVal = new FastaLengthIndex();
+        if (indexFile.isFile()) {
+            try (TabbedLineReader inStream = new TabbedLineReader(indexFile)) {
+                int idCol = inStream.findField("contig_id");
+                int fileCol = inStream.findField("source_file");
+                int offsetCol = inStream.findField("offset");
+                int lenCol = inStream.findField("length");
+                int sizeCol = inStream.findField("file_size");
+                int timeCol = inStream.findField("file_time");
+                for (TabbedLineReader.Line line : inStream) {
+                    String fileName = line.get(fileCol);
+                    FileEntry entry = retVal.files.get(fileName);
+                    if (entry == null) {
+                        entry = new FileEntry(Long.parseLong(line.get(sizeCol)), Long.parseLong(line.get(timeCol)));
+                        retVal.files.put(fileName, entry);
+                    }
+                    entry.records.add(new Record(line.get(idCol), fileName, Long.parseLong(line.get(offsetCol)),
+                            Long.parseLong(line.get(lenCol))));
+                }
+            }
+            log.info("{} FASTA files loaded from contig index {}.", retVal.files.size(), indexFile);
+        }
+        return retVal;
+    }
+
+    /**
+     * Update the index from a set of FASTA files.  Files that are new or have changed are scanned, and files not
+     * in the set are removed.
+     *
+     * @param fastaFiles	FASTA files to index
+     *
+     * @throws IOException
+     */
+    public void update(Collection<File> fastaFiles) throws IOException {
+        this.scanCount = 0;
+        Map<String, File> fileMap = new TreeMap<String, File>();
+        for (File fastaFile : fastaFiles)
+            fileMap.put(fastaFile.getName(), fastaFile);
+        if (this.files.keySet().retainAll(fileMap.keySet()))
+            this.changed = true;
+        for (Map.Entry<String, File> fileEntry : fileMap.entrySet()) {
+            FileEntry old = this.files.get(fileEntry.getKey());
+            if (old == null || ! old.isCurrent(fileEntry.getValue())) {
+                this.files.put(fileEntry.getKey(), scan(fileEntry.getValue()));
+                this.scanCount++;
+                this.changed = true;
+            }
+        }
+    }
+
+    /**
+     * Scan a FASTA file to compute the offset and length of each record.
+     *
+     * @param fastaFile		FASTA file to scan
+     *
+     * @return a descriptor of the file's records
+     *
+     * @throws IOException
+     */
+    private static FileEntry scan(File fastaFile) throws IOException {
+        log.info("Scanning FASTA file {}.", fastaFile);
+        // Get the size and time first, so a change during the scan is caught next time.
+        FileEntry retVal = new FileEntry(fastaFile.length(), fastaFile.lastModified());
+        Scanner scanner = new Scanner(retVal, fastaFile.getName());
+        try (FileChannel channel = FileChannel.open(fastaFile.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+                scanner.scan(buffer, pos);
+            }
+        }
+        scanner.finish();
+        return retVal;
+    }
+
+    /**
+     * Save the index to a file if it has changed.  The index is written to a temporary file that is then moved
+     * into place.
+     *
+     * @param indexFile		index file to write
+     *
+     * @throws IOException
+     */
+    public void save(File indexFile) throws IOException {
+        if (this.changed) {
+            File tempFile = new File(indexFile.getAbsoluteFile().getParentFile(), indexFile.getName() + ".tmp");
+            try (PrintWriter writer = new PrintWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.println(HEADER);
+                for (FileEntry entry : this.files.values()) {
+                    for (Record record : entry.records)
+                        writer.format("%s\t%s\t%d\t%d\t%d\t%d%n", record.id, record.file, record.offset, record.length,
+                                entry.size, entry.time);
+                }
+            }
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            log.info("Contig index saved to {}.", indexFile);
+            this.changed = false;
+        }
+    }
+
+    /**
+     * @return a list of all the records in the index, ordered by file
+     */
+    public List<Record> getRecords() {
+        List<Record> retVal = new ArrayList<Record>();
+        for (FileEntry entry : this.files.values())
+            retVal.addAll(entry.records);
+        return retVal;
+    }
+
+    /**
+     * @return the records for a single file, or an empty list if the file is not in the index
+     *
+     * @param fileName	base name of the file
+     */
+    public List<Record> getRecords(String fileName) {
+        FileEntry entry = this.files.get(fileName);
+        return (entry == null ? Collections.emptyList() : entry.records);
+    }
+
+    /**
+     * @return the number of files scanned in the last update
+     */
+    public int getScanCount() {
+        return this.scanCount;
+    }
+
+}
@@ -3,11 +3,16 @@
  */
 package org.theseed.p3api.common;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
 import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +46,12 @@ import com.github.cliftonlabs.json_simple.JsonObject;
  * -b	batch size for queries (default 200)
  *
  * --limit		maximum number of genomes to output per representative group (default 1000)
+ * --p3cache	directory for caching PATRIC query results (default none)
+ * --offline	if specified, PATRIC queries will only be answered from the cache
+ * --checkpoint	checkpoint journal file; batches completed in a previous run with the same journal are restored
+ * 				from it instead of being queried again
+ * --parallel	number of query batches to keep in flight at once (default 4)
+ * --retries	maximum number of retries for a failing query (default 3)
  *
  * @author Bruce Parrello
  *
@@ -67,9 +78,17 @@ public class FindAmrGenomeProcessor extends BasePipeProcessor {
     /** number of found genomes skipped */
     private int skipCount;
     /** connection to BV-BRC */
-    private P3Connection p3;
+    private CachedP3Connection p3;
     /** set of groups with genomes already output */
     private CountMap<String> groups;
+    /** checkpoint journal */
+    private CheckpointJournal journal;
+    /** ID of the first genome in the current batch */
+    private String firstId;
+    /** output print writer for results */
+    private PrintWriter writer;
+    /** delay before the first retry of a failing query, in milliseconds */
+    private static final long RETRY_DELAY = 2000;
 
     // COMMAND-LINE OPTIONS
 
@@ -81,10 +100,72 @@ public class FindAmrGenomeProcessor extends BasePipeProcessor {
     @Option(name = "--limit", metaVar = "1000000", usage = "maximum number of genomes to output per representative group")
     private int maxSize;
 
+    /** directory for cached PATRIC query results */
+    @Option(name = "--p3cache", metaVar = "p3Cache", usage = "directory for caching PATRIC query results")
+    private File p3CacheDir;
+
+    /** if specified, PATRIC queries will only be answered from the cache */
+    @Option(name = "--offline", usage = "if specified, PATRIC queries will only be answered from the cache")
+    private boolean offline;
+
+    /** checkpoint journal file */
+    @Option(name = "--checkpoint", metaVar = "run.ckpt", usage = "checkpoint journal for resuming after an interruption")
+    private File checkpointFile;
+
+    /** number of query batches in flight */
+    @Option(name = "--parallel", metaVar = "8", usage = "number of query batches to keep in flight at once")
+    private int inFlight;
+
+    /** maximum number of retries for a failing query */
+    @Option(name = "--retries", metaVar = "5", usage = "maximum number of retries for a failing query")
+    private int maxRetries;
+
+    /**
+     * This object contains the results for a batch.  A batch restored from the checkpoint journal has output
+     * lines; a queried batch has an AMR map, and its lines are computed when it is delivered.
+     */
+    private static class BatchResult {
+
+        /** batch number */
+        private final int num;
+        /** checkpoint key of the batch */
+        private final String key;
+        /** map of genome IDs to input lines for the batch */
+        private final Map<String, Line> batch;
+        /** AMR counts for the batch, or NULL if the batch was restored */
+        private final QualityCountMap<String> amrMap;
+        /** restored output lines, or NULL if the batch was queried */
+        private final List<String> lines;
+
+        /**
+         * Construct a batch result.
+         *
+         * @param num		batch number
+         * @param key		checkpoint key of the batch
+         * @param batch		map of genome IDs to input lines for the batch
+         * @param amrMap	AMR counts for the batch, or NULL if the batch was restored
+         * @param lines		restored output lines, or NULL if the batch was queried
+         */
+        protected BatchResult(int num, String key, Map<String, Line> batch, QualityCountMap<String> amrMap,
+                List<String> lines) {
+            this.num = num;
+            this.key = key;
+            this.batch = batch;
+            this.amrMap = amrMap;
+            this.lines = lines;
+        }
+
+    }
+
     @Override
     protected void setPipeDefaults() {
         this.batchSize = 200;
         this.maxSize = 1000;
+        this.p3CacheDir = null;
+        this.offline = false;
+        this.checkpointFile = null;
+        this.inFlight = 4;
+        this.maxRetries = 3;
     }
 
     @Override
@@ -105,6 +186,13 @@ public class FindAmrGenomeProcessor extends BasePipeProcessor {
         // Verify the limit.
         if (this.maxSize < 1)
             throw new ParseFailureException("Maximum per-group genome limit must be positive.");
+        // Verify the query pipeline options.
+        if (this.inFlight < 1)
+            throw new ParseFailureException("Number of batches in flight must be positive.");
+        if (this.maxRetries < 0)
+            throw new ParseFailureException("Retry count cannot be negative.");
+        // Verify the cache options.
+        CachedP3Connection.validateOptions(this.p3CacheDir, this.offline);
     }
 
     @Override
@@ -112,7 +200,7 @@ public class FindAmrGenomeProcessor extends BasePipeProcessor {
         // Write the output header.
         writer.println("genome_id\tgenome_name\tscore\trating\tresistant\tsusceptible\trep100");
         // Connect to BV-BRC.
-        this.p3 = new P3Connection();
+        this.p3 = new CachedP3Connection(this.p3CacheDir, this.offline);
         // Initialize the counters.
         this.batchCount = 0;
         this.outCount = 0;
@@ -120,81 +208,164 @@ public class FindAmrGenomeProcessor extends BasePipeProcessor {
         int inCount = 0;
         // Set up the group selector.
         this.groups = new CountMap<String>();
+        // Open the checkpoint journal.
+        String fingerprint = (this.checkpointFile == null ? CheckpointJournal.NO_FINGERPRINT
+                : CheckpointJournal.fingerprint(this.batchSize, this.maxSize, inputStream.header()));
+        this.journal = CheckpointJournal.open(this.checkpointFile, "findAmr", fingerprint);
         // This will hold the current query batch.
         Map<String, TabbedLineReader.Line> batch = new HashMap<String, TabbedLineReader.Line>(this.batchSize * 3 / 2 + 1);
-        // Loop through the input file.  We stop when we hit the output maximum.
-        var iter = inputStream.iterator();
-        while (iter.hasNext()) {
-            var line = iter.next();
-            if (batch.size() >= this.batchSize) {
-                this.processBatch(writer, batch);
-                log.info("{} genomes read, {} output, {} skipped.", inCount, this.outCount, this.skipCount);
-                // Set up for the next batch.
-                batch.clear();
+        this.writer = writer;
+        // Loop through the input file.  The queries run in the background, and the results are selected and
+        // written in batch order.
+        try (P3RequestExecutor<BatchResult> executor = new P3RequestExecutor<BatchResult>(this.inFlight,
+                this.maxRetries, RETRY_DELAY, this::writeBatch)) {
+            var iter = inputStream.iterator();
+            while (iter.hasNext()) {
+                var line = iter.next();
+                if (batch.size() >= this.batchSize) {
+                    this.processBatch(executor, batch);
+                    log.info("{} genomes read, {} output, {} skipped.", inCount, this.outCount, this.skipCount);
+                    // Set up for the next batch.  The old batch may still be in use by its query.
+                    batch = new HashMap<String, TabbedLineReader.Line>(this.batchSize * 3 / 2 + 1);
+                }
+                String genomeId = line.get(this.idColIdx);
+                if (batch.isEmpty())
+                    this.firstId = genomeId;
+                batch.put(genomeId, line);
+                inCount++;
             }
-            String genomeId = line.get(this.idColIdx);
-            batch.put(genomeId, line);
-            inCount++;
+            // Insure we process the residual.
+            if (! batch.isEmpty())
+                this.processBatch(executor, batch);
+            executor.finish();
+        } finally {
+            this.journal.close();
         }
-        // Insure we process the residual.
-        if (! batch.isEmpty())
-            this.processBatch(writer, batch);
+        this.p3.logStats();
+        CommandMetrics.addRecords(inCount);
         log.info("{} total genomes read, {} output, {} skipped, {} batches submitted.", inCount, this.outCount, this.skipCount, this.batchCount);
     }
 
     /**
-     * Process a batch of genomes.  We attempt to find AMR data, and output the genomes if any AMR records exist.
+     * Process a batch of genomes.  We submit a query for the AMR data to the executor.  If the batch was completed
+     * in a previous run, its output is restored from the checkpoint journal instead.
      *
-     * @param writer	output print writer for results
+     * @param executor	executor for the batch queries
      * @param batch		map of genome IDs to input lines for the genomes to query
+     *
+     * @throws Exception
      */
-    private void processBatch(PrintWriter writer, Map<String, Line> batch) {
+    private void processBatch(P3RequestExecutor<BatchResult> executor, Map<String, Line> batch) throws Exception {
         this.batchCount++;
-        log.info("Processing batch {} with {} genomes.", this.batchCount, batch.size());
+        final int num = this.batchCount;
+        // The key includes a hash of the batch, so a batch from a different input is never restored.
+        List<String> batchLines = new ArrayList<String>(batch.size());
+        for (String genomeId : new TreeSet<String>(batch.keySet()))
+            batchLines.add(batch.get(genomeId).getAll());
+        String key = num + ":" + this.firstId + ":" + CheckpointJournal.fingerprint(batchLines).substring(0, 16);
+        List<String> lines = this.journal.getLines(key);
+        if (lines != null) {
+            log.info("Batch {} restored from checkpoint.", num);
+            executor.submitResult(new BatchResult(num, key, batch, null, lines));
+        } else {
+            log.info("Processing batch {} with {} genomes.", num, batch.size());
+            executor.submit(() -> new BatchResult(num, key, batch, this.queryBatch(batch, num), null));
+        }
+    }
+
+    /**
+     * Output the results for a batch.  This is called in batch order, so the genomes are selected exactly as they
+     * would be if the queries were run one at a time.  Newly-queried batches are recorded in the checkpoint journal.
+     *
+     * @param result	results for the batch
+     *
+     * @throws IOException
+     */
+    private void writeBatch(BatchResult result) throws IOException {
+        List<String> lines = result.lines;
+        if (lines != null) {
+            // Rebuild the group counts from the restored output.
+            for (String line : lines) {
+                this.groups.count(StringUtils.substringAfterLast(line, "\t"));
+                this.outCount++;
+            }
+        } else {
+            lines = this.selectGenomes(result.amrMap, result.batch, result.num);
+            this.journal.record(result.key, lines);
+        }
+        for (String line : lines)
+            this.writer.println(line);
+        // Insure the data is output.
+        this.writer.flush();
+    }
+
+    /**
+     * Query the AMR data for a batch of genomes.
+     *
+     * @param batch		map of genome IDs to input lines for the genomes to query
+     * @param num		batch number, for logging
+     *
+     * @return a map of genome IDs to resistant (good) and susceptible (bad) counts
+     */
+    private QualityCountMap<String> queryBatch(Map<String, Line> batch, int num) {
         // Set up a counter for bad phenotypes.
         int badTypeCount = 0;
         // Ask for AMR data.
         List<JsonObject> results = this.p3.getRecords(Table.GENOME_AMR, "genome_id", batch.keySet(), "antibiotic,resistant_phenotype");
+        // Loop through the results.  For each genome, we count the resistant records (good) and the susceptible records (bad).
+        QualityCountMap<String> retVal = new QualityCountMap<String>();
         if (results.isEmpty())
-            log.info("No AMR records found for batch {}.", this.batchCount);
+            log.info("No AMR records found for batch {}.", num);
         else {
-            log.info("{} AMR records found for batch {}.", results.size(), this.batchCount);
-            // Loop through the results.  For each genome, we could the resistant records (good) and the susceptible records (bad).
-            QualityCountMap<String> amrMap = new QualityCountMap<String>();
+            log.info("{} AMR records found for batch {}.", results.size(), num);
             for (var result : results) {
                 String genomeId = P3Connection.getString(result, "genome_id");
                 String type = P3Connection.getString(result, "resistant_phenotype");
                 if (type.contentEquals("Resistant"))
-                    amrMap.setGood(genomeId);
+                    retVal.setGood(genomeId);
                 else if (type.contentEquals("Susceptible"))
-                    amrMap.setBad(genomeId);
+                    retVal.setBad(genomeId);
                 else {
                     badTypeCount++;
                 }
             }
-            log.info("{} eligible genomes found in batch {}.  {} bad phenotypes.", amrMap.size(), this.batchCount, badTypeCount);
-            // Loop through the quality count map, writing results.
-            for (String genomeId : amrMap.allKeys()) {
-                var gLine = batch.get(genomeId);
-                if (gLine == null)
-                    log.error("Invalid genome result {} from AMR query for batch {}.", genomeId, this.batchCount);
+            log.info("{} eligible genomes found in batch {}.  {} bad phenotypes.", retVal.size(), num, badTypeCount);
+        }
+        return retVal;
+    }
+
+    /**
+     * Select the genomes to output from a batch's AMR results.  Genomes from representative groups that are
+     * already full are skipped.
+     *
+     * @param amrMap	map of genome IDs to resistant and susceptible counts
+     * @param batch		map of genome IDs to input lines for the genomes queried
+     * @param num		batch number, for logging
+     *
+     * @return the output lines for the selected genomes
+     */
+    private List<String> selectGenomes(QualityCountMap<String> amrMap, Map<String, Line> batch, int num) {
+        List<String> retVal = new ArrayList<String>(amrMap.size());
+        // Loop through the quality count map, producing results.
+        for (String genomeId : amrMap.allKeys()) {
+            var gLine = batch.get(genomeId);
+            if (gLine == null)
+                log.error("Invalid genome result {} from AMR query for batch {}.", genomeId, num);
+            else {
+                // Get the group name and count this genome.
+                String group = gLine.get(this.repGroupColIdx);
+                int newCount = this.groups.count(group);
+                if (newCount > this.maxSize)
+                    this.skipCount++;
                 else {
-                    // Get the group name and count this genome.
-                    String group = gLine.get(this.repGroupColIdx);
-                    int newCount = this.groups.count(group);
-                    if (newCount > this.maxSize)
-                        this.skipCount++;
-                    else {
-                        writer.println(genomeId + "\t" + gLine.get(this.nameColIdx) + "\t" + gLine.get(this.scoreColIdx) + "\t"
-                                + gLine.get(this.ratingColIdx) + "\t" + amrMap.good(genomeId) + "\t" + amrMap.bad(genomeId) + "\t"
-                                + gLine.get(this.repGroupColIdx));
-                        this.outCount++;
-                    }
+                    retVal.add(genomeId + "\t" + gLine.get(this.nameColIdx) + "\t" + gLine.get(this.scoreColIdx) + "\t"
+                            + gLine.get(this.ratingColIdx) + "\t" + amrMap.good(genomeId) + "\t" + amrMap.bad(genomeId) + "\t"
+                            + gLine.get(this.repGroupColIdx));
+                    this.outCount++;
                 }
             }
-            // Insure the data is output.
-            writer.flush();
         }
+        return retVal;
     }
 
 }
@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.genome.Genome;
+import org.theseed.genome.iterator.GenomeSource;
+
+/**
+ * This iterator loads genomes on a background thread, so that the disk reads and JSON parsing for the next
+ * genomes overlap the processing of the current one.  Instead of a fixed number of genomes, the read-ahead is
+ * limited by a heap budget:  the background thread stops loading when the estimated size of the genomes waiting
+ * in the queue reaches the budget.  A single genome larger than the budget is still loaded, but only when the
+ * queue is otherwise empty, so the memory held by the prefetcher never exceeds the budget by more than one genome.
+ *
+ * The size of a genome is estimated from its DNA length and feature count, since the exact heap footprint is
+ * not available.
+ *
+ * The iterator should be closed when the caller is done with it, so that the background thread stops.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class GenomePrefetcher implements Iterator<Genome>, AutoCloseable {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(GenomePrefetcher.class);
+    /** source genome iterator */
+    private final Iterator<Genome> source;
+    /** maximum estimated bytes of genomes to hold in the queue */
+    private final long budget;
+    /** queue of loaded genomes */
+    private final Deque<Loaded> queue;
+    /** estimated bytes of genomes in the queue */
+    private long queued;
+    /** TRUE if the source is exhausted */
+    private boolean done;
+    /** TRUE if the iterator has been closed */
+    private boolean closed;
+    /** error encountered by the background thread, or NULL if none */
+    private RuntimeException error;
+    /** background loading thread */
+    private final Thread loader;
+    /** number of times the consumer had to wait for a genome */
+    private int waits;
+    /** estimated bytes per base pair of DNA */
+    private static final long BYTES_PER_BASE = 2;
+    /** estimated bytes per feature */
+    private static final long BYTES_PER_FEATURE = 1500;
+
+    /**
+     * This object represents a loaded genome in the queue.
+     */
+    private static class Loaded {
+
+        /** genome loaded */
+        private final Genome genome;
+        /** estimated size of the genome in bytes */
+        private final long size;
+
+        /**
+         * Construct a queue entry.
+         *
+         * @param genome	genome loaded
+         * @param size		estimated size of the genome
+         */
+        protected Loaded(Genome genome, long size) {
+            this.genome = genome;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * Construct a prefetcher for a genome iterator.
+     *
+     * @param source	iterator to read ahead
+     * @param budget	maximum estimated number of bytes to hold in the read-ahead queue
+     */
+    public GenomePrefetcher(Iterator<Genome> source, long budget) {
+        this.source = source;
+        this.budget = budget;
+        this.queue = new ArrayDeque<Loaded>();
+        this.queued = 0;
+        this.done = false;
+        this.closed = false;
+        this.error = null;
+        this.waits = 0;
+        this.loader = new Thread(this::load, "genome-prefetch");
+        this.loader.setDaemon(true);
+        this.loader.start();
+    }
+
+    /**
+     * Construct a prefetcher for a list of genomes in a genome source.
+     *
+     * @param genomes	genome source containing the genomes
+     * @param ids		IDs of the genomes to load, in order
+     * @param budget	maximum estimated number of bytes to hold in the read-ahead queue
+     */
+    public GenomePrefetcher(GenomeSource genomes, Collection<String> ids, long budget) {
+        this(new Iterator<Genome>() {
+            private final Iterator<String> iter = ids.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return this.iter.hasNext();
+            }
+
+            @Override
+            public Genome next() {
+                return genomes.getGenome(this.iter.next());
+            }
+        }, budget);
+    }
+
+    /**
+     * @return the estimated heap size of a genome, in bytes
+     *
+     * @param genome	genome to measure
+     */
+    public static long estimateSize(Genome genome) {
+        return genome.getLength() * BYTES_PER_BASE + genome.getFeatureCount() * BYTES_PER_FEATURE;
+    }
+
+    /**
+     * Load genomes into the queue until the source is exhausted or the iterator is closed.
+     */
+    private void load() {
+        try {
+            boolean more = this.source.hasNext();
+            while (more) {
+                // Wait for room in the budget.
+                synchronized (this) {
+                    while (! this.closed && ! this.queue.isEmpty() && this.queued >= this.budget)
+                        this.wait();
+                    if (this.closed)
+                        break;
+                }
+                Genome genome = this.source.next();
+                long size = estimateSize(genome);
+                synchronized (this) {
+                    this.queue.addLast(new Loaded(genome, size));
+                    this.queued += size;
+                    this.notifyAll();
+                }
+                more = this.source.hasNext();
+            }
+        } catch (InterruptedException e) {
+            // Here we were closed while waiting.
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                this.error = e;
+            }
+        } finally {
+            synchronized (this) {
+                this.done = true;
+                this.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        this.awaitGenome();
+        return ! this.queue.isEmpty();
+    }
+
+    @Override
+    public synchronized Genome next() {
+        this.awaitGenome();
+        if (this.queue.isEmpty())
+            throw new NoSuchElementException("No more genomes in prefetch queue.");
+        Loaded retVal = this.queue.removeFirst();
+        this.queued -= retVal.size;
+        this.notifyAll();
+        return retVal.genome;
+    }
+
+    /**
+     * Wait until a genome is in the queue or the source is exhausted.  If the background thread failed, its
+     * error is thrown here.
+     */
+    private void awaitGenome() {
+        if (this.queue.isEmpty() && ! this.done) {
+            this.waits++;
+            try {
+                while (this.queue.isEmpty() && ! this.done)
+                    this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for genome prefetch.", e);
+            }
+        }
+        if (this.queue.isEmpty() && this.error != null)
+            throw this.error;
+    }
+
+    /**
+     * @return the number of times the consumer had to wait for a genome to load
+     */
+    public synchronized int getWaits() {
+        return this.waits;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+            this.queue.clear();
+            this.queued = 0;
+            this.notifyAll();
+        }
+        this.loader.interrupt();
+        log.debug("Genome prefetcher closed after {} waits.", this.waits);
+    }
+
+}
@@ -7,9 +7,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Formatter;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,14 +25,9 @@ import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
-import org.theseed.genome.Genome;
-import org.theseed.genome.iterator.GenomeSource;
 import org.theseed.io.LineReader;
-import org.theseed.io.TabbedLineReader;
 import org.theseed.proteins.kmers.reps.RepGenome;
 import org.theseed.proteins.kmers.reps.RepGenomeDb;
-import org.theseed.sequence.FastaInputStream;
-import org.theseed.sequence.Sequence;
 import org.theseed.basic.BaseReportProcessor;
 
 /**
@@ -43,16 +43,29 @@ import org.theseed.basic.BaseReportProcessor;
  * In the P3Eval directory, we will use the scatter.tbl file to build a map from the target representative
  * genomes to the genomes actually used, which are found in the Scatter subdirectory.  These can then be
  * used to determine distances and similarity scores between the genomes used and the representative
- * genomes in question, which we will compute using the rep200.ser file.
+ * genomes in question, which we will compute using the rep200.ser file.  Only the ID, name, and seed
+ * protein of each source genome are needed, so these are kept in a compact index file in the P3Eval
+ * directory (see {@link SeedProteinIndex}), and the full genomes are only read when the index is out of date.
  *
  * A report will be produced on the standard output containing the number of hits and the distance
  * information.
  *
  * The number of hits is influenced both by the distance and the contig length, so the first task is to
- * read through the FASTA files to compute the length and file location of each contig.  Next, we will
- * read through the input file to get the relevant genome pair and hit count for each contig.  Finally,
+ * get the length and file location of each contig.  These come from a contig index file kept beside the FASTA
+ * directory (with the directory name plus ".contigs.tbl").  Only FASTA files that are new or have changed since
+ * the index was written are scanned, and the scan counts the residues without building the sequences.  If the
+ * index cannot be saved (for example, because the parent directory is read-only), a warning is logged and the
+ * index is only used in memory.
+ * Next, we will read through the input file to get the relevant genome pair and hit count for each contig.  Finally,
  * we will read the distance file and output the distances and kmer similarities along with the other information.
  *
+ * Each source genome has many contigs, so the same genome-pair comparisons come up over and over.  The
+ * representation result for each pair of genome IDs is kept in a size-bounded cache, and the cache hit rate is
+ * written to the log at the end.
+ *
+ * The input lines are independent, so they can be scored in chunks on several threads.  The output rows for each
+ * chunk are formatted by the worker and written in the original order.
+ *
  * The command-line options are:
  *
  * -h	display command-line usage
@@ -61,6 +74,10 @@ import org.theseed.basic.BaseReportProcessor;
  * -o	output file for report (if not STDOUT)
  * -m	minimum number of hits for a hit to be considered good
  *
+ * --rescan		ignore any existing contig index and scan all the FASTA files
+ * --cacheSize	maximum number of genome-pair comparisons to cache (default 10000)
+ * --threads	number of worker threads for scoring the input lines (default 1)
+ *
  * @author Bruce Parrello
  *
  */
@@ -76,20 +93,19 @@ public class HammerCheckProcessor extends BaseReportProcessor {
         /** source file name */
         private String sourceFile;
         /** contig length */
-        private int len;
+        private long len;
         /** search pattern for extracting target genome ID */
         private static Pattern CONTIG_ID_PATTERN = Pattern.compile("REP_(\\d+\\.\\d+)_.+");
 
         /**
          * Create a contig descriptor.
          *
-         * @param file		name of source file
-         * @param seq		sequence record for the contig
+         * @param record	contig index record for the contig
          */
-        public ContigInfo(File file, Sequence seq) {
-            this.sourceFile = file.getName();
-            this.contigId = seq.getLabel();
-            this.len = seq.getSequence().length();
+        public ContigInfo(FastaLengthIndex.Record record) {
+            this.sourceFile = record.getFile();
+            this.contigId = record.getId();
+            this.len = record.getLength();
         }
 
         /**
@@ -109,7 +125,7 @@ public class HammerCheckProcessor extends BaseReportProcessor {
         /**
          * @return the contig length
          */
-        public int getLen() {
+        public long getLen() {
             return this.len;
         }
 
@@ -127,9 +143,42 @@ public class HammerCheckProcessor extends BaseReportProcessor {
 
     }
 
+    /**
+     * This object contains the output for a chunk of input lines.
+     */
+    private static class ChunkResult {
+
+        /** formatted output rows */
+        private final String text;
+        /** number of lines processed */
+        private final int lineCount;
+        /** number of lines skipped */
+        private final int skipCount;
+
+        /**
+         * Construct a chunk result.
+         *
+         * @param text			formatted output rows
+         * @param lineCount		number of lines processed
+         * @param skipCount		number of lines skipped
+         */
+        protected ChunkResult(String text, int lineCount, int skipCount) {
+            this.text = text;
+            this.lineCount = lineCount;
+            this.skipCount = skipCount;
+        }
+
+    }
+
     // FIELDS
     /** logging facility */
     protected static Logger log = LoggerFactory.getLogger(HammerCheckProcessor.class);
+    /** number of input lines processed */
+    private int lineCount;
+    /** number of input lines skipped */
+    private int skipCount;
+    /** number of input lines per work chunk */
+    private static final int CHUNK_SIZE = 200;
     /** map of contig IDs to descriptors */
     private Map<String, ContigInfo> contigMap;
     /** input file stream */
@@ -138,10 +187,12 @@ public class HammerCheckProcessor extends BaseReportProcessor {
     private Collection<File> fastaFiles;
     /** representative-genome database */
     private RepGenomeDb rep200db;
-    /** map of target genome IDs to source genomes */
-    private Map<String, Genome> sourceMap;
+    /** map of target genome IDs to source genome descriptors */
+    private Map<String, SeedProteinIndex.Entry> sourceMap;
     /** default representation object */
     private RepGenomeDb.Representation NO_REP;
+    /** cache of representation results, keyed by representative and source genome IDs */
+    private LruCache<String, RepGenomeDb.Representation> repCache;
     /** array of header fields */
     private static final String[] HEADERS = new String[] {
             "source_file", "contig_id", "contig_len", "contig_genome",
@@ -171,6 +222,18 @@ public class HammerCheckProcessor extends BaseReportProcessor {
     @Option(name = "--input", aliases = { "-i" }, usage = "file containing input binning data (if not STDIN)")
     private File inFile;
 
+    /** TRUE to ignore any existing contig index */
+    @Option(name = "--rescan", usage = "if specified, the FASTA files will all be rescanned")
+    private boolean rescan;
+
+    /** maximum number of genome-pair comparisons to cache */
+    @Option(name = "--cacheSize", metaVar = "50000", usage = "maximum number of genome-pair comparisons to cache")
+    private int cacheSize;
+
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for scoring the input lines")
+    private int threads;
+
     /** name of the FASTA file directory */
     @Argument(index = 0, metaVar = "fastaDir", usage = "directory of FASTA files that were binned", required = true)
     private File fastaDir;
@@ -185,6 +248,9 @@ public class HammerCheckProcessor extends BaseReportProcessor {
     protected void setReporterDefaults() {
         this.inFile = null;
         this.minHits = 100;
+        this.rescan = false;
+        this.cacheSize = 10000;
+        this.threads = 1;
     }
 
     @Override
@@ -192,6 +258,10 @@ public class HammerCheckProcessor extends BaseReportProcessor {
         // Validate the min-hit count.
         if (this.minHits <= 0)
             throw new ParseFailureException("Minimum hit count must be positive.");
+        if (this.cacheSize < 0)
+            throw new ParseFailureException("Cache size cannot be negative.");
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
         // Set up the input.
         if (this.inFile == null) {
             log.info("Hit information will be read from the standard input.");
@@ -214,48 +284,161 @@ public class HammerCheckProcessor extends BaseReportProcessor {
             throw new FileNotFoundException("Evaluation directory " + this.evalDir + " is not found or invalid.");
         // Load the repgen database.
         log.info("Loading repgen database.");
-        this.rep200db = RepGenomeDb.load(new File(this.evalDir, "rep200.ser"));
+        File repFile = new File(this.evalDir, "rep200.ser");
+        this.rep200db = ResourceCache.get("RepGenomeDb", () -> RepGenomeDb.load(repFile), repFile);
         // Create the default representation (symbolizing no representative).
         NO_REP = this.rep200db.new Representation();
         // Load the genome map.
         log.info("Loading genome map.");
-        GenomeSource scatterGenomes = GenomeSource.Type.DIR.create(new File(this.evalDir, "Scatter"));
-        this.sourceMap = new HashMap<String, Genome>(scatterGenomes.size() * 4 / 3);
-        try (TabbedLineReader scatterStream = new TabbedLineReader(new File(this.evalDir, "scatter.tbl"))) {
-            int repCol = scatterStream.findField("rep200");
-            int gCol = scatterStream.findField("genome_id");
-            for (TabbedLineReader.Line line : scatterStream) {
-                String genomeId = line.get(gCol);
-                String repId = line.get(repCol);
-                if (this.sourceMap.containsKey(repId))
-                    throw new IOException("Duplicate rep ID " + repId + " in scatter file for " + genomeId + ".");
-                Genome genome = scatterGenomes.getGenome(genomeId);
-                this.sourceMap.put(repId, genome);
-            }
-            log.info("{} genomes loaded from scatter mapping.", this.sourceMap.size());
+        File scatterFile = new File(this.evalDir, "scatter.tbl");
+        File scatterDir = new File(this.evalDir, "Scatter");
+        this.sourceMap = ResourceCache.get("seedIndex", () -> SeedProteinIndex.load(this.evalDir, this.rep200db),
+                scatterFile, scatterDir, repFile);
+    }
+
+    /**
+     * @return the representation result comparing a representative genome to a source genome
+     *
+     * @param repGenomeId	ID of the representative genome
+     * @param sourceId		ID of the source genome
+     * @param sourceSeed	seed protein of the source genome
+     */
+    private RepGenomeDb.Representation getRepresentation(String repGenomeId, String sourceId, RepGenome sourceSeed) {
+        String key = repGenomeId + "\t" + sourceId;
+        RepGenomeDb.Representation retVal = this.repCache.get(key);
+        if (retVal == null) {
+            RepGenome repSeed = this.rep200db.get(repGenomeId);
+            retVal = this.rep200db.new Representation(repSeed, sourceSeed);
+            this.repCache.put(key, retVal);
         }
+        return retVal;
+    }
+
+    /**
+     * Score a chunk of input lines and format the output rows.
+     *
+     * @param chunk			list of input lines to process
+     * @param formatter		formatter to use for the output rows; its buffer is emptied afterward
+     *
+     * @return the formatted rows and the line counts for the chunk
+     *
+     * @throws IOException
+     */
+    private ChunkResult processChunk(List<String[]> chunk, Formatter formatter) throws IOException {
+        int processed = 0;
+        int skipped = 0;
+        for (String[] line : chunk) {
+            if (this.processLine(line, formatter))
+                processed++;
+            else
+                skipped++;
+        }
+        StringBuilder buffer = (StringBuilder) formatter.out();
+        String text = buffer.toString();
+        buffer.setLength(0);
+        return new ChunkResult(text, processed, skipped);
+    }
+
+    /**
+     * Score an input line and format its output row.
+     *
+     * @param line			fields of the input line
+     * @param formatter		formatter to receive the output row
+     *
+     * @return TRUE if the line was processed, FALSE if it was skipped
+     *
+     * @throws IOException
+     */
+    private boolean processLine(String[] line, Formatter formatter) throws IOException {
+        boolean retVal = false;
+        // Get the contig ID, the hit count, and the actual genome.
+        String contigId = line[0];
+        String actualGenomeId = "";
+        int hitCount = 0;
+        String hitType = "none";
+        if (line.length > 2) {
+            // Here there were hits, so we have an actual and a hit count.
+            actualGenomeId = line[1];
+            hitCount = Integer.valueOf(line[2]);
+            hitType = (hitCount < this.minHits ? "low" : "GOOD");
+        }
+        // Get the target representative genome ID.  From this we can determine the source genome.
+        ContigInfo contigInfo = this.contigMap.get(contigId);
+        String targetGenomeId = contigInfo.getTarget();
+        // Only proceed if the target genome is valid.
+        SeedProteinIndex.Entry sourceGenome = this.sourceMap.get(targetGenomeId);
+        if (sourceGenome != null) {
+            // Extract the source genome's seed protein.
+            RepGenome sourceSeed = sourceGenome.getSeed();
+            // Compute the distance and similarity to the actual and the target. There is always a target,
+            // but there may not be an actual.
+            var actual = NO_REP;
+            if (! actualGenomeId.isEmpty())
+                actual = this.getRepresentation(actualGenomeId, sourceGenome.getGenomeId(), sourceSeed);
+            var target = this.getRepresentation(targetGenomeId, sourceGenome.getGenomeId(), sourceSeed);
+            // Determine whether or not this is a correct hit.
+            String correct = (actualGenomeId.equals(targetGenomeId) ? "Y" : "");
+            // We now have all the information we need.
+            formatter.format(FORMAT_LINE,
+                    contigInfo.getSourceFile(), contigInfo.getContigId(), contigInfo.getLen(), sourceGenome.getGenomeId(),
+                    hitCount, correct, hitType,
+                    targetGenomeId, target.getSimilarity(), target.getDistance(),
+                    actualGenomeId, actual.getSimilarity(), actual.getDistance(),
+                    sourceGenome.getName()
+                    );
+            retVal = true;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return an iterable that groups the items of another iterable into lists
+     *
+     * @param items		items to group
+     * @param size		maximum number of items in each list
+     */
+    private static <T> Iterable<List<T>> chunks(Iterable<T> items, int size) {
+        return () -> new Iterator<List<T>>() {
+            private final Iterator<T> iter = items.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return this.iter.hasNext();
+            }
+
+            @Override
+            public List<T> next() {
+                if (! this.iter.hasNext())
+                    throw new NoSuchElementException();
+                List<T> retVal = new ArrayList<T>(size);
+                while (retVal.size() < size && this.iter.hasNext())
+                    retVal.add(this.iter.next());
+                return retVal;
+            }
+        };
     }
 
     @Override
     protected void runReporter(PrintWriter writer) throws Exception {
         try {
-            // First, we read the FASTA files to determine the contig lengths.  This builds our contigInfo map.
+            // First, we get the contig lengths from the contig index.  This builds our contigInfo map.
             // Note we estimate 120 contigs per genome.  (Allocating 50 gives us hash margin.)
             this.contigMap = new HashMap<String, ContigInfo>(this.sourceMap.size() * 150);
-            // Loop through the FASTA files.
-            for (File fastaFile : this.fastaFiles) {
-                log.info("Processing FASTA file {}.", fastaFile);
-                try (FastaInputStream fastaStream = new FastaInputStream(fastaFile)) {
-                    int seqCount = 0;
-                    for (Sequence contig : fastaStream) {
-                        // Create the descriptor for this contig.
-                        ContigInfo contigInfo = new ContigInfo(fastaFile, contig);
-                        this.contigMap.put(contigInfo.getContigId(), contigInfo);
-                        seqCount++;
-                        if (log.isInfoEnabled() && seqCount % 100 == 0)
-                            log.info("{} sequences read from {}.", seqCount, fastaFile);
-                    }
-                }
+            this.repCache = new LruCache<String, RepGenomeDb.Representation>(this.cacheSize);
+            File indexFile = new File(this.fastaDir.getAbsoluteFile().getParentFile(),
+                    this.fastaDir.getName() + ".contigs.tbl");
+            FastaLengthIndex contigIndex = (this.rescan ? new FastaLengthIndex() : FastaLengthIndex.load(indexFile));
+            contigIndex.update(this.fastaFiles);
+            log.info("{} FASTA files scanned.", contigIndex.getScanCount());
+            try {
+                contigIndex.save(indexFile);
+            } catch (IOException e) {
+                // The index is only an optimization, so we can still use it in memory.
+                log.warn("Could not save contig index to {}: {}", indexFile, e.toString());
+            }
+            for (FastaLengthIndex.Record record : contigIndex.getRecords()) {
+                ContigInfo contigInfo = new ContigInfo(record);
+                this.contigMap.put(contigInfo.getContigId(), contigInfo);
             }
             log.info("{} contigs processed.", this.contigMap.size());
             // Now that we have the source file and length for each contig, we can begin processing the
@@ -265,56 +448,21 @@ public class HammerCheckProcessor extends BaseReportProcessor {
             // the file header.
             writer.println(HEADER_LINE);
             // Now we loop through the input.  Note we use NULL as the section delimiter to read the whole file.
-            log.info("Processing input.");
-            int lineCount = 0;
-            int skipCount = 0;
-            for (String[] line : this.inStream.new Section(null)) {
-                // Get the contig ID, the hit count, and the actual genome.
-                String contigId = line[0];
-                String actualGenomeId = "";
-                int hitCount = 0;
-                String hitType = "none";
-                if (line.length > 2) {
-                    // Here there were hits, so we have an actual and a hit count.
-                    actualGenomeId = line[1];
-                    hitCount = Integer.valueOf(line[2]);
-                    hitType = (hitCount < this.minHits ? "low" : "GOOD");
-                }
-                // Get the target representative genome ID.  From this we can determine the source genome.
-                ContigInfo contigInfo = this.contigMap.get(contigId);
-                String targetGenomeId = contigInfo.getTarget();
-                // Only proceed if the target genome is valid.
-                if (! this.sourceMap.containsKey(targetGenomeId))
-                    skipCount++;
-                else {
-                    Genome sourceGenome = this.sourceMap.get(targetGenomeId);
-                    // Extract the source genome's seed protein.
-                    RepGenome sourceSeed = this.rep200db.getSeedProtein(sourceGenome);
-                    // Compute the distance and similarity to the actual and the target. There is always a target,
-                    // but there may not be an actual.
-                    var actual = NO_REP;
-                    if (! actualGenomeId.isEmpty()) {
-                        RepGenome actualSeed = this.rep200db.get(actualGenomeId);
-                        actual = this.rep200db.new Representation(actualSeed, sourceSeed);
-                    }
-                    RepGenome targetSeed = this.rep200db.get(targetGenomeId);
-                    var target = this.rep200db.new Representation(targetSeed, sourceSeed);
-                    // Determine whether or not this is a correct hit.
-                    String correct = (actualGenomeId.equals(targetGenomeId) ? "Y" : "");
-                    // We now have all the information we need.
-                    writer.format(FORMAT_LINE,
-                            contigInfo.getSourceFile(), contigInfo.getContigId(), contigInfo.getLen(), sourceGenome.getId(),
-                            hitCount, correct, hitType,
-                            targetGenomeId, target.getSimilarity(), target.getDistance(),
-                            actualGenomeId, actual.getSimilarity(), actual.getDistance(),
-                            sourceGenome.getName()
-                            );
-                    lineCount++;
-                    if (log.isInfoEnabled() && lineCount % 100 == 0)
-                        log.info("{} input lines processed, {} skipped.", lineCount, skipCount);
-                }
-            }
-            log.info("{} input lines completed, {} skipped.", lineCount, skipCount);
+            // The lines are scored in chunks, and each chunk's rows are formatted into a single block of text.
+            log.info("Processing input with {} threads.", this.threads);
+            this.lineCount = 0;
+            this.skipCount = 0;
+            ParallelDriver<Formatter> driver = new ParallelDriver<Formatter>(this.threads,
+                    () -> new Formatter(new StringBuilder(CHUNK_SIZE * 150)));
+            driver.run(chunks(this.inStream.new Section(null), CHUNK_SIZE), this::processChunk, result -> {
+                writer.print(result.text);
+                this.lineCount += result.lineCount;
+                this.skipCount += result.skipCount;
+                log.info("{} input lines processed, {} skipped.", this.lineCount, this.skipCount);
+            });
+            CommandMetrics.addRecords(this.lineCount);
+            log.info("{} input lines completed, {} skipped.", this.lineCount, this.skipCount);
+            log.info("Comparison cache hit rate {} ({} hits).", this.repCache.getHitRate(), this.repCache.getHits());
         } finally {
             // If we were reading from a file, insure it is closed.
             if (this.inFile != null)
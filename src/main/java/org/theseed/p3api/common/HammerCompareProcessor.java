@@ -130,6 +130,7 @@ public class HammerCompareProcessor extends BaseReportProcessor {
                 if (log.isInfoEnabled() && inCount % 10000 == 0)
                     log.info("{} lines read, {} skipped.", inCount, skipCount);
             }
+            CommandMetrics.addRecords(inCount);
             log.info("{} lines read. {} skipped, {} output.", inCount, skipCount, outCount);
         }
     }
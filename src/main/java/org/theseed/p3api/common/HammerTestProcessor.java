@@ -86,6 +86,17 @@ public class HammerTestProcessor extends BasePipeProcessor {
         // Verify the distance file and load the distances.
         if (! this.distFile.canRead())
             throw new FileNotFoundException("Distance file " + this.distFile + " is not found or unreadable.");
+        this.distanceMap = ResourceCache.get("distances." + this.distanceCol, () -> this.loadDistances(), this.distFile);
+    }
+
+    /**
+     * Load the distances from the distance file.
+     *
+     * @return a map from genome ID pairs to distances
+     *
+     * @throws IOException
+     */
+    private Map<StringPair, Double> loadDistances() throws IOException {
         try (TabbedLineReader distStream = new TabbedLineReader(this.distFile)) {
             log.info("Reading distances from {}.", this.distFile);
             // Locate the genome ID columns.
@@ -94,14 +105,15 @@ public class HammerTestProcessor extends BasePipeProcessor {
             // Locate the distance column.
             int distColIdx = distStream.findField(this.distanceCol);
             // Create the distance map.
-            this.distanceMap = new HashMap<StringPair, Double>(2000);
+            Map<StringPair, Double> retVal = new HashMap<StringPair, Double>(2000);
             // Fill it from the distance file.
             for (var line : distStream) {
                 StringPair genomes = new StringPair(line.get(id1ColIdx), line.get(id2ColIdx));
                 double distance = line.getDouble(distColIdx);
-                this.distanceMap.put(genomes, distance);
+                retVal.put(genomes, distance);
             }
-            log.info("{} distances loaded from {}.", this.distanceMap.size(), this.distFile);
+            log.info("{} distances loaded from {}.", retVal.size(), this.distFile);
+            return retVal;
         }
     }
 
@@ -143,8 +155,21 @@ public class HammerTestProcessor extends BasePipeProcessor {
      * @return the distance from the distance file, or 2.0 if the distance is missing
      */
     private double getDistance(String g1, String g2) {
+        return getDistance(this.distanceMap, g1, g2);
+    }
+
+    /**
+     * Get the distance between two genomes from a distance map.
+     *
+     * @param distanceMap	map of genome pairs to distances
+     * @param g1			ID of the first genome
+     * @param g2			ID of the second genome
+     *
+     * @return the distance from the map, or 2.0 if the distance is missing
+     */
+    public static double getDistance(Map<StringPair, Double> distanceMap, String g1, String g2) {
         StringPair pair = new StringPair(g1, g2);
-        double retVal = this.distanceMap.getOrDefault(pair, 2.0);
+        double retVal = distanceMap.getOrDefault(pair, 2.0);
         if (retVal == 2.0)
             log.warn("Missing distance between {} and {}.", g1, g2);
         return retVal;
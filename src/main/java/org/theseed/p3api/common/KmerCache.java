@@ -0,0 +1,406 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object manages a persistent cache of computed k-mer data (MinHash sketches or packed k-mer sets), so that
+ * repeated distance runs over the same sequences do not have to recompute them.  Each entry is keyed by the MD5
+ * of the sequence text, so a sequence whose content changes is simply a cache miss, and one cache file can be
+ * shared by several FASTA files containing overlapping sets of sequences.
+ *
+ * The cache is a binary file.  The header contains a magic number, a version, the kind of data, and the
+ * parameters used to compute it (k-mer size, sketch size, and LSH bin count).  If the header does not match the
+ * current run, or the file is damaged, the whole cache is ignored and rebuilt; the old file is renamed with a
+ * ".old" suffix rather than overwritten, so a cache built for other parameters is never lost.  The header is followed by the entries, each containing the
+ * 16-byte MD5, and then for each array of data, its length and its values.
+ *
+ * The file is memory-mapped when it is opened.  A single mapping is limited to 2 gigabytes, so the file is mapped
+ * in chunks and all positions are long integers; an entry may straddle two chunks.  Only the MD5 index is built
+ * at that point; the arrays for an entry are read from the mapping when it is requested, so loading is fast and
+ * unused entries cost nothing.
+ * Lookups are thread-safe, but new entries must be added from a single thread.  If any new entries were added,
+ * the cache is rewritten when it is saved.  The new file is written beside the old one and then moved into place,
+ * so an interrupted run never leaves a damaged cache.
+ *
+ * If no cache file is specified, the cache is disabled:  every lookup is a miss and saving does nothing.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class KmerCache {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(KmerCache.class);
+    /** cache file, or NULL if the cache is disabled */
+    private final File cacheFile;
+    /** header parameters for this run */
+    private final int[] parms;
+    /** number of arrays in each entry */
+    private final int arrayCount;
+    /** mapped chunks of the existing cache file, or NULL if there is none */
+    private MappedByteBuffer[] chunks;
+    /** size of a mapped chunk */
+    private final int chunkSize;
+    /** TRUE if there is an existing cache file whose entries could not be used */
+    private boolean discarded;
+    /** map of MD5s to entry positions in the cache file */
+    private final Map<ByteBuffer, Long> index;
+    /** new entries added in this run */
+    private final Map<ByteBuffer, long[][]> added;
+    /** number of cache hits */
+    private final LongAdder hits;
+    /** magic number for cache files */
+    private static final int MAGIC = 0x4B4D4331;
+    /** cache file format version */
+    private static final int VERSION = 1;
+    /** kind code for MinHash sketches */
+    public static final int SKETCHES = 1;
+    /** kind code for packed k-mer sets */
+    public static final int PACKED = 2;
+    /** length of an MD5 */
+    private static final int MD5_LEN = 16;
+    /** default size of a mapped chunk */
+    private static final int CHUNK_SIZE = 1 << 30;
+
+    /**
+     * Open a k-mer cache.
+     *
+     * @param cacheFile		cache file, or NULL to disable caching
+     * @param kind			kind of data cached ({@link #SKETCHES} or {@link #PACKED})
+     * @param k				k-mer size
+     * @param sketchSize	sketch size (0 for packed k-mer sets)
+     * @param binCount		number of LSH bins in each sketch (0 for packed k-mer sets)
+     *
+     * @return the cache object
+     *
+     * @throws IOException
+     */
+    public static KmerCache open(File cacheFile, int kind, int k, int sketchSize, int binCount) throws IOException {
+        return new KmerCache(cacheFile, kind, k, sketchSize, binCount, CHUNK_SIZE);
+    }
+
+    /**
+     * Open a k-mer cache with a specified mapping chunk size.  This is used to test chunk boundaries without
+     * gigabyte files.
+     *
+     * @param cacheFile		cache file, or NULL to disable caching
+     * @param kind			kind of data cached ({@link #SKETCHES} or {@link #PACKED})
+     * @param k				k-mer size
+     * @param sketchSize	sketch size (0 for packed k-mer sets)
+     * @param binCount		number of LSH bins in each sketch (0 for packed k-mer sets)
+     * @param chunkSize		maximum size of a mapped chunk
+     *
+     * @return the cache object
+     *
+     * @throws IOException
+     */
+    protected static KmerCache open(File cacheFile, int kind, int k, int sketchSize, int binCount, int chunkSize)
+            throws IOException {
+        return new KmerCache(cacheFile, kind, k, sketchSize, binCount, chunkSize);
+    }
+
+    /**
+     * Construct a k-mer cache.  If the cache file exists and was built with the same parameters, its entries are
+     * indexed.
+     *
+     * @param cacheFile		cache file, or NULL to disable caching
+     * @param kind			kind of data cached
+     * @param k				k-mer size
+     * @param sketchSize	sketch size
+     * @param binCount		number of LSH bins in each sketch
+     * @param chunkSize		maximum size of a mapped chunk
+     *
+     * @throws IOException
+     */
+    private KmerCache(File cacheFile, int kind, int k, int sketchSize, int binCount, int chunkSize) throws IOException {
+        this.cacheFile = cacheFile;
+        this.chunkSize = chunkSize;
+        this.parms = new int[] { MAGIC, VERSION, kind, k, sketchSize, binCount };
+        this.arrayCount = (kind == SKETCHES ? 2 : 1);
+        this.index = new HashMap<ByteBuffer, Long>();
+        this.added = new HashMap<ByteBuffer, long[][]>();
+        this.hits = new LongAdder();
+        this.chunks = null;
+        this.discarded = false;
+        if (cacheFile != null && cacheFile.isFile()) {
+            try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                int n = (int) ((size + chunkSize - 1) / chunkSize);
+                this.chunks = new MappedByteBuffer[n];
+                for (int i = 0; i < n; i++) {
+                    long start = (long) i * chunkSize;
+                    this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, size - start));
+                }
+            }
+            this.readIndex(cacheFile.length());
+        }
+    }
+
+    /**
+     * Verify the header of the mapped cache file and index its entries.  If the header does not match or the file
+     * is damaged, the existing entries are discarded.
+     *
+     * @param size		size of the cache file
+     */
+    private void readIndex(long size) {
+        try {
+            long pos = 0;
+            boolean match = true;
+            for (int i = 0; i < this.parms.length && match; i++) {
+                match = (this.getInt(pos) == this.parms[i]);
+                pos += Integer.BYTES;
+            }
+            if (! match) {
+                log.info("K-mer cache {} was built with different parameters and will be rebuilt.", this.cacheFile);
+                this.discard();
+            } else {
+                int count = this.getInt(pos);
+                pos += Integer.BYTES;
+                for (int e = 0; e < count; e++) {
+                    byte[] md5 = new byte[MD5_LEN];
+                    this.getBytes(pos, md5, 0, MD5_LEN);
+                    pos += MD5_LEN;
+                    this.index.put(ByteBuffer.wrap(md5), pos);
+                    for (int a = 0; a < this.arrayCount; a++) {
+                        int len = this.getInt(pos);
+                        if (len < 0)
+                            throw new IllegalArgumentException("Invalid array length in cache.");
+                        pos += Integer.BYTES + (long) len * Long.BYTES;
+                    }
+                    if (pos > size)
+                        throw new BufferUnderflowException();
+                }
+                if (pos != size)
+                    throw new IllegalArgumentException("Extra data at end of cache.");
+                log.info("K-mer cache {} contains {} entries.", this.cacheFile, count);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            log.warn("K-mer cache {} is damaged and will be rebuilt.", this.cacheFile);
+            this.discard();
+        }
+    }
+
+    /**
+     * Discard the entries of the existing cache file.  The file will be preserved when the cache is saved.
+     */
+    private void discard() {
+        this.index.clear();
+        this.chunks = null;
+        this.discarded = true;
+    }
+
+    /**
+     * Copy bytes from the mapped cache file.  The bytes may cross chunk boundaries.
+     *
+     * @param pos		position in the file of the first byte
+     * @param dest		destination array
+     * @param off		offset in the destination array
+     * @param len		number of bytes to copy
+     *
+     * @throws BufferUnderflowException if the region extends past the end of the file
+     */
+    private void getBytes(long pos, byte[] dest, int off, int len) {
+        while (len > 0) {
+            int c = (int) (pos / this.chunkSize);
+            if (c >= this.chunks.length)
+                throw new BufferUnderflowException();
+            ByteBuffer chunk = this.chunks[c].duplicate();
+            chunk.position((int) (pos % this.chunkSize));
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(dest, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return the integer at the specified position in the mapped cache file
+     *
+     * @param pos		position in the file of the integer
+     */
+    private int getInt(long pos) {
+        byte[] buffer = new byte[Integer.BYTES];
+        this.getBytes(pos, buffer, 0, Integer.BYTES);
+        return ByteBuffer.wrap(buffer).getInt();
+    }
+
+    /**
+     * @return the MD5 digest of a sequence
+     *
+     * @param seq	sequence text to digest
+     */
+    public static byte[] md5(String seq) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return digest.digest(seq.getBytes(StandardCharsets.ISO_8859_1));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5.
+            throw new IllegalStateException("MD5 digest is not available.", e);
+        }
+    }
+
+    /**
+     * Find the cached data for a sequence.  This method is thread-safe.
+     *
+     * @param md5	MD5 of the sequence
+     *
+     * @return the arrays of data for the sequence, or NULL if it is not in the cache
+     */
+    public long[][] get(byte[] md5) {
+        long[][] retVal = null;
+        if (this.cacheFile != null) {
+            Long pos = this.index.get(ByteBuffer.wrap(md5));
+            if (pos != null) {
+                retVal = this.readEntry(pos);
+                this.hits.increment();
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the arrays of data for an entry in the mapped cache file
+     *
+     * @param pos	position of the entry's data in the cache file
+     */
+    private long[][] readEntry(long pos) {
+        long[][] retVal = new long[this.arrayCount][];
+        for (int a = 0; a < this.arrayCount; a++) {
+            long[] array = new long[this.getInt(pos)];
+            pos += Integer.BYTES;
+            int bytes = array.length * Long.BYTES;
+            int c = (int) (pos / this.chunkSize);
+            int off = (int) (pos % this.chunkSize);
+            if (array.length == 0) {
+                // Nothing to read.
+            } else if (off + bytes <= this.chunkSize) {
+                // Here the array is in a single chunk, and we can read it directly.
+                ByteBuffer buffer = this.chunks[c].duplicate();
+                buffer.position(off);
+                buffer.asLongBuffer().get(array);
+            } else {
+                // Here the array straddles chunks, so we assemble its bytes first.
+                byte[] raw = new byte[bytes];
+                this.getBytes(pos, raw, 0, bytes);
+                ByteBuffer.wrap(raw).asLongBuffer().get(array);
+            }
+            pos += bytes;
+            retVal[a] = array;
+        }
+        return retVal;
+    }
+
+    /**
+     * Add the data for a sequence to the cache.  This method must only be called from one thread.
+     *
+     * @param md5		MD5 of the sequence
+     * @param arrays	arrays of data for the sequence
+     */
+    public void put(byte[] md5, long[]... arrays) {
+        if (this.cacheFile != null) {
+            ByteBuffer key = ByteBuffer.wrap(md5);
+            if (! this.index.containsKey(key))
+                this.added.put(key, arrays);
+        }
+    }
+
+    /**
+     * Write the cache file if any entries were added.  The existing entries are kept.  If the existing file could
+     * not be used, it is renamed with a ".old" suffix instead of being overwritten.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (this.cacheFile != null && ! this.added.isEmpty()) {
+            File tempFile = new File(this.cacheFile.getAbsoluteFile().getParentFile(),
+                    this.cacheFile.getName() + ".tmp");
+            try (DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile), 1 << 16))) {
+                for (int parm : this.parms)
+                    outStream.writeInt(parm);
+                outStream.writeInt(this.index.size() + this.added.size());
+                // Copy the old entries.
+                for (Map.Entry<ByteBuffer, Long> entry : this.index.entrySet())
+                    this.writeEntry(outStream, entry.getKey(), this.readEntry(entry.getValue()));
+                // Write the new ones.
+                for (Map.Entry<ByteBuffer, long[][]> entry : this.added.entrySet())
+                    this.writeEntry(outStream, entry.getKey(), entry.getValue());
+            }
+            if (this.discarded && this.cacheFile.isFile()) {
+                File oldFile = new File(this.cacheFile.getAbsoluteFile().getParentFile(),
+                        this.cacheFile.getName() + ".old");
+                Files.move(this.cacheFile.toPath(), oldFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                log.warn("Unusable k-mer cache {} preserved as {}.", this.cacheFile, oldFile);
+                this.discarded = false;
+            }
+            Files.move(tempFile.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            log.info("{} new entries saved to k-mer cache {}.", this.added.size(), this.cacheFile);
+        }
+    }
+
+    /**
+     * Write a cache entry.
+     *
+     * @param outStream		output stream for the cache file
+     * @param key			MD5 of the sequence
+     * @param arrays		arrays of data for the sequence
+     *
+     * @throws IOException
+     */
+    private void writeEntry(DataOutputStream outStream, ByteBuffer key, long[][] arrays) throws IOException {
+        outStream.write(key.array());
+        for (long[] array : arrays) {
+            outStream.writeInt(array.length);
+            for (long value : array)
+                outStream.writeLong(value);
+        }
+    }
+
+    /**
+     * @return TRUE if caching is enabled
+     */
+    public boolean isEnabled() {
+        return this.cacheFile != null;
+    }
+
+    /**
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return the number of entries added in this run
+     */
+    public int getAdded() {
+        return this.added.size();
+    }
+
+}
@@ -0,0 +1,229 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This object performs greedy centroid clustering of packed k-mer sets at a distance threshold.  The sets are
+ * presented one at a time.  Each is assigned to the closest existing centroid within the threshold, or else
+ * becomes the centroid of a new cluster.
+ *
+ * The centroids are kept in an inverted index that maps each k-mer to the centroids containing it.  The index is
+ * keyed on the packed k-mers themselves (see {@link LongKeyMap}), so the lookups do no boxing.  When a new set is
+ * presented, a walk through its k-mers in the index counts the k-mers it shares with every centroid, which is
+ * exactly the intersection size needed for the Jaccard distance.  Because the Jaccard similarity can be no greater
+ * than the number of shared k-mers divided by the size of the new set, only centroids sharing enough k-mers are
+ * considered.  The work for each set is proportional to its size plus the number of index hits, so for inputs with
+ * few distinct clusters the clustering is close to linear.
+ *
+ * Since the result depends on the order of presentation, callers usually present the longest sequences first.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class KmerClusterer {
+
+    // FIELDS
+    /** maximum distance from a member to its centroid */
+    private final double threshold;
+    /** map of k-mers to the indices of the centroids containing them */
+    private final LongKeyMap<Postings> index;
+    /** IDs of the centroids, in order of creation */
+    private final List<Integer> centroidIds;
+    /** k-mer counts of the centroids */
+    private int[] centroidSizes;
+    /** shared k-mer counts for the current set, indexed by centroid */
+    private int[] shared;
+    /** number of centroids whose distances were computed */
+    private long candidateCount;
+
+    /**
+     * This object is a growable list of centroid indices for a k-mer.  The centroids are added in increasing order.
+     */
+    private static class Postings {
+
+        /** centroid indices */
+        private int[] ids;
+        /** number of centroid indices */
+        private int n;
+
+        /**
+         * Construct a postings list with a single centroid.
+         *
+         * @param id	index of the centroid
+         */
+        protected Postings(int id) {
+            this.ids = new int[] { id };
+            this.n = 1;
+        }
+
+        /**
+         * Add a centroid to the list.
+         *
+         * @param id	index of the centroid
+         */
+        protected void add(int id) {
+            if (this.n == this.ids.length)
+                this.ids = Arrays.copyOf(this.ids, this.n * 2);
+            this.ids[this.n++] = id;
+        }
+
+    }
+
+    /**
+     * This object describes the cluster assignment of a k-mer set.
+     */
+    public static class Assignment {
+
+        /** index of the cluster (0-based, in order of creation) */
+        private final int cluster;
+        /** ID of the cluster's centroid */
+        private final int centroidId;
+        /** distance to the centroid */
+        private final double distance;
+
+        /**
+         * Construct a cluster assignment.
+         *
+         * @param cluster		index of the cluster
+         * @param centroidId	ID of the centroid
+         * @param distance		distance to the centroid
+         */
+        protected Assignment(int cluster, int centroidId, double distance) {
+            this.cluster = cluster;
+            this.centroidId = centroidId;
+            this.distance = distance;
+        }
+
+        /**
+         * @return the index of the cluster (0-based, in order of creation)
+         */
+        public int getCluster() {
+            return this.cluster;
+        }
+
+        /**
+         * @return the ID of the cluster's centroid
+         */
+        public int getCentroidId() {
+            return this.centroidId;
+        }
+
+        /**
+         * @return the distance to the centroid
+         */
+        public double getDistance() {
+            return this.distance;
+        }
+
+    }
+
+    /**
+     * Construct a new clusterer.
+     *
+     * @param threshold		maximum Jaccard distance from a member to its centroid
+     */
+    public KmerClusterer(double threshold) {
+        this.threshold = threshold;
+        this.index = new LongKeyMap<Postings>(1024);
+        this.centroidIds = new ArrayList<Integer>();
+        this.centroidSizes = new int[16];
+        this.shared = new int[16];
+        this.candidateCount = 0;
+    }
+
+    /**
+     * Assign a k-mer set to a cluster.
+     *
+     * @param id		ID of the set, usually its index in the input
+     * @param kmers		k-mer set to assign
+     *
+     * @return the cluster assignment of the set
+     */
+    public Assignment add(int id, PackedDnaKmers kmers) {
+        final long[] values = kmers.getKmers();
+        final int size = values.length;
+        // Count the k-mers shared with each centroid, remembering which centroids were hit.
+        int[] touched = new int[16];
+        int touchCount = 0;
+        for (long kmer : values) {
+            Postings postings = this.index.get(kmer);
+            if (postings != null) {
+                for (int p = 0; p < postings.n; p++) {
+                    int c = postings.ids[p];
+                    if (this.shared[c] == 0) {
+                        if (touchCount == touched.length)
+                            touched = Arrays.copyOf(touched, touchCount * 2);
+                        touched[touchCount++] = c;
+                    }
+                    this.shared[c]++;
+                }
+            }
+        }
+        // Find the closest centroid among those sharing enough k-mers.  Ties go to the oldest centroid.
+        final double minShared = (1.0 - this.threshold) * size;
+        int best = -1;
+        double bestDist = Double.MAX_VALUE;
+        for (int t = 0; t < touchCount; t++) {
+            int c = touched[t];
+            int common = this.shared[c];
+            this.shared[c] = 0;
+            if (common >= minShared) {
+                this.candidateCount++;
+                double dist = 1.0 - (double) common / (size + this.centroidSizes[c] - common);
+                if (dist <= this.threshold && (dist < bestDist || dist == bestDist && c < best)) {
+                    best = c;
+                    bestDist = dist;
+                }
+            }
+        }
+        Assignment retVal;
+        if (best >= 0)
+            retVal = new Assignment(best, this.centroidIds.get(best), bestDist);
+        else {
+            // Create a new cluster with this set as its centroid.
+            int c = this.centroidIds.size();
+            this.centroidIds.add(id);
+            if (c == this.centroidSizes.length) {
+                this.centroidSizes = Arrays.copyOf(this.centroidSizes, c * 2);
+                this.shared = Arrays.copyOf(this.shared, c * 2);
+            }
+            this.centroidSizes[c] = size;
+            for (long kmer : values) {
+                Postings postings = this.index.get(kmer);
+                if (postings == null)
+                    this.index.put(kmer, new Postings(c));
+                else
+                    postings.add(c);
+            }
+            retVal = new Assignment(c, id, 0.0);
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of clusters
+     */
+    public int getClusterCount() {
+        return this.centroidIds.size();
+    }
+
+    /**
+     * @return the number of centroid distances computed
+     */
+    public long getCandidateCount() {
+        return this.candidateCount;
+    }
+
+    /**
+     * @return the number of distinct k-mers in the index
+     */
+    public int getIndexSize() {
+        return this.index.size();
+    }
+
+}
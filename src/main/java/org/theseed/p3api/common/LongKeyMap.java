@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+/**
+ * This is a hash map keyed on primitive longs.  The keys are kept in a plain long array and the values in a
+ * parallel object array, using open addressing with linear probing, so there is no boxing of keys and no entry
+ * object per mapping.  A slot is empty when its value is NULL, which means NULL values cannot be stored.
+ *
+ * The keys are scrambled by a multiplicative hash before probing, since packed k-mers and other small
+ * integers are poorly distributed in their low bits.  The table is kept at most half full and doubles when it
+ * fills.  Removal is not supported.  The map is not thread-safe.
+ *
+ * @author Bruce Parrello
+ *
+ * @param <V>	type of value
+ */
+public class LongKeyMap<V> {
+
+    // FIELDS
+    /** key in each slot */
+    private long[] keys;
+    /** value in each slot, or NULL if the slot is empty */
+    private Object[] values;
+    /** number of mappings */
+    private int size;
+    /** mask for converting a hash to a slot index */
+    private int mask;
+    /** number of bits to shift a scrambled key to get its slot index */
+    private int shift;
+    /** multiplier for scrambling keys (the 64-bit golden ratio) */
+    private static final long SCRAMBLE = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Construct a new, empty map.
+     *
+     * @param expected	expected number of mappings
+     */
+    public LongKeyMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        this.allocate(capacity);
+        this.size = 0;
+    }
+
+    /**
+     * Create empty key and value arrays with the specified capacity.
+     *
+     * @param capacity	number of slots (must be a power of 2)
+     */
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.shift = Long.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    /**
+     * @return the slot containing the specified key, or the empty slot where it belongs
+     *
+     * @param key	key to find
+     */
+    private int find(long key) {
+        int retVal = (int) ((key * SCRAMBLE) >>> this.shift);
+        while (this.values[retVal] != null && this.keys[retVal] != key)
+            retVal = (retVal + 1) & this.mask;
+        return retVal;
+    }
+
+    /**
+     * @return the value for the specified key, or NULL if the key is not in the map
+     *
+     * @param key	key of the desired value
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) this.values[this.find(key)];
+    }
+
+    /**
+     * Store a value for the specified key, replacing any existing value.
+     *
+     * @param key		key of the value
+     * @param value		value to store (cannot be NULL)
+     */
+    public void put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("Cannot store a null value for key " + key + ".");
+        int slot = this.find(key);
+        if (this.values[slot] == null) {
+            this.keys[slot] = key;
+            this.size++;
+        }
+        this.values[slot] = value;
+        if (this.size * 2 > this.values.length)
+            this.grow();
+    }
+
+    /**
+     * Double the number of slots and rehash all the mappings.
+     */
+    private void grow() {
+        long[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        this.allocate(oldValues.length * 2);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = this.find(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * @return the number of mappings in the map
+     */
+    public int size() {
+        return this.size;
+    }
+
+}
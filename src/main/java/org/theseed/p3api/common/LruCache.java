@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This is a simple size-bounded cache that discards the least-recently-used entry when it fills.  It
+ * tracks hits and misses so that the client can report on its effectiveness.  All the methods are
+ * synchronized, so a single cache can be shared between threads.
+ *
+ * A capacity of zero disables the cache:  nothing is stored and every lookup is a miss.
+ *
+ * @author Bruce Parrello
+ *
+ * @param <K>	type of key
+ * @param <V>	type of value
+ */
+public class LruCache<K, V> {
+
+    // FIELDS
+    /** underlying map, in access order */
+    private final LinkedHashMap<K, V> map;
+    /** maximum number of entries */
+    private int capacity;
+    /** number of successful lookups */
+    private long hits;
+    /** number of failed lookups */
+    private long misses;
+
+    /**
+     * Construct a new, empty cache.
+     *
+     * @param capacity	maximum number of entries to keep
+     */
+    public LruCache(int capacity) {
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return this.size() > LruCache.this.capacity;
+            }
+        };
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    /**
+     * @return the value for the specified key, or NULL if it is not in the cache
+     *
+     * @param key	key of the desired value
+     */
+    public synchronized V get(K key) {
+        V retVal = this.map.get(key);
+        if (retVal == null)
+            this.misses++;
+        else
+            this.hits++;
+        return retVal;
+    }
+
+    /**
+     * Store a value in the cache.  This may cause the least-recently-used entry to be discarded.
+     *
+     * @param key		key of the value
+     * @param value		value to store
+     */
+    public synchronized void put(K key, V value) {
+        if (this.capacity > 0)
+            this.map.put(key, value);
+    }
+
+    /**
+     * Remove a value from the cache.
+     *
+     * @param key		key of the value to remove
+     */
+    public synchronized void remove(K key) {
+        this.map.remove(key);
+    }
+
+    /**
+     * Change the capacity of the cache.  If the cache is too full, the oldest entries are discarded.
+     *
+     * @param capacity	new maximum number of entries
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+        var iter = this.map.entrySet().iterator();
+        while (this.map.size() > capacity && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * @return the maximum number of entries
+     */
+    public synchronized int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public synchronized int size() {
+        return this.map.size();
+    }
+
+    /**
+     * Remove all the entries from the cache.  The hit and miss counts are retained.
+     */
+    public synchronized void clear() {
+        this.map.clear();
+    }
+
+    /**
+     * @return the number of successful lookups
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return the number of failed lookups
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return the fraction of lookups that succeeded
+     */
+    public synchronized double getHitRate() {
+        long total = this.hits + this.misses;
+        return (total == 0 ? 0.0 : ((double) this.hits) / total);
+    }
+
+}
@@ -4,8 +4,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
 
 import org.apache.commons.lang3.StringUtils;
 import org.kohsuke.args4j.Argument;
@@ -32,6 +37,10 @@ import org.theseed.utils.BasePipeProcessor;
  * -i	input file containing MD5s (if not STDIN)
  * -o	output file for genome report (if not STDOUT)
  * -c	index (1-based) or name of the input file column containing the MD5s.
+ *
+ * --threads	number of worker threads for scanning genomes (default 1)
+ * --checkpoint	checkpoint journal file; genomes completed in a previous run with the same journal are restored
+ * 				from it instead of being scanned again
  */
 public class Md5CheckProcessor extends BasePipeProcessor {
 
@@ -44,7 +53,58 @@ public class Md5CheckProcessor extends BasePipeProcessor {
     private File[] gDirs;
     /** index of input MD5 column */
     private int md5ColIdx;
+    /** total number of proteins found */
+    private int totalFound;
+    /** total number of proteins missed */
+    private int totalMissed;
+    /** checkpoint journal */
+    private CheckpointJournal journal;
+
+    /**
+     * This object contains the protein counts for one genome.
+     */
+    public static class GenomeCounts {
+
+        /** ID of the genome */
+        private final String genomeId;
+        /** number of proteins found in the MD5 set */
+        private int found;
+        /** number of proteins not found in the MD5 set */
+        private int missed;
+
+        /**
+         * Construct an empty count object for a genome.
+         *
+         * @param genomeId	ID of the genome
+         */
+        protected GenomeCounts(String genomeId) {
+            this.genomeId = genomeId;
+            this.found = 0;
+            this.missed = 0;
+        }
+
+        /**
+         * @return the output line for this genome
+         */
+        protected String toLine() {
+            return this.genomeId + "\t" + Integer.toString(this.found) + "\t" + Integer.toString(this.missed);
+        }
+
+        /**
+         * @return the number of proteins found in the MD5 set
+         */
+        public int getFound() {
+            return this.found;
+        }
 
+        /**
+         * @return the number of proteins not found in the MD5 set
+         */
+        public int getMissed() {
+            return this.missed;
+        }
+
+    }
 
     // COMMAND-LINE OPTIONS
 
@@ -52,6 +112,14 @@ public class Md5CheckProcessor extends BasePipeProcessor {
     @Option(name = "--col", aliases = { "-c" }, metaVar = "md5", usage = "index (1-based) or name of input file column containing the MD5s")
     private String md5Col;
 
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for scanning genomes")
+    private int threads;
+
+    /** checkpoint journal file */
+    @Option(name = "--checkpoint", metaVar = "run.ckpt", usage = "checkpoint journal for resuming after an interruption")
+    private File checkpointFile;
+
     /** genome input directory */
     @Argument(index = 0, metaVar = "inDir", usage = "input directory containing genome dumps", required = true)
     private File inDir;
@@ -59,10 +127,14 @@ public class Md5CheckProcessor extends BasePipeProcessor {
     @Override
     protected void setPipeDefaults() {
         this.md5Col = "1";
+        this.threads = 1;
+        this.checkpointFile = null;
     }
 
     @Override
     protected void validatePipeParms() throws IOException, ParseFailureException {
+         if (this.threads < 1)
+             throw new ParseFailureException("Thread count must be positive.");
          if (! this.inDir.isDirectory())
              throw new FileNotFoundException("Input directory " + this.inDir + " is not found or invalid.");
          // Get the genome subdirectories.
@@ -85,37 +157,100 @@ public class Md5CheckProcessor extends BasePipeProcessor {
         log.info("{} MD5s found in input stream.", this.md5Set.size());
         // Write the output header.
         writer.println("genome_id\tprot_found\tprot_missed");
-        // These will be the global totals.
-        int totalFound = 0;
-        int totalMissed = 0;
-        // Loop through the genomes.
-        for (File gDir : gDirs) {
-            final String genome_id = gDir.getName();
-            log.info("Processing genome {}.", genome_id);
-            File featFile = new File(gDir, P3Connection.JSON_FILE_NAME);
-            try (FieldInputStream featStream = FieldInputStream.create(featFile)) {
-                // Find the MD5 field for the feature file.
-                int md5Idx = featStream.findField("aa_sequence_md5");
-                // Loop through the features.
-                int found = 0;
-                int missed = 0;
-                for (var line : featStream) {
-                    String md5 = line.get(md5Idx);
-                    if (! StringUtils.isBlank(md5)) {
-                        // Here we have a valid protein.
-                        if (this.md5Set.contains(md5))
-                            found++;
-                        else
-                            missed++;
-                    }
-                }
-                log.info("{} proteins found, {} missed in genome {}.", found, missed, genome_id);
-                totalFound += found;
-                totalMissed += missed;
-                writer.println(genome_id + "\t" + Integer.toString(found) + "\t" + Integer.toString(missed));
+        this.totalFound = 0;
+        this.totalMissed = 0;
+        // Loop through the genomes.  The workers scan the genome files, and the results are written here
+        // in input order.
+        String fingerprint = (this.checkpointFile == null ? CheckpointJournal.NO_FINGERPRINT
+                : CheckpointJournal.fingerprint(this.inDir, new TreeSet<String>(this.md5Set)));
+        this.journal = CheckpointJournal.open(this.checkpointFile, "md5Check", fingerprint);
+        ParallelDriver<Void> driver = new ParallelDriver<Void>(this.threads, () -> null);
+        try {
+            driver.run(Arrays.asList(this.gDirs), (gDir, x) -> this.processGenome(gDir), counts -> {
+                this.totalFound += counts.found;
+                this.totalMissed += counts.missed;
+                writer.println(counts.toLine());
+            });
+        } finally {
+            this.journal.close();
+        }
+        CommandMetrics.addRecords(this.gDirs.length);
+        log.info("{} total found, {} total missed.", this.totalFound, this.totalMissed);
+    }
+
+    /**
+     * Process a single genome dump.  If the genome was completed in a previous run, its counts are restored from
+     * the checkpoint journal; otherwise, the genome is scanned and the result is recorded.
+     *
+     * @param gDir		genome dump directory
+     *
+     * @return the counts for the genome
+     *
+     * @throws IOException
+     */
+    private GenomeCounts processGenome(File gDir) throws IOException {
+        GenomeCounts retVal;
+        List<String> lines = this.journal.getLines(gDir.getName());
+        if (lines != null) {
+            String[] parts = lines.get(0).split("\t");
+            retVal = new GenomeCounts(parts[0]);
+            retVal.found = Integer.parseInt(parts[1]);
+            retVal.missed = Integer.parseInt(parts[2]);
+        } else {
+            retVal = this.checkGenome(gDir);
+            this.journal.record(gDir.getName(), Collections.singletonList(retVal.toLine()));
+        }
+        return retVal;
+    }
+
+    /**
+     * Count the proteins in a genome dump that are in the MD5 set.
+     *
+     * @param gDir		genome dump directory
+     *
+     * @return the counts for the genome
+     *
+     * @throws IOException
+     */
+    private GenomeCounts checkGenome(File gDir) throws IOException {
+        final String genome_id = gDir.getName();
+        log.info("Processing genome {}.", genome_id);
+        File featFile = new File(gDir, P3Connection.JSON_FILE_NAME);
+        GenomeCounts retVal;
+        try (FieldInputStream featStream = FieldInputStream.create(featFile)) {
+            // Find the MD5 field for the feature file.
+            int md5Idx = featStream.findField("aa_sequence_md5");
+            retVal = scanMd5s(genome_id, featStream, line -> line.get(md5Idx), this.md5Set);
+            log.info("{} proteins found, {} missed in genome {}.", retVal.found, retVal.missed, genome_id);
+        }
+        return retVal;
+    }
+
+    /**
+     * Count the proteins in a genome's features that are in an MD5 set.  Features with a blank MD5 are not
+     * proteins, and are skipped.
+     *
+     * @param genomeId		ID of the genome
+     * @param features		features of the genome
+     * @param md5Getter		function that returns the protein MD5 of a feature
+     * @param md5Set		set of MD5s to look for
+     *
+     * @return the counts for the genome
+     */
+    public static <F> GenomeCounts scanMd5s(String genomeId, Iterable<F> features, Function<F, String> md5Getter,
+            Set<String> md5Set) {
+        GenomeCounts retVal = new GenomeCounts(genomeId);
+        for (F feature : features) {
+            String md5 = md5Getter.apply(feature);
+            if (! StringUtils.isBlank(md5)) {
+                // Here we have a valid protein.
+                if (md5Set.contains(md5))
+                    retVal.found++;
+                else
+                    retVal.missed++;
             }
         }
-        log.info("{} total found, {} total missed.", totalFound, totalMissed);
+        return retVal;
     }
 
 
@@ -106,6 +106,7 @@ public class MergeColumnProcessor extends BasePipeProcessor {
             writer.println(newValue);
             outLines++;
         }
+        CommandMetrics.addRecords(inLines);
         log.info("{} lines read from primary.  {} skipped, {} total lines written.", inLines, skipLines,
                 outLines);
     }
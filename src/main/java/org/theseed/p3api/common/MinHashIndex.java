@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This object is a banded locality-sensitive hashing index for MinHash sketches.  The LSH signature of each sketch
+ * is divided into bands of several bins each, and two sketches are candidates if they agree on every bin in at least
+ * one band.  For a pair with Jaccard similarity J, the probability of being a candidate is 1 - (1 - J^r)^b, where
+ * r is the number of bins per band and b is the number of bands.
+ *
+ * To keep the memory small, each band is stored as a sorted array of longs, with a 32-bit band key in the high
+ * half and the sketch index in the low half.  A collision in the truncated key only produces an extra candidate,
+ * which is eliminated when its distance is computed.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MinHashIndex {
+
+    // FIELDS
+    /** sorted key/index entries for each band */
+    private final long[][] bands;
+    /** number of bins per band */
+    private final int rows;
+    /** target probability of finding a pair at the threshold */
+    public static final double RECALL = 0.99;
+
+    /**
+     * Construct an LSH index for a list of sketches.
+     *
+     * @param sketches	list of sketches to index; each must have an LSH signature of at least bandCount * rows bins
+     * @param bandCount	number of bands
+     * @param rows		number of bins per band
+     */
+    public MinHashIndex(List<MinHashSketch> sketches, int bandCount, int rows) {
+        this.rows = rows;
+        final int n = sketches.size();
+        this.bands = new long[bandCount][];
+        for (int b = 0; b < bandCount; b++) {
+            long[] entries = new long[n];
+            for (int i = 0; i < n; i++)
+                entries[i] = entry(sketches.get(i).bandKey(b, rows), i);
+            Arrays.sort(entries);
+            this.bands[b] = entries;
+        }
+    }
+
+    /**
+     * @return an index entry for a sketch in a band
+     *
+     * @param key		band key
+     * @param idx		sketch index
+     */
+    private static long entry(long key, int idx) {
+        return (key << 32) | idx;
+    }
+
+    /**
+     * Choose the band layout for a distance threshold.  We want pairs at the threshold to be found with
+     * probability {@link #RECALL}, and as many bins per band as possible, so that distant pairs are rarely
+     * candidates.
+     *
+     * @param maxDist	maximum Jaccard distance of interest
+     * @param maxBins	maximum total number of bins
+     *
+     * @return a two-element array containing the number of bands and the number of bins per band, or NULL if
+     * 		   banding cannot help at this threshold
+     */
+    public static int[] chooseBands(double maxDist, int maxBins) {
+        int[] retVal = null;
+        double minSim = 1.0 - maxDist;
+        if (minSim > 0.0) {
+            for (int r = 1; r <= maxBins; r++) {
+                double pBand = Math.pow(minSim, r);
+                double b = (pBand >= 1.0 ? 1.0 : Math.ceil(Math.log(1.0 - RECALL) / Math.log(1.0 - pBand)));
+                if (b >= 1.0 && b * r <= maxBins)
+                    retVal = new int[] { (int) b, r };
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the sorted indices of the candidate partners for a sketch that come after it in the list
+     *
+     * @param sketch	sketch whose candidates are desired
+     * @param idx		index of the sketch in the list
+     */
+    public int[] candidates(MinHashSketch sketch, int idx) {
+        int[] buffer = new int[16];
+        int n = 0;
+        for (int b = 0; b < this.bands.length; b++) {
+            long[] entries = this.bands[b];
+            long self = entry(sketch.bandKey(b, this.rows), idx);
+            long keyBits = self >>> 32;
+            int pos = Arrays.binarySearch(entries, self);
+            // Since the entries are sorted, the partners after this sketch in the list follow it directly.
+            for (int p = pos + 1; p < entries.length && (entries[p] >>> 32) == keyBits; p++) {
+                if (n == buffer.length)
+                    buffer = Arrays.copyOf(buffer, n * 2);
+                buffer[n++] = (int) entries[p];
+            }
+        }
+        // Sort and remove duplicates.
+        Arrays.sort(buffer, 0, n);
+        int u = 0;
+        for (int i = 0; i < n; i++) {
+            if (u == 0 || buffer[i] != buffer[u - 1])
+                buffer[u++] = buffer[i];
+        }
+        return Arrays.copyOf(buffer, u);
+    }
+
+}
@@ -0,0 +1,289 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.Arrays;
+
+/**
+ * This object is a fixed-size MinHash sketch of the canonical DNA k-mers in a sequence.  It is used to estimate
+ * k-mer distances between sequences in bounded memory, when exact k-mer sets would be too large.
+ *
+ * Each canonical k-mer (as produced by {@link PackedDnaKmers#scan}) is hashed to 64 bits.  The sketch keeps the smallest distinct hash values (a bottom-k sketch).  The Jaccard similarity of
+ * two sequences is estimated by taking the smallest values in the union of their sketches and counting how many
+ * are present in both.  The standard error of the estimate is at most 0.5 divided by the square root of the
+ * sketch size.
+ *
+ * Optionally, the sketch also contains a one-permutation signature for locality-sensitive hashing:  the hash
+ * space is divided into bins, and the minimum hash in each bin is kept (empty bins borrow from the next non-empty
+ * one).  The probability that two sequences agree on a bin is their Jaccard similarity, so groups of bins can be
+ * used as LSH bands to find candidate pairs without comparing all of them.
+ *
+ * K-mers containing ambiguity characters are skipped.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class MinHashSketch {
+
+    // FIELDS
+    /** sorted bottom-k hash values */
+    private final long[] hashes;
+    /** LSH bin signature */
+    private final long[] bins;
+    /** k-mer size */
+    private final int k;
+    /** value of an empty hash slot */
+    private static final long EMPTY = Long.MAX_VALUE;
+    /** largest supported k-mer size */
+    public static final int MAX_K = PackedDnaKmers.MAX_K;
+
+    /**
+     * This object accumulates the hash values for a sketch as the k-mers are scanned.
+     */
+    private static class Builder implements PackedDnaKmers.KmerConsumer {
+
+        /** buffer of candidate bottom-k values, periodically sorted and trimmed */
+        private final long[] buffer;
+        /** number of values in the buffer */
+        private int n;
+        /** maximum number of values to keep */
+        private final int sketchSize;
+        /** values at or above this one cannot be in the sketch */
+        private long threshold;
+        /** LSH bins */
+        private final long[] bins;
+
+        /**
+         * Construct a sketch builder.
+         *
+         * @param sketchSize	maximum number of hash values in the bottom-k sketch
+         * @param binCount		number of LSH bins
+         */
+        protected Builder(int sketchSize, int binCount) {
+            this.buffer = new long[sketchSize * 2 + 1];
+            this.n = 0;
+            this.sketchSize = sketchSize;
+            this.threshold = EMPTY;
+            this.bins = new long[binCount];
+            Arrays.fill(this.bins, EMPTY);
+        }
+
+        @Override
+        public void accept(long kmer) {
+            long h = hash(kmer);
+            if (h < this.threshold) {
+                this.buffer[this.n++] = h;
+                if (this.n == this.buffer.length) {
+                    this.n = trim(this.buffer, this.n, this.sketchSize);
+                    this.threshold = (this.n == this.sketchSize ? this.buffer[this.n - 1] : EMPTY);
+                }
+            }
+            if (this.bins.length > 0) {
+                int bin = (int) ((h >>> 1) % this.bins.length);
+                if (h < this.bins[bin])
+                    this.bins[bin] = h;
+            }
+        }
+
+    }
+
+    /**
+     * Construct a sketch for a DNA sequence.
+     *
+     * @param seq			DNA sequence to sketch
+     * @param k				k-mer size (at most 31)
+     * @param sketchSize	maximum number of hash values in the bottom-k sketch
+     * @param binCount		number of LSH bins, or 0 if no LSH signature is needed
+     */
+    public MinHashSketch(String seq, int k, int sketchSize, int binCount) {
+        this.k = k;
+        Builder builder = new Builder(sketchSize, binCount);
+        PackedDnaKmers.scan(seq, k, builder);
+        int n = trim(builder.buffer, builder.n, sketchSize);
+        this.hashes = Arrays.copyOf(builder.buffer, n);
+        this.bins = builder.bins;
+        this.densify();
+    }
+
+    /**
+     * Construct a sketch from saved hash values, such as those in a {@link KmerCache}.
+     *
+     * @param k			k-mer size
+     * @param hashes	sorted bottom-k hash values
+     * @param bins		LSH bin signature
+     */
+    protected MinHashSketch(int k, long[] hashes, long[] bins) {
+        this.k = k;
+        this.hashes = hashes;
+        this.bins = bins;
+    }
+
+    /**
+     * Sort the buffer, remove duplicates, and keep only the smallest values.
+     *
+     * @param buffer		buffer to trim
+     * @param n				number of values in the buffer
+     * @param sketchSize	maximum number of values to keep
+     *
+     * @return the number of values left in the buffer
+     */
+    private static int trim(long[] buffer, int n, int sketchSize) {
+        Arrays.sort(buffer, 0, n);
+        int retVal = 0;
+        for (int i = 0; i < n && retVal < sketchSize; i++) {
+            if (retVal == 0 || buffer[i] != buffer[retVal - 1])
+                buffer[retVal++] = buffer[i];
+        }
+        return retVal;
+    }
+
+    /**
+     * Fill each empty LSH bin from the next non-empty bin, so that every bin has a value that depends only on the
+     * k-mer set.
+     */
+    private void densify() {
+        final int binCount = this.bins.length;
+        for (int b = 0; b < binCount; b++) {
+            if (this.bins[b] == EMPTY) {
+                int offset = 1;
+                while (offset < binCount && this.bins[(b + offset) % binCount] == EMPTY)
+                    offset++;
+                if (offset < binCount) {
+                    // The offset is mixed in so that a borrowed value is not confused with a real one.
+                    this.bins[b] = hash(this.bins[(b + offset) % binCount] + offset);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a 64-bit hash of a packed k-mer
+     *
+     * @param kmer	packed k-mer to hash
+     */
+    protected static long hash(long kmer) {
+        // This is the finalizer from MurmurHash3.  The result is made non-negative so that it sorts naturally.
+        long h = kmer;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h & Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the estimated Jaccard similarity between this sketch and another
+     *
+     * @param other		other sketch to compare
+     */
+    public double jaccard(MinHashSketch other) {
+        final long[] a = this.hashes;
+        final long[] b = other.hashes;
+        final int s = Math.max(a.length, b.length);
+        int i = 0;
+        int j = 0;
+        int taken = 0;
+        int shared = 0;
+        // Walk the union of the two sketches in order, up to the sketch size.
+        while (taken < s && (i < a.length || j < b.length)) {
+            if (j >= b.length || (i < a.length && a[i] < b[j]))
+                i++;
+            else if (i >= a.length || b[j] < a[i])
+                j++;
+            else {
+                shared++;
+                i++;
+                j++;
+            }
+            taken++;
+        }
+        return (taken == 0 ? 0.0 : (double) shared / taken);
+    }
+
+    /**
+     * @return the estimated Jaccard distance between this sketch and another
+     *
+     * @param other		other sketch to compare
+     */
+    public double distance(MinHashSketch other) {
+        return 1.0 - this.jaccard(other);
+    }
+
+    /**
+     * @return the Mash distance corresponding to a Jaccard similarity
+     *
+     * @param jaccard	Jaccard similarity
+     * @param k			k-mer size
+     */
+    public static double mashDistance(double jaccard, int k) {
+        double retVal;
+        if (jaccard <= 0.0)
+            retVal = 1.0;
+        else
+            retVal = Math.min(1.0, -Math.log(2.0 * jaccard / (1.0 + jaccard)) / k);
+        return retVal;
+    }
+
+    /**
+     * @return the estimated Mash distance between this sketch and another
+     *
+     * @param other		other sketch to compare
+     */
+    public double mashDistance(MinHashSketch other) {
+        return mashDistance(this.jaccard(other), this.k);
+    }
+
+    /**
+     * @return the 95% confidence bound on the Jaccard estimation error for a sketch size
+     *
+     * @param sketchSize	number of hash values in each sketch
+     */
+    public static double errorBound(int sketchSize) {
+        return 1.96 * 0.5 / Math.sqrt(sketchSize);
+    }
+
+    /**
+     * @return the hash key for an LSH band
+     *
+     * @param band		index of the band
+     * @param rows		number of bins per band
+     */
+    public long bandKey(int band, int rows) {
+        long retVal = band;
+        final int start = band * rows;
+        for (int i = start; i < start + rows; i++)
+            retVal = hash(retVal * 31 + this.bins[i]);
+        return retVal;
+    }
+
+    /**
+     * @return the number of hash values in the bottom-k sketch
+     */
+    public int size() {
+        return this.hashes.length;
+    }
+
+    /**
+     * @return the sorted bottom-k hash values (not a copy, so do not modify it)
+     */
+    public long[] getHashes() {
+        return this.hashes;
+    }
+
+    /**
+     * @return the LSH bin signature (not a copy, so do not modify it)
+     */
+    public long[] getBins() {
+        return this.bins;
+    }
+
+    /**
+     * @return the k-mer size
+     */
+    public int getK() {
+        return this.k;
+    }
+
+}
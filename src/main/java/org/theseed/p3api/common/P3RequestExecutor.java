@@ -0,0 +1,192 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object runs PATRIC requests asynchronously, keeping a fixed number of requests in flight while the caller
+ * prepares the next ones.  The results are delivered to a consumer on the caller's thread in the order the requests
+ * were submitted, so the output is the same as it would be if the requests were run one at a time.
+ *
+ * A request that fails is retried with exponential backoff (plus a little random jitter so that parallel retries do
+ * not arrive together).  Failures that retrying cannot fix, such as an offline cache miss, are not retried.  If a
+ * request fails on every attempt, its exception is thrown to the caller when its result would have been delivered.
+ *
+ * @author Bruce Parrello
+ *
+ * @param <R>	type of request result
+ */
+public class P3RequestExecutor<R> implements AutoCloseable {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(P3RequestExecutor.class);
+    /** maximum number of requests in flight */
+    private final int inFlight;
+    /** maximum number of retries for a failing request */
+    private final int maxRetries;
+    /** delay before the first retry, in milliseconds */
+    private final long baseDelay;
+    /** consumer for the results */
+    private final ParallelDriver.Sink<R> sink;
+    /** pending requests, in submission order */
+    private final Deque<Future<R>> pending;
+    /** thread pool for requests, or NULL if requests are run inline */
+    private final ExecutorService pool;
+    /** number of retries performed */
+    private final AtomicInteger retries;
+
+    /**
+     * Construct a request executor.
+     *
+     * @param inFlight		maximum number of requests in flight; if 1, requests are run inline
+     * @param maxRetries	maximum number of retries for a failing request
+     * @param baseDelay		delay before the first retry, in milliseconds; it doubles for each subsequent retry
+     * @param sink			consumer for the results, called in submission order on the submitting thread
+     */
+    public P3RequestExecutor(int inFlight, int maxRetries, long baseDelay, ParallelDriver.Sink<R> sink) {
+        this.inFlight = inFlight;
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.sink = sink;
+        this.pending = new ArrayDeque<Future<R>>(inFlight);
+        this.retries = new AtomicInteger();
+        if (inFlight <= 1)
+            this.pool = null;
+        else {
+            final AtomicInteger threadNum = new AtomicInteger();
+            this.pool = Executors.newFixedThreadPool(inFlight, r -> {
+                Thread retVal = new Thread(r, "p3-request-" + threadNum.incrementAndGet());
+                retVal.setDaemon(true);
+                return retVal;
+            });
+        }
+    }
+
+    /**
+     * Submit a request.  If the maximum number of requests are already in flight, this method waits for the oldest
+     * one and delivers its result first.
+     *
+     * @param request	request to run
+     *
+     * @throws Exception
+     */
+    public void submit(Callable<R> request) throws Exception {
+        if (this.pool == null)
+            this.sink.accept(this.callWithRetry(request));
+        else {
+            if (this.pending.size() >= this.inFlight)
+                this.deliverOldest();
+            this.pending.addLast(this.pool.submit(() -> this.callWithRetry(request)));
+        }
+    }
+
+    /**
+     * Submit a result that is already known.  It will be delivered in order with the other results.
+     *
+     * @param result	result to deliver
+     *
+     * @throws Exception
+     */
+    public void submitResult(R result) throws Exception {
+        if (this.pool == null)
+            this.sink.accept(result);
+        else
+            this.pending.addLast(CompletableFuture.completedFuture(result));
+    }
+
+    /**
+     * Wait for all the pending requests and deliver their results.
+     *
+     * @throws Exception
+     */
+    public void finish() throws Exception {
+        while (! this.pending.isEmpty())
+            this.deliverOldest();
+    }
+
+    /**
+     * Wait for the oldest pending request and deliver its result.
+     *
+     * @throws Exception
+     */
+    private void deliverOldest() throws Exception {
+        Future<R> future = this.pending.removeFirst();
+        R result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw e;
+        }
+        this.sink.accept(result);
+    }
+
+    /**
+     * Run a request, retrying it with exponential backoff if it fails.
+     *
+     * @param request	request to run
+     *
+     * @return the result of the request
+     *
+     * @throws Exception
+     */
+    private R callWithRetry(Callable<R> request) throws Exception {
+        R retVal = null;
+        boolean done = false;
+        int attempt = 0;
+        while (! done) {
+            try {
+                retVal = request.call();
+                done = true;
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                // These indicate a problem that retrying will not fix.
+                throw e;
+            } catch (Exception e) {
+                if (attempt >= this.maxRetries)
+                    throw e;
+                long delay = (this.baseDelay << attempt) + ThreadLocalRandom.current().nextLong(this.baseDelay / 4 + 1);
+                attempt++;
+                this.retries.incrementAndGet();
+                log.warn("PATRIC request failed ({}).  Retry {} of {} in {} ms.", e.toString(), attempt, this.maxRetries, delay);
+                Thread.sleep(delay);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of retries performed
+     */
+    public int getRetries() {
+        return this.retries.get();
+    }
+
+    @Override
+    public void close() {
+        if (this.pool != null)
+            this.pool.shutdownNow();
+        if (this.retries.get() > 0)
+            log.info("{} PATRIC request retries were needed.", this.retries.get());
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.Arrays;
+
+/**
+ * This object is a compact set of the canonical DNA k-mers in a sequence.  Each k-mer is packed two bits per base
+ * into a long, and the canonical form is the smaller of the k-mer and its reverse complement, so a k-mer and its
+ * reverse complement are treated as the same.  The k-mers are rolled through the sequence without creating any
+ * substrings, and stored as a sorted array of distinct values.  The intersection of two sets is computed by a
+ * linear merge.
+ *
+ * This uses eight bytes per distinct k-mer, far less than a hash set of strings.  The distance is the Jaccard
+ * distance, the same measure as {@link org.theseed.sequence.DnaKmers#distance}, except that palindromic k-mers are
+ * only counted once.
+ *
+ * K-mers containing ambiguity characters are skipped.  The k-mer size can be at most 31.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class PackedDnaKmers {
+
+    // FIELDS
+    /** sorted array of distinct canonical k-mers */
+    private final long[] kmers;
+    /** largest supported k-mer size */
+    public static final int MAX_K = 31;
+    /** base codes, indexed by character; -1 for an ambiguity character */
+    private static final int[] CODES = new int[128];
+    static {
+        Arrays.fill(CODES, -1);
+        CODES['A'] = 0; CODES['a'] = 0;
+        CODES['C'] = 1; CODES['c'] = 1;
+        CODES['G'] = 2; CODES['g'] = 2;
+        CODES['T'] = 3; CODES['t'] = 3;
+        CODES['U'] = 3; CODES['u'] = 3;
+    }
+
+    /**
+     * This interface accepts the canonical k-mers of a sequence.
+     */
+    public interface KmerConsumer {
+
+        /**
+         * Accept a packed canonical k-mer.
+         *
+         * @param kmer	k-mer to accept
+         */
+        public void accept(long kmer);
+
+    }
+
+    /**
+     * Construct the k-mer set for a DNA sequence.
+     *
+     * @param seq	DNA sequence to process
+     * @param k		k-mer size
+     */
+    public PackedDnaKmers(String seq, int k) {
+        Collector collector = new Collector(seq.length() - k + 1);
+        scan(seq, k, collector);
+        long[] buffer = collector.buffer;
+        Arrays.sort(buffer, 0, collector.n);
+        int u = 0;
+        for (int i = 0; i < collector.n; i++) {
+            if (u == 0 || buffer[i] != buffer[u - 1])
+                buffer[u++] = buffer[i];
+        }
+        this.kmers = Arrays.copyOf(buffer, u);
+    }
+
+    /**
+     * Construct a k-mer set from saved k-mers, such as those in a {@link KmerCache}.
+     *
+     * @param kmers		sorted array of distinct canonical k-mers
+     */
+    protected PackedDnaKmers(long[] kmers) {
+        this.kmers = kmers;
+    }
+
+    /**
+     * This object collects the k-mers of a sequence into an array.
+     */
+    private static class Collector implements KmerConsumer {
+
+        /** array of k-mers collected */
+        private final long[] buffer;
+        /** number of k-mers collected */
+        private int n;
+
+        /**
+         * Construct a k-mer collector.
+         *
+         * @param capacity	maximum number of k-mers
+         */
+        protected Collector(int capacity) {
+            this.buffer = new long[Math.max(0, capacity)];
+            this.n = 0;
+        }
+
+        @Override
+        public void accept(long kmer) {
+            this.buffer[this.n++] = kmer;
+        }
+
+    }
+
+    /**
+     * Pass each canonical k-mer in a DNA sequence to a consumer.  The k-mers are presented in sequence order,
+     * including duplicates.
+     *
+     * @param seq		DNA sequence to scan
+     * @param k			k-mer size
+     * @param consumer	consumer for the k-mers
+     */
+    public static void scan(String seq, int k, KmerConsumer consumer) {
+        if (k < 1 || k > MAX_K)
+            throw new IllegalArgumentException("Invalid packed k-mer size " + k + ".");
+        final long mask = (1L << (2 * k)) - 1;
+        final int revShift = 2 * (k - 1);
+        long fwd = 0;
+        long rev = 0;
+        int valid = 0;
+        final int len = seq.length();
+        for (int i = 0; i < len; i++) {
+            char c = seq.charAt(i);
+            int code = (c < 128 ? CODES[c] : -1);
+            if (code < 0)
+                valid = 0;
+            else {
+                fwd = ((fwd << 2) | code) & mask;
+                rev = (rev >>> 2) | ((long) (3 - code) << revShift);
+                valid++;
+                if (valid >= k)
+                    consumer.accept(Math.min(fwd, rev));
+            }
+        }
+    }
+
+    /**
+     * @return the number of k-mers in common with another set
+     *
+     * @param other		other set to compare
+     */
+    public int similarity(PackedDnaKmers other) {
+        final long[] a = this.kmers;
+        final long[] b = other.kmers;
+        int i = 0;
+        int j = 0;
+        int retVal = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j])
+                i++;
+            else if (b[j] < a[i])
+                j++;
+            else {
+                retVal++;
+                i++;
+                j++;
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the Jaccard distance to another set
+     *
+     * @param other		other set to compare
+     */
+    public double distance(PackedDnaKmers other) {
+        double retVal = 1.0;
+        int sim = this.similarity(other);
+        if (sim > 0) {
+            double union = this.kmers.length + other.kmers.length - sim;
+            retVal = 1.0 - sim / union;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the sorted array of k-mers (not a copy, so do not modify it)
+     */
+    public long[] getKmers() {
+        return this.kmers;
+    }
+
+    /**
+     * @return the number of distinct k-mers
+     */
+    public int size() {
+        return this.kmers.length;
+    }
+
+}
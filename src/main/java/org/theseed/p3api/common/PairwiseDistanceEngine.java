@@ -0,0 +1,293 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This object computes the distances between all pairs of items in a list using a fork/join pool.  The rows
+ * of the distance matrix are divided into stripes, and the columns of each stripe into square tiles, so that
+ * each task compares a small block of items against another small block and both blocks stay in cache.  The
+ * tiles of a stripe are split recursively across the pool, and a few stripes are kept in flight at once.
+ *
+ * The rows are delivered to a consumer on the calling thread in row order, so the output can be streamed to a
+ * file without holding the whole matrix in memory.  In triangle mode, each row contains only the distances to
+ * the items after it, so every pair is computed once.  In full mode, each row contains the distances to every
+ * item (including a zero for itself), which computes every pair twice but allows a square matrix to be written
+ * row by row.
+ *
+ * @author Bruce Parrello
+ *
+ * @param <T>	type of item being compared
+ */
+public class PairwiseDistanceEngine<T> {
+
+    // FIELDS
+    /** items to compare */
+    private final List<T> items;
+    /** distance measure */
+    private final Measure<T> measure;
+    /** number of worker threads */
+    private final int threads;
+    /** number of rows or columns in a tile */
+    private int tileSize;
+    /** number of pairs compared in the last run */
+    private long pairCount;
+    /** default tile size */
+    public static final int DEFAULT_TILE_SIZE = 64;
+    /** number of stripes in flight */
+    private static final int STRIPE_WINDOW = 3;
+
+    /**
+     * This interface computes the distance between two items.  It must be safe to call from several threads.
+     *
+     * @param <T>	type of item
+     */
+    public interface Measure<T> {
+
+        /**
+         * @return the distance between two items
+         *
+         * @param a		first item
+         * @param b		second item
+         */
+        public double distance(T a, T b);
+
+    }
+
+    /**
+     * This interface accepts the rows of the distance matrix.
+     */
+    public interface RowSink {
+
+        /**
+         * Accept a row of the distance matrix.
+         *
+         * @param row		index of the row item
+         * @param firstCol	index of the item corresponding to the first distance in the row
+         * @param dists		distances from the row item to the items starting at the first column
+         *
+         * @throws Exception
+         */
+        public void acceptRow(int row, int firstCol, double[] dists) throws Exception;
+
+    }
+
+    /**
+     * This task fills in the distances for a range of columns in a stripe, splitting the range into tiles.
+     */
+    private class TileTask extends RecursiveAction {
+
+        /** serialization ID */
+        private static final long serialVersionUID = 2640478122659531106L;
+        /** stripe being computed */
+        private final Stripe stripe;
+        /** first column of the range */
+        private final int colStart;
+        /** column past the end of the range */
+        private final int colEnd;
+
+        /**
+         * Construct a tile task.
+         *
+         * @param stripe	stripe being computed
+         * @param colStart	first column to compute
+         * @param colEnd	column past the last one to compute
+         */
+        protected TileTask(Stripe stripe, int colStart, int colEnd) {
+            this.stripe = stripe;
+            this.colStart = colStart;
+            this.colEnd = colEnd;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.colEnd - this.colStart <= PairwiseDistanceEngine.this.tileSize)
+                this.stripe.computeTile(this.colStart, this.colEnd);
+            else {
+                int mid = (this.colStart + this.colEnd) >>> 1;
+                invokeAll(new TileTask(this.stripe, this.colStart, mid), new TileTask(this.stripe, mid, this.colEnd));
+            }
+        }
+
+    }
+
+    /**
+     * This object contains the distances for a stripe of rows.
+     */
+    private class Stripe {
+
+        /** first row of the stripe */
+        private final int rowStart;
+        /** row past the end of the stripe */
+        private final int rowEnd;
+        /** TRUE if full rows are being computed */
+        private final boolean full;
+        /** distance rows for the stripe */
+        private final double[][] rows;
+
+        /**
+         * Construct a stripe.
+         *
+         * @param rowStart		first row of the stripe
+         * @param rowEnd		row past the end of the stripe
+         * @param full			TRUE to compute full rows, FALSE to compute only the upper triangle
+         */
+        protected Stripe(int rowStart, int rowEnd, boolean full) {
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.full = full;
+            final int n = PairwiseDistanceEngine.this.items.size();
+            this.rows = new double[rowEnd - rowStart][];
+            for (int i = rowStart; i < rowEnd; i++)
+                this.rows[i - rowStart] = new double[n - this.firstCol(i)];
+        }
+
+        /**
+         * @return the index of the first column for a row
+         *
+         * @param row	row of interest
+         */
+        protected int firstCol(int row) {
+            return (this.full ? 0 : row + 1);
+        }
+
+        /**
+         * @return the first column that needs to be computed for this stripe
+         */
+        protected int colStart() {
+            return this.firstCol(this.rowStart);
+        }
+
+        /**
+         * Compute the distances in a tile.
+         *
+         * @param colStart	first column of the tile
+         * @param colEnd	column past the end of the tile
+         */
+        protected void computeTile(int colStart, int colEnd) {
+            final List<T> items = PairwiseDistanceEngine.this.items;
+            final Measure<T> measure = PairwiseDistanceEngine.this.measure;
+            for (int i = this.rowStart; i < this.rowEnd; i++) {
+                T item = items.get(i);
+                double[] row = this.rows[i - this.rowStart];
+                int first = this.firstCol(i);
+                for (int j = Math.max(colStart, first); j < colEnd; j++) {
+                    if (j != i)
+                        row[j - first] = measure.distance(item, items.get(j));
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Construct a distance engine.
+     *
+     * @param items		list of items to compare
+     * @param measure	distance measure for the items
+     * @param threads	number of worker threads
+     */
+    public PairwiseDistanceEngine(List<T> items, Measure<T> measure, int threads) {
+        this.items = items;
+        this.measure = measure;
+        this.threads = threads;
+        this.tileSize = DEFAULT_TILE_SIZE;
+        this.pairCount = 0;
+    }
+
+    /**
+     * Specify the tile size.
+     *
+     * @param tileSize	number of rows or columns in a tile
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Compute the distance matrix and pass each row to a consumer in order.
+     *
+     * @param full		TRUE to compute full rows, FALSE to compute only the distances to later items
+     * @param sink		consumer for the rows
+     *
+     * @return the maximum distance between any two items
+     *
+     * @throws Exception
+     */
+    public double run(boolean full, RowSink sink) throws Exception {
+        final int n = this.items.size();
+        double retVal = 0.0;
+        this.pairCount = 0;
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        try {
+            Deque<Stripe> stripes = new ArrayDeque<Stripe>(STRIPE_WINDOW);
+            Deque<ForkJoinTask<?>> pending = new ArrayDeque<ForkJoinTask<?>>(STRIPE_WINDOW);
+            for (int rowStart = 0; rowStart < n; rowStart += this.tileSize) {
+                if (pending.size() >= STRIPE_WINDOW)
+                    retVal = Math.max(retVal, this.deliver(stripes.removeFirst(), pending.removeFirst(), sink));
+                Stripe stripe = new Stripe(rowStart, Math.min(n, rowStart + this.tileSize), full);
+                stripes.addLast(stripe);
+                pending.addLast(pool.submit(new TileTask(stripe, stripe.colStart(), n)));
+            }
+            while (! pending.isEmpty())
+                retVal = Math.max(retVal, this.deliver(stripes.removeFirst(), pending.removeFirst(), sink));
+        } finally {
+            pool.shutdownNow();
+        }
+        return retVal;
+    }
+
+    /**
+     * Wait for a stripe to finish and deliver its rows.
+     *
+     * @param stripe	stripe to deliver
+     * @param task		task computing the stripe
+     * @param sink		consumer for the rows
+     *
+     * @return the maximum distance in the stripe
+     *
+     * @throws Exception
+     */
+    private double deliver(Stripe stripe, ForkJoinTask<?> task, RowSink sink) throws Exception {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw e;
+        }
+        double retVal = 0.0;
+        for (int i = stripe.rowStart; i < stripe.rowEnd; i++) {
+            double[] row = stripe.rows[i - stripe.rowStart];
+            for (double dist : row) {
+                if (dist > retVal) retVal = dist;
+            }
+            // In full mode, the row includes the item itself.
+            this.pairCount += (stripe.full ? row.length - 1 : row.length);
+            sink.acceptRow(i, stripe.firstCol(i), row);
+            // Release the row as soon as it is written.
+            stripe.rows[i - stripe.rowStart] = null;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return the number of distances computed in the last run
+     */
+    public long getPairCount() {
+        return this.pairCount;
+    }
+
+}
@@ -0,0 +1,275 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This object fans a sequence of work items (usually genome IDs) out to a bounded pool of worker threads.  Each item
+ * is processed by a task that produces a result, and the results are passed to a consumer on the calling thread
+ * in the same order as the items were presented, so that reports remain deterministic.
+ *
+ * Each running task holds a state object of its own, taken from a pool and returned when the task finishes, so
+ * there are never more state objects than tasks running at once.  Accumulators kept in the state objects need no
+ * locking, and are merged by the caller after the run using {@link #getStates()}.
+ *
+ * Worker threads use the same standard streams as the calling thread (see {@link ThreadStdio}), so a command run
+ * by the command server still writes to its own client.
+ *
+ * Only a limited number of items are in flight at once, so the memory used by the results is bounded even when
+ * the consumer is slower than the workers.  If there is only one thread, the items are processed inline with
+ * no pool at all.
+ *
+ * In virtual mode, each item runs on its own virtual thread.  This is meant for tasks that spend nearly all their
+ * time waiting on PATRIC, where a platform thread per request would be too expensive.  The number of items in
+ * flight is then the global PATRIC request limit (see {@link CachedP3Connection#setRequestLimit(int)}), since that
+ * is what bounds the useful concurrency, and the thread count is only used if there is no limit.  Virtual threads
+ * require Java 21, so on an older runtime this mode falls back to a pool of that many platform threads.
+ *
+ * @author Bruce Parrello
+ *
+ * @param <S>	type of the per-thread state
+ */
+public class ParallelDriver<S> {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(ParallelDriver.class);
+    /** number of worker threads */
+    private final int threads;
+    /** factory for task state */
+    private final Supplier<S> stateFactory;
+    /** list of the state objects created */
+    private final List<S> states;
+    /** pool of state objects not in use */
+    private final Queue<S> idleStates;
+    /** TRUE if each item should run on its own virtual thread */
+    private final boolean virtual;
+    /** maximum number of items in flight per thread */
+    private static final int WINDOW_PER_THREAD = 2;
+
+    /**
+     * This interface describes the processing of a single item.
+     *
+     * @param <T>	type of work item
+     * @param <S>	type of per-thread state
+     * @param <R>	type of result
+     */
+    public interface Task<T, S, R> {
+
+        /**
+         * Process a work item.
+         *
+         * @param item		item to process
+         * @param state		state object for this task
+         *
+         * @return the result of processing the item
+         *
+         * @throws Exception
+         */
+        public R process(T item, S state) throws Exception;
+
+    }
+
+    /**
+     * This interface describes the consumer of the results.  It is always called on the thread that started the run.
+     *
+     * @param <R>	type of result
+     */
+    public interface Sink<R> {
+
+        /**
+         * Accept the result for the next item in input order.
+         *
+         * @param result	result to accept
+         *
+         * @throws Exception
+         */
+        public void accept(R result) throws Exception;
+
+    }
+
+    /**
+     * Construct a parallel driver.
+     *
+     * @param threads		number of worker threads
+     * @param stateFactory	factory for creating a state object for each worker thread
+     */
+    public ParallelDriver(int threads, Supplier<S> stateFactory) {
+        this(threads, stateFactory, false);
+    }
+
+    /**
+     * Construct a parallel driver with an optional virtual-thread mode.
+     *
+     * @param threads		number of worker threads; in virtual mode, the number of items in flight if there is
+     * 						no PATRIC request limit
+     * @param stateFactory	factory for creating a state object for each running task
+     * @param virtual		TRUE to run each item on its own virtual thread
+     */
+    public ParallelDriver(int threads, Supplier<S> stateFactory, boolean virtual) {
+        this.threads = threads;
+        this.stateFactory = stateFactory;
+        this.virtual = virtual;
+        this.states = Collections.synchronizedList(new ArrayList<S>());
+        this.idleStates = new ConcurrentLinkedQueue<S>();
+    }
+
+    /**
+     * Process the specified items.
+     *
+     * @param items		items to process
+     * @param task		task to run on each item
+     * @param sink		consumer for the results, called in item order
+     *
+     * @throws Exception
+     */
+    public <T, R> void run(Iterable<T> items, Task<T, S, R> task, Sink<R> sink) throws Exception {
+        ExecutorService pool = null;
+        int poolSize = this.threads;
+        int window = this.threads * WINDOW_PER_THREAD;
+        if (this.virtual) {
+            // The virtual mode is checked first, because its concurrency does not come from the thread count.
+            int limit = CachedP3Connection.getRequestLimit();
+            int inFlight = (limit > 0 ? limit : this.threads);
+            pool = newVirtualExecutor();
+            if (pool != null)
+                window = inFlight;
+            else {
+                log.warn("Virtual threads are not available in Java {}.  Using a pool of {} platform threads.",
+                        Runtime.version().feature(), inFlight);
+                poolSize = inFlight;
+                window = inFlight * WINDOW_PER_THREAD;
+            }
+        }
+        if (pool == null && poolSize <= 1) {
+            // Here we are single-threaded, and we process everything inline.
+            S state = this.newState();
+            for (T item : items)
+                sink.accept(task.process(item, state));
+        } else {
+            if (pool == null) {
+                final AtomicInteger threadNum = new AtomicInteger();
+                pool = Executors.newFixedThreadPool(poolSize, r -> {
+                    Thread retVal = new Thread(r, "driver-" + threadNum.incrementAndGet());
+                    retVal.setDaemon(true);
+                    return retVal;
+                });
+            }
+            final ThreadStdio.Streams stdio = ThreadStdio.current();
+            try {
+                Deque<Future<R>> pending = new ArrayDeque<Future<R>>(window);
+                for (T item : items) {
+                    if (pending.size() >= window)
+                        sink.accept(waitFor(pending.removeFirst()));
+                    pending.addLast(pool.submit(() -> this.runTask(task, item, stdio)));
+                }
+                while (! pending.isEmpty())
+                    sink.accept(waitFor(pending.removeFirst()));
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Run a task using a state object from the pool.
+     *
+     * @param task		task to run
+     * @param item		item to process
+     * @param stdio		standard streams of the calling thread, or NULL if it uses the system streams
+     *
+     * @return the result of the task
+     *
+     * @throws Exception
+     */
+    private <T, R> R runTask(Task<T, S, R> task, T item, ThreadStdio.Streams stdio) throws Exception {
+        S state = this.idleStates.poll();
+        if (state == null)
+            state = this.newState();
+        ThreadStdio.set(stdio);
+        try {
+            return task.process(item, state);
+        } finally {
+            ThreadStdio.reset();
+            if (state != null)
+                this.idleStates.add(state);
+        }
+    }
+
+    /**
+     * @return an executor that starts a virtual thread for each task, or NULL if virtual threads are not supported
+     */
+    private static ExecutorService newVirtualExecutor() {
+        ExecutorService retVal;
+        try {
+            // We use reflection so that the code still compiles and runs on Java 11.
+            retVal = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            retVal = null;
+        }
+        return retVal;
+    }
+
+    /**
+     * @return a new state object, after registering it for the final merge
+     */
+    private S newState() {
+        S retVal = this.stateFactory.get();
+        if (retVal != null)
+            this.states.add(retVal);
+        return retVal;
+    }
+
+    /**
+     * @return the result of a task, converting an execution failure to the original exception
+     *
+     * @param future	future for the task
+     *
+     * @throws Exception
+     */
+    private static <R> R waitFor(Future<R> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw e;
+        }
+    }
+
+    /**
+     * @return the state objects created by the tasks, for merging
+     */
+    public List<S> getStates() {
+        return this.states;
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+}
@@ -0,0 +1,258 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * This object finds the pair of items in a list with the greatest distance between them, without computing
+ * every distance.  The distance measure must be a metric (the Jaccard distance is one), so that the triangle
+ * inequality holds.
+ *
+ * A few items are chosen as pivots by farthest-first traversal, and the distance from each pivot to every item is
+ * computed.  For any two items i and j, d(i,j) is then bounded above by the minimum over the pivots p of
+ * d(p,i) + d(p,j).  The pivot distances also give a starting value for the maximum, and the remaining pairs are
+ * only compared when their bound exceeds the best distance found so far.  The rows are processed in parallel,
+ * in order of decreasing bound, so the maximum rises quickly and most of the rows can be skipped entirely.
+ *
+ * The maximum returned is always the same as an exhaustive search would find.
+ *
+ * @author Bruce Parrello
+ *
+ * @param <T>	type of item being compared
+ */
+public class PivotMaxSearch<T> {
+
+    // FIELDS
+    /** items to compare */
+    private final List<T> items;
+    /** distance measure */
+    private final PairwiseDistanceEngine.Measure<T> measure;
+    /** number of worker threads */
+    private final int threads;
+    /** distances from each item to each pivot, indexed by item and then pivot */
+    private double[][] pivotDists;
+    /** TRUE for each item that is a pivot */
+    private boolean[] isPivot;
+    /** best distance found so far */
+    private volatile double maxDist;
+    /** first item of the best pair */
+    private int best1;
+    /** second item of the best pair */
+    private int best2;
+    /** number of distances computed */
+    private final LongAdder evaluations;
+    /** allowance for rounding error in the bounds */
+    private static final double EPSILON = 1e-12;
+
+    /**
+     * Construct a maximum-distance search.
+     *
+     * @param items		list of items to compare
+     * @param measure	distance measure for the items; it must obey the triangle inequality
+     * @param threads	number of worker threads
+     */
+    public PivotMaxSearch(List<T> items, PairwiseDistanceEngine.Measure<T> measure, int threads) {
+        this.items = items;
+        this.measure = measure;
+        this.threads = threads;
+        this.evaluations = new LongAdder();
+    }
+
+    /**
+     * Find the maximum distance between two items.
+     *
+     * @param pivotCount	number of pivots to use
+     *
+     * @return the maximum distance between any two items
+     *
+     * @throws Exception
+     */
+    public double run(int pivotCount) throws Exception {
+        final int n = this.items.size();
+        this.evaluations.reset();
+        this.maxDist = 0.0;
+        this.best1 = -1;
+        this.best2 = -1;
+        if (n >= 2) {
+            ForkJoinPool pool = new ForkJoinPool(this.threads);
+            try {
+                this.choosePivots(pool, Math.min(pivotCount, n));
+                this.searchRows(pool);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        return this.maxDist;
+    }
+
+    /**
+     * Choose the pivots and compute their distances to all the items.  Each new pivot is the item farthest from
+     * the pivots already chosen.
+     *
+     * @param pool			thread pool for the distance computations
+     * @param pivotCount	number of pivots to choose
+     *
+     * @throws Exception
+     */
+    private void choosePivots(ForkJoinPool pool, int pivotCount) throws Exception {
+        final int n = this.items.size();
+        this.pivotDists = new double[n][pivotCount];
+        this.isPivot = new boolean[n];
+        // This tracks the distance from each item to its nearest pivot.
+        double[] nearest = new double[n];
+        Arrays.fill(nearest, Double.MAX_VALUE);
+        int pivot = 0;
+        for (int p = 0; p < pivotCount; p++) {
+            final int pIdx = p;
+            final int pivotIdx = pivot;
+            final T pItem = this.items.get(pivot);
+            this.isPivot[pivot] = true;
+            invoke(pool, () -> IntStream.range(0, n).parallel().filter(j -> j != pivotIdx).forEach(j -> {
+                this.pivotDists[j][pIdx] = this.measure.distance(pItem, this.items.get(j));
+                this.evaluations.increment();
+            }));
+            // Record the pivot distances as real pairs, and find the next pivot.
+            int next = -1;
+            for (int j = 0; j < n; j++) {
+                double dist = this.pivotDists[j][p];
+                if (j != pivot)
+                    this.offer(Math.min(pivot, j), Math.max(pivot, j), dist);
+                if (dist < nearest[j]) nearest[j] = dist;
+                if (! this.isPivot[j] && (next < 0 || nearest[j] > nearest[next]))
+                    next = j;
+            }
+            if (next < 0) break;
+            pivot = next;
+        }
+    }
+
+    /**
+     * Compare the pairs whose bounds exceed the best distance found so far.
+     *
+     * @param pool	thread pool for the distance computations
+     *
+     * @throws Exception
+     */
+    private void searchRows(ForkJoinPool pool) throws Exception {
+        final int n = this.items.size();
+        // Compute the largest distance from each pivot to any item.
+        final int pivotCount = this.pivotDists[0].length;
+        double[] pivotMax = new double[pivotCount];
+        for (double[] dists : this.pivotDists) {
+            for (int p = 0; p < pivotCount; p++)
+                if (dists[p] > pivotMax[p]) pivotMax[p] = dists[p];
+        }
+        // Compute the bound on each row and sort the rows by decreasing bound.
+        double[] rowBounds = new double[n];
+        for (int i = 0; i < n; i++)
+            rowBounds[i] = this.bound(this.pivotDists[i], pivotMax);
+        Integer[] order = IntStream.range(0, n).filter(i -> ! this.isPivot[i]).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, (a, b) -> Double.compare(rowBounds[b], rowBounds[a]));
+        invoke(pool, () -> Arrays.stream(order).parallel().forEach(i -> {
+            if (rowBounds[i] + EPSILON > this.maxDist)
+                this.searchRow(i);
+        }));
+    }
+
+    /**
+     * Compare an item to the non-pivot items after it whose bounds exceed the best distance found so far.
+     *
+     * @param i		index of the row item
+     */
+    private void searchRow(int i) {
+        final int n = this.items.size();
+        final T item = this.items.get(i);
+        final double[] iDists = this.pivotDists[i];
+        for (int j = i + 1; j < n; j++) {
+            if (! this.isPivot[j] && this.bound(iDists, this.pivotDists[j]) + EPSILON > this.maxDist) {
+                double dist = this.measure.distance(item, this.items.get(j));
+                this.evaluations.increment();
+                if (dist >= this.maxDist)
+                    this.offer(i, j, dist);
+            }
+        }
+    }
+
+    /**
+     * @return the triangle-inequality bound on the distance between two items
+     *
+     * @param dists1	pivot distances for the first item
+     * @param dists2	pivot distances for the second item
+     */
+    private double bound(double[] dists1, double[] dists2) {
+        double retVal = Double.MAX_VALUE;
+        for (int p = 0; p < dists1.length; p++) {
+            double sum = dists1[p] + dists2[p];
+            if (sum < retVal) retVal = sum;
+        }
+        return retVal;
+    }
+
+    /**
+     * Record a candidate for the best pair.  Ties go to the earliest pair, so the result does not depend on the
+     * order in which the threads finish.
+     *
+     * @param i		index of the first item
+     * @param j		index of the second item (greater than the first)
+     * @param dist	distance between the items
+     */
+    private synchronized void offer(int i, int j, double dist) {
+        if (this.best1 < 0 || dist > this.maxDist
+                || dist == this.maxDist && (i < this.best1 || i == this.best1 && j < this.best2)) {
+            this.maxDist = dist;
+            this.best1 = i;
+            this.best2 = j;
+        }
+    }
+
+    /**
+     * Run a parallel computation in a thread pool and wait for it to finish.
+     *
+     * @param pool		thread pool to use
+     * @param task		task to run
+     *
+     * @throws Exception
+     */
+    private static void invoke(ForkJoinPool pool, Runnable task) throws Exception {
+        try {
+            pool.submit(task).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw e;
+        }
+    }
+
+    /**
+     * @return the index of the first item in the farthest pair, or -1 if there are fewer than two items
+     */
+    public int getFirst() {
+        return this.best1;
+    }
+
+    /**
+     * @return the index of the second item in the farthest pair, or -1 if there are fewer than two items
+     */
+    public int getSecond() {
+        return this.best2;
+    }
+
+    /**
+     * @return the number of distances computed in the last run
+     */
+    public long getEvaluations() {
+        return this.evaluations.sum();
+    }
+
+}
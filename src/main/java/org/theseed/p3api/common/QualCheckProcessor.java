@@ -80,6 +80,7 @@ public class QualCheckProcessor extends BaseProcessor {
                         log.info("{} sequences read in {}.", seqCount, sample);
                 }
             }
+            CommandMetrics.addRecords(seqCount);
             if (seqCount == 0)
                 log.info("No sequences found in {}.", this.inDir);
             else
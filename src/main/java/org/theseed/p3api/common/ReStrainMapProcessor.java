@@ -151,6 +151,7 @@ public class ReStrainMapProcessor extends BasePipeProcessor {
             writer.format("%s\t%s\t%s\t%4.1f\t%6.4f\t%s%n", sample.toString(), strain, iptg, timePoint,
                     threonine, density);
         }
+        CommandMetrics.addRecords(lineCount);
         log.info("{} lines read, {} bad strains, {} strains changed.", lineCount, skipCount, changeCount);
     }
 
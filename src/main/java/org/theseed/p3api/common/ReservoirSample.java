@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This object maintains a fixed-size uniform random sample of a stream of items (Vitter's Algorithm R).  After any
+ * number of items have been offered, each of them is in the sample with equal probability, but the memory used is
+ * bounded by the sample capacity.
+ *
+ * @author Bruce Parrello
+ *
+ * @param <T>	type of item being sampled
+ */
+public class ReservoirSample<T> {
+
+    // FIELDS
+    /** items in the sample */
+    private final List<T> sample;
+    /** maximum number of items in the sample */
+    private final int capacity;
+    /** number of items offered */
+    private long seen;
+    /** random-number generator for choosing replacements */
+    private final Random randomizer;
+
+    /**
+     * Construct an empty reservoir sample.
+     *
+     * @param capacity		maximum number of items to keep
+     * @param randomizer	random-number generator for choosing which items to keep
+     */
+    public ReservoirSample(int capacity, Random randomizer) {
+        this.capacity = capacity;
+        this.sample = new ArrayList<T>(Math.min(capacity, 1024));
+        this.seen = 0;
+        this.randomizer = randomizer;
+    }
+
+    /**
+     * Offer an item to the sample.
+     *
+     * @param item	item to offer
+     */
+    public void offer(T item) {
+        this.seen++;
+        if (this.sample.size() < this.capacity)
+            this.sample.add(item);
+        else if (this.capacity > 0) {
+            long idx = (long) (this.randomizer.nextDouble() * this.seen);
+            if (idx < this.capacity)
+                this.sample.set((int) idx, item);
+        }
+    }
+
+    /**
+     * @return a random item from the sample, or NULL if the sample is empty
+     *
+     * @param rand	random-number generator to use
+     */
+    public T pick(Random rand) {
+        T retVal = null;
+        if (! this.sample.isEmpty())
+            retVal = this.sample.get(rand.nextInt(this.sample.size()));
+        return retVal;
+    }
+
+    /**
+     * @return the item at the specified position in the sample
+     *
+     * @param idx	index of the desired item
+     */
+    public T get(int idx) {
+        return this.sample.get(idx);
+    }
+
+    /**
+     * @return the number of items in the sample
+     */
+    public int size() {
+        return this.sample.size();
+    }
+
+    /**
+     * @return the number of items offered
+     */
+    public long getSeen() {
+        return this.seen;
+    }
+
+}
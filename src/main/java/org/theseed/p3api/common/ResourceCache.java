@@ -0,0 +1,219 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class manages heavy reference objects (representative-genome databases, genome sources, distance maps)
+ * that may be needed by more than one command in a single JVM.  Each object is keyed by a type string and the
+ * canonical names of the files from which it was built.  The modification time and length of each file is
+ * recorded when the object is loaded; if any of them change, the object is reloaded on the next request.  For a
+ * directory, the stamp covers the name, modification time, and length of every file in the directory tree, so a
+ * file rewritten in place (which does not change the directory's own modification time) is still noticed.
+ *
+ * Requests for the same resource are serialized, so if several threads ask for a resource that is not in the
+ * cache, it is only loaded once.  The locks come from a fixed stripe indexed by the hash of the resource key, so
+ * the number of locks does not grow with the number of resources a long-running process has seen.  Requests for
+ * different resources can usually load at the same time, but two resources that share a stripe load one after
+ * the other.  For this reason, a loader must not request another resource from the cache.
+ *
+ * The cache is size-bounded, and discards the least-recently-used object when it fills.  Its capacity is
+ * zero by default, so that a command running alone in a JVM does not hold its objects any longer than it
+ * needs them.  The batch and server modes raise the capacity so that later commands can reuse the objects.  The
+ * server locks the capacity with {@link #lockCapacity(int)}, so that no command it runs can change it for the
+ * others.
+ *
+ * Cached objects are shared, so a client must not modify an object it gets from the cache.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ResourceCache {
+
+    /**
+     * This interface describes a method for loading a resource.
+     *
+     * @param <T>	type of resource loaded
+     */
+    public interface Loader<T> {
+
+        /**
+         * @return the resource, loaded from its files
+         *
+         * @throws IOException
+         */
+        public T load() throws IOException;
+
+    }
+
+    /**
+     * This object describes a cached resource.
+     */
+    private static class Entry {
+
+        /** file stamps at the time the resource was loaded */
+        private long[] stamps;
+        /** the resource itself */
+        private Object resource;
+
+        /**
+         * Construct a cache entry.
+         *
+         * @param stamps	file stamps for the resource
+         * @param resource	resource to cache
+         */
+        protected Entry(long[] stamps, Object resource) {
+            this.stamps = stamps;
+            this.resource = resource;
+        }
+
+    }
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(ResourceCache.class);
+    /** map of resource keys to cached resources */
+    private static final LruCache<String, Entry> cache = new LruCache<String, Entry>(0);
+    /** number of lock stripes */
+    private static final int STRIPES = 64;
+    /** lock objects for loading resources, indexed by key hash */
+    private static final Object[] keyLocks = new Object[STRIPES];
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            keyLocks[i] = new Object();
+    }
+    /** TRUE if the capacity is owned by the host process and cannot be changed */
+    private static boolean capacityLocked = false;
+
+    /**
+     * Get a resource, loading it if it is not already in the cache or if any of its files have changed.
+     *
+     * @param <T>		type of resource
+     * @param type		type string for the resource; this should include any parameters that affect the loading
+     * @param loader	method for loading the resource
+     * @param files		files from which the resource is loaded
+     *
+     * @return the requested resource
+     *
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(String type, Loader<T> loader, File... files) throws IOException {
+        // Compute the key and the current file stamps.
+        StringBuilder keyBuffer = new StringBuilder(type);
+        for (File file : files)
+            keyBuffer.append('\t').append(file.getCanonicalPath());
+        String key = keyBuffer.toString();
+        T retVal;
+        // Only one thread at a time can check and load a given resource.
+        synchronized (keyLocks[Math.floorMod(key.hashCode(), STRIPES)]) {
+            long[] stamps = computeStamps(files);
+            Entry entry = cache.get(key);
+            if (entry != null && Arrays.equals(entry.stamps, stamps)) {
+                log.info("Reusing cached {} for {}.", type, files[0]);
+                retVal = (T) entry.resource;
+            } else {
+                if (entry != null) {
+                    log.info("Cached {} for {} is out of date.", type, files[0]);
+                    cache.remove(key);
+                }
+                retVal = loader.load();
+                cache.put(key, new Entry(stamps, retVal));
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return an array of stamps for the specified files, two per file
+     *
+     * For an ordinary file, the stamps are the modification time and the length.  For a directory, they are a
+     * hash of the names, modification times, and lengths of all the files in the tree, and the number of files.
+     *
+     * @param files		files whose stamps are desired
+     *
+     * @throws IOException
+     */
+    protected static long[] computeStamps(File[] files) throws IOException {
+        long[] retVal = new long[files.length * 2];
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].isDirectory()) {
+                Path root = files[i].toPath();
+                List<Path> paths;
+                try (Stream<Path> walk = Files.walk(root)) {
+                    paths = walk.sorted().collect(Collectors.toList());
+                }
+                long hash = 1;
+                for (Path path : paths) {
+                    File file = path.toFile();
+                    hash = hash * 31 + root.relativize(path).toString().hashCode();
+                    hash = hash * 31 + file.lastModified();
+                    hash = hash * 31 + (file.isFile() ? file.length() : 0L);
+                }
+                retVal[i * 2] = hash;
+                retVal[i * 2 + 1] = paths.size();
+            } else {
+                retVal[i * 2] = files[i].lastModified();
+                retVal[i * 2 + 1] = (files[i].isFile() ? files[i].length() : 0L);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Specify the maximum number of resources to keep in the cache.
+     *
+     * @param capacity	new cache capacity; 0 disables caching
+     */
+    public static synchronized void setCapacity(int capacity) {
+        if (capacityLocked)
+            log.debug("Cache capacity of {} ignored:  the capacity is fixed by the host process.", capacity);
+        else
+            cache.setCapacity(capacity);
+    }
+
+    /**
+     * Specify the maximum number of resources to keep in the cache and prevent it from being changed.
+     *
+     * @param capacity	new cache capacity; 0 disables caching
+     */
+    public static synchronized void lockCapacity(int capacity) {
+        cache.setCapacity(capacity);
+        capacityLocked = true;
+    }
+
+    /**
+     * Allow the cache capacity to be changed again.
+     */
+    public static synchronized void unlockCapacity() {
+        capacityLocked = false;
+    }
+
+    /**
+     * Remove all the resources from the cache.
+     */
+    public static void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Write the cache statistics to the log.
+     */
+    public static void logStats() {
+        log.info("Resource cache has {} entries.  {} hits, {} misses, hit rate {}.", cache.size(), cache.getHits(),
+                cache.getMisses(), String.format("%4.2f", cache.getHitRate()));
+    }
+
+}
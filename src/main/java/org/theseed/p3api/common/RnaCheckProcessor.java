@@ -42,6 +42,9 @@ import org.theseed.basic.BaseReportProcessor;
  * --minS		minimum percent BLAST match for the SILVA sequences (default 95)
  * --maxE		maximum permissible E-value (default 1e-10)
  * --format		format of output report (default LIST)
+ * --threads	number of worker threads for processing genomes (default 1)
+ * --checkpoint	checkpoint journal file; genomes completed in a previous run with the same journal are restored
+ * 				from it instead of being searched again
  *
  * @author Bruce Parrello
  *
@@ -59,9 +62,44 @@ public class RnaCheckProcessor extends BaseReportProcessor {
     private RnaCheckReporter reporter;
     /** BLAST parameters */
     private BlastParms parms;
+    /** number of genomes processed */
+    private int gCount;
+    /** number of annotated RNAs found */
+    private int annoRna;
+    /** number of RNAs found by BLAST */
+    private int blastRna;
+    /** checkpoint journal */
+    private CheckpointJournal journal;
     /** BLAST batch size */
     private static final int BATCH_SIZE = 20;
 
+    /**
+     * This object contains the RNAs found in a single genome.
+     */
+    private static class GenomeRnas {
+
+        /** genome searched */
+        private final Genome genome;
+        /** annotated SSU rRNAs */
+        private final List<RnaDescriptor> annotated;
+        /** SSU rRNAs found by BLAST */
+        private final List<RnaDescriptor> blasted;
+
+        /**
+         * Construct the RNA results for a genome.
+         *
+         * @param genome		genome searched
+         * @param annotated		annotated SSU rRNAs found
+         * @param blasted		SSU rRNAs found by BLAST
+         */
+        protected GenomeRnas(Genome genome, List<RnaDescriptor> annotated, List<RnaDescriptor> blasted) {
+            this.genome = genome;
+            this.annotated = annotated;
+            this.blasted = blasted;
+        }
+
+    }
+
     // COMMAND-LINE OPTIONS
 
     /** minimum percent subject coverage for a legitimate hit */
@@ -82,6 +120,14 @@ public class RnaCheckProcessor extends BaseReportProcessor {
     @Option(name = "--format", usage = "output report format")
     private RnaCheckReporter.Type outFormat;
 
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for processing genomes")
+    private int threads;
+
+    /** checkpoint journal file */
+    @Option(name = "--checkpoint", metaVar = "run.ckpt", usage = "checkpoint journal for resuming after an interruption")
+    private File checkpointFile;
+
     /** SILVA RNA FASTA file / BLAST database */
     @Argument(index = 0, metaVar = "silva.fasta", usage = "SILVA NR99 SSU reference RNA FASTA file")
     private File silvaFile;
@@ -96,6 +142,8 @@ public class RnaCheckProcessor extends BaseReportProcessor {
         this.eValue = 1e-10;
         this.sourceType = GenomeSource.Type.DIR;
         this.outFormat = RnaCheckReporter.Type.LIST;
+        this.threads = 1;
+        this.checkpointFile = null;
     }
 
     @Override
@@ -105,6 +153,8 @@ public class RnaCheckProcessor extends BaseReportProcessor {
             throw new ParseFailureException("Minimum subject percent must be between 0 and 100.");
         if (this.eValue < 0.0)
             throw new ParseFailureException("Maximum eValue cannot be negative.");
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
         // Insure we have a silva database.
         if (! this.silvaFile.canRead())
             throw new FileNotFoundException("Silva FASTA file " + this.silvaFile + " is not found or unreadable.");
@@ -120,7 +170,8 @@ public class RnaCheckProcessor extends BaseReportProcessor {
         }
         // Connect to the genome source.
         log.info("Loading genomes at {}.", this.genomeDir);
-        this.genomes = this.sourceType.create(this.genomeDir);
+        this.genomes = ResourceCache.get("GenomeSource." + this.sourceType, () -> this.sourceType.create(this.genomeDir),
+                this.genomeDir);
         log.info("{} genomes found in {}.", this.genomes.size(), this.genomeDir);
         // Create the blast parameters.
         this.parms = new BlastParms().maxE(this.eValue).pctLenOfSubject(this.minPctSubject);
@@ -132,34 +183,89 @@ public class RnaCheckProcessor extends BaseReportProcessor {
         this.reporter = this.outFormat.create(writer);
         this.reporter.openReport();
         // Loop through the genomes.  We count the number of genomes processed, the number of annotated RNAs found,
-        // and the number of SILVA RNAs found.
-        int gCount = 0;
-        int annoRna = 0;
-        int blastRna = 0;
-        for (Genome genome : this.genomes) {
-            gCount++;
-            log.info("Processing genome {} of {}: {}.", gCount, this.genomes.size(), genome);
-            this.reporter.openGenome(genome);
-            // Get the annotated SSU rRNAs.
-            annoRna += this.searchForAnnotatedRna(genome);
-            // Get the BLAST SSU rRNAs.
-            blastRna += this.blastForRna(genome);
-            this.reporter.closeGenome(genome);
+        // and the number of SILVA RNAs found.  The searches are done by the workers, and the results are reported
+        // here in input order.
+        this.gCount = 0;
+        this.annoRna = 0;
+        this.blastRna = 0;
+        String fingerprint = (this.checkpointFile == null ? CheckpointJournal.NO_FINGERPRINT
+                : CheckpointJournal.fingerprint(this.silvaFile, this.genomeDir, this.sourceType, this.minPctSubject,
+                        this.eValue));
+        this.journal = CheckpointJournal.open(this.checkpointFile, "rnaCheck", fingerprint);
+        ParallelDriver<Void> driver = new ParallelDriver<Void>(this.threads, () -> null);
+        try {
+            driver.run(this.genomes.getIDs(), (genomeId, x) -> this.processGenome(genomeId), rnas -> {
+                this.gCount++;
+                log.info("Reporting genome {} of {}: {}.", this.gCount, this.genomes.size(), rnas.genome);
+                this.reporter.openGenome(rnas.genome);
+                for (RnaDescriptor descriptor : rnas.annotated)
+                    this.reporter.recordHit(descriptor);
+                for (RnaDescriptor descriptor : rnas.blasted)
+                    this.reporter.recordHit(descriptor);
+                this.reporter.closeGenome(rnas.genome);
+                this.annoRna += rnas.annotated.size();
+                this.blastRna += rnas.blasted.size();
+            });
+        } finally {
+            this.journal.close();
         }
         // All done.  Finish the report.
         this.reporter.finish();
-        log.info("{} genomes processed.  {} RNAs found by BLAST, {} from annotations.", gCount, blastRna, annoRna);
+        CommandMetrics.addRecords(this.gCount);
+        log.info("{} genomes processed.  {} RNAs found by BLAST, {} from annotations.", this.gCount, this.blastRna, this.annoRna);
+    }
+
+    /**
+     * Load a genome and find its SSU rRNAs.  If the genome was completed in a previous run, the RNAs are restored
+     * from the checkpoint journal; otherwise, they are found and recorded in the journal.
+     *
+     * @param genomeId	ID of the genome to process
+     *
+     * @return the annotated and BLAST-found RNAs in the genome
+     *
+     * @throws IOException
+     */
+    private GenomeRnas processGenome(String genomeId) throws IOException {
+        Genome genome = this.genomes.getGenome(genomeId);
+        List<RnaDescriptor> annotated;
+        List<RnaDescriptor> blasted;
+        List<String> lines = this.journal.getLines(genomeId);
+        if (lines != null) {
+            log.info("Restoring genome {} from checkpoint.", genome);
+            annotated = new ArrayList<RnaDescriptor>();
+            blasted = new ArrayList<RnaDescriptor>();
+            for (String line : lines) {
+                RnaDescriptor descriptor = RnaDescriptor.fromJournal(genome, line);
+                if (descriptor.getType() == RnaDescriptor.Type.ANNOTATION)
+                    annotated.add(descriptor);
+                else
+                    blasted.add(descriptor);
+            }
+        } else {
+            log.info("Processing genome {}.", genome);
+            // Get the annotated SSU rRNAs.
+            annotated = this.searchForAnnotatedRna(genome);
+            // Get the BLAST SSU rRNAs.
+            blasted = this.blastForRna(genome);
+            // Record the genome in the journal.
+            lines = new ArrayList<String>(annotated.size() + blasted.size());
+            for (RnaDescriptor descriptor : annotated)
+                lines.add(descriptor.toJournal());
+            for (RnaDescriptor descriptor : blasted)
+                lines.add(descriptor.toJournal());
+            this.journal.record(genomeId, lines);
+        }
+        return new GenomeRnas(genome, annotated, blasted);
     }
 
     /**
-     * BLAST against the Silva database to find SSU rRNA in the specified genome.  The RNAs found will be
-     * sent to the report writer.
+     * BLAST against the Silva database to find SSU rRNA in the specified genome.
      *
      * @param genome	genome of interest
      *
-     * @return the number of RNAs found
+     * @return the RNAs found
      */
-    private int blastForRna(Genome genome) {
+    private List<RnaDescriptor> blastForRna(Genome genome) {
         // Collect the contigs from the genome.
         DnaDataStream contigs = new DnaDataStream(genome);
         // This will hold the locations found.  Each location will be mapped to the associated hit's description (a taxonomy
@@ -173,22 +279,30 @@ public class RnaCheckProcessor extends BaseReportProcessor {
             DnaDataStream newContigs = (DnaDataStream) iter.next();
             List<BlastHit> hits = this.silvaDB.blast(newContigs, this.parms);
             log.info("{} hits found against {}.", hits.size(), genome);
-            for (BlastHit hit : hits) {
-                // Create a descriptor for the hit.
-                RnaDescriptor thisHit = new RnaDescriptor(genome, hit);
-                // Check to see if it merges with an existing hit.
-                boolean merged = false;
-                for (int i = 0; i < descriptors.size() && ! merged; i++)
-                    merged = descriptors.get(i).checkForMerge(thisHit);
-                if (! merged)
-                    descriptors.add(thisHit);
-            }
+            List<RnaDescriptor> newHits = new ArrayList<RnaDescriptor>(hits.size());
+            for (BlastHit hit : hits)
+                newHits.add(new RnaDescriptor(genome, hit));
+            mergeHits(descriptors, newHits);
+        }
+        return descriptors;
+    }
+
+    /**
+     * Merge new hits into a list of RNA descriptors.  A new hit that overlaps an existing descriptor on the same
+     * strand is merged into it; otherwise, it is added to the list.
+     *
+     * @param descriptors	list of descriptors found so far; this is updated in place
+     * @param newHits		descriptors for the new hits
+     */
+    public static void mergeHits(List<RnaDescriptor> descriptors, List<RnaDescriptor> newHits) {
+        for (RnaDescriptor thisHit : newHits) {
+            // Check to see if it merges with an existing hit.
+            boolean merged = false;
+            for (int i = 0; i < descriptors.size() && ! merged; i++)
+                merged = descriptors.get(i).checkForMerge(thisHit);
+            if (! merged)
+                descriptors.add(thisHit);
         }
-        // Record the BLAST hits from this genome.
-        for (RnaDescriptor descriptor : descriptors)
-            this.reporter.recordHit(descriptor);
-        // Return the number found.
-        return descriptors.size();
     }
 
     /**
@@ -196,16 +310,13 @@ public class RnaCheckProcessor extends BaseReportProcessor {
      *
      * @param genome	genome to search
      *
-     * @return the number of 16s RNA features found
+     * @return the 16s RNA features found
      */
-    private int searchForAnnotatedRna(Genome genome) {
-        int retVal = 0;
+    private List<RnaDescriptor> searchForAnnotatedRna(Genome genome) {
+        List<RnaDescriptor> retVal = new ArrayList<RnaDescriptor>();
         for (Feature feat : genome.getFeatures()) {
-            if (feat.getType().contentEquals("rna") && RoleUtilities.SSU_R_RNA.matcher(feat.getPegFunction()).find()) {
-                RnaDescriptor descriptor = new RnaDescriptor(genome, feat);
-                this.reporter.recordHit(descriptor);
-                retVal++;
-            }
+            if (feat.getType().contentEquals("rna") && RoleUtilities.SSU_R_RNA.matcher(feat.getPegFunction()).find())
+                retVal.add(new RnaDescriptor(genome, feat));
         }
         return retVal;
     }
@@ -95,6 +95,23 @@ public class RnaDescriptor implements Comparable<RnaDescriptor> {
         this.description = feat.getId();
     }
 
+    /**
+     * Construct a descriptor from its component parts.
+     *
+     * @param genomeId		ID of the genome containing the hit
+     * @param genomeName	name of the genome containing the hit
+     * @param loc			location of the hit in the genome
+     * @param type			type of hit
+     * @param description	descriptive string for the hit
+     */
+    public RnaDescriptor(String genomeId, String genomeName, Location loc, Type type, String description) {
+        this.genomeId = genomeId;
+        this.genomeName = genomeName;
+        this.loc = loc;
+        this.type = type;
+        this.description = description;
+    }
+
     /**
      * Check a new descriptor against this one.  If they overlap, merge the locations and return TRUE.
      * Otherwise, return FALSE.
@@ -130,6 +147,35 @@ public class RnaDescriptor implements Comparable<RnaDescriptor> {
         return retVal;
     }
 
+    /**
+     * @return a tab-delimited string from which this descriptor can be rebuilt (the genome is not included)
+     */
+    public String toJournal() {
+        return this.type.name() + "\t" + this.loc.getContigId() + "\t" + this.loc.getBegin() + "\t" + this.loc.getEnd()
+                + "\t" + this.description;
+    }
+
+    /**
+     * Rebuild a descriptor from a journal string.
+     *
+     * @param genome	genome containing the RNA
+     * @param line		journal string produced by {@link #toJournal()}
+     *
+     * @return the descriptor represented by the string
+     */
+    public static RnaDescriptor fromJournal(Genome genome, String line) {
+        String[] parts = line.split("\t", 5);
+        Location loc = Location.create(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        return new RnaDescriptor(genome.getId(), genome.getName(), loc, Type.valueOf(parts[0]), parts[4]);
+    }
+
+    /**
+     * @return the type of this hit
+     */
+    public Type getType() {
+        return this.type;
+    }
+
     /**
      * @return the header for a report containing RNA descriptors
      */
@@ -109,6 +109,7 @@ public class RnaFixProcessor extends BasePipeProcessor {
                 writer.println(StringUtils.join(fields, '\t'));
             }
         }
+        CommandMetrics.addRecords(count);
         log.info("{} lines read, {} output.", count, kept);
     }
 
@@ -15,7 +15,6 @@ import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.ParseFailureException;
-import org.theseed.genome.Genome;
 import org.theseed.genome.iterator.GenomeSource;
 import org.theseed.io.TabbedLineReader;
 import org.theseed.basic.BaseReportProcessor;
@@ -36,6 +35,9 @@ import org.theseed.basic.BaseReportProcessor;
  * --min		minimum length for length limit
  * --filter		if specified, a tab-delimited file of genome IDs; only the genome IDs listed in the first column
  * 				will be processed, and they will be processed in the order presented
+ * --threads	number of worker threads for loading genomes (default 1)
+ * --prefetch	if nonzero, the genomes are loaded on a background thread, with up to this many megabytes
+ * 				of genomes read ahead (default 0)
  *
  * @author Bruce Parrello
  *
@@ -51,6 +53,8 @@ public class RnaStatsProcessor extends BaseReportProcessor {
     private int shortCount;
     /** count of missing SSU rRNAs */
     private int missingCount;
+    /** count of genomes processed */
+    private int gCount;
     /** input genome source */
     private GenomeSource genomes;
     /** list of genomeIDs to process */
@@ -70,6 +74,14 @@ public class RnaStatsProcessor extends BaseReportProcessor {
     @Option(name = "--min", usage = "minimum acceptable RNA length")
     private int minLen;
 
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for loading genomes")
+    private int threads;
+
+    /** read-ahead budget for genome loading, in megabytes */
+    @Option(name = "--prefetch", metaVar = "512", usage = "if nonzero, megabytes of genomes to load ahead on a background thread")
+    private int prefetchMb;
+
     /** input genome source */
     @Argument(index = 0, metaVar = "genomeDir", usage = "input genome source (directory or ID file)", required = true)
     private File genomeDir;
@@ -79,15 +91,22 @@ public class RnaStatsProcessor extends BaseReportProcessor {
         this.minLen = 1400;
         this.filterFile = null;
         this.sourceType = GenomeSource.Type.DIR;
+        this.threads = 1;
+        this.prefetchMb = 0;
     }
 
     @Override
     protected void validateReporterParms() throws IOException, ParseFailureException {
         if (this.minLen < 0)
             throw new ParseFailureException("Minimum length cannot be negative.");
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
+        if (this.prefetchMb < 0)
+            throw new ParseFailureException("Prefetch budget cannot be negative.");
         // Connect to the genome source.
         log.info("Loading genomes at {}.", this.genomeDir);
-        this.genomes = this.sourceType.create(this.genomeDir);
+        this.genomes = ResourceCache.get("GenomeSource." + this.sourceType, () -> this.sourceType.create(this.genomeDir),
+                this.genomeDir);
         log.info("{} genomes found in {}.", this.genomes.size(), this.genomeDir);
         // If there is a filter file, create the filter set.
         if (this.filterFile == null) {
@@ -104,25 +123,21 @@ public class RnaStatsProcessor extends BaseReportProcessor {
         // Initialize the statistical objects.
         this.shortCount = 0;
         this.missingCount = 0;
+        this.gCount = 0;
         this.lengths = new DescriptiveStatistics();
-        // Loop through the genomes.
-        int gCount = 0;
-        for (String genomeId : this.idList) {
-            Genome genome = this.genomes.getGenome(genomeId);
-            int len = genome.getSsuRRna().length();
-            if (len == 0)
-                this.missingCount++;
-            else {
-                this.lengths.addValue((double) len);
-                if (len < this.minLen)
-                    this.shortCount++;
+        // Loop through the genomes.  The genomes are loaded by the workers (or the prefetcher), and the lengths
+        // are accumulated here in input order.
+        ParallelDriver<Void> driver = new ParallelDriver<Void>(this.threads, () -> null);
+        if (this.prefetchMb > 0) {
+            try (GenomePrefetcher prefetcher = new GenomePrefetcher(this.genomes, this.idList, this.prefetchMb * 1024L * 1024L)) {
+                driver.run(() -> prefetcher, (genome, x) -> genome.getSsuRRna().length(), this::recordLength);
+                log.info("Genome processing waited {} times for the prefetcher.", prefetcher.getWaits());
             }
-            gCount++;
-            if (gCount % 100 == 0)
-                log.info("{} of {} genomes processed.  {} rRNAs were missing, {} were too short.", gCount, this.idList.size(),
-                        this.missingCount, this.shortCount);
-        }
-        writer.format("%s genomes processed.  %d RNAs were missing and %d were too short (length < %d).%n", gCount,
+        } else
+            driver.run(this.idList, (genomeId, x) -> this.genomes.getGenome(genomeId).getSsuRRna().length(),
+                    this::recordLength);
+        CommandMetrics.addRecords(this.gCount);
+        writer.format("%s genomes processed.  %d RNAs were missing and %d were too short (length < %d).%n", this.gCount,
                 this.missingCount, this.shortCount, this.minLen);
         writer.format("Minimum length is %d, maximum is %d, mean is %6.2f, median is %6.2f.%n", (int) this.lengths.getMin(),
                 (int) this.lengths.getMax(), this.lengths.getMean(), this.lengths.getPercentile(50.0));
@@ -132,4 +147,23 @@ public class RnaStatsProcessor extends BaseReportProcessor {
             writer.format("%6.0f\t%8.2f%n", qi, this.lengths.getPercentile(qi));
     }
 
+    /**
+     * Record the SSU rRNA length for a genome.
+     *
+     * @param len	length of the genome's SSU rRNA, or 0 if it has none
+     */
+    private void recordLength(int len) {
+        if (len == 0)
+            this.missingCount++;
+        else {
+            this.lengths.addValue((double) len);
+            if (len < this.minLen)
+                this.shortCount++;
+        }
+        this.gCount++;
+        if (this.gCount % 100 == 0)
+            log.info("{} of {} genomes processed.  {} rRNAs were missing, {} were too short.", this.gCount, this.idList.size(),
+                    this.missingCount, this.shortCount);
+    }
+
 }
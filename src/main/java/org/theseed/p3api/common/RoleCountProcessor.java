@@ -5,12 +5,14 @@ package org.theseed.p3api.common;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.kohsuke.args4j.Argument;
@@ -18,6 +20,7 @@ import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
 import org.theseed.counters.CountMap;
 import org.theseed.genome.Feature;
 import org.theseed.io.TabbedLineReader;
@@ -40,7 +43,16 @@ import com.github.cliftonlabs.json_simple.JsonObject;
  * -h	display command-line usage
  * -v	display more frequent log messages
  * -c	index (1-based) or name of the column in the genome file containing the genome IDs; the default is "genome_id"
- * -s	name of a checkpoint file, containing the ID and count for roles already processed; will be updated with new counts
+ * -s	name of a checkpoint journal; roles already counted in the journal are not queried again, and new counts
+ * 		are added to it; an old-style save file (role ID and count on each line) is converted to a journal, and
+ * 		the original is kept with a ".old" suffix
+ *
+ * --p3cache	directory for caching PATRIC query results (default none)
+ * --offline	if specified, PATRIC queries will only be answered from the cache
+ * --threads	number of worker threads for counting roles (default 1)
+ * --virtual	count each role on its own virtual thread (requires Java 21); the number of roles in
+ * 				flight is then the request limit, and the thread count is ignored
+ * --maxRequests	maximum number of PATRIC requests in progress at once (default 16)
  *
  * @author Bruce Parrello
  *
@@ -57,11 +69,36 @@ public class RoleCountProcessor extends BaseProcessor {
     /** list of acceptable genome IDs */
     private Set<String> genomes;
     /** connection to PATRIC */
-    private P3Connection p3;
-    /** counts read from checkpoint file */
-    private CountMap<String> oldCounts;
-    /** output stream for checkpoint file */
-    private PrintWriter checkStream;
+    private CachedP3Connection p3;
+    /** checkpoint journal */
+    private CheckpointJournal journal;
+
+    /**
+     * This object contains the single-occurrence count for a role.
+     */
+    private static class RoleResult {
+
+        /** role counted */
+        private final Role role;
+        /** number of genomes in which the role occurs singly */
+        private final int count;
+        /** TRUE if the count was restored from the checkpoint journal */
+        private final boolean restored;
+
+        /**
+         * Construct a role result.
+         *
+         * @param role		role counted
+         * @param count		number of genomes in which the role occurs singly
+         * @param restored	TRUE if the count came from the checkpoint journal
+         */
+        protected RoleResult(Role role, int count, boolean restored) {
+            this.role = role;
+            this.count = count;
+            this.restored = restored;
+        }
+
+    }
 
     // COMMAND-LINE OPTIONS
 
@@ -70,9 +107,29 @@ public class RoleCountProcessor extends BaseProcessor {
     private String genomeCol;
 
     /** checkpoint file for resuming after errors */
-    @Option(name = "-s", aliases = { "--save", "--checkpoint" }, metaVar = "oldCounts.tbl", usage = "name of checkpoint file for save and resume")
+    @Option(name = "-s", aliases = { "--save", "--checkpoint" }, metaVar = "roles.ckpt", usage = "name of checkpoint journal for save and resume")
     private File checkFile;
 
+    /** directory for cached PATRIC query results */
+    @Option(name = "--p3cache", metaVar = "p3Cache", usage = "directory for caching PATRIC query results")
+    private File p3CacheDir;
+
+    /** if specified, PATRIC queries will only be answered from the cache */
+    @Option(name = "--offline", usage = "if specified, PATRIC queries will only be answered from the cache")
+    private boolean offline;
+
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for counting roles")
+    private int threads;
+
+    /** TRUE to run each role on a virtual thread */
+    @Option(name = "--virtual", usage = "if specified, each role will be counted on its own virtual thread")
+    private boolean virtual;
+
+    /** maximum number of concurrent PATRIC requests */
+    @Option(name = "--maxRequests", metaVar = "32", usage = "maximum number of PATRIC requests in progress at once")
+    private int maxRequests;
+
     /** name of genome ID file */
     @Argument(index = 0, metaVar = "genomes.tbl", usage = "file of genomes to use for filtering", required = true)
     private File genomeFile;
@@ -85,11 +142,20 @@ public class RoleCountProcessor extends BaseProcessor {
     protected void setDefaults() {
         this.genomeCol = "genome_id";
         this.checkFile = null;
-        this.checkStream = null;
+        this.p3CacheDir = null;
+        this.offline = false;
+        this.threads = 1;
+        this.virtual = false;
+        this.maxRequests = 16;
     }
 
     @Override
-    protected boolean validateParms() throws IOException {
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        CachedP3Connection.validateOptions(this.p3CacheDir, this.offline);
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
+        if (this.maxRequests < 1)
+            throw new ParseFailureException("Maximum request count must be positive.");
         // Read in the genomes.
         if (! genomeFile.canRead())
             throw new FileNotFoundException("Genome file " + this.genomeFile + " not found or unreadable.");
@@ -109,73 +175,57 @@ public class RoleCountProcessor extends BaseProcessor {
         log.info("{} roles loaded from {}.", this.roles.size(), this.roleFile);
         // Create the role counts.
         this.roleCounts = new CountMap<Role>();
-        // Process the checkpoint file.
-        this.oldCounts = new CountMap<String>();
-        if (this.checkFile != null) {
-            if (this.checkFile.canRead()) {
-                // Here the checkpoint file already exists.  Read it in and then prepare to append.
-                log.info("Restoring old counts from {}.", this.checkFile);
-                try (TabbedLineReader checkIn = new TabbedLineReader(this.checkFile, 2)) {
-                     for (TabbedLineReader.Line line : checkIn) {
-                         String roleId = line.get(0);
-                         int count = line.getInt(1);
-                         this.oldCounts.setCount(roleId, count);
-                     }
-                     log.info("{} counts restored from checkpoint.", this.oldCounts.size());
+        // Open the checkpoint journal, converting an old save file if necessary.
+        String fingerprint = (this.checkFile == null ? CheckpointJournal.NO_FINGERPRINT
+                : CheckpointJournal.fingerprint(this.genomeFile, this.genomeCol, this.roleFile));
+        if (this.checkFile != null && this.checkFile.length() > 0 && ! CheckpointJournal.isJournal(this.checkFile))
+            this.journal = this.convertSaveFile(fingerprint);
+        else
+            this.journal = CheckpointJournal.open(this.checkFile, "roleCounts", fingerprint);
+        // Connect to PATRIC.
+        CachedP3Connection.setRequestLimit(this.maxRequests);
+        this.p3 = new CachedP3Connection(this.p3CacheDir, this.offline);
+        return true;
+    }
+
+    /**
+     * Convert an old-style save file to a checkpoint journal.  The old file contains a role ID and count on each
+     * line, with no header.  It is renamed with a ".old" suffix, and its counts are recorded in a new journal.
+     *
+     * @param fingerprint	fingerprint for the new journal
+     *
+     * @return the new journal
+     *
+     * @throws IOException
+     */
+    private CheckpointJournal convertSaveFile(String fingerprint) throws IOException {
+        log.info("Converting old save file {} to a checkpoint journal.", this.checkFile);
+        Map<String, Integer> oldCounts = new LinkedHashMap<String, Integer>();
+        try (TabbedLineReader checkIn = new TabbedLineReader(this.checkFile, 2)) {
+            for (TabbedLineReader.Line line : checkIn) {
+                try {
+                    oldCounts.put(line.get(0), line.getInt(1));
+                } catch (RuntimeException e) {
+                    // Here the last line was only partly written when the old run stopped.
+                    log.warn("Skipping invalid line in save file {}.", this.checkFile);
                 }
-                // Open the checkpoint file to append.
-                FileOutputStream checkOut = new FileOutputStream(this.checkFile, true);
-                this.checkStream = new PrintWriter(checkOut);
-            } else if (this.checkFile.exists())
-                throw new IOException("Checkpoint file " + this.checkFile + " exists but is not readable.");
-            else {
-                // Here there is no checkpoint file, so we open it for output.
-                log.info("Checkpointing to {}.", this.checkFile);
-                this.checkStream = new PrintWriter(this.checkFile);
             }
         }
-        // Connect to PATRIC.
-        this.p3 = new P3Connection();
-        return true;
+        File oldFile = new File(this.checkFile.getPath() + ".old");
+        Files.move(this.checkFile.toPath(), oldFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        CheckpointJournal retVal = CheckpointJournal.open(this.checkFile, "roleCounts", fingerprint);
+        for (Map.Entry<String, Integer> entry : oldCounts.entrySet())
+            retVal.record(entry.getKey(), Collections.singletonList(Integer.toString(entry.getValue())));
+        log.info("{} counts converted.  The old save file is now {}.", oldCounts.size(), oldFile);
+        return retVal;
     }
 
     @Override
     protected void runCommand() throws Exception {
-        // Loop through the roles.
-        for (Role role : this.roles.objectValues()) {
-            log.info("Processing role {}.", role);
-            // Do we have an old count for it?
-            int roleCount = this.oldCounts.getCount(role.getId());
-            if (roleCount > 0) {
-                // Yes.  Save it.
-                this.roleCounts.setCount(role, roleCount);
-            } else {
-                // No.  Ask the database.  Request all the features with the given role.
-                List<JsonObject> features = p3.getRecords(Table.FEATURE, "product", Collections.singleton(role.getName()), "genome_id,patric_id,product");
-                //Now we count the number of times the role occurs in each genome.
-                CountMap<String> gCounts = new CountMap<String>();
-                for (JsonObject feature : features) {
-                    // Verify the genome.
-                    String genomeId = P3Connection.getString(feature, "genome_id");
-                    if (this.genomes.contains(genomeId)) {
-                        // Verify the role.
-                        String product = P3Connection.getString(feature, "product");
-                        List<Role> roles = Feature.usefulRoles(this.roles, product);
-                        if (roles.contains(role))
-                            gCounts.count(genomeId);
-                    }
-                }
-                // Count the number of times the role occurs singly.
-                for (CountMap<String>.Count count : gCounts.counts())
-                    if (count.getCount() == 1) this.roleCounts.count(role);
-                roleCount = this.roleCounts.getCount(role);
-                // Checkpoint the result.
-                if (this.checkStream != null) {
-                    this.checkStream.format("%s\t%d%n", role.getId(), roleCount);
-                    this.checkStream.flush();
-                }
-            }
-            log.info("{} occurrences of role {}.", roleCount, role);
+        try {
+            this.countRoles();
+        } finally {
+            this.journal.close();
         }
         // Now output the results.
         log.info("Writing results.");
@@ -186,4 +236,76 @@ public class RoleCountProcessor extends BaseProcessor {
         }
     }
 
+    /**
+     * Count the single occurrences of each role.  The roles are counted by the parallel driver, and the counts are
+     * saved here in role order.
+     *
+     * @throws Exception
+     */
+    private void countRoles() throws Exception {
+        ParallelDriver<Void> driver = new ParallelDriver<Void>(this.threads, () -> null, this.virtual);
+        driver.run(this.roles.objectValues(), (role, x) -> this.countRole(role), this::saveCount);
+        this.p3.logStats();
+    }
+
+    /**
+     * Count the single occurrences of a role.
+     *
+     * @param role		role to count
+     *
+     * @return the count for the role
+     */
+    private RoleResult countRole(Role role) {
+        log.info("Processing role {}.", role);
+        RoleResult retVal;
+        // Do we have an old count for it?
+        List<String> saved = this.journal.getLines(role.getId());
+        if (saved != null) {
+            // Yes.  Use it.
+            retVal = new RoleResult(role, Integer.parseInt(saved.get(0)), true);
+        } else {
+            // No.  Ask the database.  Request all the features with the given role.
+            List<JsonObject> features = p3.getRecords(Table.FEATURE, "product", Collections.singleton(role.getName()), "genome_id,patric_id,product");
+            //Now we count the number of times the role occurs in each genome.
+            CountMap<String> gCounts = new CountMap<String>();
+            for (JsonObject feature : features) {
+                // Verify the genome.
+                String genomeId = P3Connection.getString(feature, "genome_id");
+                if (this.genomes.contains(genomeId)) {
+                    // Verify the role.
+                    String product = P3Connection.getString(feature, "product");
+                    List<Role> roles = Feature.usefulRoles(this.roles, product);
+                    if (roles.contains(role))
+                        gCounts.count(genomeId);
+                }
+            }
+            // Count the number of times the role occurs singly.
+            int roleCount = 0;
+            for (CountMap<String>.Count count : gCounts.counts())
+                if (count.getCount() == 1) roleCount++;
+            retVal = new RoleResult(role, roleCount, false);
+        }
+        return retVal;
+    }
+
+    /**
+     * Save the count for a role.  New counts are checkpointed.
+     *
+     * @param result	count for the role
+     *
+     * @throws IOException
+     */
+    private void saveCount(RoleResult result) throws IOException {
+        Role role = result.role;
+        if (result.restored)
+            this.roleCounts.setCount(role, result.count);
+        else {
+            if (result.count > 0)
+                this.roleCounts.setCount(role, result.count);
+            // Checkpoint the result.
+            this.journal.record(role.getId(), Collections.singletonList(Integer.toString(result.count)));
+        }
+        log.info("{} occurrences of role {}.", result.count, role);
+    }
+
 }
@@ -0,0 +1,204 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.genome.Genome;
+import org.theseed.genome.iterator.GenomeSource;
+import org.theseed.io.TabbedLineReader;
+import org.theseed.proteins.kmers.reps.RepGenome;
+import org.theseed.proteins.kmers.reps.RepGenomeDb;
+
+/**
+ * This class manages a compact index of the source genomes in a P3Eval directory.  The scatter.tbl file maps
+ * each representative genome to a source genome in the Scatter subdirectory, but the only things needed from a
+ * source genome are its ID, its name, and its seed protein.  Loading thousands of full genomes to get these is
+ * very slow, so they are extracted once and saved in a tab-delimited file named "scatter.seeds.tbl" in the
+ * P3Eval directory.
+ *
+ * The first line of the index records the stamps of the scatter.tbl file, the Scatter directory, and the
+ * representative-genome database (which determines the seed protein), as computed by
+ * {@link ResourceCache#computeStamps(File[])}.  The index is rebuilt if any of them differ, so it goes out of date
+ * under exactly the same rule as the cached copy in memory.  In particular, a genome file rewritten in place in the
+ * Scatter directory is noticed, even though the directory's own modification time does not change.  Source genomes
+ * with no seed protein are left out of the index.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SeedProteinIndex {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(SeedProteinIndex.class);
+    /** name of the index file */
+    public static final String INDEX_NAME = "scatter.seeds.tbl";
+    /** prefix for the stamp line of the index file */
+    private static final String STAMP_PREFIX = "#stamps\t";
+    /** header line for the index file */
+    private static final String HEADER = "rep200\tgenome_id\tgenome_name\tseed_fid\tseed_name\tseed_protein";
+
+    /**
+     * This object describes a source genome.
+     */
+    public static class Entry {
+
+        /** ID of the source genome */
+        private final String genomeId;
+        /** name of the source genome */
+        private final String name;
+        /** seed protein of the source genome */
+        private final RepGenome seed;
+
+        /**
+         * Construct a source genome descriptor.
+         *
+         * @param genomeId	ID of the genome
+         * @param name		name of the genome
+         * @param seed		seed protein of the genome
+         */
+        protected Entry(String genomeId, String name, RepGenome seed) {
+            this.genomeId = genomeId;
+            this.name = name;
+            this.seed = seed;
+        }
+
+        /**
+         * @return the ID of the source genome
+         */
+        public String getGenomeId() {
+            return this.genomeId;
+        }
+
+        /**
+         * @return the name of the source genome
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the seed protein of the source genome
+         */
+        public RepGenome getSeed() {
+            return this.seed;
+        }
+
+    }
+
+    /**
+     * Load the source genome index for a P3Eval directory, rebuilding it if necessary.
+     *
+     * @param evalDir	P3Eval directory
+     * @param repDb		representative-genome database, used to find the seed proteins
+     *
+     * @return a map from each representative genome ID to its source genome descriptor
+     *
+     * @throws IOException
+     */
+    public static Map<String, Entry> load(File evalDir, RepGenomeDb repDb) throws IOException {
+        File scatterFile = new File(evalDir, "scatter.tbl");
+        File scatterDir = new File(evalDir, "Scatter");
+        File repFile = new File(evalDir, "rep200.ser");
+        File indexFile = new File(evalDir, INDEX_NAME);
+        long[] stamps = ResourceCache.computeStamps(new File[] { scatterFile, scatterDir, repFile });
+        String stampLine = STAMP_PREFIX + Arrays.stream(stamps).mapToObj(Long::toString)
+                .collect(Collectors.joining("\t"));
+        if (! stampLine.equals(readStampLine(indexFile)))
+            build(scatterFile, scatterDir, repDb, indexFile, stampLine);
+        Map<String, Entry> retVal = new HashMap<String, Entry>();
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            // Skip the stamp line and verify the header.
+            reader.readLine();
+            if (! HEADER.equals(reader.readLine()))
+                throw new IOException("Invalid header in source genome index " + indexFile + ".");
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 6)
+                    throw new IOException("Invalid line in source genome index " + indexFile + ": " + line);
+                RepGenome seed = new RepGenome(fields[3], fields[4], fields[5]);
+                retVal.put(fields[0], new Entry(fields[1], fields[2], seed));
+            }
+        }
+        log.info("{} source genomes loaded from {}.", retVal.size(), indexFile);
+        return retVal;
+    }
+
+    /**
+     * @return the stamp line of an index file, or NULL if the file does not exist or is empty
+     *
+     * @param indexFile		index file to check
+     *
+     * @throws IOException
+     */
+    private static String readStampLine(File indexFile) throws IOException {
+        String retVal = null;
+        if (indexFile.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                retVal = reader.readLine();
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Build the index file from the full source genomes.  The index is written to a temporary file that is then
+     * moved into place.
+     *
+     * @param scatterFile	scatter.tbl file mapping source genomes to representatives
+     * @param scatterDir	directory containing the source genomes
+     * @param repDb			representative-genome database
+     * @param indexFile		index file to write
+     * @param stampLine		stamp line identifying the versions of the source files
+     *
+     * @throws IOException
+     */
+    private static void build(File scatterFile, File scatterDir, RepGenomeDb repDb, File indexFile,
+            String stampLine) throws IOException {
+        log.info("Building source genome index {} from {}.", indexFile, scatterDir);
+        GenomeSource scatterGenomes = GenomeSource.Type.DIR.create(scatterDir);
+        File tempFile = new File(indexFile.getAbsoluteFile().getParentFile(), indexFile.getName() + ".tmp");
+        Map<String, String> repMap = new HashMap<String, String>(scatterGenomes.size() * 4 / 3);
+        int missing = 0;
+        try (TabbedLineReader scatterStream = new TabbedLineReader(scatterFile);
+                PrintWriter writer = new PrintWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.println(stampLine);
+            writer.println(HEADER);
+            int repCol = scatterStream.findField("rep200");
+            int gCol = scatterStream.findField("genome_id");
+            for (TabbedLineReader.Line line : scatterStream) {
+                String genomeId = line.get(gCol);
+                String repId = line.get(repCol);
+                if (repMap.containsKey(repId))
+                    throw new IOException("Duplicate rep ID " + repId + " in scatter file for " + genomeId + ".");
+                repMap.put(repId, genomeId);
+                Genome genome = scatterGenomes.getGenome(genomeId);
+                RepGenome seed = repDb.getSeedProtein(genome);
+                if (seed == null) {
+                    log.warn("No seed protein found for source genome {}.", genomeId);
+                    missing++;
+                } else
+                    writer.format("%s\t%s\t%s\t%s\t%s\t%s%n", repId, genome.getId(), genome.getName(), seed.getFid(),
+                            seed.getName(), seed.getProtein());
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log.info("{} source genomes indexed, {} without seed proteins.", repMap.size() - missing, missing);
+    }
+
+}
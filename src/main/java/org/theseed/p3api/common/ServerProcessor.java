@@ -0,0 +1,221 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
+
+/**
+ * This command starts a persistent server that runs the other commands of this application on request.  The
+ * server listens on a loopback port, so only clients on the same machine can connect, and each request must carry
+ * the access token the server writes at startup to a token file readable only by its owner.  The token file is
+ * deleted when the server shuts down.  Each request carries its
+ * own command-line arguments, and the standard input, output, and error of the command are forwarded to and
+ * from the client.  Because the JVM stays up, the code for frequently-used commands stays warm, and reference
+ * objects loaded through the resource cache are reused by later requests.
+ *
+ * The client entry point is "AppClient", which takes the same parameters as the main application.
+ *
+ * The commands run inside the server process, so relative file names in their arguments are resolved against the
+ * directory in which the server was started, not the directory of the client.  To keep output from silently going
+ * to the wrong place, each request carries the client's working directory, and a request from any other directory
+ * is refused.  Run the client from the directory in which the server was started, or start another server in the
+ * client's directory.
+ *
+ * The server runs until it is killed.  There are no positional parameters.  The command-line options are as
+ * follows.
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --port		port number on which to listen (default 7350)
+ * --threads	maximum number of requests to process at once (default 4)
+ * --cache		maximum number of reference objects to keep in the resource cache (default 20)
+ * --maxRequests	maximum number of PATRIC requests in progress at once across all running commands (default 16);
+ * 					the limits requested by individual commands are ignored
+ * --token		name of the access token file (default "server.PORT.token" in the ".p3common" subdirectory of the
+ * 				user's home directory)
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ServerProcessor extends BaseProcessor {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(ServerProcessor.class);
+    /** number of requests received */
+    private AtomicInteger requestCount;
+    /** access token for requests */
+    private String token;
+    /** working directory of the server */
+    private File workDir;
+
+    // COMMAND-LINE OPTIONS
+
+    /** listening port */
+    @Option(name = "--port", metaVar = "7000", usage = "loopback port on which to listen")
+    private int port;
+
+    /** maximum number of simultaneous requests */
+    @Option(name = "--threads", metaVar = "8", usage = "maximum number of requests to process at once")
+    private int maxThreads;
+
+    /** resource cache capacity */
+    @Option(name = "--cache", metaVar = "10", usage = "maximum number of reference objects to keep in memory")
+    private int cacheSize;
+
+    /** global limit on PATRIC requests */
+    @Option(name = "--maxRequests", metaVar = "32", usage = "maximum number of PATRIC requests in progress at once for all commands")
+    private int maxRequests;
+
+    /** access token file */
+    @Option(name = "--token", metaVar = "token.txt", usage = "file to contain the access token (default is based on the port)")
+    private File tokenFile;
+
+    @Override
+    protected void setDefaults() {
+        this.port = ServerProtocol.DEFAULT_PORT;
+        this.maxThreads = 4;
+        this.cacheSize = 20;
+        this.maxRequests = 16;
+        this.tokenFile = null;
+    }
+
+    @Override
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        if (this.port < 1 || this.port > 65535)
+            throw new ParseFailureException("Port number must be between 1 and 65535.");
+        if (this.maxThreads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
+        if (this.cacheSize < 0)
+            throw new ParseFailureException("Cache size cannot be negative.");
+        if (this.maxRequests < 1)
+            throw new ParseFailureException("Request limit must be positive.");
+        if (this.tokenFile == null)
+            this.tokenFile = ServerProtocol.defaultTokenFile(this.port);
+        return true;
+    }
+
+    @Override
+    protected void runCommand() throws Exception {
+        this.requestCount = new AtomicInteger();
+        // The cache and the PATRIC request limit are shared by all the requests, so the server owns them.
+        ResourceCache.lockCapacity(this.cacheSize);
+        CachedP3Connection.lockRequestLimit(this.maxRequests);
+        ThreadStdio.install();
+        this.workDir = new File(System.getProperty("user.dir")).getCanonicalFile();
+        ExecutorService pool = Executors.newFixedThreadPool(this.maxThreads);
+        try (ServerSocket server = new ServerSocket(this.port, 50, InetAddress.getLoopbackAddress())) {
+            // Only create the token once we own the port, so we never clobber a running server's token.
+            this.token = ServerProtocol.createToken(this.tokenFile);
+            final File tokenCopy = this.tokenFile;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> tokenCopy.delete()));
+            log.info("Command server listening on port {} with {} worker threads.  Access token is in {}.", this.port,
+                    this.maxThreads, this.tokenFile);
+            while (true) {
+                Socket socket = server.accept();
+                pool.execute(() -> this.serve(socket));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Process a single client request.
+     *
+     * @param socket	connection to the client
+     */
+    private void serve(Socket socket) {
+        int requestId = this.requestCount.incrementAndGet();
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+            ServerProtocol.Request request;
+            try {
+                request = ServerProtocol.readRequest(in, this.token);
+            } catch (SecurityException e) {
+                log.warn("Request {} rejected: {}", requestId, e.getMessage());
+                this.reject(out, "Access denied: invalid server token.");
+                return;
+            }
+            File clientDir = request.getDirectory().getCanonicalFile();
+            if (! clientDir.equals(this.workDir)) {
+                log.warn("Request {} rejected: client directory {} is not the server directory.", requestId, clientDir);
+                this.reject(out, "Command server runs in " + this.workDir + ", but the client is in " + clientDir
+                        + ".  Relative file names would resolve against the wrong directory.  Run the client from "
+                        + this.workDir + " or start a server in " + clientDir + ".");
+                return;
+            }
+            String[] requestArgs = request.getArgs();
+            String command = requestArgs[0];
+            String[] args = Arrays.copyOfRange(requestArgs, 1, requestArgs.length);
+            log.info("Request {}: {} with {} arguments.", requestId, command, args.length);
+            long start = System.currentTimeMillis();
+            // Set up the standard streams for this request.
+            PrintStream cmdOut = new PrintStream(new BufferedOutputStream(
+                    new ServerProtocol.FrameOutputStream(out, ServerProtocol.OUTPUT), 65536), false);
+            PrintStream cmdErr = new PrintStream(new ServerProtocol.FrameOutputStream(out, ServerProtocol.ERROR), true);
+            ThreadStdio.set(new ServerProtocol.FrameInputStream(in), cmdOut, cmdErr);
+            int exitCode;
+            try {
+                if (command.equals("server") || command.equals("batch")) {
+                    cmdErr.println("Command " + command + " cannot be run by the server.");
+                    exitCode = ServerProtocol.EXIT_PARSE;
+                } else if (App.runCommand(command, args))
+                    exitCode = ServerProtocol.EXIT_OK;
+                else
+                    exitCode = ServerProtocol.EXIT_PARSE;
+            } catch (Exception e) {
+                log.error("Request {} failed: {}", requestId, e.toString());
+                cmdErr.println("Command failed: " + e.toString());
+                exitCode = ServerProtocol.EXIT_FAILED;
+            } finally {
+                cmdOut.flush();
+                cmdErr.flush();
+                ThreadStdio.reset();
+            }
+            ServerProtocol.writeExit(out, exitCode);
+            log.info("Request {} finished with exit code {} in {} seconds.", requestId, exitCode,
+                    (System.currentTimeMillis() - start) / 1000.0);
+        } catch (IOException e) {
+            log.error("Communication error in request {}: {}", requestId, e.toString());
+        }
+    }
+
+    /**
+     * Refuse a request by sending an error message and a parse-failure exit code.
+     *
+     * @param out		output stream to the client
+     * @param message	error message to send
+     *
+     * @throws IOException
+     */
+    private void reject(DataOutputStream out, String message) throws IOException {
+        byte[] buffer = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        ServerProtocol.writeFrame(out, ServerProtocol.ERROR, buffer, 0, buffer.length);
+        ServerProtocol.writeExit(out, ServerProtocol.EXIT_PARSE);
+    }
+
+}
@@ -0,0 +1,378 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * This class defines the wire protocol between the command server and its client.  A request begins with a
+ * header containing a magic number, a protocol version, the server's access token, the client's working directory,
+ * and the command arguments (the first of which is the command name).  Everything after the header is a sequence of
+ * frames.  Each frame is a one-byte type, a four-byte length, and then the data.
+ *
+ * The client sends the standard input in INPUT frames, ending with an empty INPUT frame.  The server sends the
+ * standard output in OUTPUT frames and the standard error in ERROR frames, and finishes with an EXIT frame
+ * whose data is the four-byte exit code.
+ *
+ * The access token is a random string generated when the server starts.  It is written to a token file that only
+ * the server's owner can read, so only processes running as that user can send commands, even though any user on
+ * the machine can connect to the loopback port.  A request with the wrong token is rejected before the command
+ * arguments are read.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ServerProtocol {
+
+    // FIELDS
+    /** magic number for a request header */
+    public static final int MAGIC = 0x50334150;
+    /** protocol version */
+    public static final int VERSION = 3;
+    /** default server port */
+    public static final int DEFAULT_PORT = 7350;
+    /** frame type for standard input */
+    public static final byte INPUT = 'I';
+    /** frame type for standard output */
+    public static final byte OUTPUT = 'O';
+    /** frame type for standard error */
+    public static final byte ERROR = 'E';
+    /** frame type for the exit code */
+    public static final byte EXIT = 'X';
+    /** exit code for a successful command */
+    public static final int EXIT_OK = 0;
+    /** exit code for a command that failed to parse */
+    public static final int EXIT_PARSE = 1;
+    /** exit code for a command that failed during execution */
+    public static final int EXIT_FAILED = 2;
+    /** number of random bytes in an access token */
+    private static final int TOKEN_BYTES = 32;
+
+    /**
+     * This object describes a request read from a client.
+     */
+    public static class Request {
+
+        /** working directory of the client */
+        private final File directory;
+        /** command name followed by command arguments */
+        private final String[] args;
+
+        /**
+         * Construct a request descriptor.
+         *
+         * @param directory		working directory of the client
+         * @param args			command name followed by command arguments
+         */
+        protected Request(File directory, String[] args) {
+            this.directory = directory;
+            this.args = args;
+        }
+
+        /**
+         * @return the working directory of the client
+         */
+        public File getDirectory() {
+            return this.directory;
+        }
+
+        /**
+         * @return the command name followed by the command arguments
+         */
+        public String[] getArgs() {
+            return this.args;
+        }
+
+    }
+
+    /**
+     * @return the default token file for a server port
+     *
+     * @param port	port on which the server listens
+     */
+    public static File defaultTokenFile(int port) {
+        File dir = new File(System.getProperty("user.home"), ".p3common");
+        return new File(dir, "server." + port + ".token");
+    }
+
+    /**
+     * Generate a new access token and write it to a file readable only by the current user.  Any existing token
+     * file is replaced.
+     *
+     * @param tokenFile		file to contain the token
+     *
+     * @return the token generated
+     *
+     * @throws IOException
+     */
+    public static String createToken(File tokenFile) throws IOException {
+        byte[] raw = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(raw);
+        StringBuilder buffer = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : raw)
+            buffer.append(String.format("%02x", b));
+        String retVal = buffer.toString();
+        Path path = tokenFile.toPath().toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        else {
+            // Here we cannot set POSIX permissions, so we restrict the file as best we can.
+            File file = Files.createFile(path).toFile();
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+        Files.write(path, retVal.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.TRUNCATE_EXISTING);
+        return retVal;
+    }
+
+    /**
+     * Read an access token from a token file.
+     *
+     * @param tokenFile		file containing the token
+     *
+     * @return the token in the file
+     *
+     * @throws IOException
+     */
+    public static String readToken(File tokenFile) throws IOException {
+        String retVal = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+        if (retVal.isEmpty())
+            throw new IOException("Token file " + tokenFile + " is empty.");
+        return retVal;
+    }
+
+    /**
+     * Write a request header.
+     *
+     * @param out		output stream to the server
+     * @param token		server access token
+     * @param directory	working directory of the client
+     * @param args		command name followed by command arguments
+     *
+     * @throws IOException
+     */
+    public static void writeRequest(DataOutputStream out, String token, File directory, String[] args)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(token);
+        out.writeUTF(directory.getAbsolutePath());
+        out.writeInt(args.length);
+        for (String arg : args)
+            out.writeUTF(arg);
+        out.flush();
+    }
+
+    /**
+     * Read a request header.
+     *
+     * @param in		input stream from the client
+     * @param token		access token the client must present
+     *
+     * @return the client's working directory and command arguments
+     *
+     * @throws IOException
+     */
+    public static Request readRequest(DataInputStream in, String token) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Invalid request header.");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported protocol version " + version + ".");
+        byte[] presented = in.readUTF().getBytes(StandardCharsets.UTF_8);
+        if (! MessageDigest.isEqual(presented, token.getBytes(StandardCharsets.UTF_8)))
+            throw new SecurityException("Invalid access token.");
+        File directory = new File(in.readUTF());
+        int n = in.readInt();
+        if (n < 1)
+            throw new IOException("Request has no command name.");
+        String[] args = new String[n];
+        for (int i = 0; i < n; i++)
+            args[i] = in.readUTF();
+        return new Request(directory, args);
+    }
+
+    /**
+     * Write a frame.  The output stream is shared by several frame types, so we synchronize on it.
+     *
+     * @param out		output stream
+     * @param type		frame type
+     * @param buffer	buffer containing the frame data
+     * @param off		offset of the data in the buffer
+     * @param len		length of the data
+     *
+     * @throws IOException
+     */
+    public static void writeFrame(DataOutputStream out, byte type, byte[] buffer, int off, int len) throws IOException {
+        synchronized (out) {
+            out.writeByte(type);
+            out.writeInt(len);
+            out.write(buffer, off, len);
+        }
+    }
+
+    /**
+     * Write an exit frame and flush the stream.
+     *
+     * @param out		output stream
+     * @param code		exit code to send
+     *
+     * @throws IOException
+     */
+    public static void writeExit(DataOutputStream out, int code) throws IOException {
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(4);
+            out.writeInt(code);
+            out.flush();
+        }
+    }
+
+    /**
+     * This is an output stream that sends its data as frames of a single type.
+     */
+    public static class FrameOutputStream extends OutputStream {
+
+        /** underlying output stream */
+        private final DataOutputStream out;
+        /** frame type */
+        private final byte type;
+
+        /**
+         * Construct a frame output stream.
+         *
+         * @param out	underlying data stream
+         * @param type	type of frame to write
+         */
+        public FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0)
+                writeFrame(this.out, this.type, b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (this.out) {
+                this.out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush();
+        }
+
+    }
+
+    /**
+     * This is an input stream that reads the data from INPUT frames.  An empty frame marks the end of file.
+     */
+    public static class FrameInputStream extends InputStream {
+
+        /** underlying input stream */
+        private final DataInputStream in;
+        /** number of bytes left in the current frame */
+        private int remaining;
+        /** TRUE if we have reached end-of-file */
+        private boolean eof;
+
+        /**
+         * Construct a frame input stream.
+         *
+         * @param in	underlying data stream
+         */
+        public FrameInputStream(DataInputStream in) {
+            this.in = in;
+            this.remaining = 0;
+            this.eof = false;
+        }
+
+        /**
+         * Insure there is data available in the current frame.
+         *
+         * @return TRUE if there is data, FALSE at end-of-file
+         *
+         * @throws IOException
+         */
+        private boolean fill() throws IOException {
+            while (! this.eof && this.remaining == 0) {
+                try {
+                    byte type = this.in.readByte();
+                    if (type != INPUT)
+                        throw new IOException("Unexpected frame type " + (char) type + " in input stream.");
+                    this.remaining = this.in.readInt();
+                    if (this.remaining == 0)
+                        this.eof = true;
+                } catch (EOFException e) {
+                    // Treat a closed connection as end-of-file.
+                    this.eof = true;
+                }
+            }
+            return ! this.eof;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int retVal = -1;
+            if (this.fill()) {
+                retVal = this.in.read();
+                this.remaining--;
+            }
+            return retVal;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int retVal = -1;
+            if (len == 0)
+                retVal = 0;
+            else if (this.fill()) {
+                retVal = this.in.read(b, off, Math.min(len, this.remaining));
+                if (retVal > 0)
+                    this.remaining -= retVal;
+            }
+            return retVal;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(this.remaining, this.in.available());
+        }
+
+        @Override
+        public void close() {
+            // The connection is owned by the server, so we do not close it here.
+        }
+
+    }
+
+}
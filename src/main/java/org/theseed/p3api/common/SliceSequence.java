@@ -0,0 +1,204 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This object represents a DNA sequence as a list of slices of ASCII byte arrays.  The slices are views onto the
+ * source arrays, so a sequence built by cutting and joining other sequences does not copy any residues.  The
+ * residues are only copied when the sequence is written to a FASTA output stream, and then with bulk writes.
+ *
+ * The source arrays must not be modified while a sequence refers to them.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SliceSequence {
+
+    // FIELDS
+    /** sequence label */
+    private final String label;
+    /** sequence comment */
+    private final String comment;
+    /** source array for each slice */
+    private byte[][] sources;
+    /** offset of each slice in its source array */
+    private int[] offsets;
+    /** length of each slice */
+    private int[] lengths;
+    /** number of slices */
+    private int count;
+    /** total number of residues */
+    private int length;
+
+    /**
+     * Construct an empty sliced sequence.
+     *
+     * @param label		sequence label
+     * @param comment	sequence comment
+     * @param capacity	expected number of slices
+     */
+    public SliceSequence(String label, String comment, int capacity) {
+        this.label = label;
+        this.comment = comment;
+        capacity = Math.max(capacity, 1);
+        this.sources = new byte[capacity][];
+        this.offsets = new int[capacity];
+        this.lengths = new int[capacity];
+        this.count = 0;
+        this.length = 0;
+    }
+
+    /**
+     * Add a slice to the end of this sequence.  Empty slices are ignored.
+     *
+     * @param source	source array
+     * @param offset	offset of the slice in the source array
+     * @param len		length of the slice
+     */
+    public void add(byte[] source, int offset, int len) {
+        if (offset < 0 || len < 0 || offset + len > source.length)
+            throw new IndexOutOfBoundsException("Invalid slice at " + offset + " with length " + len + ".");
+        if (len > 0) {
+            if (this.count >= this.sources.length) {
+                int newSize = this.count * 2;
+                this.sources = Arrays.copyOf(this.sources, newSize);
+                this.offsets = Arrays.copyOf(this.offsets, newSize);
+                this.lengths = Arrays.copyOf(this.lengths, newSize);
+            }
+            this.sources[this.count] = source;
+            this.offsets[this.count] = offset;
+            this.lengths[this.count] = len;
+            this.count++;
+            this.length += len;
+        }
+    }
+
+    /**
+     * Add all the slices of another sequence to the end of this one.
+     *
+     * @param other		sequence to append
+     */
+    public void add(SliceSequence other) {
+        for (int i = 0; i < other.count; i++)
+            this.add(other.sources[i], other.offsets[i], other.lengths[i]);
+    }
+
+    /**
+     * Add a region of another sequence to the end of this one.
+     *
+     * @param other		sequence containing the region
+     * @param start		offset of the region in the other sequence
+     * @param len		length of the region
+     */
+    public void add(SliceSequence other, int start, int len) {
+        if (start < 0 || len < 0 || start + len > other.length)
+            throw new IndexOutOfBoundsException("Invalid region at " + start + " with length " + len + ".");
+        // Find the first slice in the region.
+        int i = 0;
+        while (i < other.count && start >= other.lengths[i]) {
+            start -= other.lengths[i];
+            i++;
+        }
+        // Add the pieces of the slices in the region.
+        while (len > 0) {
+            int piece = Math.min(len, other.lengths[i] - start);
+            this.add(other.sources[i], other.offsets[i] + start, piece);
+            len -= piece;
+            start = 0;
+            i++;
+        }
+    }
+
+    /**
+     * Write this sequence in FASTA format.  The residues are written on a single line.
+     *
+     * @param out	output stream to receive the sequence
+     *
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException {
+        out.write('>');
+        out.write(this.label.getBytes(StandardCharsets.UTF_8));
+        if (this.comment != null && ! this.comment.isEmpty()) {
+            out.write(' ');
+            out.write(this.comment.getBytes(StandardCharsets.UTF_8));
+        }
+        out.write('\n');
+        for (int i = 0; i < this.count; i++)
+            out.write(this.sources[i], this.offsets[i], this.lengths[i]);
+        out.write('\n');
+    }
+
+    /**
+     * @return the sequence label
+     */
+    public String getLabel() {
+        return this.label;
+    }
+
+    /**
+     * @return the sequence comment
+     */
+    public String getComment() {
+        return this.comment;
+    }
+
+    /**
+     * @return the number of residues in the sequence
+     */
+    public int length() {
+        return this.length;
+    }
+
+    /**
+     * @return the number of slices in the sequence
+     */
+    public int getSliceCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the source array for a slice
+     *
+     * @param i		index of the slice
+     */
+    public byte[] getSource(int i) {
+        return this.sources[i];
+    }
+
+    /**
+     * @return the offset of a slice in its source array
+     *
+     * @param i		index of the slice
+     */
+    public int getOffset(int i) {
+        return this.offsets[i];
+    }
+
+    /**
+     * @return the length of a slice
+     *
+     * @param i		index of the slice
+     */
+    public int getSliceLength(int i) {
+        return this.lengths[i];
+    }
+
+    /**
+     * @return the residues of the sequence as a string (this copies the residues, so it is meant for debugging
+     * 		   and testing)
+     */
+    public String getSequence() {
+        StringBuilder retVal = new StringBuilder(this.length);
+        for (int i = 0; i < this.count; i++)
+            retVal.append(new String(this.sources[i], this.offsets[i], this.lengths[i], StandardCharsets.ISO_8859_1));
+        return retVal.toString();
+    }
+
+}
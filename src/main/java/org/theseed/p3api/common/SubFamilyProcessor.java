@@ -6,15 +6,19 @@ package org.theseed.p3api.common;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.kohsuke.args4j.Option;
 import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
 import org.theseed.io.TabbedLineReader;
 import org.theseed.p3api.P3Connection;
 import org.theseed.p3api.P3Connection.Table;
@@ -36,6 +40,13 @@ import com.github.cliftonlabs.json_simple.JsonObject;
  * 		is the first column
  * -v	display more detailed log messages
  *
+ * --p3cache	directory for caching PATRIC query results (default none)
+ * --offline	if specified, PATRIC queries will only be answered from the cache
+ * --threads	number of worker threads for counting subsystems (default 1)
+ * --virtual	count each subsystem on its own virtual thread (requires Java 21); the number of subsystems in
+ * 				flight is then the request limit, and the thread count is ignored
+ * --maxRequests	maximum number of PATRIC requests in progress at once (default 16)
+ *
  * @author Bruce Parrello
  *
  */
@@ -49,7 +60,7 @@ public class SubFamilyProcessor extends BaseProcessor {
     /** input stream */
     TabbedLineReader inStream;
     /** PATRIC connection */
-    private P3Connection p3;
+    private CachedP3Connection p3;
 
     // COMMAND LINE
 
@@ -61,15 +72,44 @@ public class SubFamilyProcessor extends BaseProcessor {
     @Option(name = "-c", aliases = { "--col" }, metaVar = "subsystem_id", usage = "index (1-based) or name of column with subsystem IDs")
     private String keyCol;
 
+    /** directory for cached PATRIC query results */
+    @Option(name = "--p3cache", metaVar = "p3Cache", usage = "directory for caching PATRIC query results")
+    private File p3CacheDir;
+
+    /** if specified, PATRIC queries will only be answered from the cache */
+    @Option(name = "--offline", usage = "if specified, PATRIC queries will only be answered from the cache")
+    private boolean offline;
+
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for counting subsystems")
+    private int threads;
+
+    /** TRUE to run each subsystem on a virtual thread */
+    @Option(name = "--virtual", usage = "if specified, each subsystem will be counted on its own virtual thread")
+    private boolean virtual;
+
+    /** maximum number of concurrent PATRIC requests */
+    @Option(name = "--maxRequests", metaVar = "32", usage = "maximum number of PATRIC requests in progress at once")
+    private int maxRequests;
+
     @Override
     protected void setDefaults() {
         this.keyCol = "1";
         this.inFile = null;
-
+        this.p3CacheDir = null;
+        this.offline = false;
+        this.threads = 1;
+        this.virtual = false;
+        this.maxRequests = 16;
     }
 
     @Override
-    protected boolean validateParms() throws IOException {
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        CachedP3Connection.validateOptions(this.p3CacheDir, this.offline);
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
+        if (this.maxRequests < 1)
+            throw new ParseFailureException("Maximum request count must be positive.");
         if (this.inFile != null) {
             if (! this.inFile.canRead())
                 throw new FileNotFoundException("Input file " + this.inFile + " is not found or unreadable.");
@@ -87,24 +127,29 @@ public class SubFamilyProcessor extends BaseProcessor {
     }
 
     @Override
-    public void runCommand() {
+    public void runCommand() throws Exception {
         // Connect to PATRIC.
-        this.p3 = new P3Connection();
+        CachedP3Connection.setRequestLimit(this.maxRequests);
+        this.p3 = new CachedP3Connection(this.p3CacheDir, this.offline);
         // Create the master family set.
         this.allFamilies = new HashSet<String>();
         System.out.println("subsystem_id\tfamilies");
-        // Loop through the subsystems.
-        for (TabbedLineReader.Line line : this.inStream) {
-            String subsystem = line.get(this.keyIdx);
-            // Get the set of families for this subsystem.
-            Set<String> families = this.countSubsystem(subsystem);
+        // Loop through the subsystems.  The family sets are computed by the parallel driver and processed here
+        // in input order.
+        List<String> subsystems = new ArrayList<String>();
+        for (TabbedLineReader.Line line : this.inStream)
+            subsystems.add(line.get(this.keyIdx));
+        ParallelDriver<Void> driver = new ParallelDriver<Void>(this.threads, () -> null, this.virtual);
+        driver.run(subsystems, (subsystem, x) -> Pair.of(subsystem, this.countSubsystem(subsystem)), result -> {
+            Set<String> families = result.getRight();
             // Process the counts.
-            System.out.format("%s\t%d%n", subsystem, families.size());
+            System.out.format("%s\t%d%n", result.getLeft(), families.size());
             this.allFamilies.addAll(families);
-        }
+        });
         // Print the total.
         System.out.println();
         System.out.format("TOTAL\t%d%n", this.allFamilies.size());
+        this.p3.logStats();
     }
 
     private Set<String> countSubsystem(String subsystem) {
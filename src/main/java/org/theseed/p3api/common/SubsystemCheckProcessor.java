@@ -6,15 +6,18 @@ package org.theseed.p3api.common;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
 import org.theseed.genome.Feature;
 import org.theseed.genome.Genome;
-import org.theseed.genome.GenomeDirectory;
+import org.theseed.genome.iterator.GenomeSource;
 import org.theseed.p3api.P3Connection;
 import org.theseed.p3api.P3Connection.Table;
 import org.theseed.proteins.Role;
@@ -25,22 +28,88 @@ import com.github.cliftonlabs.json_simple.JsonObject;
 
 /**
  * This command compares the subsystems in a GTO to the corresponding subsystems in PATRIC.  The positional
- * parameters are the name of a genome directory and the name of the current subsystem projector.  All of the
- * genomes in the directory will be checked.
+ * parameters are the name of a genome directory (or other genome source) and the name of the current subsystem
+ * projector.  All of the genomes in the source will be checked.
  *
  * The command-line options are
  *
  * -h	show command-line usage
  * -v	display more detailed log messages
+ * -t	type of genome source (default DIR)
+ *
+ * --threads	number of worker threads for checking genomes (default 1)
+ * --virtual	check each genome on its own virtual thread (requires Java 21); the number of genomes in
+ * 				flight is then the request limit, and the thread count is ignored
+ * --maxRequests	maximum number of PATRIC requests in progress at once (default 16)
+ * --p3cache	directory for caching PATRIC query results (default none)
+ * --offline	if specified, PATRIC queries will only be answered from the cache
+ * --checkpoint	checkpoint journal file; genomes completed in a previous run with the same journal are restored
+ * 				from it instead of being checked again
  *
  * @author Bruce Parrello
  *
  */
 public class SubsystemCheckProcessor extends BaseProcessor {
 
+    // FIELDS
+    /** input genome source */
+    private GenomeSource genomes;
+    /** connection to PATRIC */
+    private CachedP3Connection p3;
+    /** subsystem projector */
+    private SubsystemProjector projector;
+    /** checkpoint journal */
+    private CheckpointJournal journal;
+
+    /**
+     * This object contains the counters for a single running task.
+     */
+    private static class Tally {
+
+        /** number of features checked */
+        private int total = 0;
+        /** number of features missing a subsystem */
+        private int missCount = 0;
+        /** number of misses due to obsolete subsystems */
+        private int noSuchSubsystem = 0;
+        /** number of misses due to roles removed from the subsystem */
+        private int deletedRole = 0;
+        /** number of genomes restored from the checkpoint journal */
+        private int resumed = 0;
+
+    }
+
     // COMMAND-LINE OPTIONS
 
-    @Argument(index = 0, metaVar = "gtoDir", usage = "genome input directory", required = true)
+    /** input genome source type */
+    @Option(name = "--type", aliases = { "-t", "--source" }, usage = "type of input genome source")
+    private GenomeSource.Type sourceType;
+
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for checking genomes")
+    private int threads;
+
+    /** TRUE to run each genome on a virtual thread */
+    @Option(name = "--virtual", usage = "if specified, each genome will be checked on its own virtual thread")
+    private boolean virtual;
+
+    /** maximum number of concurrent PATRIC requests */
+    @Option(name = "--maxRequests", metaVar = "32", usage = "maximum number of PATRIC requests in progress at once")
+    private int maxRequests;
+
+    /** directory for cached PATRIC query results */
+    @Option(name = "--p3cache", metaVar = "p3Cache", usage = "directory for caching PATRIC query results")
+    private File p3CacheDir;
+
+    /** if specified, PATRIC queries will only be answered from the cache */
+    @Option(name = "--offline", usage = "if specified, PATRIC queries will only be answered from the cache")
+    private boolean offline;
+
+    /** checkpoint journal file */
+    @Option(name = "--checkpoint", metaVar = "run.ckpt", usage = "checkpoint journal for resuming after an interruption")
+    private File checkpointFile;
+
+    @Argument(index = 0, metaVar = "gtoDir", usage = "genome input source (directory or ID file)", required = true)
     private File inDir;
 
     @Argument(index = 1, metaVar = "projector.txt", usage = "subsystem projector file", required = true)
@@ -48,12 +117,24 @@ public class SubsystemCheckProcessor extends BaseProcessor {
 
     @Override
     protected void setDefaults() {
+        this.p3CacheDir = null;
+        this.offline = false;
+        this.checkpointFile = null;
+        this.sourceType = GenomeSource.Type.DIR;
+        this.threads = 1;
+        this.virtual = false;
+        this.maxRequests = 16;
     }
 
     @Override
-    protected boolean validateParms() throws IOException {
-        if (! this.inDir.isDirectory())
-            throw new FileNotFoundException("Input directory " + this.inDir + " is not found or invalid.");
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        CachedP3Connection.validateOptions(this.p3CacheDir, this.offline);
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
+        if (this.maxRequests < 1)
+            throw new ParseFailureException("Maximum request count must be positive.");
+        if (! this.inDir.exists())
+            throw new FileNotFoundException("Input source " + this.inDir + " is not found.");
         if (! this.projectorFile.canRead())
             throw new FileNotFoundException("Projector file " + this.projectorFile + " is not found or invalid.");
         return true;
@@ -61,53 +142,118 @@ public class SubsystemCheckProcessor extends BaseProcessor {
 
     @Override
     protected void runCommand() throws Exception {
-        int total = 0;
-        int missCount = 0;
-        int noSuchSubsystem = 0;
-        int deletedRole = 0;
-        // Get the genome directory.
-        GenomeDirectory genomes = new GenomeDirectory(this.inDir);
-        log.info("{} genomes in input directory.", genomes.size());
+        // Get the genome source.
+        this.genomes = this.sourceType.create(this.inDir);
+        log.info("{} genomes in input source.", this.genomes.size());
         // Connect to PATRIC.
-        P3Connection p3 = new P3Connection();
+        CachedP3Connection.setRequestLimit(this.maxRequests);
+        this.p3 = new CachedP3Connection(this.p3CacheDir, this.offline);
         // Load the subsystem projector.
-        SubsystemProjector projector = SubsystemProjector.load(this.projectorFile);
+        this.projector = SubsystemProjector.load(this.projectorFile);
+        // Open the checkpoint journal.
+        String fingerprint = (this.checkpointFile == null ? CheckpointJournal.NO_FINGERPRINT
+                : CheckpointJournal.fingerprint(this.inDir, this.sourceType, this.projectorFile));
+        this.journal = CheckpointJournal.open(this.checkpointFile, "subcheck", fingerprint);
         // Write the report header.
         System.out.println("genome\tfeature_id\trole\tmissing_subsystem\treason");
-        // Loop through the genomes.
-        for (Genome genome : genomes) {
-            log.info("Processing {}.", genome);
-            List<JsonObject> subsystemItems = p3.getRecords(Table.SUBSYSTEM_ITEM, "genome_id", Collections.singleton(genome.getId()),
-                    "patric_id,subsystem_name");
-            for (JsonObject record : subsystemItems) {
-                String fid = P3Connection.getString(record, "patric_id");
-                String subName = P3Connection.getString(record, "subsystem_name");
-                Feature feat = genome.getFeature(fid);
-                if (feat != null) {
-                    total++;
-                    Set<String> featSubs = feat.getSubsystems();
-                    if (! featSubs.contains(subName)) {
-                        missCount++;
-                        String reason = "obsolete variant configuration";
-                        SubsystemSpec subsystem = projector.getSubsystem(subName);
-                        if (subsystem == null) {
-                            reason = "obsolete subsystem";
-                            noSuchSubsystem++;
-                        } else {
-                            List<Role> roles = feat.getUsefulRoles(projector.usefulRoles());
-                            boolean roleFound = roles.stream().anyMatch(r -> subsystem.contains(r));
-                            if (! roleFound) {
-                                reason = "role no longer in subsystem";
-                                deletedRole++;
-                            }
+        // Loop through the genomes.  The workers check the genomes, and the output lines are written here in
+        // input order.
+        ParallelDriver<Tally> driver = new ParallelDriver<Tally>(this.threads, Tally::new, this.virtual);
+        try {
+            driver.run(this.genomes.getIDs(), (genomeId, tally) -> this.processGenome(genomeId, tally), lines -> {
+                for (String line : lines)
+                    System.out.println(line);
+            });
+        } finally {
+            this.journal.close();
+        }
+        // Merge the tallies.
+        Tally totals = new Tally();
+        for (Tally tally : driver.getStates()) {
+            totals.total += tally.total;
+            totals.missCount += tally.missCount;
+            totals.noSuchSubsystem += tally.noSuchSubsystem;
+            totals.deletedRole += tally.deletedRole;
+            totals.resumed += tally.resumed;
+        }
+        if (totals.resumed > 0)
+            log.info("{} genomes restored from checkpoint.  Their features are not included in the checked count.", totals.resumed);
+        CommandMetrics.addRecords(totals.total);
+        this.p3.logStats();
+        log.info("All done.  {} features checked, {} misses:  {} obsolete subsystems, {} obsolete roles.", totals.total,
+                totals.missCount, totals.noSuchSubsystem, totals.deletedRole);
+    }
+
+    /**
+     * Process a single genome.  If the genome was completed in a previous run, its report lines are restored from
+     * the checkpoint journal; otherwise, it is checked and the result is recorded.
+     *
+     * @param genomeId	ID of the genome to process
+     * @param tally		counters for the current thread
+     *
+     * @return the report lines for the genome
+     *
+     * @throws IOException
+     */
+    private List<String> processGenome(String genomeId, Tally tally) throws IOException {
+        List<String> retVal = this.journal.getLines(genomeId);
+        if (retVal != null) {
+            tally.resumed++;
+            tally.missCount += retVal.size();
+            for (String line : retVal) {
+                if (line.endsWith("\tobsolete subsystem"))
+                    tally.noSuchSubsystem++;
+                else if (line.endsWith("\trole no longer in subsystem"))
+                    tally.deletedRole++;
+            }
+        } else {
+            retVal = this.checkGenome(genomeId, tally);
+            this.journal.record(genomeId, retVal);
+        }
+        return retVal;
+    }
+
+    /**
+     * Check the subsystems of a single genome against PATRIC.
+     *
+     * @param genomeId	ID of the genome to check
+     * @param tally		counters for the current thread
+     *
+     * @return the report lines for the genome
+     */
+    private List<String> checkGenome(String genomeId, Tally tally) {
+        Genome genome = this.genomes.getGenome(genomeId);
+        log.info("Processing {}.", genome);
+        List<String> retVal = new ArrayList<String>();
+        List<JsonObject> subsystemItems = this.p3.getRecords(Table.SUBSYSTEM_ITEM, "genome_id", Collections.singleton(genome.getId()),
+                "patric_id,subsystem_name");
+        for (JsonObject record : subsystemItems) {
+            String fid = P3Connection.getString(record, "patric_id");
+            String subName = P3Connection.getString(record, "subsystem_name");
+            Feature feat = genome.getFeature(fid);
+            if (feat != null) {
+                tally.total++;
+                Set<String> featSubs = feat.getSubsystems();
+                if (! featSubs.contains(subName)) {
+                    tally.missCount++;
+                    String reason = "obsolete variant configuration";
+                    SubsystemSpec subsystem = this.projector.getSubsystem(subName);
+                    if (subsystem == null) {
+                        reason = "obsolete subsystem";
+                        tally.noSuchSubsystem++;
+                    } else {
+                        List<Role> roles = feat.getUsefulRoles(this.projector.usefulRoles());
+                        boolean roleFound = roles.stream().anyMatch(r -> subsystem.contains(r));
+                        if (! roleFound) {
+                            reason = "role no longer in subsystem";
+                            tally.deletedRole++;
                         }
-                        System.out.format("%s\t%s\t%s\t%s\t%s%n", genome.getId(), fid, feat.getFunction(), subName, reason);
                     }
+                    retVal.add(String.format("%s\t%s\t%s\t%s\t%s", genome.getId(), fid, feat.getFunction(), subName, reason));
                 }
             }
         }
-        log.info("All done.  {} features checked, {} misses:  {} obsolete subsystems, {} obsolete roles.", total, missCount,
-                noSuchSubsystem, deletedRole);
+        return retVal;
     }
 
 }
@@ -0,0 +1,580 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.theseed.basic.BaseProcessor;
+import org.theseed.basic.ParseFailureException;
+import org.theseed.genome.Contig;
+import org.theseed.genome.Genome;
+import org.theseed.utils.FloatList;
+
+/**
+ * This command generates a directory of synthetic genomes for performance testing.  The genomes are random DNA,
+ * so they are useless biologically, but the command can produce inputs of any size without downloading anything,
+ * and the same seed always produces the same genomes.
+ *
+ * Each genome has a random length around the mean genome length, and is split into contigs according to the
+ * contig-count distribution.  A genome can be made incomplete by removing a random segment of its DNA (as in the
+ * "vsynth" command), and it can be contaminated by adding a contig taken from the DNA of another synthetic genome.
+ * Scaffold gaps are represented by inserting runs of "n" into the contigs.
+ *
+ * Genomes are planned until the total length of their DNA after the incompleteness cut reaches the requested size,
+ * so the genome DNA written is always at least the requested size and less than one genome more.  Contamination
+ * contigs and scaffold gaps are added on top of that.  The total number of residues actually written is logged,
+ * and is also given for each genome in the summary file.
+ *
+ * Each genome has its own random-number stream derived from the seed and the genome's index, so the genomes can
+ * be generated on several threads and the output does not depend on the thread count.  Each genome is written as
+ * a FASTA file or a GTO in the output directory, and a tab-delimited file named "synth.tbl" describing the genomes
+ * is written there as well.  For each genome, it contains the genome ID, the file name, the length of the genome
+ * DNA, the number of contigs, the completeness fraction, the ID and length of the contaminating genome (if any),
+ * the number of gaps, and the total number of residues in the file.
+ *
+ * The positional parameter is the name of the output directory.  The command-line options are as follows.
+ *
+ * -h	display command-line usage
+ * -v	display more frequent log messages
+ *
+ * --size		total length of genome DNA to generate, with an optional K, M, G, or T suffix (default 100M); this
+ * 				does not include contamination and gaps
+ * --genomeLen	mean genome length (default 4000000)
+ * --contigs	mean number of contigs per genome (default 50)
+ * --dist		distribution of contig counts (default GEOMETRIC)
+ * --complete	completeness fractions to choose from, comma-delimited (default 1.0)
+ * --contam		fraction of genomes to contaminate (default 0.0)
+ * --contamLen	length of a contamination contig as a fraction of the genome length (default 0.1)
+ * --gaps		mean number of scaffold gaps per 100 kilobases (default 0.0)
+ * --gapLen		length of each scaffold gap (default 100)
+ * --format		output format for the genomes (default FASTA)
+ * --seed		random-number seed (default is chosen at random)
+ * --threads	number of worker threads (default 1)
+ * --clear		erase the output directory before generating the genomes
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class SynthDataProcessor extends BaseProcessor {
+
+    // FIELDS
+    /** logging facility */
+    protected static Logger log = LoggerFactory.getLogger(SynthDataProcessor.class);
+    /** list of completeness fractions */
+    private FloatList fractions;
+    /** total length of genome DNA to generate */
+    private long totalSize;
+    /** run of unknown residues for scaffold gaps */
+    private byte[] gapRun;
+    /** taxonomic ID used for synthetic genome IDs */
+    private static final int SYNTH_TAXON = 6666666;
+    /** multiplier for mixing genome indices into the seed */
+    private static final long SEED_MIX = 0x9E3779B97F4A7C15L;
+    /** output buffer size */
+    private static final int OUT_BUFFER_SIZE = 8 << 20;
+    /** nucleotide for each two-bit code */
+    private static final byte[] BASES = "acgt".getBytes(StandardCharsets.US_ASCII);
+    /** name of the summary file */
+    public static final String SUMMARY_NAME = "synth.tbl";
+    /** header line for the summary file */
+    private static final String SUMMARY_HEADER = "genome_id\tfile\tlength\tcontigs\tcompleteness\tcontaminant\tcontam_length\tgaps\tresidues";
+    /** pattern for size strings */
+    private static final Pattern SIZE_PATTERN = Pattern.compile("(\\d+)([KMGT]?)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Enumeration of contig-count distributions.
+     */
+    public static enum ContigDist {
+        /** every genome has the mean number of contigs */
+        FIXED {
+            @Override
+            public int count(double mean, SplittableRandom rand) {
+                return (int) Math.round(mean);
+            }
+        },
+        /** the number of contigs is uniform between 1 and twice the mean */
+        UNIFORM {
+            @Override
+            public int count(double mean, SplittableRandom rand) {
+                int max = (int) Math.round(2 * mean - 1);
+                return (max <= 1 ? 1 : 1 + rand.nextInt(max));
+            }
+        },
+        /** the number of contigs is geometric, so most genomes have few contigs and some have many */
+        GEOMETRIC {
+            @Override
+            public int count(double mean, SplittableRandom rand) {
+                int retVal = 1;
+                if (mean > 1.0) {
+                    double p = 1.0 / mean;
+                    retVal += (int) (Math.log(1.0 - rand.nextDouble()) / Math.log(1.0 - p));
+                }
+                return retVal;
+            }
+        };
+
+        /**
+         * @return a random number of contigs
+         *
+         * @param mean	mean number of contigs
+         * @param rand	random-number generator
+         */
+        public abstract int count(double mean, SplittableRandom rand);
+
+    }
+
+    /**
+     * Enumeration of output formats.
+     */
+    public static enum Format {
+        FASTA(".fna"), GTO(".gto");
+
+        /** file name suffix */
+        private final String suffix;
+
+        private Format(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * @return the file name suffix for this format
+         */
+        public String getSuffix() {
+            return this.suffix;
+        }
+
+    }
+
+    /**
+     * This object describes a genome that has been written.
+     */
+    protected static class GenomeResult {
+
+        /** summary line for the genome */
+        private final String row;
+        /** length of the genome DNA written */
+        private final int dnaLength;
+        /** total number of residues written, including contamination and gaps */
+        private final long residues;
+
+        /**
+         * Construct a genome result.
+         *
+         * @param row			summary line for the genome
+         * @param dnaLength		length of the genome DNA written
+         * @param residues		total number of residues written
+         */
+        protected GenomeResult(String row, int dnaLength, long residues) {
+            this.row = row;
+            this.dnaLength = dnaLength;
+            this.residues = residues;
+        }
+
+    }
+
+    /**
+     * This object contains the working buffers for a worker thread.
+     */
+    protected static class WorkBuffers {
+
+        /** DNA of the current genome */
+        private byte[] genome;
+        /** DNA of the current contaminant */
+        private byte[] contam;
+
+        /**
+         * Construct empty work buffers.
+         */
+        protected WorkBuffers() {
+            this.genome = new byte[0];
+            this.contam = new byte[0];
+        }
+
+    }
+
+    // COMMAND-LINE OPTIONS
+
+    /** total length of genome DNA to generate */
+    @Option(name = "--size", metaVar = "10G", usage = "total length of genome DNA to generate (K, M, G, or T suffix allowed)")
+    private String sizeString;
+
+    /** mean genome length */
+    @Option(name = "--genomeLen", metaVar = "2000000", usage = "mean genome length")
+    private int genomeLen;
+
+    /** mean number of contigs per genome */
+    @Option(name = "--contigs", metaVar = "100", usage = "mean number of contigs per genome")
+    private double contigMean;
+
+    /** distribution of contig counts */
+    @Option(name = "--dist", usage = "distribution of contig counts")
+    private ContigDist contigDist;
+
+    /** list of completeness fractions */
+    @Option(name = "--complete", metaVar = "1.0,0.9,0.5", usage = "comma-delimited list of completeness fractions")
+    private void setComplete(String completeString) {
+        this.fractions = new FloatList(completeString);
+    }
+
+    /** fraction of genomes to contaminate */
+    @Option(name = "--contam", metaVar = "0.2", usage = "fraction of genomes to contaminate")
+    private double contamRate;
+
+    /** length of a contamination contig relative to the genome length */
+    @Option(name = "--contamLen", metaVar = "0.05", usage = "length of a contamination contig as a fraction of the genome length")
+    private double contamLen;
+
+    /** mean number of scaffold gaps per 100 kilobases */
+    @Option(name = "--gaps", metaVar = "2.5", usage = "mean number of scaffold gaps per 100 kilobases")
+    private double gapRate;
+
+    /** length of a scaffold gap */
+    @Option(name = "--gapLen", metaVar = "10", usage = "length of each scaffold gap")
+    private int gapLen;
+
+    /** output format */
+    @Option(name = "--format", usage = "output format for the genomes")
+    private Format format;
+
+    /** random-number seed */
+    @Option(name = "--seed", metaVar = "12345", usage = "random-number seed (default is random)")
+    private long seed;
+
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads")
+    private int threads;
+
+    /** TRUE to erase the output directory first */
+    @Option(name = "--clear", usage = "if specified, the output directory will be erased before generating")
+    private boolean clearFlag;
+
+    /** output directory */
+    @Argument(index = 0, metaVar = "outDir", usage = "output directory for the synthetic genomes", required = true)
+    private File outDir;
+
+    @Override
+    protected void setDefaults() {
+        this.sizeString = "100M";
+        this.genomeLen = 4000000;
+        this.contigMean = 50.0;
+        this.contigDist = ContigDist.GEOMETRIC;
+        this.fractions = new FloatList(1.0);
+        this.contamRate = 0.0;
+        this.contamLen = 0.1;
+        this.gapRate = 0.0;
+        this.gapLen = 100;
+        this.format = Format.FASTA;
+        this.seed = new Random().nextLong();
+        this.threads = 1;
+        this.clearFlag = false;
+    }
+
+    @Override
+    protected boolean validateParms() throws IOException, ParseFailureException {
+        this.totalSize = parseSize(this.sizeString);
+        if (this.totalSize <= 0)
+            throw new ParseFailureException("Total size must be positive.");
+        // The genome length can vary by half the mean in either direction, and must fit in an array.
+        if (this.genomeLen < 2 || this.genomeLen > Integer.MAX_VALUE / 2)
+            throw new ParseFailureException("Mean genome length must be between 2 and " + Integer.MAX_VALUE / 2 + ".");
+        if (this.contigMean < 1.0)
+            throw new ParseFailureException("Mean contig count must be at least 1.");
+        for (double fract : this.fractions) {
+            if (fract <= 0.0 || fract > 1.0)
+                throw new ParseFailureException("Completeness fractions must be greater than 0 and no more than 1.");
+        }
+        if (this.contamRate < 0.0 || this.contamRate > 1.0)
+            throw new ParseFailureException("Contamination rate must be between 0 and 1.");
+        if (this.contamLen <= 0.0 || this.contamLen > 1.0)
+            throw new ParseFailureException("Contamination length must be greater than 0 and no more than 1.");
+        if (this.gapRate < 0.0)
+            throw new ParseFailureException("Gap rate cannot be negative.");
+        if (this.gapLen < 1)
+            throw new ParseFailureException("Gap length must be positive.");
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
+        this.gapRun = new byte[this.gapLen];
+        Arrays.fill(this.gapRun, (byte) 'n');
+        // Set up the output directory.
+        if (! this.outDir.isDirectory()) {
+            log.info("Creating output directory {}.", this.outDir);
+            if (! this.outDir.mkdirs())
+                throw new IOException("Could not create output directory " + this.outDir + ".");
+        } else if (this.clearFlag) {
+            log.info("Erasing output directory {}.", this.outDir);
+            FileUtils.cleanDirectory(this.outDir);
+        }
+        log.info("Random-number seed is {}.", this.seed);
+        return true;
+    }
+
+    /**
+     * Parse a size string.  The string is a number with an optional K, M, G, or T suffix indicating a multiplier
+     * of 2^10, 2^20, 2^30, or 2^40.
+     *
+     * @param sizeString	size string to parse
+     *
+     * @return the size indicated
+     *
+     * @throws ParseFailureException
+     */
+    public static long parseSize(String sizeString) throws ParseFailureException {
+        Matcher m = SIZE_PATTERN.matcher(sizeString);
+        if (! m.matches())
+            throw new ParseFailureException("Invalid size \"" + sizeString + "\".");
+        long retVal = Long.parseLong(m.group(1));
+        int shift = 0;
+        switch (m.group(2).toUpperCase()) {
+        case "K" :
+            shift = 10;
+            break;
+        case "M" :
+            shift = 20;
+            break;
+        case "G" :
+            shift = 30;
+            break;
+        case "T" :
+            shift = 40;
+            break;
+        }
+        return retVal << shift;
+    }
+
+    @Override
+    protected void runCommand() throws Exception {
+        // Plan the genome lengths and completeness.  This is the only part that is done in sequence.  We count the
+        // DNA that survives the incompleteness cut, since that is what will be written.
+        SplittableRandom planRand = new SplittableRandom(this.seed);
+        List<Integer> lengths = new ArrayList<Integer>();
+        List<Double> fracList = new ArrayList<Double>();
+        long planned = 0;
+        while (planned < this.totalSize) {
+            int len = this.genomeLen / 2 + planRand.nextInt(this.genomeLen + 1);
+            double frac = this.fractions.get(planRand.nextInt(this.fractions.size()));
+            lengths.add(len);
+            fracList.add(frac);
+            planned += keptLength(len, frac);
+        }
+        final int[] genomeLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+        final double[] genomeFracs = fracList.stream().mapToDouble(Double::doubleValue).toArray();
+        log.info("Generating {} genomes with {} residues of genome DNA using {} threads.", genomeLengths.length,
+                planned, this.threads);
+        List<Integer> indices = new ArrayList<Integer>(genomeLengths.length);
+        for (int i = 0; i < genomeLengths.length; i++)
+            indices.add(i);
+        File summaryFile = new File(this.outDir, SUMMARY_NAME);
+        try (PrintWriter summary = new PrintWriter(summaryFile, StandardCharsets.UTF_8)) {
+            summary.println(SUMMARY_HEADER);
+            long start = System.currentTimeMillis();
+            // This array counts the genomes, the genome DNA, and the total residues.
+            long[] done = new long[3];
+            ParallelDriver<WorkBuffers> driver = new ParallelDriver<WorkBuffers>(this.threads, WorkBuffers::new);
+            driver.run(indices, (idx, buffers) -> this.generate(idx, genomeLengths, genomeFracs, buffers), result -> {
+                summary.println(result.row);
+                done[0]++;
+                done[1] += result.dnaLength;
+                done[2] += result.residues;
+                if (done[0] % 100 == 0) {
+                    double secs = (System.currentTimeMillis() - start) / 1000.0;
+                    log.info("{} genomes generated in {} seconds.", done[0], secs);
+                }
+            });
+            CommandMetrics.addRecords(done[0]);
+            log.info("{} genomes written to {}:  {} residues of genome DNA and {} residues in total.", done[0],
+                    this.outDir, done[1], done[2]);
+        }
+    }
+
+    /**
+     * @return the length of a genome's DNA after the incompleteness cut
+     *
+     * @param len	full length of the genome
+     * @param frac	completeness fraction
+     */
+    private static int keptLength(int len, double frac) {
+        return Math.max(1, (int) (len * frac));
+    }
+
+    /**
+     * @return the ID of a synthetic genome
+     *
+     * @param idx	index of the genome
+     */
+    private static String genomeId(int idx) {
+        return SYNTH_TAXON + "." + (idx + 1);
+    }
+
+    /**
+     * @return the random-number stream for a synthetic genome
+     *
+     * @param idx	index of the genome
+     */
+    private SplittableRandom genomeRand(int idx) {
+        return new SplittableRandom(this.seed ^ ((idx + 1) * SEED_MIX));
+    }
+
+    /**
+     * Fill a buffer with random DNA.  Each random long produces 32 nucleotides, and a given stream always
+     * produces the same prefix, no matter how long the buffer.
+     *
+     * @param rand		random-number stream for the DNA
+     * @param buffer	buffer to fill
+     * @param len		number of nucleotides to generate
+     */
+    protected static void fillBases(SplittableRandom rand, byte[] buffer, int len) {
+        int i = 0;
+        while (i < len) {
+            long bits = rand.nextLong();
+            int n = Math.min(32, len - i);
+            for (int j = 0; j < n; j++) {
+                buffer[i++] = BASES[(int) (bits & 3)];
+                bits >>>= 2;
+            }
+        }
+    }
+
+    /**
+     * Generate and write a synthetic genome.  This method is called on the worker threads.
+     *
+     * @param idx			index of the genome
+     * @param lengths		array of planned genome lengths
+     * @param fracs			array of planned completeness fractions
+     * @param buffers		working buffers for this thread
+     *
+     * @return a descriptor of the genome written
+     *
+     * @throws IOException
+     */
+    private GenomeResult generate(int idx, int[] lengths, double[] fracs, WorkBuffers buffers) throws IOException {
+        String genomeId = genomeId(idx);
+        SplittableRandom rand = this.genomeRand(idx);
+        // The DNA comes from a separate stream, so it can be regenerated for contamination.
+        SplittableRandom baseRand = rand.split();
+        int len = lengths[idx];
+        if (buffers.genome.length < len)
+            buffers.genome = new byte[len];
+        fillBases(baseRand, buffers.genome, len);
+        SliceSequence full = new SliceSequence(genomeId, "", 1);
+        full.add(buffers.genome, 0, len);
+        // Remove a random segment to reduce the completeness.
+        double frac = fracs[idx];
+        int keep = keptLength(len, frac);
+        int cut = rand.nextInt(keep + 1);
+        SliceSequence dna = new SliceSequence(genomeId, "", 2);
+        dna.add(full, 0, cut);
+        dna.add(full, cut + len - keep, keep - cut);
+        // Choose the contig boundaries.
+        int contigCount = Math.min(keep, this.contigDist.count(this.contigMean, rand));
+        int[] bounds = new int[contigCount + 1];
+        for (int i = 1; i < contigCount; i++)
+            bounds[i] = 1 + rand.nextInt(keep - 1);
+        bounds[contigCount] = keep;
+        Arrays.sort(bounds);
+        List<SliceSequence> contigs = new ArrayList<SliceSequence>(contigCount + 1);
+        int[] gapCount = new int[1];
+        for (int i = 0; i < contigCount; i++) {
+            int start = bounds[i];
+            int end = bounds[i + 1];
+            if (end > start)
+                contigs.add(this.buildContig(genomeId, contigs.size() + 1, "", dna, start, end - start, rand, gapCount));
+        }
+        // Add a contaminant from another genome.
+        String contaminant = "";
+        int contamResidues = 0;
+        if (lengths.length > 1 && rand.nextDouble() < this.contamRate) {
+            int other = rand.nextInt(lengths.length - 1);
+            if (other >= idx)
+                other++;
+            contaminant = genomeId(other);
+            contamResidues = Math.max(1, Math.min(lengths[other], (int) (len * this.contamLen)));
+            if (buffers.contam.length < contamResidues)
+                buffers.contam = new byte[contamResidues];
+            fillBases(this.genomeRand(other).split(), buffers.contam, contamResidues);
+            SliceSequence contamSeq = new SliceSequence(contaminant, "", 1);
+            contamSeq.add(buffers.contam, 0, contamResidues);
+            contigs.add(this.buildContig(genomeId, contigs.size() + 1, "contaminant from " + contaminant, contamSeq,
+                    0, contamResidues, rand, gapCount));
+        }
+        long residues = 0;
+        for (SliceSequence contig : contigs)
+            residues += contig.length();
+        // Write the genome.
+        File outFile = new File(this.outDir, genomeId + this.format.getSuffix());
+        if (this.format == Format.FASTA) {
+            try (OutputStream outStream = new BufferedOutputStream(new FileOutputStream(outFile), OUT_BUFFER_SIZE)) {
+                for (SliceSequence contig : contigs)
+                    contig.write(outStream);
+            }
+        } else {
+            Genome genome = new Genome(genomeId, "Synthetic genome " + (idx + 1), "Bacteria", 11);
+            for (SliceSequence contig : contigs) {
+                Contig gContig = new Contig(contig.getLabel(), contig.getSequence(), 11);
+                gContig.setDescription(contig.getComment());
+                genome.addContig(gContig);
+            }
+            genome.save(outFile);
+        }
+        String row = String.format("%s\t%s\t%d\t%d\t%4.2f\t%s\t%d\t%d\t%d", genomeId, outFile.getName(), keep,
+                contigs.size(), frac, contaminant, contamResidues, gapCount[0], residues);
+        return new GenomeResult(row, keep, residues);
+    }
+
+    /**
+     * Build a contig from a region of a sequence, inserting random scaffold gaps.
+     *
+     * @param genomeId		ID of the genome
+     * @param num			contig number
+     * @param comment		comment for the contig
+     * @param dna			sequence containing the contig's DNA
+     * @param start			offset of the contig's DNA
+     * @param len			length of the contig's DNA
+     * @param rand			random-number stream for the genome
+     * @param gapCount		one-element array used to count the gaps inserted
+     *
+     * @return the contig built
+     */
+    private SliceSequence buildContig(String genomeId, int num, String comment, SliceSequence dna, int start, int len,
+            SplittableRandom rand, int[] gapCount) {
+        // Compute the number of gaps.  The fractional part of the expected count is used as a probability.
+        double expected = len * this.gapRate / 100000.0;
+        int gaps = (int) expected;
+        if (rand.nextDouble() < expected - gaps)
+            gaps++;
+        gaps = Math.min(gaps, len - 1);
+        int[] points = new int[gaps];
+        for (int i = 0; i < gaps; i++)
+            points[i] = 1 + rand.nextInt(len - 1);
+        Arrays.sort(points);
+        SliceSequence retVal = new SliceSequence(String.format("%s.con.%04d", genomeId, num), comment, gaps * 2 + 2);
+        int pos = 0;
+        for (int point : points) {
+            retVal.add(dna, start + pos, point - pos);
+            retVal.add(this.gapRun, 0, this.gapLen);
+            pos = point;
+        }
+        retVal.add(dna, start + pos, len - pos);
+        gapCount[0] += gaps;
+        return retVal;
+    }
+
+}
@@ -0,0 +1,207 @@
+/**
+ *
+ */
+package org.theseed.p3api.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * This class allows each thread to have its own standard input, output, and error streams.  When installed, it
+ * replaces the system streams with delegating streams that forward to the current thread's streams, or to the
+ * original system streams if the thread has none.  This lets the command server run several commands at once,
+ * each reading and writing its own client's data through the usual System.in and System.out.
+ *
+ * The streams are NOT inherited.  A thread that is not explicitly given streams uses the system streams, so that a
+ * shared pool thread (such as one in the common fork-join pool) never holds on to a finished request's client.  A
+ * component that hands work to threads it controls, such as {@link ParallelDriver}, can pass the streams along with
+ * {@link #current()} and {@link #set(Streams)}, and must clear them with {@link #reset()} when the work is done.
+ *
+ * @author Bruce Parrello
+ *
+ */
+public class ThreadStdio {
+
+    // FIELDS
+    /** original standard input */
+    private static InputStream systemIn;
+    /** original standard output */
+    private static PrintStream systemOut;
+    /** original standard error */
+    private static PrintStream systemErr;
+    /** standard streams for the current thread */
+    private static final ThreadLocal<Streams> threadStreams = new ThreadLocal<Streams>();
+
+    /**
+     * This object contains the standard streams for a thread.
+     */
+    public static class Streams {
+
+        /** standard input */
+        private final InputStream in;
+        /** standard output */
+        private final PrintStream out;
+        /** standard error */
+        private final PrintStream err;
+
+        /**
+         * Construct a set of standard streams.
+         *
+         * @param in	standard input
+         * @param out	standard output
+         * @param err	standard error
+         */
+        protected Streams(InputStream in, PrintStream out, PrintStream err) {
+            this.in = in;
+            this.out = out;
+            this.err = err;
+        }
+
+    }
+
+    /**
+     * This is an output stream that forwards to the current thread's stream.
+     */
+    private static class DelegatingOutputStream extends OutputStream {
+
+        /** TRUE for standard error, FALSE for standard output */
+        private final boolean error;
+        /** default stream */
+        private final PrintStream base;
+
+        /**
+         * Construct a delegating output stream.
+         *
+         * @param error		TRUE to forward to standard error, FALSE to forward to standard output
+         * @param base		stream to use if the thread has none
+         */
+        protected DelegatingOutputStream(boolean error, PrintStream base) {
+            this.error = error;
+            this.base = base;
+        }
+
+        /**
+         * @return the stream for the current thread
+         */
+        private PrintStream target() {
+            Streams streams = threadStreams.get();
+            PrintStream retVal = this.base;
+            if (streams != null)
+                retVal = (this.error ? streams.err : streams.out);
+            return retVal;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.target().flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The command does not own the underlying stream, so we only flush it.
+            this.target().flush();
+        }
+
+    }
+
+    /**
+     * This is an input stream that forwards to the current thread's stream.
+     */
+    private static class DelegatingInputStream extends InputStream {
+
+        /**
+         * @return the stream for the current thread
+         */
+        private InputStream target() {
+            Streams streams = threadStreams.get();
+            return (streams == null ? systemIn : streams.in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.target().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return this.target().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.target().available();
+        }
+
+        @Override
+        public void close() {
+            // The command does not own the underlying stream.
+        }
+
+    }
+
+    /**
+     * Replace the system streams with thread-delegating streams.  This only needs to be done once.
+     */
+    public static synchronized void install() {
+        if (systemIn == null) {
+            systemIn = System.in;
+            systemOut = System.out;
+            systemErr = System.err;
+            System.setIn(new DelegatingInputStream());
+            // The delegating streams do not flush on every line.  The per-thread streams decide for themselves when
+            // to flush, so a request's buffered output is not broken into one frame per line.
+            System.setOut(new PrintStream(new DelegatingOutputStream(false, systemOut), false));
+            System.setErr(new PrintStream(new DelegatingOutputStream(true, systemErr), false));
+        }
+    }
+
+    /**
+     * Specify the standard streams for the current thread.
+     *
+     * @param in	standard input
+     * @param out	standard output
+     * @param err	standard error
+     */
+    public static void set(InputStream in, PrintStream out, PrintStream err) {
+        threadStreams.set(new Streams(in, out, err));
+    }
+
+    /**
+     * Specify the standard streams for the current thread using streams taken from another thread.
+     *
+     * @param streams	streams to use, or NULL to use the system streams
+     */
+    public static void set(Streams streams) {
+        if (streams == null)
+            threadStreams.remove();
+        else
+            threadStreams.set(streams);
+    }
+
+    /**
+     * @return the standard streams specified for the current thread, or NULL if it uses the system streams
+     */
+    public static Streams current() {
+        return threadStreams.get();
+    }
+
+    /**
+     * Restore the current thread to the original system streams.
+     */
+    public static void reset() {
+        threadStreams.remove();
+    }
+
+}
@@ -3,15 +3,24 @@
  */
 package org.theseed.p3api.common;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,7 +32,6 @@ import org.slf4j.LoggerFactory;
 import org.theseed.basic.BaseProcessor;
 import org.theseed.basic.ParseFailureException;
 import org.theseed.sequence.FastaInputStream;
-import org.theseed.sequence.FastaOutputStream;
 import org.theseed.sequence.Sequence;
 import org.theseed.utils.FloatList;
 
@@ -37,6 +45,23 @@ import org.theseed.utils.FloatList;
  * random fractional contig from another genome.  The list of completeness fractions to use is given
  * by a command-line option.
  *
+ * Normally, all the input contigs and generated contigs are kept in memory until the end.  In streaming mode,
+ * each input file is read only when it is processed, and its generated contigs are written immediately.  The
+ * contamination is then drawn from a fixed-size random sample of the earlier fractional contigs instead of
+ * all of them, so the memory used does not grow with the number of input files.
+ *
+ * Variants of each full contig can also be generated by applying random mutations at specified rates.  Most of
+ * the mutations are substitutions, but a specified fraction are small insertions or deletions.  The comment of
+ * each variant contig contains the number of mutations applied.
+ *
+ * The generated contigs are views onto the ASCII bytes of the input contigs, so the residues are not copied
+ * until they are written to the output.
+ *
+ * The input files are processed in name order, and each one gets its own random-number stream derived from
+ * the seed and the file's name.  The fractional contigs can therefore be generated on several threads while the
+ * contamination and output are done in file order, so the output is the same for a given seed no matter how many
+ * threads are used.
+ *
  * The positional parameters are the name of the input directory.  The output FASTA will be produced on the
  * standard output.  The command-line options are as follows.
  *
@@ -45,6 +70,12 @@ import org.theseed.utils.FloatList;
  * -o	output file (if not STDOUT)
  *
  * --complete	completeness fractions to test for, comma-delimited-- default 0.8,0.5,0.3
+ * --stream		if specified, each file's contigs will be written as soon as they are generated
+ * --reservoir	number of fractional contigs to keep as contamination sources in streaming mode (default 1000)
+ * --seed		random-number seed (default is chosen at random)
+ * --threads	number of worker threads for generating the fractional contigs (default 1)
+ * --mutate		mutation rates for variant contigs, comma-delimited (default none)
+ * --indel		fraction of mutations that are insertions or deletions (default 0.1)
  *
  * @author Bruce Parrello
  *
@@ -57,11 +88,23 @@ public class VSynthProcessor extends BaseProcessor {
     /** list of completeness fractions */
     private FloatList fractions;
     /** map of incoming contig IDs to uncontaminated sequences generated */
-    private Map<String, List<Sequence>> contigMap;
-    /** random-number generator */
-    private Random randomizer;
+    private Map<String, List<SliceSequence>> contigMap;
+    /** input FASTA files */
+    private File[] inFiles;
+    /** number of contaminated sequences generated */
+    private int contamSeqs;
+    /** number of sequences written */
+    private int seqsWritten;
+    /** multiplier for mixing file name hashes into the seed */
+    private static final long SEED_MIX = 0x9E3779B97F4A7C15L;
+    /** output buffer size */
+    private static final int OUT_BUFFER_SIZE = 1 << 20;
+    /** maximum length of a mutation insertion or deletion */
+    private static final int MAX_INDEL = 5;
+    /** list of mutation rates */
+    private FloatList mutationRates;
     /** output stream */
-    private FastaOutputStream outStream;
+    private OutputStream outStream;
     /** name pattern for FASTA files */
     private static final Pattern FASTA_PATTERN = Pattern.compile(".+\\.(?:fna|fa|fasta)");
     /** file filter for FASTA files */
@@ -91,6 +134,32 @@ public class VSynthProcessor extends BaseProcessor {
         this.fractions = new FloatList(completeString);
     }
 
+    /** TRUE to write each file's sequences as soon as they are generated */
+    @Option(name = "--stream", usage = "if specified, output will be written as it is generated")
+    private boolean stream;
+
+    /** number of contamination sources to keep in streaming mode */
+    @Option(name = "--reservoir", metaVar = "5000", usage = "number of contamination sources to keep in streaming mode")
+    private int reservoirSize;
+
+    /** random-number seed */
+    @Option(name = "--seed", metaVar = "12345", usage = "random-number seed (default is random)")
+    private long seed;
+
+    /** number of worker threads */
+    @Option(name = "--threads", metaVar = "8", usage = "number of worker threads for generating fractional contigs")
+    private int threads;
+
+    /** list of mutation rates */
+    @Option(name = "--mutate", metaVar = "0.01,0.05", usage = "comma-delimited list of mutation rates for variant contigs")
+    private void setMutate(String mutateString) {
+        this.mutationRates = new FloatList(mutateString);
+    }
+
+    /** fraction of mutations that are insertions or deletions */
+    @Option(name = "--indel", metaVar = "0.2", usage = "fraction of mutations that are insertions or deletions")
+    private double indelFraction;
+
     /** input directory */
     @Argument(index = 0, metaVar = "inDir", usage = "input directory containing FASTA files")
     private File inDir;
@@ -100,125 +169,269 @@ public class VSynthProcessor extends BaseProcessor {
         this.outFile = null;
         this.outStream = null;
         this.fractions = new FloatList(0.8, 0.5, 0.3);
+        this.stream = false;
+        this.reservoirSize = 1000;
+        this.seed = new Random().nextLong();
+        this.threads = 1;
+        this.mutationRates = new FloatList();
+        this.indelFraction = 0.1;
     }
 
     @Override
     protected boolean validateParms() throws IOException, ParseFailureException {
-        // Initialize the randomizer.
-        this.randomizer = new Random();
+        log.info("Random-number seed is {}.", this.seed);
         // Verify that all the fractions are in range.
         for (double fract : this.fractions) {
             if (fract <= 0.0 || fract >= 1.0)
                 throw new ParseFailureException("Completeness fractions must be strictly between 0 and 1.");
         }
+        for (double rate : this.mutationRates) {
+            if (rate <= 0.0 || rate >= 1.0)
+                throw new ParseFailureException("Mutation rates must be strictly between 0 and 1.");
+        }
+        if (this.indelFraction < 0.0 || this.indelFraction > 1.0)
+            throw new ParseFailureException("Indel fraction must be between 0 and 1.");
+        if (this.reservoirSize < 1)
+            throw new ParseFailureException("Reservoir size must be positive.");
+        if (this.threads < 1)
+            throw new ParseFailureException("Thread count must be positive.");
         // Verify the input directory.
         if (! this.inDir.isDirectory())
             throw new FileNotFoundException("Input directory " + this.inDir + " is not found or invalid.");
         // Get the incoming FASTA files.
-        File[] inFiles = this.inDir.listFiles(FASTA_FILTER);
-        if (inFiles.length <= 0)
+        this.inFiles = this.inDir.listFiles(FASTA_FILTER);
+        if (this.inFiles.length <= 0)
             throw new FileNotFoundException("No readable FASTA files found in " + this.inDir + ".");
-        // Compute the number of sequences that will be generated for each file.
-        int listSize = this.fractions.size() * 2 + 1;
-        // Now read them into memory, giving each one a space in the main hash.
-        this.contigMap = new HashMap<String, List<Sequence>>(inFiles.length * 3 / 2 + 1);
-        log.info("Reading {} single-contig FASTA files.", inFiles.length);
-        for (File inFile : inFiles) {
-            try (FastaInputStream inStream = new FastaInputStream(inFile)) {
-                log.info("Processing input file {}.", inFile);
-                if (! inStream.hasNext())
-                    throw new FileNotFoundException("No sequences found in file " + inFile + ".");
-                Sequence inSeq = inStream.next();
-                String seqName = StringUtils.substringBeforeLast(inFile.getName(), ".");
+        // Sort the files so the output does not depend on the directory order.
+        Arrays.sort(this.inFiles, Comparator.comparing(File::getName));
+        if (this.stream) {
+            // In streaming mode, we only verify the names here.  The files are read as they are processed.
+            Set<String> names = new HashSet<String>(this.inFiles.length * 3 / 2 + 1);
+            for (File inFile : this.inFiles) {
+                if (! names.add(seqName(inFile)))
+                    throw new IOException("File " + inFile + " has a duplicate name.  The un-suffixed name of each file must be unique.");
+            }
+            log.info("{} single-contig FASTA files will be streamed.", this.inFiles.length);
+        } else {
+            // Now read them into memory, giving each one a space in the main hash.
+            this.contigMap = new LinkedHashMap<String, List<SliceSequence>>(this.inFiles.length * 3 / 2 + 1);
+            log.info("Reading {} single-contig FASTA files.", this.inFiles.length);
+            for (File inFile : this.inFiles) {
+                String seqName = seqName(inFile);
                 if (this.contigMap.containsKey(seqName))
                     throw new IOException("File " + inFile + " has a duplicate name.  The un-suffixed name of each file must be unique.");
-                // Create the label for a full sequence.
-                inSeq.setLabel(seqName + ".full");
-                List<Sequence> seqList = new ArrayList<Sequence>(listSize);
-                seqList.add(inSeq);
+                List<SliceSequence> seqList = new ArrayList<SliceSequence>(this.fractions.size() * 2 + 1);
+                seqList.add(this.readContig(inFile, seqName));
                 this.contigMap.put(seqName, seqList);
             }
         }
         // Finally, set up the output stream.
         if (this.outFile == null) {
             log.info("Output will be to the standard output.");
-            this.outStream = new FastaOutputStream(System.out);
+            this.outStream = new BufferedOutputStream(System.out, OUT_BUFFER_SIZE);
         } else {
             log.info("Output will be to the file {}.", this.outFile);
-            this.outStream = new FastaOutputStream(this.outFile);
+            this.outStream = new BufferedOutputStream(new FileOutputStream(this.outFile), OUT_BUFFER_SIZE);
         }
         return true;
     }
 
+    /**
+     * @return the sequence name for an input file
+     *
+     * @param inFile	input FASTA file
+     */
+    private static String seqName(File inFile) {
+        return StringUtils.substringBeforeLast(inFile.getName(), ".");
+    }
+
+    /**
+     * This object contains the fractional sequences generated for an input contig.  The random-number stream
+     * for the contig is kept so it can be used for choosing contamination.
+     */
+    protected static class FileResult {
+
+        /** sequence name for the input contig */
+        private final String seqName;
+        /** full input contig */
+        private final SliceSequence original;
+        /** fractional sequences generated */
+        private final List<SliceSequence> fractionals;
+        /** mutated variants generated */
+        private final List<SliceSequence> mutants;
+        /** random-number stream for the contig */
+        private final SplittableRandom rand;
+
+        /**
+         * Construct a result for an input contig.
+         *
+         * @param seqName	sequence name for the contig
+         * @param original	full input contig
+         * @param rand		random-number stream for the contig
+         * @param size		expected number of fractional sequences
+         */
+        protected FileResult(String seqName, SliceSequence original, SplittableRandom rand, int size) {
+            this.seqName = seqName;
+            this.original = original;
+            this.rand = rand;
+            this.fractionals = new ArrayList<SliceSequence>(size);
+            this.mutants = new ArrayList<SliceSequence>();
+        }
+
+    }
+
+    /**
+     * Read the contig from an input file.
+     *
+     * @param inFile	input FASTA file
+     * @param seqName	sequence name for the file
+     *
+     * @return the full contig, relabeled and converted to ASCII bytes
+     *
+     * @throws IOException
+     */
+    private SliceSequence readContig(File inFile, String seqName) throws IOException {
+        try (FastaInputStream inStream = new FastaInputStream(inFile)) {
+            log.info("Processing input file {}.", inFile);
+            if (! inStream.hasNext())
+                throw new FileNotFoundException("No sequences found in file " + inFile + ".");
+            Sequence inSeq = inStream.next();
+            // Create the label for a full sequence.
+            byte[] bases = inSeq.getSequence().getBytes(StandardCharsets.ISO_8859_1);
+            SliceSequence retVal = new SliceSequence(seqName + ".full", inSeq.getComment(), 1);
+            retVal.add(bases, 0, bases.length);
+            return retVal;
+        }
+    }
+
     @Override
     protected void runCommand() throws Exception {
         try {
-            // This list will contain the previous fractional sequences.  We pull our contamination from here.
-            List<Sequence> oldSeqs = new ArrayList<Sequence>(this.contigMap.size() * 2 * this.fractions.size());
-            int contamSeqs = 0;
-            // Loop through the input files, processing each one.
-            for (var seqEntry : this.contigMap.entrySet()) {
-                String seqName = seqEntry.getKey();
-                List<Sequence> seqs = seqEntry.getValue();
-                // Get the original sequence.
-                Sequence original = seqs.get(0);
-                String oldSeq = original.getSequence();
-                int len = original.length();
-                StringBuffer seqBuffer = new StringBuffer(len);
-                log.info("Processing sequence {} with length {}.", seqName, len);
-                // We will buffer fractional sequences in here.
-                List<Sequence> fractionals = new ArrayList<Sequence>(this.fractions.size());
-                // Loop through the fractions.
-                for (double frac : this.fractions) {
-                    // Compute the desired fractional length.  Because we are truncating, it will be strictly
-                    // less than the full length.
-                    int fracLen = (int) (len * frac);
-                    if (fracLen > 0) {
-                        // Clear the output buffer.
-                        seqBuffer.setLength(0);
-                        // Create the new sequence name.
-                        String fracName = seqName + ".frac." + String.valueOf(frac);
-                        // Create the fractional sequence.
-                        int removeLen = len - fracLen;
-                        int start = this.randomizer.nextInt(fracLen);
-                        if (start > 0)
-                            seqBuffer.append(StringUtils.substring(oldSeq, 0, start));
-                        seqBuffer.append(StringUtils.substring(oldSeq, start + removeLen));
-                        // Build the new sequence object.
-                        String newSeq = seqBuffer.toString();
-                        log.debug("Sequence {} has length {}.", fracName, newSeq.length());
-                        Sequence seq = new Sequence(fracName, "", newSeq);
-                        // Save it in the lists.
-                        seqs.add(seq);
-                        fractionals.add(seq);
-                        // Now we want to append a random contamination sequence, if there is one available.
-                        if (! oldSeqs.isEmpty()) {
-                            int randIdx = this.randomizer.nextInt(oldSeqs.size());
-                            Sequence contaminator = oldSeqs.get(randIdx);
-                            String contamLabel = fracName + "." + contaminator.getLabel();
-                            String contamSeq = newSeq + contaminator.getSequence();
-                            Sequence contaminated = new Sequence(contamLabel, "", contamSeq);
-                            seqs.add(contaminated);
-                            contamSeqs++;
-                        }
-                    }
-                }
-                // Add the fractional sequences to the old-sequence list.
-                oldSeqs.addAll(fractionals);
+            // In memory mode, the contamination sources are all the previous fractional sequences.  In streaming
+            // mode, they are a bounded sample of them.
+            int capacity = (this.stream ? this.reservoirSize : Integer.MAX_VALUE);
+            ReservoirSample<SliceSequence> oldSeqs = new ReservoirSample<SliceSequence>(capacity, new Random(this.seed));
+            this.contamSeqs = 0;
+            this.seqsWritten = 0;
+            log.info("Generating fractional sequences with {} threads.", this.threads);
+            ParallelDriver<DnaMutator> driver = new ParallelDriver<DnaMutator>(this.threads,
+                    () -> new DnaMutator(this.indelFraction, MAX_INDEL));
+            List<SliceSequence> outSeqs = new ArrayList<SliceSequence>(this.fractions.size() * 2 + 1);
+            // The results come back in file order, so the contamination can be chosen deterministically.
+            driver.run(Arrays.asList(this.inFiles), (inFile, mutator) -> this.generate(inFile, mutator), result -> {
+                List<SliceSequence> seqs = (this.stream ? outSeqs : this.contigMap.get(result.seqName));
+                seqs.clear();
+                this.contaminate(result, oldSeqs, seqs);
+                if (this.stream)
+                    this.write(seqs);
+                for (SliceSequence fractional : result.fractionals)
+                    oldSeqs.offer(fractional);
+            });
+            log.info("{} fractional sequences and {} contaminated sequences created.", oldSeqs.getSeen(),
+                    this.contamSeqs);
+            if (! this.stream) {
+                // Now write everything out.
+                for (List<SliceSequence> seqList : this.contigMap.values())
+                    this.write(seqList);
             }
-            log.info("{} fractional sequences and {} contaminated sequences created.", oldSeqs.size(), contamSeqs);
-            // Now write everything out.
-            int seqsOut = 0;
-            for (List<Sequence> seqList : this.contigMap.values()) {
-                this.outStream.write(seqList);
-                seqsOut += seqList.size();
-            }
-            log.info("{} sequences written.", seqsOut);
+            CommandMetrics.addRecords(this.seqsWritten);
+            log.info("{} sequences written.", this.seqsWritten);
         } finally {
             if (this.outStream != null)
                 this.outStream.close();
         }
+    }
+
+    /**
+     * Generate the fractional and mutated sequences for an input file.  This method is called on the worker threads.
+     *
+     * @param inFile	input file to process
+     * @param mutator	DNA mutator for this thread
+     *
+     * @return the fractional and mutated sequences for the file's contig
+     *
+     * @throws IOException
+     */
+    private FileResult generate(File inFile, DnaMutator mutator) throws IOException {
+        String seqName = seqName(inFile);
+        SliceSequence original;
+        if (this.stream)
+            original = this.readContig(inFile, seqName);
+        else
+            original = this.contigMap.get(seqName).get(0);
+        // Each file gets its own random-number stream, so the results do not depend on the thread scheduling.
+        SplittableRandom rand = new SplittableRandom(this.seed ^ (seqName.hashCode() * SEED_MIX));
+        FileResult retVal = new FileResult(seqName, original, rand, this.fractions.size());
+        int len = original.length();
+        log.info("Processing sequence {} with length {}.", seqName, len);
+        // Loop through the fractions.
+        for (double frac : this.fractions) {
+            // Compute the desired fractional length.  Because we are truncating, it will be strictly
+            // less than the full length.
+            int fracLen = (int) (len * frac);
+            if (fracLen > 0) {
+                // Create the new sequence name.
+                String fracName = seqName + ".frac." + String.valueOf(frac);
+                // Create the fractional sequence by removing a random segment.
+                int removeLen = len - fracLen;
+                int start = rand.nextInt(fracLen);
+                SliceSequence seq = new SliceSequence(fracName, "", 2);
+                seq.add(original, 0, start);
+                seq.add(original, start + removeLen, fracLen - start);
+                log.debug("Sequence {} has length {}.", fracName, seq.length());
+                retVal.fractionals.add(seq);
+            }
+        }
+        // Generate the mutated variants of the full contig.
+        for (double rate : this.mutationRates) {
+            int count = mutator.mutate(original, rate, rand);
+            String mutName = seqName + ".mut." + String.valueOf(rate);
+            log.debug("Sequence {} has {} mutations.", mutName, count);
+            SliceSequence mutant = new SliceSequence(mutName, "mutations=" + count, 1);
+            mutant.add(mutator.getResult(), 0, mutator.getLength());
+            retVal.mutants.add(mutant);
+        }
+        return retVal;
+    }
+
+    /**
+     * Build the output sequences for an input contig, appending a random contamination sequence to each
+     * fractional sequence.  This method is called in file order.
+     *
+     * @param result	fractional sequences for the contig
+     * @param oldSeqs	contamination sources from the previous contigs
+     * @param seqs		list to receive the output sequences
+     */
+    private void contaminate(FileResult result, ReservoirSample<SliceSequence> oldSeqs, List<SliceSequence> seqs) {
+        seqs.add(result.original);
+        seqs.addAll(result.mutants);
+        for (SliceSequence seq : result.fractionals) {
+            seqs.add(seq);
+            // Append a random contamination sequence, if there is one available.
+            if (oldSeqs.size() > 0) {
+                SliceSequence contaminator = oldSeqs.get(result.rand.nextInt(oldSeqs.size()));
+                String contamLabel = seq.getLabel() + "." + contaminator.getLabel();
+                SliceSequence contaminated = new SliceSequence(contamLabel, "",
+                        seq.getSliceCount() + contaminator.getSliceCount());
+                contaminated.add(seq);
+                contaminated.add(contaminator);
+                seqs.add(contaminated);
+                this.contamSeqs++;
+            }
+        }
+    }
 
+    /**
+     * Write a list of sequences to the output.
+     *
+     * @param seqs	sequences to write
+     *
+     * @throws IOException
+     */
+    private void write(List<SliceSequence> seqs) throws IOException {
+        for (SliceSequence seq : seqs)
+            seq.write(this.outStream);
+        this.seqsWritten += seqs.size();
     }
 
 }
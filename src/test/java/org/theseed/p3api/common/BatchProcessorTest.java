@@ -0,0 +1,29 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for the batch script parser.
+ */
+public class BatchProcessorTest {
+
+    @Test
+    public void testParseLine() {
+        assertThat(BatchProcessor.parseLine("md5Check -v  inDir"), arrayContaining("md5Check", "-v", "inDir"));
+        assertThat(BatchProcessor.parseLine("   "), emptyArray());
+        assertThat(BatchProcessor.parseLine(""), emptyArray());
+        assertThat(BatchProcessor.parseLine("\trnaCheck\t--source DIR "), arrayContaining("rnaCheck", "--source", "DIR"));
+        // Quotes group white space and are removed.
+        assertThat(BatchProcessor.parseLine("hammerTest -o \"my output.txt\" 'a b'"),
+                arrayContaining("hammerTest", "-o", "my output.txt", "a b"));
+        // A quoted section can be part of a larger token, and can contain the other quote character.
+        assertThat(BatchProcessor.parseLine("x --name=\"it's here\"z"), arrayContaining("x", "--name=it's herez"));
+        // An empty quoted string is still a token.
+        assertThat(BatchProcessor.parseLine("cmd '' end"), arrayContaining("cmd", "", "end"));
+        // Comment lines are parsed normally; the caller skips them.
+        assertThat(BatchProcessor.parseLine("# a comment")[0], equalTo("#"));
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.theseed.p3api.P3Connection.Table;
+
+import com.github.cliftonlabs.json_simple.JsonObject;
+
+/**
+ * Tests for the PATRIC query cache used as an offline stand-in.
+ */
+public class CachedP3ConnectionTest {
+
+    @Test
+    public void testOfflineCache() throws IOException {
+        File cacheDir = Files.createTempDirectory("p3cache").toFile();
+        try {
+            CachedP3Connection p3 = new CachedP3Connection(cacheDir, true);
+            JsonObject rec1 = new JsonObject();
+            rec1.put("genome_id", "83333.1");
+            rec1.put("antibiotic", "ampicillin");
+            JsonObject rec2 = new JsonObject();
+            rec2.put("genome_id", "511145.183");
+            rec2.put("antibiotic", "kanamycin");
+            p3.putRecords(Table.GENOME_AMR, "genome_id", Arrays.asList("83333.1", "511145.183"), "antibiotic", Arrays.asList(rec1, rec2));
+            // A new connection should see the stored entry, even with the keys in a different order.
+            p3 = new CachedP3Connection(cacheDir, true);
+            List<JsonObject> found = p3.getRecords(Table.GENOME_AMR, "genome_id", Arrays.asList("511145.183", "83333.1"), "antibiotic");
+            assertThat(found.size(), equalTo(2));
+            assertThat(found.get(0).get("genome_id"), equalTo("83333.1"));
+            assertThat(found.get(1).get("antibiotic"), equalTo("kanamycin"));
+            assertThat(p3.getHits(), equalTo(1L));
+            // A different field list is a different query.
+            try {
+                p3.getRecords(Table.GENOME_AMR, "genome_id", Arrays.asList("83333.1", "511145.183"), "antibiotic,genome_name");
+                assertThat("Offline miss did not fail.", false);
+            } catch (IllegalStateException e) {
+                assertThat(p3.getMisses(), equalTo(1L));
+            }
+        } finally {
+            for (File file : cacheDir.listFiles())
+                file.delete();
+            cacheDir.delete();
+        }
+    }
+
+    @Test
+    public void testRequestLimit() throws Exception {
+        CachedP3Connection.setRequestLimit(3);
+        try {
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger peak = new AtomicInteger();
+            ParallelDriver<Void> driver = new ParallelDriver<Void>(10, () -> null);
+            List<Integer> units = IntStream.range(0, 40).boxed().collect(Collectors.toList());
+            driver.run(units, (i, x) -> CachedP3Connection.limitRequest(() -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return i;
+            }), i -> { });
+            assertThat(peak.get(), lessThanOrEqualTo(3));
+            assertThat(peak.get(), greaterThan(1));
+            // A locked limit cannot be changed by a command.
+            CachedP3Connection.lockRequestLimit(1);
+            CachedP3Connection.setRequestLimit(5);
+            peak.set(0);
+            driver.run(units, (i, x) -> CachedP3Connection.limitRequest(() -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                running.decrementAndGet();
+                return i;
+            }), i -> { });
+            assertThat(peak.get(), equalTo(1));
+        } finally {
+            CachedP3Connection.unlockRequestLimit();
+            CachedP3Connection.setRequestLimit(0);
+        }
+    }
+
+}
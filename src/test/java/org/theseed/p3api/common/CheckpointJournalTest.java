@@ -0,0 +1,127 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests for the checkpoint journal.
+ */
+public class CheckpointJournalTest {
+
+    @Test
+    public void testJournal() throws IOException {
+        File journalFile = File.createTempFile("test", ".ckpt");
+        journalFile.delete();
+        try {
+            try (CheckpointJournal journal = CheckpointJournal.open(journalFile, "test", "abc")) {
+                assertThat(journal.size(), equalTo(0));
+                journal.record("83333.1", Arrays.asList("a\tb", "", "c"));
+                journal.record("511145.183", Collections.emptyList());
+                assertThat(journal.isDone("83333.1"), equalTo(true));
+            }
+            // Simulate a crash in the middle of writing a unit.
+            long goodLength = journalFile.length();
+            try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+                out.write("#unit\t100226.1\t3\nline 1\nline".getBytes(StandardCharsets.UTF_8));
+            }
+            try (CheckpointJournal journal = CheckpointJournal.open(journalFile, "test", "abc")) {
+                assertThat(journalFile.length(), equalTo(goodLength));
+                assertThat(journal.size(), equalTo(2));
+                assertThat(journal.getLines("83333.1"), contains("a\tb", "", "c"));
+                assertThat(journal.getLines("511145.183"), empty());
+                assertThat(journal.isDone("100226.1"), equalTo(false));
+                journal.record("100226.1", Arrays.asList("x"));
+            }
+            try (CheckpointJournal journal = CheckpointJournal.open(journalFile, "test", "abc")) {
+                assertThat(journal.size(), equalTo(3));
+                assertThat(journal.getLines("100226.1"), contains("x"));
+            }
+            // A disabled journal records nothing.
+            try (CheckpointJournal journal = CheckpointJournal.open(null, "test", "abc")) {
+                journal.record("83333.1", Arrays.asList("a"));
+                assertThat(journal.isDone("83333.1"), equalTo(false));
+            }
+        } finally {
+            journalFile.delete();
+        }
+    }
+
+    @Test
+    public void testFingerprint() throws IOException {
+        File journalFile = File.createTempFile("test", ".ckpt");
+        File inFile = File.createTempFile("test", ".tbl");
+        journalFile.delete();
+        try {
+            try (FileOutputStream out = new FileOutputStream(inFile)) {
+                out.write("md5\nabc\n".getBytes(StandardCharsets.UTF_8));
+            }
+            String fingerprint = CheckpointJournal.fingerprint(inFile, 100, Arrays.asList("a", "b"));
+            assertThat(CheckpointJournal.fingerprint(inFile, 100, Arrays.asList("a", "b")), equalTo(fingerprint));
+            assertThat(CheckpointJournal.fingerprint(inFile, 200, Arrays.asList("a", "b")), not(equalTo(fingerprint)));
+            assertThat(CheckpointJournal.fingerprint(inFile, 100, Arrays.asList("ab")), not(equalTo(fingerprint)));
+            try (CheckpointJournal journal = CheckpointJournal.open(journalFile, "md5Check", fingerprint)) {
+                journal.record("83333.1", Arrays.asList("x"));
+            }
+            assertThat(CheckpointJournal.isJournal(journalFile), equalTo(true));
+            assertThat(CheckpointJournal.isJournal(inFile), equalTo(false));
+            // The same command and fingerprint can resume.
+            try (CheckpointJournal journal = CheckpointJournal.open(journalFile, "md5Check", fingerprint)) {
+                assertThat(journal.getLines("83333.1"), contains("x"));
+            }
+            // A changed input file cannot.
+            try (FileOutputStream out = new FileOutputStream(inFile, true)) {
+                out.write("def\n".getBytes(StandardCharsets.UTF_8));
+            }
+            String changed = CheckpointJournal.fingerprint(inFile, 100, Arrays.asList("a", "b"));
+            assertThat(changed, not(equalTo(fingerprint)));
+            checkRefused(journalFile, "md5Check", changed);
+            // Neither can a different command.
+            checkRefused(journalFile, "essential", fingerprint);
+        } finally {
+            journalFile.delete();
+            inFile.delete();
+        }
+    }
+
+    /**
+     * Verify that a journal cannot be resumed.
+     *
+     * @param journalFile	journal file
+     * @param command		command name
+     * @param fingerprint	parameter fingerprint
+     */
+    private static void checkRefused(File journalFile, String command, String fingerprint) {
+        long len = journalFile.length();
+        try {
+            CheckpointJournal journal = CheckpointJournal.open(journalFile, command, fingerprint);
+            journal.close();
+            fail("Journal resumed with the wrong fingerprint.");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("different command"));
+        }
+        assertThat(journalFile.length(), equalTo(len));
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadJournal() throws IOException {
+        File badFile = File.createTempFile("test", ".tbl");
+        try {
+            try (FileOutputStream out = new FileOutputStream(badFile)) {
+                out.write("role1\t10\n".getBytes(StandardCharsets.UTF_8));
+            }
+            CheckpointJournal.open(badFile, "test", "abc");
+        } finally {
+            badFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.SplittableRandom;
+
+/**
+ * Tests for the DNA mutator.
+ */
+public class DnaMutatorTest {
+
+    @Test
+    public void testSubstitutions() {
+        SplittableRandom rand = new SplittableRandom(17L);
+        byte[] dna = new byte[100000];
+        SynthDataProcessor.fillBases(rand, dna, dna.length);
+        DnaMutator mutator = new DnaMutator(0.0, 5);
+        int count = mutator.mutate(dna, 0, dna.length, 0.01, rand);
+        assertThat(count, allOf(greaterThan(800), lessThan(1200)));
+        // With substitutions only, the length is unchanged and every mutation changes one position.
+        byte[] result = mutator.getResult();
+        assertThat(result.length, equalTo(dna.length));
+        int diffs = 0;
+        for (int i = 0; i < dna.length; i++) {
+            if (dna[i] != result[i])
+                diffs++;
+        }
+        assertThat(diffs, equalTo(count));
+        // The same stream produces the same result from a sliced sequence.
+        SliceSequence seq = new SliceSequence("x", "", 1);
+        seq.add(dna, 0, dna.length);
+        DnaMutator other = new DnaMutator(0.0, 5);
+        assertThat(other.mutate(seq, 0.01, new SplittableRandom(99L)),
+                equalTo(mutator.mutate(dna, 0, dna.length, 0.01, new SplittableRandom(99L))));
+        assertThat(other.getResult(), equalTo(mutator.getResult()));
+        // Each slice of a multi-slice sequence is mutated separately.
+        seq.add(dna, 0, 500);
+        other.mutate(seq, 0.01, rand);
+        assertThat(other.getLength(), equalTo(dna.length + 500));
+        // A tiny rate usually leaves the DNA alone.
+        count = mutator.mutate(dna, 10, 100, 1e-9, rand);
+        assertThat(count, equalTo(0));
+        assertThat(mutator.getLength(), equalTo(100));
+    }
+
+    @Test
+    public void testIndels() {
+        SplittableRandom rand = new SplittableRandom(23L);
+        byte[] dna = new byte[200000];
+        SynthDataProcessor.fillBases(rand, dna, dna.length);
+        DnaMutator mutator = new DnaMutator(1.0, 3);
+        int count = mutator.mutate(dna, 0, dna.length, 0.005, rand);
+        assertThat(count, allOf(greaterThan(800), lessThan(1200)));
+        // Every mutation is an insertion or deletion of at most 3 bases.
+        int delta = Math.abs(mutator.getLength() - dna.length);
+        assertThat(delta, lessThanOrEqualTo(count * 3));
+        assertThat(mutator.getLength(), not(equalTo(dna.length)));
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the FASTA length index.
+ */
+public class FastaLengthIndexTest {
+
+    @Test
+    public void testIndex() throws IOException {
+        File dir = File.createTempFile("test", ".dir");
+        dir.delete();
+        dir.mkdir();
+        File fasta1 = new File(dir, "a.fna");
+        File fasta2 = new File(dir, "b.fna");
+        File indexFile = new File(dir, "contigs.tbl");
+        try {
+            try (PrintWriter writer = new PrintWriter(fasta1, StandardCharsets.UTF_8)) {
+                writer.println(">REP_100.1_a first contig");
+                writer.println("acgtacgtac");
+                writer.println("gtac");
+                writer.println(">REP_100.1_b");
+                writer.print(">REP_100.1_c\tcomment\r\nacg t\r\nAC\r\n");
+            }
+            try (PrintWriter writer = new PrintWriter(fasta2, StandardCharsets.UTF_8)) {
+                writer.print(">REP_200.2_x\nacgtn");
+            }
+            FastaLengthIndex index = FastaLengthIndex.load(indexFile);
+            index.update(Arrays.asList(fasta1, fasta2));
+            assertThat(index.getScanCount(), equalTo(2));
+            List<FastaLengthIndex.Record> records = index.getRecords("a.fna");
+            assertThat(records.size(), equalTo(3));
+            checkRecord(fasta1, records.get(0), "REP_100.1_a", 14);
+            checkRecord(fasta1, records.get(1), "REP_100.1_b", 0);
+            checkRecord(fasta1, records.get(2), "REP_100.1_c", 6);
+            records = index.getRecords("b.fna");
+            checkRecord(fasta2, records.get(0), "REP_200.2_x", 5);
+            index.save(indexFile);
+            // Reloading should not require a scan.
+            index = FastaLengthIndex.load(indexFile);
+            index.update(Arrays.asList(fasta1, fasta2));
+            assertThat(index.getScanCount(), equalTo(0));
+            assertThat(index.getRecords().size(), equalTo(4));
+            checkRecord(fasta1, index.getRecords("a.fna").get(2), "REP_100.1_c", 6);
+            // A changed file is rescanned, and a missing one is dropped.
+            try (PrintWriter writer = new PrintWriter(fasta2, StandardCharsets.UTF_8)) {
+                writer.print(">REP_200.2_y\nacgtnacgt\n");
+            }
+            index.update(Arrays.asList(fasta2));
+            assertThat(index.getScanCount(), equalTo(1));
+            assertThat(index.getRecords("a.fna"), empty());
+            checkRecord(fasta2, index.getRecords("b.fna").get(0), "REP_200.2_y", 9);
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Verify a record.
+     *
+     * @param file		source file
+     * @param record	record to check
+     * @param id		expected ID
+     * @param len		expected length
+     *
+     * @throws IOException
+     */
+    private static void checkRecord(File file, FastaLengthIndex.Record record, String id, long len) throws IOException {
+        assertThat(record.getId(), equalTo(id));
+        assertThat(record.getFile(), equalTo(file.getName()));
+        assertThat(record.getLength(), equalTo(len));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(record.getOffset());
+            assertThat(raf.readLine(), startsWith(">" + id));
+        }
+    }
+
+}
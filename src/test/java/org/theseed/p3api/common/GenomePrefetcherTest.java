@@ -0,0 +1,159 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.theseed.genome.Genome;
+
+/**
+ * Tests for the background genome prefetcher.
+ */
+public class GenomePrefetcherTest {
+
+    /**
+     * This is a genome source that cycles through a list of genomes.  It records how far it has run ahead of
+     * the consumer, and the thread on which it runs.
+     */
+    private static class TestSource implements Iterator<Genome> {
+
+        /** genomes to return */
+        private final List<Genome> genomes;
+        /** number of genomes to return, or -1 for no limit */
+        private final int limit;
+        /** number of genomes returned */
+        private int produced;
+        /** number of genomes taken by the consumer */
+        private final AtomicInteger consumed;
+        /** largest number of genomes returned but not yet consumed */
+        private int maxAhead;
+        /** index of a genome that should fail to load, or -1 for none */
+        private int failAt;
+        /** thread running the source */
+        private final AtomicReference<Thread> thread;
+
+        /**
+         * Construct a test source.
+         *
+         * @param genomes	genomes to cycle through
+         * @param limit		number of genomes to return, or -1 for no limit
+         */
+        protected TestSource(List<Genome> genomes, int limit) {
+            this.genomes = genomes;
+            this.limit = limit;
+            this.produced = 0;
+            this.consumed = new AtomicInteger();
+            this.maxAhead = 0;
+            this.failAt = -1;
+            this.thread = new AtomicReference<Thread>();
+        }
+
+        @Override
+        public boolean hasNext() {
+            this.thread.set(Thread.currentThread());
+            return (this.limit < 0 || this.produced < this.limit);
+        }
+
+        @Override
+        public Genome next() {
+            if (this.produced == this.failAt)
+                throw new IllegalStateException("Bad genome " + this.produced + ".");
+            this.maxAhead = Math.max(this.maxAhead, this.produced - this.consumed.get());
+            Genome retVal = this.genomes.get(this.produced % this.genomes.size());
+            this.produced++;
+            return retVal;
+        }
+
+    }
+
+    /**
+     * @return the test genomes
+     *
+     * @throws IOException
+     */
+    private static List<Genome> loadGenomes() throws IOException {
+        List<Genome> retVal = new ArrayList<Genome>();
+        retVal.add(new Genome(new File("data", "MG1655-wild.gto")));
+        retVal.add(new Genome(new File("data", "MG1655-ATCC21277.gto")));
+        return retVal;
+    }
+
+    @Test
+    public void testOrder() throws IOException {
+        List<Genome> genomes = loadGenomes();
+        TestSource source = new TestSource(genomes, 10);
+        try (GenomePrefetcher prefetcher = new GenomePrefetcher(source, 1L << 30)) {
+            for (int i = 0; i < 10; i++) {
+                assertThat(prefetcher.hasNext(), equalTo(true));
+                assertThat(prefetcher.next(), sameInstance(genomes.get(i % 2)));
+            }
+            assertThat(prefetcher.hasNext(), equalTo(false));
+        }
+    }
+
+    @Test
+    public void testOversized() throws IOException {
+        // Every genome is bigger than the budget, so only one at a time can be loaded ahead.
+        List<Genome> genomes = loadGenomes();
+        assertThat(GenomePrefetcher.estimateSize(genomes.get(0)), greaterThan(1000L));
+        TestSource source = new TestSource(genomes, 6);
+        try (GenomePrefetcher prefetcher = new GenomePrefetcher(source, 1000L)) {
+            int count = 0;
+            while (prefetcher.hasNext()) {
+                assertThat(prefetcher.next(), sameInstance(genomes.get(count % 2)));
+                count++;
+                source.consumed.incrementAndGet();
+            }
+            assertThat(count, equalTo(6));
+        }
+        assertThat(source.maxAhead, lessThanOrEqualTo(1));
+    }
+
+    @Test
+    public void testError() throws IOException {
+        List<Genome> genomes = loadGenomes();
+        TestSource source = new TestSource(genomes, 5);
+        source.failAt = 2;
+        try (GenomePrefetcher prefetcher = new GenomePrefetcher(source, 1L << 30)) {
+            // The genomes before the failure are still delivered.
+            assertThat(prefetcher.next(), sameInstance(genomes.get(0)));
+            assertThat(prefetcher.next(), sameInstance(genomes.get(1)));
+            try {
+                prefetcher.hasNext();
+                assertThat("Error not thrown by hasNext.", false);
+            } catch (IllegalStateException e) {
+                assertThat(e.getMessage(), equalTo("Bad genome 2."));
+            }
+            try {
+                prefetcher.next();
+                assertThat("Error not thrown by next.", false);
+            } catch (IllegalStateException e) {
+                assertThat(e.getMessage(), equalTo("Bad genome 2."));
+            }
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        // An endless source with a tiny budget leaves the loader waiting for room.
+        List<Genome> genomes = loadGenomes();
+        TestSource source = new TestSource(genomes, -1);
+        GenomePrefetcher prefetcher = new GenomePrefetcher(source, 1000L);
+        assertThat(prefetcher.next(), sameInstance(genomes.get(0)));
+        assertThat(prefetcher.next(), sameInstance(genomes.get(1)));
+        prefetcher.close();
+        Thread loader = source.thread.get();
+        loader.join(10000);
+        assertThat(loader.isAlive(), equalTo(false));
+        assertThat(source.produced, lessThanOrEqualTo(3));
+    }
+
+}
@@ -0,0 +1,114 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.theseed.genome.Genome;
+import org.theseed.proteins.kmers.reps.RepGenome;
+import org.theseed.proteins.kmers.reps.RepGenomeDb;
+
+/**
+ * Tests for the hammer-bin distance report.
+ */
+public class HammerCheckProcessorTest {
+
+    @Test
+    public void testThreads() throws IOException {
+        File dir = Files.createTempDirectory("hammer").toFile();
+        try {
+            // Build a P3Eval directory with two source genomes.  The third representative has no source genome,
+            // so its contigs are skipped.
+            File evalDir = new File(dir, "P3Eval");
+            File scatterDir = new File(evalDir, "Scatter");
+            scatterDir.mkdirs();
+            String[] reps = new String[] { "100.1", "100.2", "100.3" };
+            String[] files = new String[] { "MG1655-wild.gto", "MG1655-ATCC21277.gto" };
+            try (PrintWriter writer = new PrintWriter(new File(evalDir, "scatter.tbl"), StandardCharsets.UTF_8)) {
+                writer.println("rep200\tgenome_id");
+                for (int i = 0; i < files.length; i++) {
+                    File gtoFile = new File("data", files[i]);
+                    Genome genome = new Genome(gtoFile);
+                    FileUtils.copyFile(gtoFile, new File(scatterDir, genome.getId() + ".gto"));
+                    writer.println(reps[i] + "\t" + genome.getId());
+                }
+            }
+            Random rand = new Random(1234L);
+            RepGenomeDb repDb = new RepGenomeDb(200);
+            for (String rep : reps) {
+                StringBuilder prot = new StringBuilder(300);
+                for (int i = 0; i < 300; i++)
+                    prot.append("ACDEFGHIKLMNPQRSTVWY".charAt(rand.nextInt(20)));
+                repDb.addRep(new RepGenome("fig|" + rep + ".peg.1", "representative " + rep, prot.toString()));
+            }
+            repDb.save(new File(evalDir, "rep200.ser"));
+            // Create the FASTA files and the hammer results.  There are enough lines for several work chunks.
+            File fastaDir = new File(dir, "fasta");
+            fastaDir.mkdir();
+            File inFile = new File(dir, "hits.tbl");
+            int expected = 0;
+            try (PrintWriter hitWriter = new PrintWriter(inFile, StandardCharsets.UTF_8)) {
+                for (int f = 0; f < 10; f++) {
+                    try (PrintWriter writer = new PrintWriter(new File(fastaDir, "sample" + f + ".fna"))) {
+                        for (int c = 0; c < 100; c++) {
+                            String target = reps[rand.nextInt(reps.length)];
+                            String contigId = "REP_" + target + "_" + f + "_" + c;
+                            writer.println(">" + contigId);
+                            writer.println(StringUtils.repeat('a', 100 + rand.nextInt(900)));
+                            if (! target.equals("100.3"))
+                                expected++;
+                            if (rand.nextInt(5) == 0)
+                                hitWriter.println(contigId);
+                            else
+                                hitWriter.format("%s\t%s\t%d%n", contigId, reps[rand.nextInt(reps.length)],
+                                        rand.nextInt(300));
+                        }
+                    }
+                }
+            }
+            // Run the report with one thread and with several.
+            byte[][] outputs = new byte[2][];
+            int[] threadCounts = new int[] { 1, 4 };
+            for (int t = 0; t < threadCounts.length; t++) {
+                File outFile = new File(dir, "report" + threadCounts[t] + ".tbl");
+                String[] args = new String[] { "--threads", String.valueOf(threadCounts[t]), "--cacheSize", "4",
+                        "-i", inFile.toString(), "-o", outFile.toString(), fastaDir.toString(), evalDir.toString() };
+                HammerCheckProcessor processor = new HammerCheckProcessor();
+                assertThat(processor.parseCommand(args), equalTo(true));
+                processor.run();
+                outputs[t] = Files.readAllBytes(outFile.toPath());
+            }
+            assertThat(outputs[1], equalTo(outputs[0]));
+            List<String> lines = Files.readAllLines(new File(dir, "report1.tbl").toPath());
+            assertThat(lines.get(0), startsWith("source_file\tcontig_id\t"));
+            assertThat(lines.size(), equalTo(expected + 1));
+            for (String line : lines.subList(1, lines.size()))
+                assertThat(line, not(containsString("REP_100.3_")));
+            // Block the contig index with a directory.  The index cannot be saved, but the report is still produced.
+            File indexFile = new File(dir, "fasta.contigs.tbl");
+            assertThat(indexFile.isFile(), equalTo(true));
+            indexFile.delete();
+            indexFile.mkdir();
+            FileUtils.touch(new File(indexFile, "blocker"));
+            File outFile = new File(dir, "report.blocked.tbl");
+            HammerCheckProcessor processor = new HammerCheckProcessor();
+            assertThat(processor.parseCommand(new String[] { "--rescan", "-i", inFile.toString(), "-o",
+                    outFile.toString(), fastaDir.toString(), evalDir.toString() }), equalTo(true));
+            processor.run();
+            assertThat(Files.readAllBytes(outFile.toPath()), equalTo(outputs[0]));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+}
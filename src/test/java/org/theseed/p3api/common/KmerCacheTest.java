@@ -0,0 +1,113 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for the k-mer cache.
+ */
+public class KmerCacheTest {
+
+    @Test
+    public void testCache() throws IOException {
+        File cacheFile = File.createTempFile("test", ".cache");
+        cacheFile.delete();
+        try {
+            String seq1 = "aaccgtacgttgcaaggtcaacgtacgtacgtta";
+            String seq2 = "ttgacctagcatgcaaggtcaacgggacgtacgta";
+            byte[] md5a = KmerCache.md5(seq1);
+            byte[] md5b = KmerCache.md5(seq2);
+            MinHashSketch sketch1 = new MinHashSketch(seq1, 8, 10, 4);
+            KmerCache cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 10, 4);
+            assertThat(cache.get(md5a), nullValue());
+            cache.put(md5a, sketch1.getHashes(), sketch1.getBins());
+            cache.save();
+            // Reopen and add a second sequence.
+            cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 10, 4);
+            long[][] saved = cache.get(md5a);
+            assertThat(saved[0], equalTo(sketch1.getHashes()));
+            assertThat(saved[1], equalTo(sketch1.getBins()));
+            MinHashSketch loaded = new MinHashSketch(8, saved[0], saved[1]);
+            assertThat(loaded.distance(sketch1), equalTo(0.0));
+            assertThat(cache.get(md5b), nullValue());
+            PackedDnaKmers kmers2 = new PackedDnaKmers(seq2, 8);
+            cache.put(md5b, kmers2.getKmers(), new long[0]);
+            cache.save();
+            cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 10, 4);
+            assertThat(cache.get(md5a)[0], equalTo(sketch1.getHashes()));
+            assertThat(cache.get(md5b)[0], equalTo(kmers2.getKmers()));
+            assertThat(cache.getHits(), equalTo(2L));
+            // Different parameters invalidate the cache.
+            cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 12, 4);
+            assertThat(cache.get(md5a), nullValue());
+            // So does damage.
+            try (FileOutputStream out = new FileOutputStream(cacheFile, true)) {
+                out.write(new byte[] { 1, 2, 3 });
+            }
+            cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 10, 4);
+            assertThat(cache.get(md5a), nullValue());
+            // A disabled cache never hits.
+            cache = KmerCache.open(null, KmerCache.PACKED, 8, 0, 0);
+            cache.put(md5a, kmers2.getKmers());
+            cache.save();
+            assertThat(cache.get(md5a), nullValue());
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    @Test
+    public void testChunks() throws IOException {
+        File cacheFile = File.createTempFile("test", ".cache");
+        File oldFile = new File(cacheFile.getPath() + ".old");
+        cacheFile.delete();
+        try {
+            // Build a cache with a lot of odd-sized entries.
+            KmerCache cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 10, 4);
+            long[][][] entries = new long[50][][];
+            for (int i = 0; i < entries.length; i++) {
+                long[] hashes = new long[i % 7];
+                for (int j = 0; j < hashes.length; j++)
+                    hashes[j] = i * 1000L + j;
+                entries[i] = new long[][] { hashes, new long[] { -i } };
+                cache.put(KmerCache.md5("seq" + i), entries[i]);
+            }
+            cache.save();
+            // Read it back with tiny chunks, so that integers, MD5s, and arrays all straddle chunk boundaries.
+            for (int chunkSize : new int[] { 5, 13, 64, 1 << 20 }) {
+                cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 10, 4, chunkSize);
+                for (int i = 0; i < entries.length; i++) {
+                    long[][] saved = cache.get(KmerCache.md5("seq" + i));
+                    assertThat(saved[0], equalTo(entries[i][0]));
+                    assertThat(saved[1], equalTo(entries[i][1]));
+                }
+            }
+            // Saving through a chunked cache keeps the old entries.
+            cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 10, 4, 13);
+            cache.put(KmerCache.md5("extra"), new long[] { 1, 2 }, new long[] { 3 });
+            cache.save();
+            cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 10, 4);
+            assertThat(cache.get(KmerCache.md5("extra"))[0], equalTo(new long[] { 1, 2 }));
+            assertThat(cache.get(KmerCache.md5("seq49"))[0], equalTo(entries[49][0]));
+            // A cache for other parameters is preserved rather than overwritten.
+            long oldLength = cacheFile.length();
+            cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 12, 4);
+            cache.put(KmerCache.md5("other"), new long[] { 4 }, new long[] { 5 });
+            cache.save();
+            assertThat(oldFile.length(), equalTo(oldLength));
+            cache = KmerCache.open(oldFile, KmerCache.SKETCHES, 8, 10, 4);
+            assertThat(cache.get(KmerCache.md5("extra"))[1], equalTo(new long[] { 3 }));
+            cache = KmerCache.open(cacheFile, KmerCache.SKETCHES, 8, 12, 4);
+            assertThat(cache.get(KmerCache.md5("other"))[0], equalTo(new long[] { 4 }));
+        } finally {
+            cacheFile.delete();
+            oldFile.delete();
+        }
+    }
+
+}
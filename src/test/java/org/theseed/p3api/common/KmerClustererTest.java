@@ -0,0 +1,53 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for greedy centroid clustering.
+ */
+public class KmerClustererTest {
+
+    @Test
+    public void testClusters() {
+        Random rand = new Random(1042L);
+        // Build three families of near-identical sequences, interleaved.
+        String[] bases = new String[3];
+        for (int f = 0; f < bases.length; f++) {
+            StringBuilder base = new StringBuilder();
+            for (int i = 0; i < 3000; i++)
+                base.append("acgt".charAt(rand.nextInt(4)));
+            bases[f] = base.toString();
+        }
+        List<PackedDnaKmers> kmers = new ArrayList<PackedDnaKmers>();
+        for (int s = 0; s < 60; s++) {
+            char[] seq = bases[s % 3].toCharArray();
+            for (int i = 0; i < seq.length; i++) {
+                if (rand.nextDouble() < 0.002)
+                    seq[i] = "acgt".charAt(rand.nextInt(4));
+            }
+            kmers.add(new PackedDnaKmers(new String(seq), 15));
+        }
+        KmerClusterer clusterer = new KmerClusterer(0.3);
+        for (int s = 0; s < kmers.size(); s++) {
+            KmerClusterer.Assignment assignment = clusterer.add(s, kmers.get(s));
+            assertThat(assignment.getCluster(), equalTo(s % 3));
+            assertThat(assignment.getCentroidId(), equalTo(s % 3));
+            assertThat(assignment.getDistance(), closeTo(kmers.get(s).distance(kmers.get(s % 3)), 1e-12));
+            assertThat(assignment.getDistance(), lessThanOrEqualTo(0.3));
+        }
+        assertThat(clusterer.getClusterCount(), equalTo(3));
+        // Each sequence is only compared to its own centroid.
+        assertThat(clusterer.getCandidateCount(), equalTo(57L));
+        // A tight threshold makes every sequence its own cluster.
+        clusterer = new KmerClusterer(0.0);
+        for (int s = 0; s < 6; s++)
+            assertThat(clusterer.add(s, kmers.get(s)).getCluster(), equalTo(s));
+    }
+
+}
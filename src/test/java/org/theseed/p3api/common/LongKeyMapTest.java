@@ -0,0 +1,55 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for the long-keyed hash map.
+ */
+public class LongKeyMapTest {
+
+    @Test
+    public void testMap() {
+        LongKeyMap<String> map = new LongKeyMap<String>(4);
+        assertThat(map.size(), equalTo(0));
+        assertThat(map.get(0L), nullValue());
+        map.put(0L, "zero");
+        map.put(-1L, "minus one");
+        map.put(Long.MIN_VALUE, "min");
+        assertThat(map.get(0L), equalTo("zero"));
+        assertThat(map.get(-1L), equalTo("minus one"));
+        assertThat(map.get(Long.MIN_VALUE), equalTo("min"));
+        assertThat(map.get(1L), nullValue());
+        map.put(0L, "nothing");
+        assertThat(map.get(0L), equalTo("nothing"));
+        assertThat(map.size(), equalTo(3));
+        try {
+            map.put(2L, null);
+            assertThat("Null value accepted.", false);
+        } catch (IllegalArgumentException e) {
+            // This is expected.
+        }
+        // Fill the map well past its initial capacity and compare it to a standard map.  Half the keys are
+        // consecutive, which is the worst case for a weak hash.
+        Random rand = new Random(1234L);
+        Map<Long, String> expected = new HashMap<Long, String>();
+        LongKeyMap<String> big = new LongKeyMap<String>(10);
+        for (int i = 0; i < 50000; i++) {
+            long key = (i % 2 == 0 ? i : rand.nextLong());
+            String value = "v" + i;
+            expected.put(key, value);
+            big.put(key, value);
+        }
+        assertThat(big.size(), equalTo(expected.size()));
+        for (Map.Entry<Long, String> entry : expected.entrySet())
+            assertThat(big.get(entry.getKey()), equalTo(entry.getValue()));
+        for (int i = 0; i < 1000; i++)
+            assertThat(big.get(-1000L - i), nullValue());
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for the least-recently-used cache.
+ */
+public class LruCacheTest {
+
+    @Test
+    public void testEviction() {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(3);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        // Using "a" makes "b" the oldest entry.
+        assertThat(cache.get("a"), equalTo(1));
+        cache.put("d", 4);
+        assertThat(cache.size(), equalTo(3));
+        assertThat(cache.get("b"), nullValue());
+        assertThat(cache.get("a"), equalTo(1));
+        assertThat(cache.get("c"), equalTo(3));
+        assertThat(cache.get("d"), equalTo(4));
+        assertThat(cache.getHits(), equalTo(4L));
+        assertThat(cache.getMisses(), equalTo(1L));
+        assertThat(cache.getHitRate(), closeTo(0.8, 1e-9));
+        // Shrinking discards the oldest entries.
+        cache.setCapacity(1);
+        assertThat(cache.getCapacity(), equalTo(1));
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.get("d"), equalTo(4));
+        cache.remove("d");
+        assertThat(cache.get("d"), nullValue());
+        cache.put("e", 5);
+        cache.clear();
+        assertThat(cache.size(), equalTo(0));
+        assertThat(cache.getHits(), equalTo(5L));
+    }
+
+    @Test
+    public void testDisabled() {
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(0);
+        cache.put("a", 1);
+        assertThat(cache.size(), equalTo(0));
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.getHitRate(), equalTo(0.0));
+    }
+
+}
@@ -0,0 +1,120 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for MinHash sketches and the LSH index.
+ */
+public class MinHashSketchTest {
+
+    /**
+     * @return a random DNA sequence
+     *
+     * @param rand	random-number generator
+     * @param len	length of the sequence
+     */
+    private static String randomDna(Random rand, int len) {
+        StringBuilder retVal = new StringBuilder(len);
+        for (int i = 0; i < len; i++)
+            retVal.append("acgt".charAt(rand.nextInt(4)));
+        return retVal.toString();
+    }
+
+    /**
+     * @return a copy of a DNA sequence with point mutations
+     *
+     * @param rand	random-number generator
+     * @param seq	sequence to mutate
+     * @param rate	fraction of positions to change
+     */
+    private static String mutate(Random rand, String seq, double rate) {
+        char[] retVal = seq.toCharArray();
+        for (int i = 0; i < retVal.length; i++) {
+            if (rand.nextDouble() < rate)
+                retVal[i] = "acgt".charAt(rand.nextInt(4));
+        }
+        return new String(retVal);
+    }
+
+    /**
+     * @return the exact Jaccard distance between the canonical k-mer sets of two sequences
+     */
+    private static double exactDistance(String a, String b, int k) {
+        Set<String> aSet = kmers(a, k);
+        Set<String> bSet = kmers(b, k);
+        Set<String> union = new HashSet<String>(aSet);
+        union.addAll(bSet);
+        aSet.retainAll(bSet);
+        return 1.0 - (double) aSet.size() / union.size();
+    }
+
+    private static Set<String> kmers(String seq, int k) {
+        Set<String> retVal = new HashSet<String>();
+        for (int i = 0; i + k <= seq.length(); i++) {
+            String fwd = seq.substring(i, i + k);
+            StringBuilder rev = new StringBuilder(k);
+            for (int j = k - 1; j >= 0; j--)
+                rev.append("tgca".charAt("acgt".indexOf(fwd.charAt(j))));
+            String revString = rev.toString();
+            retVal.add(fwd.compareTo(revString) <= 0 ? fwd : revString);
+        }
+        return retVal;
+    }
+
+    @Test
+    public void testEstimates() {
+        Random rand = new Random(1042L);
+        String base = randomDna(rand, 20000);
+        MinHashSketch baseSketch = new MinHashSketch(base, 15, 1000, 0);
+        assertThat(baseSketch.size(), equalTo(1000));
+        assertThat(baseSketch.distance(new MinHashSketch(base.toUpperCase(), 15, 1000, 0)), equalTo(0.0));
+        // The error bound is a 95% bound, so we allow some slack to keep the test deterministic in practice.
+        double bound = MinHashSketch.errorBound(1000) * 1.5;
+        for (double rate : new double[] { 0.005, 0.02, 0.05 }) {
+            String other = mutate(rand, base, rate);
+            double exact = exactDistance(base, other, 15);
+            double estimate = baseSketch.distance(new MinHashSketch(other, 15, 1000, 0));
+            assertThat(Math.abs(exact - estimate), lessThan(bound));
+        }
+        // A sequence with only ambiguity characters has an empty sketch.
+        assertThat(new MinHashSketch("nnnnnnnnnnnnnnnnnnnnnnnn", 15, 1000, 0).size(), equalTo(0));
+    }
+
+    @Test
+    public void testLsh() {
+        Random rand = new Random(1042L);
+        int[] layout = MinHashIndex.chooseBands(0.5, 256);
+        assertThat(layout, notNullValue());
+        assertThat(layout[0] * layout[1], lessThanOrEqualTo(256));
+        assertThat(MinHashIndex.chooseBands(1.0, 256), nullValue());
+        // Build five families of three close sequences each.
+        List<MinHashSketch> sketches = new ArrayList<MinHashSketch>();
+        for (int f = 0; f < 5; f++) {
+            String base = randomDna(rand, 5000);
+            for (int m = 0; m < 3; m++)
+                sketches.add(new MinHashSketch(mutate(rand, base, 0.01), 15, 500, layout[0] * layout[1]));
+        }
+        MinHashIndex index = new MinHashIndex(sketches, layout[0], layout[1]);
+        for (int i = 0; i < sketches.size(); i++) {
+            int[] candidates = index.candidates(sketches.get(i), i);
+            Set<Integer> found = new HashSet<Integer>();
+            for (int j : candidates) {
+                assertThat(j, greaterThan(i));
+                found.add(j);
+            }
+            // Every later member of the family should be a candidate.
+            int familyEnd = (i / 3 + 1) * 3;
+            for (int j = i + 1; j < familyEnd; j++)
+                assertThat(found, hasItem(j));
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the pipelined PATRIC request executor.
+ */
+public class P3RequestExecutorTest {
+
+    @Test
+    public void testOrderAndRetry() throws Exception {
+        for (int inFlight : new int[] { 1, 4 }) {
+            List<Integer> results = new ArrayList<Integer>();
+            AtomicInteger failures = new AtomicInteger();
+            try (P3RequestExecutor<Integer> executor = new P3RequestExecutor<Integer>(inFlight, 2, 1, results::add)) {
+                for (int i = 0; i < 100; i++) {
+                    final int n = i;
+                    if (n % 10 == 5)
+                        executor.submitResult(n);
+                    else {
+                        // Every seventh request fails once before it succeeds.
+                        final AtomicInteger tries = new AtomicInteger();
+                        executor.submit(() -> {
+                            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                            if (n % 7 == 0 && tries.getAndIncrement() == 0) {
+                                failures.incrementAndGet();
+                                throw new IOException("transient failure");
+                            }
+                            return n;
+                        });
+                    }
+                }
+                executor.finish();
+                assertThat(executor.getRetries(), equalTo(failures.get()));
+            }
+            assertThat(results.size(), equalTo(100));
+            for (int i = 0; i < results.size(); i++)
+                assertThat(results.get(i), equalTo(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testExhaustedRetries() throws Exception {
+        try (P3RequestExecutor<Integer> executor = new P3RequestExecutor<Integer>(3, 2, 1, x -> { })) {
+            executor.submit(() -> 1);
+            executor.submit(() -> { throw new IOException("permanent failure"); });
+            executor.finish();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoRetry() throws Exception {
+        AtomicInteger tries = new AtomicInteger();
+        try (P3RequestExecutor<Integer> executor = new P3RequestExecutor<Integer>(1, 5, 1000, x -> { })) {
+            executor.submit(() -> {
+                tries.incrementAndGet();
+                throw new IllegalStateException("offline cache miss");
+            });
+        } finally {
+            assertThat(tries.get(), equalTo(1));
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import org.theseed.sequence.DnaKmers;
+
+/**
+ * Tests for packed k-mer sets.
+ */
+public class PackedDnaKmersTest {
+
+    @Test
+    public void testDistances() {
+        String seq1 = "aaccgtacgttgcaaggtcaacgtnacgtacgtta";
+        // The reverse complement of a sequence has the same canonical k-mers.
+        String seq2 = "TAACGTACGTNACGTTGACCTTGCAACGTACGGTT";
+        PackedDnaKmers kmers1 = new PackedDnaKmers(seq1, 8);
+        PackedDnaKmers kmers2 = new PackedDnaKmers(seq2, 8);
+        assertThat(kmers1.size(), equalTo(kmers2.size()));
+        assertThat(kmers1.similarity(kmers2), equalTo(kmers1.size()));
+        assertThat(kmers1.distance(kmers2), closeTo(0.0, 1e-9));
+        // The ambiguity character removes the k-mers that span it.
+        PackedDnaKmers kmers3 = new PackedDnaKmers("acgtnacgt", 4);
+        assertThat(kmers3.size(), equalTo(1));
+        PackedDnaKmers kmers4 = new PackedDnaKmers("tttttttttt", 4);
+        assertThat(kmers3.similarity(kmers4), equalTo(0));
+        assertThat(kmers3.distance(kmers4), equalTo(1.0));
+        PackedDnaKmers kmers5 = new PackedDnaKmers("aaaaacgt", 4);
+        assertThat(kmers5.similarity(kmers3), equalTo(1));
+        assertThat(kmers5.distance(kmers3), closeTo(0.75, 1e-9));
+    }
+
+    @Test
+    public void testCompatibility() {
+        // Build a contig-sized random sequence and mutants of it at a range of rates, so the distances run from
+        // zero to nearly one.
+        Random rand = new Random(1234L);
+        StringBuilder buffer = new StringBuilder(20000);
+        for (int i = 0; i < 20000; i++)
+            buffer.append("acgt".charAt(rand.nextInt(4)));
+        String original = buffer.toString();
+        byte[] dna = original.getBytes();
+        DnaMutator mutator = new DnaMutator(0.1, 3);
+        SplittableRandom mutRand = new SplittableRandom(42L);
+        final int k = DnaKmers.kmerSize();
+        DnaKmers oldKmers = new DnaKmers(original);
+        PackedDnaKmers packedKmers = new PackedDnaKmers(original, k);
+        for (double rate : new double[] { 0.0, 0.001, 0.01, 0.05, 0.2 }) {
+            mutator.mutate(dna, 0, dna.length, rate, mutRand);
+            String mutant = new String(mutator.getResult());
+            double expected = oldKmers.distance(new DnaKmers(mutant));
+            double actual = packedKmers.distance(new PackedDnaKmers(mutant, k));
+            // The packed sets only differ in counting palindromic k-mers once, which is rare in real-length
+            // sequences (and impossible for odd k), so the distances must agree to within 0.01.
+            assertThat(String.valueOf(rate), actual, closeTo(expected, 0.01));
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Tests for the tiled pairwise distance engine.
+ */
+public class PairwiseDistanceEngineTest {
+
+    @Test
+    public void testTriangleAndFull() throws Exception {
+        Random rand = new Random(1042L);
+        List<Double> items = IntStream.range(0, 203).mapToObj(i -> rand.nextDouble()).collect(Collectors.toList());
+        double expectedMax = 0.0;
+        for (int i = 0; i < items.size(); i++)
+            for (int j = i + 1; j < items.size(); j++)
+                expectedMax = Math.max(expectedMax, Math.abs(items.get(i) - items.get(j)));
+        PairwiseDistanceEngine<Double> engine = new PairwiseDistanceEngine<Double>(items, (a, b) -> Math.abs(a - b), 4);
+        engine.setTileSize(16);
+        // Triangle mode:  each row has the distances to the later items.
+        int[] next = new int[] { 0 };
+        double max = engine.run(false, (row, firstCol, dists) -> {
+            assertThat(row, equalTo(next[0]++));
+            assertThat(firstCol, equalTo(row + 1));
+            assertThat(dists.length, equalTo(items.size() - row - 1));
+            for (int k = 0; k < dists.length; k++)
+                assertThat(dists[k], equalTo(Math.abs(items.get(row) - items.get(firstCol + k))));
+        });
+        assertThat(next[0], equalTo(items.size()));
+        assertThat(max, equalTo(expectedMax));
+        assertThat(engine.getPairCount(), equalTo(203L * 202L / 2));
+        // Full mode:  each row has the distances to every item.
+        next[0] = 0;
+        max = engine.run(true, (row, firstCol, dists) -> {
+            assertThat(row, equalTo(next[0]++));
+            assertThat(firstCol, equalTo(0));
+            assertThat(dists.length, equalTo(items.size()));
+            assertThat(dists[row], equalTo(0.0));
+            for (int k = 0; k < dists.length; k++)
+                assertThat(dists[k], equalTo(Math.abs(items.get(row) - items.get(k))));
+        });
+        assertThat(next[0], equalTo(items.size()));
+        assertThat(max, equalTo(expectedMax));
+    }
+
+}
@@ -0,0 +1,141 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Tests for the parallel work driver.
+ */
+public class ParallelDriverTest {
+
+    @Test
+    public void testOrderAndMerge() throws Exception {
+        List<Integer> items = IntStream.range(0, 500).boxed().collect(Collectors.toList());
+        for (int threads : new int[] { 1, 4 }) {
+            ParallelDriver<long[]> driver = new ParallelDriver<long[]>(threads, () -> new long[1]);
+            List<Integer> results = new ArrayList<Integer>();
+            driver.run(items, (i, sum) -> {
+                // Random delays make the workers finish out of order.
+                Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                sum[0] += i;
+                return i * 2;
+            }, results::add);
+            assertThat(results.size(), equalTo(items.size()));
+            for (int i = 0; i < results.size(); i++)
+                assertThat(results.get(i), equalTo(i * 2));
+            assertThat(driver.getStates().size(), lessThanOrEqualTo(threads));
+            long total = driver.getStates().stream().mapToLong(x -> x[0]).sum();
+            assertThat(total, equalTo(499L * 500L / 2));
+        }
+    }
+
+    @Test
+    public void testVirtual() throws Exception {
+        // On a runtime without virtual threads, this falls back to a platform pool.
+        List<Integer> items = IntStream.range(0, 300).boxed().collect(Collectors.toList());
+        ParallelDriver<long[]> driver = new ParallelDriver<long[]>(50, () -> new long[1], true);
+        List<Integer> results = new ArrayList<Integer>();
+        driver.run(items, (i, sum) -> {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+            sum[0] += i;
+            return i + 1;
+        }, results::add);
+        for (int i = 0; i < results.size(); i++)
+            assertThat(results.get(i), equalTo(i + 1));
+        assertThat(results.size(), equalTo(300));
+        assertThat(driver.getStates().size(), lessThanOrEqualTo(50));
+        long total = driver.getStates().stream().mapToLong(x -> x[0]).sum();
+        assertThat(total, equalTo(299L * 300L / 2));
+    }
+
+    @Test
+    public void testStdio() throws Exception {
+        ThreadStdio.install();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, true);
+        ThreadStdio.set(System.in, out, out);
+        try {
+            // Worker threads must write to the calling thread's streams.
+            ParallelDriver<Void> driver = new ParallelDriver<Void>(3, () -> null);
+            driver.run(List.of(1, 2, 3, 4, 5, 6), (i, x) -> {
+                System.out.println("worker " + i);
+                return i;
+            }, i -> System.out.println("sink " + i));
+            String[] lines = buffer.toString().split("\n");
+            assertThat(lines.length, equalTo(12));
+            // A thread we create without streams must not inherit them.
+            AtomicBoolean inherited = new AtomicBoolean();
+            Thread other = new Thread(() -> inherited.set(ThreadStdio.current() != null));
+            other.start();
+            other.join();
+            assertThat(inherited.get(), equalTo(false));
+            // Lines written to the system streams must not force a flush of the thread's streams.
+            AtomicInteger flushes = new AtomicInteger();
+            PrintStream counted = new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) { }
+
+                @Override
+                public void flush() {
+                    flushes.incrementAndGet();
+                }
+            }, false);
+            ThreadStdio.set(System.in, counted, counted);
+            System.out.println("line 1");
+            System.out.println("line 2");
+            System.err.println("error");
+            assertThat(flushes.get(), equalTo(0));
+            System.out.flush();
+            assertThat(flushes.get(), equalTo(1));
+        } finally {
+            ThreadStdio.reset();
+        }
+        assertThat(ThreadStdio.current(), nullValue());
+    }
+
+    @Test
+    public void testVirtualOneThread() throws Exception {
+        // With one thread, virtual mode must still run the items concurrently, up to the request limit.
+        CachedP3Connection.setRequestLimit(4);
+        try {
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            List<Integer> results = new ArrayList<Integer>();
+            ParallelDriver<Void> driver = new ParallelDriver<Void>(1, () -> null, true);
+            driver.run(IntStream.range(0, 40).boxed().collect(Collectors.toList()), (i, x) -> {
+                int n = running.incrementAndGet();
+                maxRunning.accumulateAndGet(n, Math::max);
+                Thread.sleep(20);
+                running.decrementAndGet();
+                return i;
+            }, results::add);
+            assertThat(results, equalTo(IntStream.range(0, 40).boxed().collect(Collectors.toList())));
+            assertThat(maxRunning.get(), greaterThan(1));
+            assertThat(maxRunning.get(), lessThanOrEqualTo(4));
+        } finally {
+            CachedP3Connection.setRequestLimit(0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailure() throws Exception {
+        ParallelDriver<Void> driver = new ParallelDriver<Void>(3, () -> null);
+        driver.run(List.of(1, 2, 3, 4, 5), (i, x) -> {
+            if (i == 3) throw new IllegalArgumentException("bad item");
+            return i;
+        }, x -> { });
+    }
+
+}
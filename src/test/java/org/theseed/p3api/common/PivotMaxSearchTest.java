@@ -0,0 +1,64 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for the pivot-based maximum-distance search.
+ */
+public class PivotMaxSearchTest {
+
+    @Test
+    public void testPoints() throws Exception {
+        Random rand = new Random(1042L);
+        // Points in a plane with Euclidean distance.
+        List<double[]> points = new ArrayList<double[]>();
+        for (int i = 0; i < 500; i++)
+            points.add(new double[] { rand.nextGaussian(), rand.nextGaussian() * 0.3 });
+        PairwiseDistanceEngine.Measure<double[]> measure = (a, b) -> Math.hypot(a[0] - b[0], a[1] - b[1]);
+        double expected = 0.0;
+        for (int i = 0; i < points.size(); i++)
+            for (int j = i + 1; j < points.size(); j++)
+                expected = Math.max(expected, measure.distance(points.get(i), points.get(j)));
+        PivotMaxSearch<double[]> search = new PivotMaxSearch<double[]>(points, measure, 4);
+        for (int pivots : new int[] { 1, 4, 16 }) {
+            double max = search.run(pivots);
+            assertThat(max, equalTo(expected));
+            assertThat(measure.distance(points.get(search.getFirst()), points.get(search.getSecond())), equalTo(max));
+            assertThat(search.getEvaluations(), lessThan(500L * 499L / 2));
+        }
+    }
+
+    @Test
+    public void testKmers() throws Exception {
+        Random rand = new Random(1042L);
+        List<PackedDnaKmers> kmers = new ArrayList<PackedDnaKmers>();
+        StringBuilder base = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            base.append("acgt".charAt(rand.nextInt(4)));
+        for (int s = 0; s < 60; s++) {
+            char[] seq = base.toString().toCharArray();
+            double rate = rand.nextDouble() * 0.1;
+            for (int i = 0; i < seq.length; i++) {
+                if (rand.nextDouble() < rate)
+                    seq[i] = "acgt".charAt(rand.nextInt(4));
+            }
+            kmers.add(new PackedDnaKmers(new String(seq), 12));
+        }
+        PivotMaxSearch<PackedDnaKmers> search = new PivotMaxSearch<PackedDnaKmers>(kmers, (a, b) -> a.distance(b), 3);
+        double max = search.run(8);
+        PairwiseDistanceEngine<PackedDnaKmers> engine = new PairwiseDistanceEngine<PackedDnaKmers>(kmers,
+                (a, b) -> a.distance(b), 3);
+        assertThat(max, equalTo(engine.run(false, (row, firstCol, dists) -> { })));
+        // A single item has no pairs.
+        search = new PivotMaxSearch<PackedDnaKmers>(kmers.subList(0, 1), (a, b) -> a.distance(b), 3);
+        assertThat(search.run(8), equalTo(0.0));
+        assertThat(search.getFirst(), equalTo(-1));
+    }
+
+}
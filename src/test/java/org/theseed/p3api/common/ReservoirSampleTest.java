@@ -0,0 +1,40 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Random;
+
+/**
+ * Tests for reservoir sampling.
+ */
+public class ReservoirSampleTest {
+
+    @Test
+    public void testSample() {
+        Random rand = new Random(1234L);
+        ReservoirSample<Integer> sample = new ReservoirSample<Integer>(10, rand);
+        assertThat(sample.pick(rand), nullValue());
+        for (int i = 0; i < 5; i++)
+            sample.offer(i);
+        assertThat(sample.size(), equalTo(5));
+        // Before the reservoir fills, every item is kept.
+        for (int i = 0; i < 20; i++)
+            assertThat(sample.pick(rand), lessThan(5));
+        // Offer many items and verify the sample is bounded and roughly uniform.
+        int[] counts = new int[10];
+        for (int trial = 0; trial < 2000; trial++) {
+            sample = new ReservoirSample<Integer>(10, rand);
+            for (int i = 0; i < 100; i++)
+                sample.offer(i);
+            assertThat(sample.size(), equalTo(10));
+            assertThat(sample.getSeen(), equalTo(100L));
+            counts[sample.pick(rand) / 10]++;
+        }
+        // Each decile should be picked about 200 times.
+        for (int count : counts)
+            assertThat(count, allOf(greaterThan(120), lessThan(280)));
+    }
+
+}
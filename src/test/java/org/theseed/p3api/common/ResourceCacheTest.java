@@ -0,0 +1,135 @@
+package org.theseed.p3api.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for the shared resource cache.
+ */
+public class ResourceCacheTest {
+
+    /** temporary directory for test files */
+    private File tempDir;
+
+    @Before
+    public void setup() throws IOException {
+        this.tempDir = Files.createTempDirectory("rcache").toFile();
+        ResourceCache.clear();
+        ResourceCache.setCapacity(10);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        ResourceCache.clear();
+        ResourceCache.setCapacity(0);
+        FileUtils.deleteDirectory(this.tempDir);
+    }
+
+    @Test
+    public void testFileStamps() throws IOException {
+        File file = new File(this.tempDir, "data.txt");
+        FileUtils.writeStringToFile(file, "version 1", StandardCharsets.UTF_8);
+        AtomicInteger loads = new AtomicInteger();
+        ResourceCache.Loader<String> loader = () -> {
+            loads.incrementAndGet();
+            return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        };
+        assertThat(ResourceCache.get("text", loader, file), equalTo("version 1"));
+        assertThat(ResourceCache.get("text", loader, file), equalTo("version 1"));
+        assertThat(loads.get(), equalTo(1));
+        // A different type is a different resource.
+        ResourceCache.get("text2", loader, file);
+        assertThat(loads.get(), equalTo(2));
+        // Changing the file forces a reload.
+        FileUtils.writeStringToFile(file, "version 22", StandardCharsets.UTF_8);
+        assertThat(ResourceCache.get("text", loader, file), equalTo("version 22"));
+        assertThat(loads.get(), equalTo(3));
+    }
+
+    @Test
+    public void testDirectoryStamps() throws IOException {
+        File dir = new File(this.tempDir, "genomes");
+        File sub = new File(dir, "sub");
+        sub.mkdirs();
+        File gto = new File(sub, "83333.1.gto");
+        FileUtils.writeStringToFile(gto, "{ \"id\": \"83333.1\" }", StandardCharsets.UTF_8);
+        gto.setLastModified(1000000000000L);
+        long dirTime = dir.lastModified();
+        long[] stamps1 = ResourceCache.computeStamps(new File[] { dir });
+        AtomicInteger loads = new AtomicInteger();
+        ResourceCache.Loader<Integer> loader = () -> loads.incrementAndGet();
+        ResourceCache.get("GenomeSource.DIR", loader, dir);
+        ResourceCache.get("GenomeSource.DIR", loader, dir);
+        assertThat(loads.get(), equalTo(1));
+        // Rewrite the GTO in place with the same length.  The directory times do not change.
+        FileUtils.writeStringToFile(gto, "{ \"id\": \"83333.2\" }", StandardCharsets.UTF_8);
+        gto.setLastModified(1000000005000L);
+        dir.setLastModified(dirTime);
+        assertThat(ResourceCache.computeStamps(new File[] { dir }), not(equalTo(stamps1)));
+        ResourceCache.get("GenomeSource.DIR", loader, dir);
+        assertThat(loads.get(), equalTo(2));
+        // Adding a file is also noticed.
+        FileUtils.writeStringToFile(new File(dir, "new.gto"), "{}", StandardCharsets.UTF_8);
+        dir.setLastModified(dirTime);
+        ResourceCache.get("GenomeSource.DIR", loader, dir);
+        assertThat(loads.get(), equalTo(3));
+    }
+
+    @Test
+    public void testConcurrentLoad() throws Exception {
+        File file = new File(this.tempDir, "big.txt");
+        FileUtils.writeStringToFile(file, "big resource", StandardCharsets.UTF_8);
+        AtomicInteger loads = new AtomicInteger();
+        ResourceCache.Loader<Object> loader = () -> {
+            loads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Object();
+        };
+        List<Integer> items = IntStream.range(0, 16).boxed().collect(Collectors.toList());
+        ParallelDriver<Void> driver = new ParallelDriver<Void>(8, () -> null);
+        Object[] first = new Object[1];
+        driver.run(items, (i, x) -> ResourceCache.get("big", loader, file), resource -> {
+            if (first[0] == null)
+                first[0] = resource;
+            assertThat(resource, sameInstance(first[0]));
+        });
+        assertThat(loads.get(), equalTo(1));
+    }
+
+    @Test
+    public void testLockedCapacity() throws IOException {
+        File file = new File(this.tempDir, "small.txt");
+        FileUtils.writeStringToFile(file, "x", StandardCharsets.UTF_8);
+        AtomicInteger loads = new AtomicInteger();
+        ResourceCache.Loader<Integer> loader = () -> loads.incrementAndGet();
+        ResourceCache.lockCapacity(5);
+        try {
+            // A command cannot turn off caching while the capacity is locked.
+            ResourceCache.setCapacity(0);
+            ResourceCache.get("small", loader, file);
+            ResourceCache.get("small", loader, file);
+            assertThat(loads.get(), equalTo(1));
+        } finally {
+            ResourceCache.unlockCapacity();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.theseed.genome.Genome;
+import org.theseed.proteins.kmers.reps.RepGenomeDb;
+
+/**
+ * Tests for the source genome index of a P3Eval directory.
+ */
+public class SeedProteinIndexTest {
+
+    @Test
+    public void testIndex() throws IOException {
+        File dir = Files.createTempDirectory("p3eval").toFile();
+        try {
+            // Build a small Scatter directory from the test genomes.
+            File scatterDir = new File(dir, "Scatter");
+            scatterDir.mkdir();
+            String[] genomeIds = new String[2];
+            String[] names = new String[2];
+            String[] files = new String[] { "MG1655-wild.gto", "MG1655-ATCC21277.gto" };
+            for (int i = 0; i < files.length; i++) {
+                File gtoFile = new File("data", files[i]);
+                Genome genome = new Genome(gtoFile);
+                genomeIds[i] = genome.getId();
+                names[i] = genome.getName();
+                FileUtils.copyFile(gtoFile, new File(scatterDir, genomeIds[i] + ".gto"));
+            }
+            File scatterFile = new File(dir, "scatter.tbl");
+            try (PrintWriter writer = new PrintWriter(scatterFile, StandardCharsets.UTF_8)) {
+                writer.println("rep200\tgenome_id");
+                writer.println("rep.1\t" + genomeIds[0]);
+                writer.println("rep.2\t" + genomeIds[1]);
+            }
+            RepGenomeDb repDb = new RepGenomeDb(200);
+            // The first load builds the index.
+            File indexFile = new File(dir, SeedProteinIndex.INDEX_NAME);
+            assertThat(indexFile.exists(), equalTo(false));
+            Map<String, SeedProteinIndex.Entry> index = SeedProteinIndex.load(dir, repDb);
+            assertThat(indexFile.isFile(), equalTo(true));
+            assertThat(index.size(), equalTo(2));
+            for (int i = 0; i < 2; i++) {
+                SeedProteinIndex.Entry entry = index.get("rep." + (i + 1));
+                assertThat(entry.getGenomeId(), equalTo(genomeIds[i]));
+                assertThat(entry.getName(), equalTo(names[i]));
+                assertThat(entry.getSeed().getProtein(), not(emptyOrNullString()));
+            }
+            // Mark the index so we can tell whether it gets rebuilt.  A current index must be reused.
+            List<String> lines = Files.readAllLines(indexFile.toPath());
+            markIndex(indexFile, names[0]);
+            index = SeedProteinIndex.load(dir, repDb);
+            assertThat(index.get("rep.1").getName(), equalTo("Marked genome"));
+            // Touch the scatter file.  Now the index must be rebuilt from the genomes.
+            long now = System.currentTimeMillis();
+            scatterFile.setLastModified(now + 10000);
+            index = SeedProteinIndex.load(dir, repDb);
+            assertThat(index.get("rep.1").getName(), equalTo(names[0]));
+            assertThat(index.get("rep.2").getName(), equalTo(names[1]));
+            List<String> newLines = Files.readAllLines(indexFile.toPath());
+            assertThat(newLines.subList(1, newLines.size()), equalTo(lines.subList(1, lines.size())));
+            // Rewrite a genome in place.  The directory's own modification time does not change, but the index
+            // must still be rebuilt.
+            markIndex(indexFile, names[0]);
+            long dirTime = scatterDir.lastModified();
+            File gtoFile = new File(scatterDir, genomeIds[0] + ".gto");
+            Files.write(gtoFile.toPath(), Files.readAllBytes(gtoFile.toPath()));
+            gtoFile.setLastModified(now + 20000);
+            scatterDir.setLastModified(dirTime);
+            index = SeedProteinIndex.load(dir, repDb);
+            assertThat(index.get("rep.1").getName(), equalTo(names[0]));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Change a genome name in an index file, so we can tell whether the index is rebuilt.
+     *
+     * @param indexFile		index file to change
+     * @param name			genome name to replace
+     *
+     * @throws IOException
+     */
+    private static void markIndex(File indexFile, String name) throws IOException {
+        List<String> marked = Files.readAllLines(indexFile.toPath()).stream()
+                .map(x -> x.replace(name, "Marked genome")).collect(Collectors.toList());
+        Files.write(indexFile.toPath(), marked);
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for the command server protocol.
+ */
+public class ServerProtocolTest {
+
+    @Test
+    public void testToken() throws IOException {
+        File dir = Files.createTempDirectory("token").toFile();
+        try {
+            File tokenFile = new File(dir, "sub/server.token");
+            String token = ServerProtocol.createToken(tokenFile);
+            assertThat(token.length(), equalTo(64));
+            assertThat(ServerProtocol.readToken(tokenFile), equalTo(token));
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+                assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())),
+                        equalTo("rw-------"));
+            // A new server gets a new token.
+            String token2 = ServerProtocol.createToken(tokenFile);
+            assertThat(token2, not(equalTo(token)));
+            assertThat(ServerProtocol.readToken(tokenFile), equalTo(token2));
+            // Build a request and read it back.
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            ServerProtocol.writeRequest(new DataOutputStream(buffer), token2, dir,
+                    new String[] { "md5Check", "-v", "inDir" });
+            byte[] request = buffer.toByteArray();
+            ServerProtocol.Request parsed = ServerProtocol.readRequest(new DataInputStream(new ByteArrayInputStream(request)),
+                    token2);
+            assertThat(parsed.getDirectory(), equalTo(dir.getAbsoluteFile()));
+            assertThat(parsed.getArgs(), arrayContaining("md5Check", "-v", "inDir"));
+            try {
+                ServerProtocol.readRequest(new DataInputStream(new ByteArrayInputStream(request)), token);
+                assertThat("Request with old token accepted.", false);
+            } catch (SecurityException e) {
+                // This is expected.
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+}
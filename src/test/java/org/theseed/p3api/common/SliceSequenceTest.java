@@ -0,0 +1,58 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for sliced byte-array sequences.
+ */
+public class SliceSequenceTest {
+
+    @Test
+    public void testSlices() throws IOException {
+        byte[] bases1 = "acgtacgtaaccggtt".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] bases2 = "ttttgggg".getBytes(StandardCharsets.ISO_8859_1);
+        SliceSequence full = new SliceSequence("s1.full", "original", 1);
+        full.add(bases1, 0, bases1.length);
+        assertThat(full.length(), equalTo(16));
+        // Cut out the middle of the sequence.
+        SliceSequence frac = new SliceSequence("s1.frac", "", 2);
+        frac.add(full, 0, 4);
+        frac.add(full, 10, 6);
+        assertThat(frac.getSequence(), equalTo("acgtccggtt"));
+        assertThat(frac.getSliceCount(), equalTo(2));
+        // Empty regions add no slices.
+        frac.add(full, 16, 0);
+        assertThat(frac.getSliceCount(), equalTo(2));
+        // Take a region that crosses a slice boundary, then append another sequence.
+        SliceSequence other = new SliceSequence("s2", null, 1);
+        other.add(bases2, 2, 4);
+        SliceSequence joined = new SliceSequence("joined", "", 1);
+        joined.add(frac, 2, 5);
+        joined.add(other);
+        assertThat(joined.getSequence(), equalTo("gtccgttgg"));
+        assertThat(joined.length(), equalTo(9));
+        assertThat(joined.getSliceCount(), equalTo(3));
+        // Verify the FASTA output.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        full.write(out);
+        joined.write(out);
+        other.write(out);
+        assertThat(out.toString(StandardCharsets.ISO_8859_1),
+                equalTo(">s1.full original\nacgtacgtaaccggtt\n>joined\ngtccgttgg\n>s2\nttgg\n"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBadRegion() {
+        byte[] bases = "acgt".getBytes(StandardCharsets.ISO_8859_1);
+        SliceSequence seq = new SliceSequence("s", "", 1);
+        seq.add(bases, 0, 4);
+        new SliceSequence("t", "", 1).add(seq, 2, 3);
+    }
+
+}
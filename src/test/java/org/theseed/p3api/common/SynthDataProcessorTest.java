@@ -0,0 +1,115 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import org.theseed.basic.ParseFailureException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.apache.commons.io.FileUtils;
+import org.theseed.sequence.FastaInputStream;
+import org.theseed.sequence.Sequence;
+
+/**
+ * Tests for the synthetic dataset generator.
+ */
+public class SynthDataProcessorTest {
+
+    @Test
+    public void testSizes() throws ParseFailureException {
+        assertThat(SynthDataProcessor.parseSize("1500"), equalTo(1500L));
+        assertThat(SynthDataProcessor.parseSize("2k"), equalTo(2048L));
+        assertThat(SynthDataProcessor.parseSize("10M"), equalTo(10L << 20));
+        assertThat(SynthDataProcessor.parseSize("300G"), equalTo(300L << 30));
+        assertThat(SynthDataProcessor.parseSize("1T"), equalTo(1L << 40));
+    }
+
+    @Test(expected = ParseFailureException.class)
+    public void testBadSize() throws ParseFailureException {
+        SynthDataProcessor.parseSize("12X");
+    }
+
+    @Test
+    public void testBases() {
+        byte[] longBuffer = new byte[1000];
+        byte[] shortBuffer = new byte[77];
+        SynthDataProcessor.fillBases(new SplittableRandom(42L), longBuffer, 1000);
+        SynthDataProcessor.fillBases(new SplittableRandom(42L), shortBuffer, 77);
+        // The same stream always produces the same prefix.
+        assertThat(Arrays.copyOf(longBuffer, 77), equalTo(shortBuffer));
+        int[] counts = new int[128];
+        for (byte b : longBuffer)
+            counts[b]++;
+        assertThat(counts['a'] + counts['c'] + counts['g'] + counts['t'], equalTo(1000));
+        for (char c : "acgt".toCharArray())
+            assertThat(counts[c], allOf(greaterThan(180), lessThan(320)));
+    }
+
+    @Test
+    public void testGenerate() throws IOException {
+        File dir = Files.createTempDirectory("synth").toFile();
+        try {
+            File[] outDirs = new File[] { new File(dir, "t1"), new File(dir, "t4") };
+            String[] threads = new String[] { "1", "4" };
+            final long size = 200 * 1024;
+            for (int i = 0; i < outDirs.length; i++) {
+                SynthDataProcessor processor = new SynthDataProcessor();
+                String[] args = new String[] { "--size", "200K", "--genomeLen", "20000", "--contigs", "5",
+                        "--complete", "1.0,0.5", "--contam", "0.5", "--gaps", "20", "--gapLen", "10",
+                        "--seed", "7", "--threads", threads[i], outDirs[i].toString() };
+                assertThat(processor.parseCommand(args), equalTo(true));
+                processor.run();
+            }
+            // The output must not depend on the thread count.
+            File summaryFile = new File(outDirs[0], SynthDataProcessor.SUMMARY_NAME);
+            assertThat(FileUtils.contentEquals(summaryFile, new File(outDirs[1], SynthDataProcessor.SUMMARY_NAME)),
+                    equalTo(true));
+            List<String> lines = Files.readAllLines(summaryFile.toPath());
+            assertThat(lines.get(0), equalTo("genome_id\tfile\tlength\tcontigs\tcompleteness\tcontaminant"
+                    + "\tcontam_length\tgaps\tresidues"));
+            long dnaTotal = 0;
+            int lastLength = 0;
+            int contamCount = 0;
+            for (int i = 1; i < lines.size(); i++) {
+                String[] fields = lines.get(i).split("\t", -1);
+                assertThat(fields[0], equalTo("6666666." + i));
+                File genomeFile = new File(outDirs[0], fields[1]);
+                assertThat(FileUtils.contentEquals(genomeFile, new File(outDirs[1], fields[1])), equalTo(true));
+                // Verify the summary against the file contents.
+                int contigs = 0;
+                long residues = 0;
+                long gapResidues = 0;
+                for (Sequence seq : FastaInputStream.readAll(genomeFile)) {
+                    contigs++;
+                    residues += seq.length();
+                    gapResidues += seq.getSequence().chars().filter(c -> c == 'n').count();
+                }
+                int length = Integer.parseInt(fields[2]);
+                int contamLength = Integer.parseInt(fields[6]);
+                int gaps = Integer.parseInt(fields[7]);
+                assertThat(fields[0], Integer.parseInt(fields[3]), equalTo(contigs));
+                assertThat(fields[0], Long.parseLong(fields[8]), equalTo(residues));
+                assertThat(fields[0], gapResidues, equalTo(gaps * 10L));
+                assertThat(fields[0], residues, equalTo((long) length + contamLength + gaps * 10L));
+                if (! fields[5].isEmpty())
+                    contamCount++;
+                dnaTotal += length;
+                lastLength = length;
+            }
+            // The genome DNA must reach the requested size without a whole genome to spare.
+            assertThat(dnaTotal, greaterThanOrEqualTo(size));
+            assertThat(dnaTotal - lastLength, lessThan(size));
+            assertThat(contamCount, greaterThan(0));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.theseed.p3api.common;
+
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for the synthetic contamination contig generator.
+ */
+public class VSynthProcessorTest {
+
+    @Test
+    public void testThreads() throws IOException {
+        File dir = Files.createTempDirectory("vsynth").toFile();
+        try {
+            File inDir = new File(dir, "in");
+            inDir.mkdir();
+            // Create some single-contig FASTA files of random DNA.
+            Random rand = new Random(1234L);
+            for (int i = 0; i < 9; i++) {
+                StringBuilder dna = new StringBuilder();
+                int len = 500 + rand.nextInt(1500);
+                for (int j = 0; j < len; j++)
+                    dna.append("acgt".charAt(rand.nextInt(4)));
+                try (PrintWriter writer = new PrintWriter(new File(inDir, "contig" + i + ".fna"))) {
+                    writer.println(">node" + i + " test contig " + i);
+                    writer.println(dna);
+                }
+            }
+            for (String mode : new String[] { "memory", "stream" }) {
+                byte[][] outputs = new byte[2][];
+                int[] threadCounts = new int[] { 1, 4 };
+                for (int t = 0; t < threadCounts.length; t++) {
+                    File outFile = new File(dir, mode + threadCounts[t] + ".fna");
+                    String[] args = new String[] { "--seed", "42", "--threads", String.valueOf(threadCounts[t]),
+                            "--mutate", "0.01,0.05", "--reservoir", "4", "-o", outFile.toString(), inDir.toString() };
+                    if (mode.equals("stream"))
+                        args = prependArg(args, "--stream");
+                    VSynthProcessor processor = new VSynthProcessor();
+                    assertThat(processor.parseCommand(args), equalTo(true));
+                    processor.run();
+                    outputs[t] = Files.readAllBytes(outFile.toPath());
+                }
+                assertThat(mode, outputs[0].length, greaterThan(0));
+                assertThat(mode, outputs[1], equalTo(outputs[0]));
+                // Each contig has a full copy, two mutants, and three fractionals, and all but the first have
+                // three contaminated fractionals.
+                String text = new String(outputs[0]);
+                int headers = text.split(">", -1).length - 1;
+                assertThat(mode, headers, equalTo(9 * 6 + 8 * 3));
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * @return a copy of an argument array with an extra argument at the front
+     *
+     * @param args		original arguments
+     * @param arg		argument to add
+     */
+    private static String[] prependArg(String[] args, String arg) {
+        String[] retVal = new String[args.length + 1];
+        retVal[0] = arg;
+        System.arraycopy(args, 0, retVal, 1, args.length);
+        return retVal;
+    }
+
+}